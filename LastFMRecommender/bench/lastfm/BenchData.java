@@ -0,0 +1,136 @@
+// Title        :   LastFM Recommender
+// Description  :   Datasets and user picks shared by the benchmarks. The
+//              :   "sample" dataset is the bundled .dat files; "scaled-N"
+//              :   tiles the bundled listens and friendships N times with
+//              :   shifted user ids (artists are shared) into a temporary
+//              :   directory. "synthetic-N" is N users (and N / 2 artists)
+//              :   written by DatGenerator. Users are picked by degree: the smallest
+//              :   non-zero, the median, and the largest ("hub").
+
+package lastfm;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+final class BenchData {
+    static final String USER_FRIENDS = "user_friends.dat";
+    static final String USER_ARTISTS = "user_artists.dat";
+    static final String ARTISTS = "artists.dat";
+
+    // directory holding the bundled .dat files; defaults to the working directory.
+    static final Path SAMPLE_DIR = Paths.get(System.getProperty("lastfm.data", "."));
+
+    private BenchData() {
+    }
+
+    // directory with the three .dat files of the named dataset.
+    static Path prepare(String dataset) throws IOException {
+        if (dataset.equals("sample")) {
+            return SAMPLE_DIR;
+        }
+        if (dataset.startsWith("scaled-")) {
+            return scaled(Integer.parseInt(dataset.substring("scaled-".length())));
+        }
+        if (dataset.startsWith("synthetic-")) {
+            int users = Integer.parseInt(dataset.substring("synthetic-".length()));
+            Path dir = Files.createTempDirectory("lastfm-" + dataset);
+            DatGenerator.lastFmShaped(users, Math.max(1, users / 2), 42).write(dir);
+            return dir;
+        }
+        throw new IllegalArgumentException("unknown dataset " + dataset);
+    }
+
+    // deletes a directory made by prepare; the sample directory is left alone.
+    static void cleanUp(Path dir) throws IOException {
+        if (dir.equals(SAMPLE_DIR)) {
+            return;
+        }
+        for (String file : new String[]{USER_FRIENDS, USER_ARTISTS, ARTISTS}) {
+            Files.deleteIfExists(dir.resolve(file));
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    static Recommender load(Path dir) {
+        return new Recommender(dir.resolve(USER_FRIENDS).toString(), dir.resolve(USER_ARTISTS).toString(),
+                dir.resolve(ARTISTS).toString());
+    }
+
+    // the user with the smallest non-zero, the median, or the largest degree in the friend graph
+    // (for "small", "medium" and "hub").
+    static int pickUser(Recommender recommender, String userClass) {
+        AdjacencyStore friends = recommender.userFriendGraph();
+        int users = 0;
+        long[] byDegree = new long[friends.vertexCount()];
+        for (int v = 0; v < friends.vertexCount(); v++) {
+            if (friends.degree(v) > 0) {
+                byDegree[users++] = ((long) friends.degree(v) << 32) | v;
+            }
+        }
+        if (users == 0) {
+            throw new IllegalStateException("dataset has no friendships");
+        }
+        long[] sorted = Arrays.copyOf(byDegree, users);
+        Arrays.sort(sorted);
+        switch (userClass) {
+            case "small":
+                return (int) sorted[0];
+            case "medium":
+                return (int) sorted[users / 2];
+            case "hub":
+                return (int) sorted[users - 1];
+            default:
+                throw new IllegalArgumentException("unknown user class " + userClass);
+        }
+    }
+
+    // copies the sample files into a temporary directory with every user id shifted by
+    // copy * (largest sample user id + 1), for copy = 0 .. factor - 1.
+    private static Path scaled(int factor) throws IOException {
+        Path dir = Files.createTempDirectory("lastfm-scaled-" + factor);
+        Files.copy(SAMPLE_DIR.resolve(ARTISTS), dir.resolve(ARTISTS));
+        List<String> friends = Files.readAllLines(SAMPLE_DIR.resolve(USER_FRIENDS), StandardCharsets.UTF_8);
+        List<String> listens = Files.readAllLines(SAMPLE_DIR.resolve(USER_ARTISTS), StandardCharsets.UTF_8);
+
+        int shift = 0;
+        for (String line : friends.subList(1, friends.size())) {
+            String[] columns = line.split("\t");
+            shift = Math.max(shift, Math.max(Integer.parseInt(columns[0]), Integer.parseInt(columns[1])));
+        }
+        for (String line : listens.subList(1, listens.size())) {
+            shift = Math.max(shift, Integer.parseInt(line.split("\t")[0]));
+        }
+        shift++;
+
+        try (BufferedWriter out = Files.newBufferedWriter(dir.resolve(USER_FRIENDS), StandardCharsets.UTF_8)) {
+            out.write(friends.get(0));
+            out.newLine();
+            for (int copy = 0; copy < factor; copy++) {
+                for (String line : friends.subList(1, friends.size())) {
+                    String[] columns = line.split("\t");
+                    out.write((Integer.parseInt(columns[0]) + copy * shift) + "\t"
+                            + (Integer.parseInt(columns[1]) + copy * shift));
+                    out.newLine();
+                }
+            }
+        }
+        try (BufferedWriter out = Files.newBufferedWriter(dir.resolve(USER_ARTISTS), StandardCharsets.UTF_8)) {
+            out.write(listens.get(0));
+            out.newLine();
+            for (int copy = 0; copy < factor; copy++) {
+                for (String line : listens.subList(1, listens.size())) {
+                    String[] columns = line.split("\t");
+                    out.write((Integer.parseInt(columns[0]) + copy * shift) + "\t" + columns[1] + "\t" + columns[2]);
+                    out.newLine();
+                }
+            }
+        }
+        return dir;
+    }
+}
@@ -0,0 +1,35 @@
+// Title        :   LastFM Recommender
+// Description  :   Runs the JMH benchmarks with the gc profiler, so every
+//              :   result also reports the allocation rate. Run it from the
+//              :   directory holding the .dat files (or pass
+//              :   -Dlastfm.data=<dir>). Arguments are the usual JMH
+//              :   command line: a regular expression selecting benchmarks,
+//              :   e.g. "QueryBenchmark", and options such as
+//              :   -p dataset=sample -f 1 -wi 1 -i 1 for a quick run.
+
+package lastfm;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.parent(commandLine);
+        if (commandLine.getIncludes().isEmpty()) {
+            builder.include("lastfm\\..*Benchmark");
+        }
+        Options options = builder
+                .addProfiler(GCProfiler.class)
+                .jvmArgsPrepend("-Dlastfm.data=" + BenchData.SAMPLE_DIR.toAbsolutePath())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,110 @@
+// Title        :   LastFM Recommender
+// Description  :   JMH benchmarks of loading: the whole Recommender
+//              :   constructor, each file it reads (the populate* steps
+//              :   delegate to DatLoader), the index building it does, and
+//              :   opening a snapshot or a segment directory instead.
+
+package lastfm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoadBenchmark {
+
+    @Param({"sample", "scaled-10", "synthetic-200000"})
+    public String dataset;
+
+    private Path dir;
+    private Path snapshot;
+    private Path segments;
+    private Recommender loaded;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = BenchData.prepare(dataset);
+        loaded = BenchData.load(dir);
+        snapshot = Files.createTempFile("lastfm-bench", ".snapshot");
+        loaded.writeSnapshot(snapshot.toString());
+        segments = Files.createTempDirectory("lastfm-bench-segments");
+        SegmentStore.build(dir.resolve(BenchData.USER_FRIENDS), dir.resolve(BenchData.USER_ARTISTS),
+                dir.resolve(BenchData.ARTISTS), segments, SegmentStore.defaultSegmentEdges());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(snapshot);
+        try (Stream<Path> files = Files.list(segments)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(segments);
+        BenchData.cleanUp(dir);
+    }
+
+    @Benchmark
+    public Recommender constructor() {
+        return BenchData.load(dir);
+    }
+
+    // populateArtistID
+    @Benchmark
+    public ArtistDictionary loadArtists() throws IOException {
+        return DatLoader.loadArtists(dir.resolve(BenchData.ARTISTS));
+    }
+
+    // populateUserFriendGraph
+    @Benchmark
+    public CSRGraph loadFriendGraph() throws IOException {
+        return DatLoader.loadGraph(dir.resolve(BenchData.USER_FRIENDS), false);
+    }
+
+    // populateUserArtistGraph
+    @Benchmark
+    public CSRGraph loadArtistGraph() throws IOException {
+        return DatLoader.loadGraph(dir.resolve(BenchData.USER_ARTISTS), true);
+    }
+
+    @Benchmark
+    public PopularityIndex buildPopularityIndex() {
+        return PopularityIndex.build(loaded.userArtistGraph());
+    }
+
+    @Benchmark
+    public NeighbourSets buildArtistSets() {
+        return new NeighbourSets(loaded.userArtistGraph());
+    }
+
+    @Benchmark
+    public Recommender openSnapshot() throws IOException {
+        return Recommender.fromSnapshot(snapshot.toString());
+    }
+
+    @Benchmark
+    public Recommender openSegments() throws IOException {
+        return Recommender.fromSegments(segments.toString());
+    }
+}
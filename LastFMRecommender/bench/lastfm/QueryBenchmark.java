@@ -0,0 +1,110 @@
+// Title        :   LastFM Recommender
+// Description  :   JMH benchmarks of every Recommender query for a small,
+//              :   a median and a hub user (by friend count). The typed
+//              :   queries are measured rather than the printing wrappers
+//              :   (listFriends, commonFriends, ...) so the numbers are not
+//              :   dominated by System.out.
+
+package lastfm;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBenchmark {
+
+    @Param({"sample", "scaled-10", "synthetic-200000"})
+    public String dataset;
+
+    @Param({"small", "medium", "hub"})
+    public String userClass;
+
+    // "compressed" queries a listen graph held as a CompressedCSRGraph.
+    @Param({"plain", "compressed"})
+    public String listens;
+
+    private Path dir;
+    private Recommender recommender;
+    private int user;
+    // the median user, as the other side of the pairwise queries.
+    private int other;
+    private int[] page;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = BenchData.prepare(dataset);
+        recommender = BenchData.load(dir);
+        if (listens.equals("compressed")) {
+            recommender = recommender.withCompressedListens();
+        }
+        user = BenchData.pickUser(recommender, userClass);
+        other = BenchData.pickUser(recommender, "medium");
+        page = recommender.friends(other);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchData.cleanUp(dir);
+    }
+
+    @Benchmark
+    public int[] listFriends() {
+        return recommender.friends(user);
+    }
+
+    @Benchmark
+    public int[] commonFriends() {
+        return recommender.mutualFriends(user, other);
+    }
+
+    @Benchmark
+    public int[] listArtists() {
+        return recommender.sharedArtists(user, other);
+    }
+
+    @Benchmark
+    public int[] sharedArtistCounts() {
+        return recommender.sharedArtistCounts(user, page);
+    }
+
+    @Benchmark
+    public List<ScoredArtist> listTop10() {
+        return recommender.topArtists(10);
+    }
+
+    @Benchmark
+    public List<ScoredArtist> recommend10() {
+        return recommender.recommend(user, 10);
+    }
+
+    @Benchmark
+    public List<ScoredArtist> recommend10LogPlays() {
+        return recommender.recommend(user, 10, ScoringKernel.Weighting.LOG_PLAYS);
+    }
+
+    @Benchmark
+    public List<ScoredArtist> recommend10TfIdf() {
+        return recommender.recommend(user, 10, ScoringKernel.Weighting.TF_IDF);
+    }
+}
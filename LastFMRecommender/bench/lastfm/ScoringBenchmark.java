@@ -0,0 +1,99 @@
+// Title        :   LastFM Recommender
+// Description  :   JMH benchmarks of the ScoringKernel loops, scalar against
+//              :   the Vector API, over candidate sets the size of a median
+//              :   user's, a hub user's and a very large hub user's. Plays
+//              :   are long-tailed like the LastFM counts, so once the heap
+//              :   is full most candidates fall below its threshold. The
+//              :   forked JVM gets the jdk.incubator.vector module; the
+//              :   vector kernel must also have been compiled, from the
+//              :   src-vector root (see VectorScoringKernel), or the vector
+//              :   runs fail at setup.
+
+package lastfm;
+
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class ScoringBenchmark {
+
+    @Param({"scalar", "vector"})
+    public String kernelName;
+
+    @Param({"500", "20000", "1000000"})
+    public int candidates;
+
+    private ScoringKernel kernel;
+    private int[] ids;
+    private double[] plays;
+    private double[] idf;
+    // the weighted benchmarks weigh a fresh copy, as a query does.
+    private double[] scores;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        kernel = kernelName.equals("vector") ? ScoringKernel.vector() : ScoringKernel.scalar();
+        if (kernel == null) {
+            throw new IllegalStateException("the vector kernel needs src-vector compiled and jdk.incubator.vector");
+        }
+        SplittableRandom random = new SplittableRandom(42);
+        ids = new int[candidates];
+        plays = new double[candidates];
+        for (int i = 0; i < candidates; i++) {
+            // candidate ids are scattered over an artist range twice their number.
+            ids[i] = random.nextInt(2 * candidates);
+            plays[i] = Math.floor(1 / (1e-4 + random.nextDouble())) * (1 + random.nextInt(4));
+        }
+        idf = new double[2 * candidates];
+        for (int i = 0; i < idf.length; i++) {
+            idf[i] = Math.log(2 + random.nextInt(1000));
+        }
+        scores = new double[candidates];
+    }
+
+    @Benchmark
+    public List<ScoredArtist> selectTop10() {
+        TopK top = new TopK(10);
+        kernel.select(ids, plays, candidates, top);
+        return top.drain();
+    }
+
+    @Benchmark
+    public List<ScoredArtist> logPlaysTop10() {
+        System.arraycopy(plays, 0, scores, 0, candidates);
+        kernel.log1p(scores, candidates);
+        kernel.scale(scores, candidates, 1 / kernel.sum(scores, candidates));
+        TopK top = new TopK(10);
+        kernel.select(ids, scores, candidates, top);
+        return top.drain();
+    }
+
+    @Benchmark
+    public List<ScoredArtist> tfIdfTop10() {
+        System.arraycopy(plays, 0, scores, 0, candidates);
+        kernel.multiplyGathered(scores, ids, idf, candidates);
+        kernel.scale(scores, candidates, 1 / kernel.sum(scores, candidates));
+        TopK top = new TopK(10);
+        kernel.select(ids, scores, candidates, top);
+        return top.drain();
+    }
+}
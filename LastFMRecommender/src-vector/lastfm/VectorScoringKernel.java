@@ -0,0 +1,108 @@
+// Title        :   LastFM Recommender
+// Description  :   ScoringKernel on the Vector API (jdk.incubator.vector), in
+//              :   the preferred species of the CPU: four doubles per lane
+//              :   group with AVX2, eight with AVX-512. select compares a
+//              :   whole vector against the heap's threshold at once and
+//              :   only looks at the lanes of vectors that hold a contender,
+//              :   so once the heap is full most of the candidates are
+//              :   passed over a vector at a time. The tails that do not
+//              :   fill a vector run as scalar loops.
+//              :
+//              :   It lives in its own source root, src-vector, so that src
+//              :   compiles without the incubator module. Compile it after
+//              :   src, into the same output, and run with the module:
+//              :   javac --add-modules jdk.incubator.vector -cp out -d out
+//              :   src-vector/lastfm/VectorScoringKernel.java
+//              :   ScoringKernel.get() falls back to ScalarScoringKernel
+//              :   when the class or the module is missing.
+
+package lastfm;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+public final class VectorScoringKernel extends ScoringKernel {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    @Override
+    public String name() {
+        return "vector-" + LANES;
+    }
+
+    @Override
+    public void log1p(double[] values, int count) {
+        int i = 0;
+        for (int upper = SPECIES.loopBound(count); i < upper; i += LANES) {
+            DoubleVector.fromArray(SPECIES, values, i).lanewise(VectorOperators.LOG1P).intoArray(values, i);
+        }
+        for (; i < count; i++) {
+            values[i] = Math.log1p(values[i]);
+        }
+    }
+
+    @Override
+    public void multiplyGathered(double[] values, int[] ids, double[] factors, int count) {
+        int i = 0;
+        for (int upper = SPECIES.loopBound(count); i < upper; i += LANES) {
+            DoubleVector factor = DoubleVector.fromArray(SPECIES, factors, 0, ids, i);
+            DoubleVector.fromArray(SPECIES, values, i).mul(factor).intoArray(values, i);
+        }
+        for (; i < count; i++) {
+            values[i] *= factors[ids[i]];
+        }
+    }
+
+    @Override
+    public double sum(double[] values, int count) {
+        DoubleVector sums = DoubleVector.zero(SPECIES);
+        int i = 0;
+        for (int upper = SPECIES.loopBound(count); i < upper; i += LANES) {
+            sums = sums.add(DoubleVector.fromArray(SPECIES, values, i));
+        }
+        double sum = sums.reduceLanes(VectorOperators.ADD);
+        for (; i < count; i++) {
+            sum += values[i];
+        }
+        return sum;
+    }
+
+    @Override
+    public void scale(double[] values, int count, double factor) {
+        int i = 0;
+        for (int upper = SPECIES.loopBound(count); i < upper; i += LANES) {
+            DoubleVector.fromArray(SPECIES, values, i).mul(factor).intoArray(values, i);
+        }
+        for (; i < count; i++) {
+            values[i] *= factor;
+        }
+    }
+
+    @Override
+    public void select(int[] ids, double[] values, int count, TopK top) {
+        double threshold = top.threshold();
+        int i = 0;
+        for (int upper = SPECIES.loopBound(count); i < upper; i += LANES) {
+            VectorMask<Double> contenders = DoubleVector.fromArray(SPECIES, values, i)
+                    .compare(VectorOperators.GE, threshold);
+            if (!contenders.anyTrue()) {
+                continue;
+            }
+            for (int lane = contenders.firstTrue(); lane < LANES; lane++) {
+                // the threshold rises as lanes are offered, so every lane is checked again.
+                if (contenders.laneIsSet(lane) && values[i + lane] >= threshold) {
+                    top.offer(ids[i + lane], values[i + lane]);
+                    threshold = top.threshold();
+                }
+            }
+        }
+        for (; i < count; i++) {
+            if (values[i] >= threshold) {
+                top.offer(ids[i], values[i]);
+                threshold = top.threshold();
+            }
+        }
+    }
+}
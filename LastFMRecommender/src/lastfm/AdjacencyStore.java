@@ -0,0 +1,70 @@
+// Title        :   LastFM Recommender
+// Description  :   Read-only view of a compressed-sparse-row graph. Vertex v
+//              :   owns the edges start(v) .. end(v) - 1, whose targets are
+//              :   in ascending order. Implemented on the heap by CSRGraph
+//              :   and over a memory-mapped snapshot by MappedCSRGraph.
+
+package lastfm;
+
+public interface AdjacencyStore {
+
+    int vertexCount();
+
+    int edgeCount();
+
+    boolean isWeighted();
+
+    // ids outside the graph are treated as vertices with no edges.
+    default boolean hasVertex(int v) {
+        return v >= 0 && v < vertexCount();
+    }
+
+    // index of the first edge owned by v.
+    int start(int v);
+
+    // index one past the last edge owned by v.
+    int end(int v);
+
+    default int degree(int v) {
+        return end(v) - start(v);
+    }
+
+    // target vertex of the edge at the given index.
+    int target(int edge);
+
+    // weight of the edge at the given index.
+    int weight(int edge);
+
+    // index of the edge from v to target, found by binary search of v's sorted row, or -1.
+    default int find(int v, int target) {
+        int low = start(v);
+        int high = end(v) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int found = target(mid);
+            if (found < target) {
+                low = mid + 1;
+            } else if (found > target) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    // estimated bytes the store holds on the java heap; mapped stores hold almost nothing.
+    default long heapBytes() {
+        return 0;
+    }
+
+    // copy of v's neighbours in ascending order.
+    default int[] neighbours(int v) {
+        int start = start(v);
+        int[] neighbours = new int[end(v) - start];
+        for (int i = 0; i < neighbours.length; i++) {
+            neighbours[i] = target(start + i);
+        }
+        return neighbours;
+    }
+}
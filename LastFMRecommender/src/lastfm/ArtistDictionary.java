@@ -0,0 +1,475 @@
+// Title        :   LastFM Recommender
+// Description  :   Dense, id-indexed dictionary of artist names and URLs.
+//              :   All fields live as UTF-8 bytes in one contiguous buffer
+//              :   and are decoded only when asked for, so an artist costs a
+//              :   few offsets and its bytes instead of a HashMap entry, a
+//              :   boxed key and a String. URLs are stored without the
+//              :   well-known LastFM prefixes. A second array keeps the ids
+//              :   sorted by case-folded name, which answers prefix
+//              :   (autocomplete) and case-insensitive exact-name searches
+//              :   by binary search.
+
+package lastfm;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+public final class ArtistDictionary {
+    static final int FIELDS = 3;
+    static final int NAME = 0;
+    static final int URL = 1;
+    static final int PICTURE_URL = 2;
+
+    // a stored URL starts with a tag byte: 0 for a URL stored in full, k for one that started
+    // with URL_PREFIXES[k - 1]. longer prefixes come before their own prefixes.
+    private static final String[] URL_PREFIXES = {
+            "http://www.last.fm/music/",
+            "http://userserve-ak.last.fm/serve/252/",
+            "http://userserve-ak.last.fm/serve/"
+    };
+    private static final byte[][] URL_PREFIX_BYTES = new byte[URL_PREFIXES.length][];
+
+    static {
+        for (int i = 0; i < URL_PREFIXES.length; i++) {
+            URL_PREFIX_BYTES[i] = URL_PREFIXES[i].getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    // field f of artist id is bytes[offsets[FIELDS * id + f] .. offsets[FIELDS * id + f + 1]).
+    private final int[] offsets;
+    private final byte[] bytes;
+    // bit id is set for every id that has an entry.
+    private final long[] present;
+    private final int size;
+    // ids of every artist, by case-folded name and then by id.
+    private final int[] byName;
+
+    ArtistDictionary(int[] offsets, byte[] bytes, long[] present, int size, int[] byName) {
+        this.offsets = offsets;
+        this.bytes = bytes;
+        this.present = present;
+        this.size = size;
+        this.byName = byName;
+    }
+
+    private ArtistDictionary(int[] offsets, byte[] bytes, long[] present, int size) {
+        this.offsets = offsets;
+        this.bytes = bytes;
+        this.present = present;
+        this.size = size;
+        this.byName = new int[size];
+        int at = 0;
+        for (int id = nextId(0); id >= 0; id = nextId(id + 1)) {
+            byName[at++] = id;
+        }
+        sortByName(byName, new int[size], 0, size);
+    }
+
+    // a dictionary of names only, e.g. for artists that were not read from artists.dat.
+    public static ArtistDictionary of(Map<Integer, String> names) {
+        Builder builder = new Builder();
+        for (Map.Entry<Integer, String> entry : names.entrySet()) {
+            builder.add(entry.getKey(), entry.getValue(), "", "");
+        }
+        return build(builder);
+    }
+
+    // number of artists.
+    public int size() {
+        return size;
+    }
+
+    // one past the largest artist id.
+    public int idLimit() {
+        return offsets.length / FIELDS;
+    }
+
+    public boolean contains(int id) {
+        return id >= 0 && id < idLimit() && (present[id >>> 6] & (1L << id)) != 0;
+    }
+
+    // the smallest artist id at or after from, or -1. walks every artist without boxing:
+    // for (int id = nextId(0); id >= 0; id = nextId(id + 1)).
+    public int nextId(int from) {
+        from = Math.max(0, from);
+        int word = from >>> 6;
+        if (from >= idLimit() || word >= present.length) {
+            return -1;
+        }
+        long bits = present[word] & (-1L << from);
+        while (bits == 0) {
+            if (++word == present.length) {
+                return -1;
+            }
+            bits = present[word];
+        }
+        return (word << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    // the name of the artist, or null if there is no artist with that id.
+    public String name(int id) {
+        return contains(id) ? decode(id, NAME) : null;
+    }
+
+    // the artist's last.fm page, or null if there is no artist with that id.
+    public String url(int id) {
+        return contains(id) ? decodeUrl(id, URL) : null;
+    }
+
+    // the artist's picture, or null if there is no artist with that id.
+    public String pictureUrl(int id) {
+        return contains(id) ? decodeUrl(id, PICTURE_URL) : null;
+    }
+
+    private String decode(int id, int field) {
+        int start = offsets[FIELDS * id + field];
+        return new String(bytes, start, offsets[FIELDS * id + field + 1] - start, StandardCharsets.UTF_8);
+    }
+
+    private String decodeUrl(int id, int field) {
+        int start = offsets[FIELDS * id + field];
+        int end = offsets[FIELDS * id + field + 1];
+        if (start == end) {
+            return "";
+        }
+        String rest = new String(bytes, start + 1, end - start - 1, StandardCharsets.UTF_8);
+        return bytes[start] == 0 ? rest : URL_PREFIXES[bytes[start] - 1] + rest;
+    }
+
+    // up to limit ids of artists whose names start with prefix, ignoring case, in name order.
+    public int[] searchPrefix(String prefix, int limit) {
+        int[] folded = fold(prefix);
+        int first = lowerBound(folded);
+        int last = first;
+        while (last < byName.length && last - first < limit && comparePrefix(byName[last], folded) == 0) {
+            last++;
+        }
+        return Arrays.copyOfRange(byName, first, last);
+    }
+
+    // ids of the artists with exactly this name, ignoring case, ascending.
+    public int[] withName(String name) {
+        int[] folded = fold(name);
+        int first = lowerBound(folded);
+        int last = first;
+        while (last < byName.length && compareFolded(byName[last], folded) == 0) {
+            last++;
+        }
+        return Arrays.copyOfRange(byName, first, last);
+    }
+
+    // index of the first id in byName whose folded name is not below the folded key.
+    private int lowerBound(int[] folded) {
+        int low = 0;
+        int high = byName.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareFolded(byName[mid], folded) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // estimated heap bytes of the dictionary.
+    public long heapBytes() {
+        return 16 + 4L * offsets.length + 16 + bytes.length + 16 + 8L * present.length + 16 + 4L * byName.length;
+    }
+
+    // the raw arrays, for SnapshotFile.
+    int[] offsets() {
+        return offsets;
+    }
+
+    byte[] bytes() {
+        return bytes;
+    }
+
+    long[] present() {
+        return present;
+    }
+
+    int[] byName() {
+        return byName;
+    }
+
+    // case folding: one code point at a time, as in String.equalsIgnoreCase.
+    private static int fold(int codePoint) {
+        return Character.toLowerCase(Character.toUpperCase(codePoint));
+    }
+
+    private static int[] fold(String value) {
+        return value.codePoints().map(ArtistDictionary::fold).toArray();
+    }
+
+    // compares the folded name of id with the folded key.
+    private int compareFolded(int id, int[] key) {
+        int order = comparePrefix(id, key);
+        if (order != 0) {
+            return order;
+        }
+        return codePoints(id) == key.length ? 0 : 1;
+    }
+
+    private int codePoints(int id) {
+        int end = offsets[FIELDS * id + NAME + 1];
+        int count = 0;
+        for (int at = offsets[FIELDS * id + NAME]; at < end; at = (int) nextCodePoint(bytes, at, end)) {
+            count++;
+        }
+        return count;
+    }
+
+    // 0 if the folded name of id starts with the folded key, else the order of the name's
+    // first key-length code points against the key.
+    private int comparePrefix(int id, int[] key) {
+        int at = offsets[FIELDS * id + NAME];
+        int end = offsets[FIELDS * id + NAME + 1];
+        for (int codePoint : key) {
+            if (at == end) {
+                return -1;
+            }
+            long next = nextCodePoint(bytes, at, end);
+            int c = fold((int) (next >>> 32));
+            if (c != codePoint) {
+                return Integer.compare(c, codePoint);
+            }
+            at = (int) next;
+        }
+        return 0;
+    }
+
+    // compares two names by folded code points, then by id.
+    private int compareNames(int id1, int id2) {
+        int at1 = offsets[FIELDS * id1 + NAME];
+        int end1 = offsets[FIELDS * id1 + NAME + 1];
+        int at2 = offsets[FIELDS * id2 + NAME];
+        int end2 = offsets[FIELDS * id2 + NAME + 1];
+        while (at1 < end1 && at2 < end2) {
+            long next1 = nextCodePoint(bytes, at1, end1);
+            long next2 = nextCodePoint(bytes, at2, end2);
+            int c1 = fold((int) (next1 >>> 32));
+            int c2 = fold((int) (next2 >>> 32));
+            if (c1 != c2) {
+                return Integer.compare(c1, c2);
+            }
+            at1 = (int) next1;
+            at2 = (int) next2;
+        }
+        if (at1 < end1 || at2 < end2) {
+            return at1 < end1 ? 1 : -1;
+        }
+        return Integer.compare(id1, id2);
+    }
+
+    // decodes the UTF-8 code point at bytes[at]. returns (codePoint << 32) | index after it.
+    // malformed bytes decode to U+FFFD one byte at a time.
+    static long nextCodePoint(byte[] bytes, int at, int end) {
+        int b = bytes[at] & 0xFF;
+        int length;
+        int codePoint;
+        if (b < 0x80) {
+            return ((long) b << 32) | (at + 1);
+        } else if (b >= 0xC2 && b < 0xE0) {
+            length = 2;
+            codePoint = b & 0x1F;
+        } else if (b >= 0xE0 && b < 0xF0) {
+            length = 3;
+            codePoint = b & 0x0F;
+        } else if (b >= 0xF0 && b < 0xF5) {
+            length = 4;
+            codePoint = b & 0x07;
+        } else {
+            return (0xFFFDL << 32) | (at + 1);
+        }
+        if (at + length > end) {
+            return (0xFFFDL << 32) | (at + 1);
+        }
+        for (int i = 1; i < length; i++) {
+            int continuation = bytes[at + i] & 0xFF;
+            if ((continuation & 0xC0) != 0x80) {
+                return (0xFFFDL << 32) | (at + 1);
+            }
+            codePoint = (codePoint << 6) | (continuation & 0x3F);
+        }
+        return ((long) codePoint << 32) | (at + length);
+    }
+
+    // merge sort of ids[from, to) by name, using scratch of the same length.
+    private void sortByName(int[] ids, int[] scratch, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        sortByName(ids, scratch, from, mid);
+        sortByName(ids, scratch, mid, to);
+        if (compareNames(ids[mid - 1], ids[mid]) <= 0) {
+            return;
+        }
+        System.arraycopy(ids, from, scratch, from, to - from);
+        int left = from;
+        int right = mid;
+        for (int i = from; i < to; i++) {
+            if (right == to || (left < mid && compareNames(scratch[left], scratch[right]) <= 0)) {
+                ids[i] = scratch[left++];
+            } else {
+                ids[i] = scratch[right++];
+            }
+        }
+    }
+
+    // builds a dictionary from the entries collected by one or more builders, e.g. one per chunk
+    // of artists.dat. if an id was added more than once, the last entry wins.
+    static ArtistDictionary build(Builder... parts) {
+        int idLimit = 0;
+        int total = 0;
+        for (Builder part : parts) {
+            for (int e = 0; e < part.count; e++) {
+                idLimit = Math.max(idLimit, part.ids[e] + 1);
+            }
+            total += part.count;
+        }
+
+        // owner[id] is one plus the global index of the entry that id keeps.
+        int[] owner = new int[idLimit];
+        int base = 0;
+        for (Builder part : parts) {
+            for (int e = 0; e < part.count; e++) {
+                owner[part.ids[e]] = base + e + 1;
+            }
+            base += part.count;
+        }
+
+        // field lengths, then offsets by an exclusive prefix sum.
+        int[] offsets = new int[FIELDS * idLimit + 1];
+        base = 0;
+        for (Builder part : parts) {
+            for (int e = 0; e < part.count; e++) {
+                int id = part.ids[e];
+                if (owner[id] == base + e + 1) {
+                    for (int f = 0; f < FIELDS; f++) {
+                        offsets[FIELDS * id + f + 1] = part.fieldEnd(e, f) - part.fieldStart(e, f);
+                    }
+                }
+            }
+            base += part.count;
+        }
+        for (int i = 0; i < FIELDS * idLimit; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+
+        byte[] bytes = new byte[offsets[FIELDS * idLimit]];
+        long[] present = new long[(idLimit + 63) >>> 6];
+        int size = 0;
+        base = 0;
+        for (Builder part : parts) {
+            for (int e = 0; e < part.count; e++) {
+                int id = part.ids[e];
+                if (owner[id] == base + e + 1) {
+                    int start = part.fieldStart(e, 0);
+                    int end = part.fieldEnd(e, FIELDS - 1);
+                    System.arraycopy(part.data, start, bytes, offsets[FIELDS * id], end - start);
+                    present[id >>> 6] |= 1L << id;
+                    size++;
+                }
+            }
+            base += part.count;
+        }
+        return new ArtistDictionary(offsets, bytes, present, size);
+    }
+
+    // collects (id, name, url, pictureURL) entries as encoded bytes.
+    static final class Builder {
+        private int[] ids = new int[64];
+        // ends[FIELDS * e + f] is the end of field f of entry e in data; fields are back to back.
+        private int[] ends = new int[FIELDS * 64];
+        private byte[] data = new byte[1 << 12];
+        private int count;
+        private int length;
+
+        // adds the fields at source[nameStart, nameEnd), [urlStart, urlEnd) and
+        // [pictureStart, pictureEnd), which must be UTF-8.
+        void add(int id, ByteBuffer source, int nameStart, int nameEnd, int urlStart, int urlEnd,
+                 int pictureStart, int pictureEnd) {
+            if (id < 0) {
+                throw new IllegalArgumentException("negative artist id " + id);
+            }
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+                ends = Arrays.copyOf(ends, FIELDS * count * 2);
+            }
+            ids[count] = id;
+            append(source, nameStart, nameEnd, false);
+            ends[FIELDS * count + NAME] = length;
+            append(source, urlStart, urlEnd, true);
+            ends[FIELDS * count + URL] = length;
+            append(source, pictureStart, pictureEnd, true);
+            ends[FIELDS * count + PICTURE_URL] = length;
+            count++;
+        }
+
+        void add(int id, String name, String url, String pictureUrl) {
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            byte[] urlBytes = url.getBytes(StandardCharsets.UTF_8);
+            byte[] pictureBytes = pictureUrl.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer source = ByteBuffer.allocate(nameBytes.length + urlBytes.length + pictureBytes.length);
+            source.put(nameBytes).put(urlBytes).put(pictureBytes);
+            int urlStart = nameBytes.length;
+            int pictureStart = urlStart + urlBytes.length;
+            add(id, source, 0, urlStart, urlStart, pictureStart, pictureStart, source.capacity());
+        }
+
+        int size() {
+            return count;
+        }
+
+        private int fieldStart(int entry, int field) {
+            int at = FIELDS * entry + field;
+            return at == 0 ? 0 : ends[at - 1];
+        }
+
+        private int fieldEnd(int entry, int field) {
+            return ends[FIELDS * entry + field];
+        }
+
+        // copies source[start, end), behind a prefix tag for URLs. empty URLs stay empty.
+        private void append(ByteBuffer source, int start, int end, boolean url) {
+            if (url && start < end) {
+                int tag = 0;
+                for (int p = 0; p < URL_PREFIX_BYTES.length && tag == 0; p++) {
+                    if (startsWith(source, start, end, URL_PREFIX_BYTES[p])) {
+                        tag = p + 1;
+                        start += URL_PREFIX_BYTES[p].length;
+                    }
+                }
+                ensure(1);
+                data[length++] = (byte) tag;
+            }
+            ensure(end - start);
+            source.get(start, data, length, end - start);
+            length += end - start;
+        }
+
+        private static boolean startsWith(ByteBuffer source, int start, int end, byte[] prefix) {
+            if (end - start < prefix.length) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length; i++) {
+                if (source.get(start + i) != prefix[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + extra));
+            }
+        }
+    }
+}
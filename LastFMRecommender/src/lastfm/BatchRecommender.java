@@ -0,0 +1,241 @@
+// Title        :   LastFM Recommender
+// Description  :   Offline job that computes recommendations for every user,
+//              :   or a range of user ids, on a fork/join pool. Workers split
+//              :   the id range down to small blocks, score each user with
+//              :   their own reusable accumulator, and hand encoded blocks to
+//              :   a single writer thread through a bounded queue, so memory
+//              :   stays bounded however many users there are.
+//              :
+//              :   Output, all little-endian:
+//              :   magic int, version int, k int, then one record per user
+//              :   with recommendations: user int, count int, and count
+//              :   pairs of (artist int, score double). Records are written
+//              :   in completion order, not user order. The file is written
+//              :   under a temporary name and moved over the output once the
+//              :   run succeeds (see SnapshotFile.Output), so a failed or
+//              :   interrupted run leaves an earlier output as it was.
+
+package lastfm;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public final class BatchRecommender {
+    static final int MAGIC = 0x4C464D52; // "LFMR"
+    static final int VERSION = 1;
+
+    private static final int BLOCK_USERS = 256;
+    private static final int RECORD_HEADER_BYTES = 2 * Integer.BYTES;
+    private static final int ENTRY_BYTES = Integer.BYTES + Double.BYTES;
+    // the largest k whose blocks still fit in one buffer.
+    static final int MAX_K = ((Integer.MAX_VALUE - RECORD_HEADER_BYTES) / BLOCK_USERS - RECORD_HEADER_BYTES)
+            / ENTRY_BYTES;
+    // how long a worker waits on a full queue, or the writer on an empty one, before checking
+    // whether the run was abandoned.
+    private static final long OFFER_WAIT_MILLIS = 50;
+    // an empty buffer tells the writer that every block has been queued.
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final Recommender recommender;
+    private final int k;
+    private final int parallelism;
+
+    // called by the writer thread after every written block.
+    public interface ProgressListener {
+        void onProgress(long usersDone, long usersTotal);
+    }
+
+    public BatchRecommender(Recommender recommender, int k, int parallelism) {
+        if (k < 0 || k > MAX_K) {
+            throw new IllegalArgumentException("k must be in 0.." + MAX_K + ": " + k);
+        }
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        }
+        this.recommender = recommender;
+        this.k = k;
+        this.parallelism = parallelism;
+    }
+
+    public BatchRecommender(Recommender recommender, int k) {
+        this(recommender, k, Runtime.getRuntime().availableProcessors());
+    }
+
+    // recommends for every user id in [firstUser, lastUser] and writes the results to output.
+    // returns the number of records written.
+    public long run(int firstUser, int lastUser, Path output, ProgressListener progress) throws IOException {
+        if (firstUser > lastUser) {
+            throw new IllegalArgumentException("empty user range " + firstUser + ".." + lastUser);
+        }
+        long total = (long) lastUser - firstUser + 1;
+        BlockingQueue<ByteBuffer> blocks = new ArrayBlockingQueue<>(2 * parallelism);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        // set once the writer stops taking blocks, so workers drop theirs instead of waiting on a
+        // queue nobody drains, or once the run fails, so the writer stops waiting for the rest.
+        AtomicBoolean abandoned = new AtomicBoolean();
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try (SnapshotFile.Output file = new SnapshotFile.Output(output)) {
+            file.out.putInt(MAGIC);
+            file.out.putInt(VERSION);
+            file.out.putInt(k);
+
+            Thread producer = new Thread(() -> {
+                try {
+                    pool.invoke(new Block(firstUser, lastUser, blocks, abandoned));
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                    abandoned.set(true);
+                } finally {
+                    try {
+                        put(blocks, END, abandoned);
+                    } catch (UncheckedIOException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }, "batch-recommender-scheduler");
+            // a failed write must not leave the JVM waiting on this thread.
+            producer.setDaemon(true);
+            producer.start();
+
+            long records = 0;
+            long usersDone = 0;
+            ByteBuffer block;
+            while ((block = take(blocks, abandoned)) != END) {
+                int users = block.getInt(0);
+                records += block.getInt(Integer.BYTES);
+                block.position(RECORD_HEADER_BYTES);
+                file.out.put(block);
+                usersDone += users;
+                if (progress != null) {
+                    progress.onProgress(usersDone, total);
+                }
+            }
+
+            joinUninterruptibly(producer);
+            if (failure.get() != null) {
+                throw new IOException("batch recommendation failed", failure.get());
+            }
+            file.commit();
+            return records;
+        } finally {
+            abandoned.set(true);
+            pool.shutdownNow();
+        }
+    }
+
+    // scores the users of one id range; ranges above BLOCK_USERS are split in half.
+    private final class Block extends RecursiveAction {
+        private final int first;
+        private final int last;
+        private final BlockingQueue<ByteBuffer> out;
+        private final AtomicBoolean abandoned;
+
+        Block(int first, int last, BlockingQueue<ByteBuffer> out, AtomicBoolean abandoned) {
+            this.first = first;
+            this.last = last;
+            this.out = out;
+            this.abandoned = abandoned;
+        }
+
+        @Override
+        protected void compute() {
+            if (abandoned.get()) {
+                return;
+            }
+            if ((long) last - first + 1 > BLOCK_USERS) {
+                int middle = (int) (((long) first + last) >>> 1);
+                invokeAll(new Block(first, middle, out, abandoned), new Block(middle + 1, last, out, abandoned));
+                return;
+            }
+
+            // the block starts with (users covered, records written), which the writer strips off.
+            int users = last - first + 1;
+            // at most BLOCK_USERS records, which MAX_K keeps within an int.
+            ByteBuffer block = ByteBuffer.allocate((int) (RECORD_HEADER_BYTES
+                    + users * (RECORD_HEADER_BYTES + (long) k * ENTRY_BYTES))).order(ByteOrder.LITTLE_ENDIAN);
+            block.position(RECORD_HEADER_BYTES);
+            int records = 0;
+            for (int user = first; user <= last && user >= first; user++) {
+                // recommend reuses this worker thread's accumulator for every user.
+                List<ScoredArtist> recommended = recommender.recommend(user, k);
+                if (recommended.isEmpty()) {
+                    continue;
+                }
+                block.putInt(user).putInt(recommended.size());
+                for (ScoredArtist artist : recommended) {
+                    block.putInt(artist.artist()).putDouble(artist.score());
+                }
+                records++;
+            }
+            block.putInt(0, users).putInt(Integer.BYTES, records);
+            block.flip();
+            put(out, block, abandoned);
+        }
+    }
+
+    // queues the buffer, or drops it once the run is abandoned. an interrupted wait abandons the
+    // run and is thrown, so the run fails instead of writing an output without the block.
+    private static void put(BlockingQueue<ByteBuffer> queue, ByteBuffer buffer, AtomicBoolean abandoned) {
+        try {
+            while (!abandoned.get()) {
+                if (queue.offer(buffer, OFFER_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            abandoned.set(true);
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(interrupted("interrupted queuing a block of recommendations", e));
+        }
+    }
+
+    // the next queued block, or END once the run is abandoned.
+    private static ByteBuffer take(BlockingQueue<ByteBuffer> queue, AtomicBoolean abandoned)
+            throws InterruptedIOException {
+        try {
+            while (!abandoned.get()) {
+                ByteBuffer block = queue.poll(OFFER_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                if (block != null) {
+                    return block;
+                }
+            }
+            return END;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw interrupted("interrupted writing recommendations", e);
+        }
+    }
+
+    private static InterruptedIOException interrupted(String message, InterruptedException cause) {
+        InterruptedIOException e = new InterruptedIOException(message);
+        e.initCause(cause);
+        return e;
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
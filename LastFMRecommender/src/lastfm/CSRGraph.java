@@ -0,0 +1,342 @@
+// Title        :   LastFM Recommender
+// Description  :   Immutable compressed-sparse-row graph. Every vertex owns a
+//              :   contiguous, ascending slice of the targets array, and an
+//              :   optional parallel weights array holds integer edge weights
+//              :   (listen counts). Replaces the algs4 Digraph and
+//              :   EdgeWeightedDigraph so a graph is three primitive arrays
+//              :   instead of one Bag node (and DirectedEdge) per edge.
+//              :   This is the heap-resident AdjacencyStore.
+
+package lastfm;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+public final class CSRGraph implements AdjacencyStore {
+    private static final VarHandle INT_ARRAY = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final int SLICE_EDGES = 1 << 16;
+    private static final int SORT_BLOCK_VERTICES = 1 << 12;
+
+    // offsets[v] .. offsets[v + 1] is the slice of targets/weights owned by v.
+    private final int[] offsets;
+    private final int[] targets;
+    // null for unweighted graphs.
+    private final int[] weights;
+
+    private CSRGraph(int[] offsets, int[] targets, int[] weights) {
+        this.offsets = offsets;
+        this.targets = targets;
+        this.weights = weights;
+    }
+
+    // builds a graph from the first edgeCount entries of the parallel from/to/weight arrays.
+    // weight may be null for an unweighted graph. the vertex count is one past the largest
+    // id seen, so graphs are sized by their ids rather than by the number of lines in a file.
+    public static CSRGraph fromEdges(int[] from, int[] to, int[] weight, int edgeCount) {
+        return fromChunks(new int[][]{from}, new int[][]{to}, weight == null ? null : new int[][]{weight},
+                new int[]{edgeCount});
+    }
+
+    // builds a graph from edges that were collected in several chunks, e.g. one per slice of an
+    // input file. chunk c holds sizes[c] edges in from[c]/to[c]/weight[c]. degrees are counted
+    // and edges scattered in parallel with atomic increments on the offset and cursor arrays,
+    // the offsets come from a parallel prefix sum, and rows are sorted in parallel, so the
+    // result does not depend on the order in which the slices were processed.
+    static CSRGraph fromChunks(int[][] from, int[][] to, int[][] weight, int[] sizes) {
+        List<int[]> slices = slice(sizes);
+
+        int maxVertex = slices.parallelStream().mapToInt(slice -> {
+            int[] chunkFrom = from[slice[0]];
+            int[] chunkTo = to[slice[0]];
+            int max = -1;
+            for (int e = slice[1]; e < slice[2]; e++) {
+                if (chunkFrom[e] < 0 || chunkTo[e] < 0) {
+                    throw new IllegalArgumentException("negative vertex id on edge " + e + " of chunk " + slice[0]);
+                }
+                max = Math.max(max, Math.max(chunkFrom[e], chunkTo[e]));
+            }
+            return max;
+        }).max().orElse(-1);
+        int vertexCount = maxVertex + 1;
+
+        long edgeCount = 0;
+        for (int size : sizes) {
+            edgeCount += size;
+        }
+        if (edgeCount > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("too many edges for one graph: " + edgeCount);
+        }
+
+        // degree of v lands in offsets[v + 1], so the inclusive prefix sum gives the row starts.
+        int[] offsets = new int[vertexCount + 1];
+        slices.parallelStream().forEach(slice -> {
+            int[] chunkFrom = from[slice[0]];
+            for (int e = slice[1]; e < slice[2]; e++) {
+                INT_ARRAY.getAndAdd(offsets, chunkFrom[e] + 1, 1);
+            }
+        });
+        Arrays.parallelPrefix(offsets, Integer::sum);
+
+        int[] targets = new int[(int) edgeCount];
+        int[] weights = weight == null ? null : new int[(int) edgeCount];
+        int[] cursor = Arrays.copyOf(offsets, vertexCount);
+        slices.parallelStream().forEach(slice -> {
+            int[] chunkFrom = from[slice[0]];
+            int[] chunkTo = to[slice[0]];
+            int[] chunkWeight = weight == null ? null : weight[slice[0]];
+            for (int e = slice[1]; e < slice[2]; e++) {
+                int slot = (int) INT_ARRAY.getAndAdd(cursor, chunkFrom[e], 1);
+                targets[slot] = chunkTo[e];
+                if (weights != null) {
+                    weights[slot] = chunkWeight[e];
+                }
+            }
+        });
+
+        sortRows(offsets, targets, weights);
+        return new CSRGraph(offsets, targets, weights);
+    }
+
+    // the graph with every edge reversed, keeping the weights. the vertex count may shrink if the
+    // highest ids only had outgoing edges.
+    public static CSRGraph transpose(AdjacencyStore graph) {
+        int edges = graph.edgeCount();
+        int[] from = new int[edges];
+        int[] to = new int[edges];
+        int[] weight = graph.isWeighted() ? new int[edges] : null;
+        IntStream.range(0, graph.vertexCount()).parallel().forEach(v -> {
+            for (int e = graph.start(v); e < graph.end(v); e++) {
+                from[e] = graph.target(e);
+                to[e] = v;
+                if (weight != null) {
+                    weight[e] = graph.weight(e);
+                }
+            }
+        });
+        return fromEdges(from, to, weight, edges);
+    }
+
+    // base plus the edges of delta, as a new graph; base is not modified. a delta edge whose
+    // (from, to) pair is already present is folded into the existing edge: weights are added
+    // (saturating at Integer.MAX_VALUE) and unweighted duplicates are dropped. only the rows delta
+    // touches are merged (in parallel); the runs of rows between them are copied as they are, in
+    // bulk when base is a CSRGraph.
+    public static CSRGraph withEdges(AdjacencyStore base, CSRGraph delta) {
+        if (base.isWeighted() != delta.isWeighted()) {
+            throw new IllegalArgumentException("base and delta must both be weighted or both unweighted");
+        }
+        int vertexCount = Math.max(base.vertexCount(), delta.vertexCount());
+        int[] changed = delta.verticesWithEdges();
+        int[] changedSizes = new int[changed.length];
+        IntStream.range(0, changed.length).parallel()
+                .forEach(i -> changedSizes[i] = mergeRow(base, delta, changed[i], null, null, 0));
+
+        int[] offsets = new int[vertexCount + 1];
+        long edges = 0;
+        for (int v = 0, c = 0; v < vertexCount; v++) {
+            offsets[v] = (int) edges;
+            edges += c < changed.length && changed[c] == v ? changedSizes[c++] : base.degree(v);
+            if (edges > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException("too many edges for one graph: " + edges);
+            }
+        }
+        offsets[vertexCount] = (int) edges;
+
+        int[] targets = new int[offsets[vertexCount]];
+        int[] weights = base.isWeighted() ? new int[targets.length] : null;
+        // run i is the rows after changed row i - 1 up to and including changed row i.
+        IntStream.rangeClosed(0, changed.length).parallel().forEach(i -> {
+            int from = i == 0 ? 0 : changed[i - 1] + 1;
+            int to = i < changed.length ? changed[i] : vertexCount;
+            copyRows(base, delta, from, to, targets, weights, offsets);
+            if (i < changed.length) {
+                mergeRow(base, delta, to, targets, weights, offsets[to]);
+            }
+        });
+        return new CSRGraph(offsets, targets, weights);
+    }
+
+    // ascending ids of the vertices with at least one edge.
+    int[] verticesWithEdges() {
+        int count = 0;
+        for (int v = 0; v < vertexCount(); v++) {
+            if (degree(v) > 0) {
+                count++;
+            }
+        }
+        int[] vertices = new int[count];
+        int i = 0;
+        for (int v = 0; v < vertexCount(); v++) {
+            if (degree(v) > 0) {
+                vertices[i++] = v;
+            }
+        }
+        return vertices;
+    }
+
+    // copies base's rows from .. to - 1, which delta does not touch, to their place in targets/weights.
+    private static void copyRows(AdjacencyStore base, CSRGraph delta, int from, int to, int[] targets, int[] weights,
+                                 int[] offsets) {
+        int length = offsets[to] - offsets[from];
+        if (length == 0) {
+            return;
+        }
+        if (base instanceof CSRGraph) {
+            CSRGraph graph = (CSRGraph) base;
+            System.arraycopy(graph.targets, graph.start(from), targets, offsets[from], length);
+            if (weights != null) {
+                System.arraycopy(graph.weights, graph.start(from), weights, offsets[from], length);
+            }
+            return;
+        }
+        for (int v = from; v < to; v++) {
+            mergeRow(base, delta, v, targets, weights, offsets[v]);
+        }
+    }
+
+    // merges v's row of base with v's row of delta into targets/weights starting at index at, or
+    // only counts the merged row when targets is null. returns the merged row length.
+    private static int mergeRow(AdjacencyStore base, CSRGraph delta, int v, int[] targets, int[] weights, int at) {
+        boolean weighted = base.isWeighted();
+        int e = base.start(v);
+        int end = base.end(v);
+        int d = delta.start(v);
+        int deltaEnd = delta.end(v);
+        int size = 0;
+        while (e < end || d < deltaEnd) {
+            int target;
+            long weight = 0;
+            if (d == deltaEnd || (e < end && base.target(e) < delta.target(d))) {
+                target = base.target(e);
+                if (weighted) {
+                    weight = base.weight(e);
+                }
+                e++;
+            } else {
+                target = delta.target(d);
+                if (e < end && base.target(e) == target) {
+                    if (weighted) {
+                        weight = base.weight(e);
+                    }
+                    e++;
+                }
+                while (d < deltaEnd && delta.target(d) == target) {
+                    if (weighted) {
+                        weight += delta.weight(d);
+                    }
+                    d++;
+                }
+            }
+            if (targets != null) {
+                targets[at + size] = target;
+                if (weights != null) {
+                    weights[at + size] = (int) Math.min(weight, Integer.MAX_VALUE);
+                }
+            }
+            size++;
+        }
+        return size;
+    }
+
+    // splits the chunks into {chunk, from, to} ranges of at most SLICE_EDGES edges.
+    private static List<int[]> slice(int[] sizes) {
+        List<int[]> slices = new ArrayList<>();
+        for (int c = 0; c < sizes.length; c++) {
+            for (int lo = 0; lo < sizes[c]; lo += SLICE_EDGES) {
+                slices.add(new int[]{c, lo, Math.min(sizes[c], lo + SLICE_EDGES)});
+            }
+        }
+        return slices;
+    }
+
+    // sorts every row by target id, carrying the weights along with their targets. rows are
+    // handled in blocks of vertices so each block reuses one scratch array.
+    private static void sortRows(int[] offsets, int[] targets, int[] weights) {
+        int vertexCount = offsets.length - 1;
+        int blocks = (vertexCount + SORT_BLOCK_VERTICES - 1) / SORT_BLOCK_VERTICES;
+        IntStream.range(0, blocks).parallel().forEach(block -> {
+            int first = block * SORT_BLOCK_VERTICES;
+            int last = Math.min(vertexCount, first + SORT_BLOCK_VERTICES);
+            if (weights == null) {
+                for (int v = first; v < last; v++) {
+                    Arrays.sort(targets, offsets[v], offsets[v + 1]);
+                }
+                return;
+            }
+
+            // pack (target, weight) into one long so a single primitive sort keeps the pairs together.
+            long[] packed = new long[0];
+            for (int v = first; v < last; v++) {
+                int start = offsets[v];
+                int degree = offsets[v + 1] - start;
+                if (degree < 2) {
+                    continue;
+                }
+                if (packed.length < degree) {
+                    packed = new long[degree];
+                }
+                for (int i = 0; i < degree; i++) {
+                    packed[i] = ((long) targets[start + i] << 32) | (weights[start + i] & 0xFFFFFFFFL);
+                }
+                Arrays.sort(packed, 0, degree);
+                for (int i = 0; i < degree; i++) {
+                    targets[start + i] = (int) (packed[i] >>> 32);
+                    weights[start + i] = (int) packed[i];
+                }
+            }
+        });
+    }
+
+    @Override
+    public int vertexCount() {
+        return offsets.length - 1;
+    }
+
+    @Override
+    public int edgeCount() {
+        return targets.length;
+    }
+
+    @Override
+    public boolean isWeighted() {
+        return weights != null;
+    }
+
+    @Override
+    public int start(int v) {
+        return hasVertex(v) ? offsets[v] : 0;
+    }
+
+    @Override
+    public int end(int v) {
+        return hasVertex(v) ? offsets[v + 1] : 0;
+    }
+
+    @Override
+    public int target(int edge) {
+        return targets[edge];
+    }
+
+    @Override
+    public int weight(int edge) {
+        if (weights == null) {
+            throw new UnsupportedOperationException("graph is unweighted");
+        }
+        return weights[edge];
+    }
+
+    @Override
+    public int[] neighbours(int v) {
+        return Arrays.copyOfRange(targets, start(v), end(v));
+    }
+
+    @Override
+    public long heapBytes() {
+        // 16 byte array headers.
+        return 16L + 4L * offsets.length + 16 + 4L * targets.length + (weights == null ? 0 : 16 + 4L * weights.length);
+    }
+}
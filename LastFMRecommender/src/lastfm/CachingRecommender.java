@@ -0,0 +1,353 @@
+// Title        :   LastFM Recommender
+// Description  :   Result cache in front of recommend, mutualFriends and
+//              :   sharedArtists of a LiveRecommender. Entries are evicted
+//              :   least recently used first once either the entry count or
+//              :   the estimated byte size is over its bound. When a user's
+//              :   listens or friends change, every entry about that user is
+//              :   dropped, as are the cached recommendations of every user
+//              :   who lists that user as a friend. Hit, miss, eviction and
+//              :   invalidation counts are kept for monitoring.
+//              :
+//              :   The followers come from a reverse friend graph that is
+//              :   kept apart from the cache's lock: it is built once and
+//              :   then brought up to date from the friendships each update
+//              :   added, so lookups never wait for it. A result computed
+//              :   while its users were invalidated is not stored; that is
+//              :   checked per user, through invalidation stamps hashed by
+//              :   user id, so other users' results are still stored.
+
+package lastfm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+public final class CachingRecommender implements LiveRecommender.UpdateListener {
+    private static final int RECOMMEND = 0;
+    private static final int MUTUAL_FRIENDS = 1;
+    private static final int SHARED_ARTISTS = 2;
+
+    // rough heap cost of a map entry, its key and the list or array around the result.
+    private static final long ENTRY_OVERHEAD_BYTES = 128;
+    private static final long SCORED_ARTIST_BYTES = 40;
+    // slots of the invalidation stamps; users that share a slot only cost each other a store.
+    private static final int STAMP_SLOTS = 1 << 12;
+
+    private final LiveRecommender live;
+    private final int maxEntries;
+    private final long maxBytes;
+
+    // guarded by this.
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Integer, Set<Key>> keysByUser = new HashMap<>();
+    private long bytes;
+    // ticks once per invalidation. changedAt[slot(u)] is the tick at which the entries about u
+    // were last dropped, recommendationsChangedAt[slot(u)] the same for u's recommendations only,
+    // and clearedAt that of the last invalidateAll. a result whose users have a stamp past the
+    // tick its query started at is not stored.
+    private long clock;
+    private final long[] changedAt = new long[STAMP_SLOTS];
+    private final long[] recommendationsChangedAt = new long[STAMP_SLOTS];
+    private long clearedAt;
+
+    // the reverse of followedByFriendGraph, built on demand; guarded by followersLock, never by
+    // this, so an update that brings it up to date does not hold up lookups.
+    private final Object followersLock = new Object();
+    private AdjacencyStore followedBy;
+    private AdjacencyStore followedByFriendGraph;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public CachingRecommender(LiveRecommender live, int maxEntries, long maxBytes) {
+        if (maxEntries < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("cache bounds must be positive");
+        }
+        this.live = live;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        live.addListener(this);
+    }
+
+    public List<ScoredArtist> recommend(int user, int k) {
+        return get(new Key(RECOMMEND, user, k), r -> Collections.unmodifiableList(r.recommend(user, k)));
+    }
+
+    // the result is shared with other callers and must not be modified.
+    public int[] mutualFriends(int user1, int user2) {
+        return get(new Key(MUTUAL_FRIENDS, user1, user2), r -> r.mutualFriends(user1, user2));
+    }
+
+    // the result is shared with other callers and must not be modified.
+    public int[] sharedArtists(int user1, int user2) {
+        return get(new Key(SHARED_ARTISTS, user1, user2), r -> r.sharedArtists(user1, user2));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T get(Key key, Function<Recommender, T> query) {
+        long start;
+        synchronized (this) {
+            Entry cached = entries.get(key);
+            if (cached != null) {
+                hits.increment();
+                return (T) cached.value;
+            }
+            start = clock;
+        }
+        misses.increment();
+
+        T value = query.apply(live.current());
+        synchronized (this) {
+            if (!changedSince(key, start) && !entries.containsKey(key)) {
+                put(key, new Entry(value, estimateBytes(value)));
+            }
+        }
+        return value;
+    }
+
+    // guarded by this.
+    private void put(Key key, Entry entry) {
+        entries.put(key, entry);
+        bytes += entry.bytes;
+        index(key.user1, key);
+        if (key.kind != RECOMMEND) {
+            index(key.user2, key);
+        }
+
+        Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+            Map.Entry<Key, Entry> evicted = eldest.next();
+            eldest.remove();
+            forget(evicted.getKey(), evicted.getValue());
+            evictions.increment();
+        }
+    }
+
+    private void index(int user, Key key) {
+        keysByUser.computeIfAbsent(user, u -> new HashSet<>()).add(key);
+    }
+
+    // removes the bookkeeping of an entry that has left the map.
+    private void forget(Key key, Entry entry) {
+        bytes -= entry.bytes;
+        unindex(key.user1, key);
+        if (key.kind != RECOMMEND) {
+            unindex(key.user2, key);
+        }
+    }
+
+    private void unindex(int user, Key key) {
+        Set<Key> keys = keysByUser.get(user);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                keysByUser.remove(user);
+            }
+        }
+    }
+
+    // whether the key's users were invalidated after the given tick. guarded by this.
+    private boolean changedSince(Key key, long start) {
+        if (clearedAt > start || changedAt[slot(key.user1)] > start) {
+            return true;
+        }
+        return key.kind == RECOMMEND ? recommendationsChangedAt[slot(key.user1)] > start
+                : changedAt[slot(key.user2)] > start;
+    }
+
+    private static int slot(int user) {
+        int hash = user * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & (STAMP_SLOTS - 1);
+    }
+
+    // drops every entry about the given user, and the recommendations of every user who lists
+    // the given user as a friend in the given version.
+    public void invalidateUser(Recommender version, int user) {
+        invalidate(version, new int[]{user}, null);
+    }
+
+    // drops everything.
+    public synchronized void invalidateAll() {
+        clearedAt = ++clock;
+        invalidations.add(entries.size());
+        entries.clear();
+        keysByUser.clear();
+        bytes = 0;
+    }
+
+    // invalidates the given users in the given version. changedRows, if known, are the only
+    // friend rows in which the version differs from the one before (see onUpdate).
+    private void invalidate(Recommender version, int[] users, int[] changedRows) {
+        AdjacencyStore followers = followers(version, changedRows);
+        synchronized (this) {
+            for (int user : users) {
+                removeKeys(user, false);
+                for (int e = followers.start(user); e < followers.end(user); e++) {
+                    removeKeys(followers.target(e), true);
+                }
+            }
+        }
+    }
+
+    // guarded by this.
+    private void removeKeys(int user, boolean recommendationsOnly) {
+        (recommendationsOnly ? recommendationsChangedAt : changedAt)[slot(user)] = ++clock;
+        Set<Key> keys = keysByUser.get(user);
+        if (keys == null) {
+            return;
+        }
+        for (Key key : new ArrayList<>(keys)) {
+            if (!recommendationsOnly || key.kind == RECOMMEND) {
+                Entry removed = entries.remove(key);
+                forget(key, removed);
+                invalidations.increment();
+            }
+        }
+    }
+
+    // the reverse of the version's friend graph: row u lists the users who have u as a friend.
+    // when only the changedRows differ from the graph it was last built for, the friendships
+    // added to them are merged in (O(changed rows)); otherwise it is built again.
+    private AdjacencyStore followers(Recommender version, int[] changedRows) {
+        AdjacencyStore friends = version.userFriendGraph();
+        synchronized (followersLock) {
+            if (followedByFriendGraph != friends) {
+                CSRGraph added = followedBy == null || changedRows == null ? null
+                        : addedFollowers(followedByFriendGraph, friends, changedRows);
+                followedBy = added == null ? CSRGraph.transpose(friends)
+                        : added.edgeCount() == 0 ? followedBy : CSRGraph.withEdges(followedBy, added);
+                followedByFriendGraph = friends;
+            }
+            return followedBy;
+        }
+    }
+
+    // the reversed friendships that the rows of after hold and the same rows of before do not,
+    // or null when a row lost a friend (the reverse graph is then built again).
+    private static CSRGraph addedFollowers(AdjacencyStore before, AdjacencyStore after, int[] changedRows) {
+        int[] from = new int[16];
+        int[] to = new int[16];
+        int count = 0;
+        for (int user : changedRows) {
+            int[] old = before.hasVertex(user) ? before.neighbours(user) : new int[0];
+            int[] now = after.hasVertex(user) ? after.neighbours(user) : new int[0];
+            int o = 0;
+            for (int friend : now) {
+                if (o < old.length && old[o] < friend) {
+                    return null;
+                }
+                if (o < old.length && old[o] == friend) {
+                    o++;
+                    continue;
+                }
+                if (count == from.length) {
+                    from = Arrays.copyOf(from, 2 * count);
+                    to = Arrays.copyOf(to, 2 * count);
+                }
+                from[count] = friend;
+                to[count] = user;
+                count++;
+            }
+            if (o < old.length) {
+                return null;
+            }
+        }
+        return CSRGraph.fromEdges(from, to, null, count);
+    }
+
+    @Override
+    public void onUpdate(Recommender next, int[] changedUsers) {
+        invalidate(next, changedUsers, changedUsers);
+    }
+
+    private static long estimateBytes(Object value) {
+        if (value instanceof int[]) {
+            return ENTRY_OVERHEAD_BYTES + 4L * ((int[]) value).length;
+        }
+        return ENTRY_OVERHEAD_BYTES + SCORED_ARTIST_BYTES * ((List<?>) value).size();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long estimatedBytes() {
+        return bytes;
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    public long invalidationCount() {
+        return invalidations.sum();
+    }
+
+    // hits / (hits + misses), or 0 before the first lookup.
+    public double hitRate() {
+        long hit = hits.sum();
+        long total = hit + misses.sum();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    // stops receiving updates from the LiveRecommender.
+    public void detach() {
+        live.removeListener(this);
+    }
+
+    // query kind plus arguments; for recommendations user2 holds k.
+    private static final class Key {
+        final int kind;
+        final int user1;
+        final int user2;
+
+        Key(int kind, int user1, int user2) {
+            this.kind = kind;
+            this.user1 = user1;
+            this.user2 = user2;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return kind == other.kind && user1 == other.user1 && user2 == other.user2;
+        }
+
+        @Override
+        public int hashCode() {
+            return (kind * 31 + user1) * 31 + user2;
+        }
+    }
+
+    private static final class Entry {
+        final Object value;
+        final long bytes;
+
+        Entry(Object value, long bytes) {
+            this.value = value;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+// Title        :   LastFM Recommender
+// Description  :   AdjacencyStore that keeps the targets and weights of a CSR
+//              :   graph as varints instead of ints. Edges are cut into blocks
+//              :   of BLOCK_EDGES; each block records where its bytes start and
+//              :   its first target in full, then stores every further target
+//              :   as the zigzag varint of its difference to the one before
+//              :   (sorted rows make these small; only a row boundary can go
+//              :   down) and every weight as a zigzag varint. A listen graph
+//              :   with dense artist ids and play counts takes three to four
+//              :   bytes per edge instead of eight.
+//              :
+//              :   Reading an edge decodes its whole block into a small
+//              :   per-thread cache of decoded blocks, so walking a row, or
+//              :   merging two rows, decodes every block once. find() uses
+//              :   the first targets of the blocks as skip pointers and
+//              :   decodes a single block. Immutable and thread-safe.
+
+package lastfm;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+public final class CompressedCSRGraph implements AdjacencyStore {
+    static final int BLOCK_EDGES = 64;
+    // decoded blocks kept per thread: enough for a merge of two rows plus a lookup elsewhere.
+    private static final int CACHED_BLOCKS = 4;
+
+    // offsets[v] .. offsets[v + 1] are the edges owned by v, as in CSRGraph.
+    private final int[] offsets;
+    private final int edgeCount;
+    private final byte[] targetBytes;
+    // null for unweighted graphs.
+    private final byte[] weightBytes;
+    // per block: the first target, and where its target and weight bytes start.
+    private final int[] blockFirst;
+    private final int[] blockTargetAt;
+    private final int[] blockWeightAt;
+    private final ThreadLocal<BlockCache> cache = ThreadLocal.withInitial(BlockCache::new);
+
+    private CompressedCSRGraph(int[] offsets, int edgeCount, byte[] targetBytes, byte[] weightBytes,
+                               int[] blockFirst, int[] blockTargetAt, int[] blockWeightAt) {
+        this.offsets = offsets;
+        this.edgeCount = edgeCount;
+        this.targetBytes = targetBytes;
+        this.weightBytes = weightBytes;
+        this.blockFirst = blockFirst;
+        this.blockTargetAt = blockTargetAt;
+        this.blockWeightAt = blockWeightAt;
+    }
+
+    // compresses any AdjacencyStore. the blocks are sized in parallel, their offsets come from a
+    // prefix sum, and they are then encoded in parallel.
+    public static CompressedCSRGraph of(AdjacencyStore graph) {
+        int vertexCount = graph.vertexCount();
+        int edges = graph.edgeCount();
+        boolean weighted = graph.isWeighted();
+        int[] offsets = new int[vertexCount + 1];
+        for (int v = 0; v < vertexCount; v++) {
+            offsets[v + 1] = graph.end(v);
+        }
+        int blocks = (edges + BLOCK_EDGES - 1) / BLOCK_EDGES;
+        long[] targetSizes = new long[blocks + 1];
+        long[] weightSizes = new long[blocks + 1];
+        IntStream.range(0, blocks).parallel().forEach(block -> {
+            int first = block * BLOCK_EDGES;
+            int last = Math.min(edges, first + BLOCK_EDGES);
+            long targetSize = 0;
+            long weightSize = 0;
+            for (int e = first; e < last; e++) {
+                if (e > first) {
+                    targetSize += varintSize(zigzag(graph.target(e) - graph.target(e - 1)));
+                }
+                if (weighted) {
+                    weightSize += varintSize(zigzag(graph.weight(e)));
+                }
+            }
+            targetSizes[block + 1] = targetSize;
+            weightSizes[block + 1] = weightSize;
+        });
+        Arrays.parallelPrefix(targetSizes, Long::sum);
+        Arrays.parallelPrefix(weightSizes, Long::sum);
+        if (targetSizes[blocks] > Integer.MAX_VALUE - 8 || weightSizes[blocks] > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("graph too large to compress into one array: " + edges + " edges");
+        }
+
+        byte[] targetBytes = new byte[(int) targetSizes[blocks]];
+        byte[] weightBytes = weighted ? new byte[(int) weightSizes[blocks]] : null;
+        int[] blockFirst = new int[blocks];
+        int[] blockTargetAt = new int[blocks];
+        int[] blockWeightAt = new int[blocks];
+        IntStream.range(0, blocks).parallel().forEach(block -> {
+            int first = block * BLOCK_EDGES;
+            int last = Math.min(edges, first + BLOCK_EDGES);
+            blockFirst[block] = graph.target(first);
+            blockTargetAt[block] = (int) targetSizes[block];
+            blockWeightAt[block] = (int) weightSizes[block];
+            int at = blockTargetAt[block];
+            for (int e = first + 1; e < last; e++) {
+                at = writeVarint(targetBytes, at, zigzag(graph.target(e) - graph.target(e - 1)));
+            }
+            if (weighted) {
+                at = blockWeightAt[block];
+                for (int e = first; e < last; e++) {
+                    at = writeVarint(weightBytes, at, zigzag(graph.weight(e)));
+                }
+            }
+        });
+        return new CompressedCSRGraph(offsets, edges, targetBytes, weightBytes, blockFirst, blockTargetAt,
+                blockWeightAt);
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    // writes value as a little-endian base 128 varint at the given index, returns the next index.
+    private static int writeVarint(byte[] out, int at, int value) {
+        while ((value & ~0x7F) != 0) {
+            out[at++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[at++] = (byte) value;
+        return at;
+    }
+
+    @Override
+    public int vertexCount() {
+        return offsets.length - 1;
+    }
+
+    @Override
+    public int edgeCount() {
+        return edgeCount;
+    }
+
+    @Override
+    public boolean isWeighted() {
+        return weightBytes != null;
+    }
+
+    @Override
+    public int start(int v) {
+        return hasVertex(v) ? offsets[v] : 0;
+    }
+
+    @Override
+    public int end(int v) {
+        return hasVertex(v) ? offsets[v + 1] : 0;
+    }
+
+    @Override
+    public int target(int edge) {
+        int block = edge / BLOCK_EDGES;
+        int index = edge - block * BLOCK_EDGES;
+        if (index == 0) {
+            return blockFirst[block];
+        }
+        return cache.get().targets(block)[index];
+    }
+
+    @Override
+    public int weight(int edge) {
+        if (weightBytes == null) {
+            throw new UnsupportedOperationException("graph is unweighted");
+        }
+        int block = edge / BLOCK_EDGES;
+        return cache.get().weights(block)[edge - block * BLOCK_EDGES];
+    }
+
+    // skips to the last block of v's row that can hold the target by binary search of the first
+    // targets of the blocks that start inside the row, then searches that one block.
+    @Override
+    public int find(int v, int target) {
+        int start = start(v);
+        int end = end(v);
+        if (start == end) {
+            return -1;
+        }
+        int block = start / BLOCK_EDGES;
+        int low = block + 1;
+        int high = (end - 1) / BLOCK_EDGES;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (blockFirst[mid] <= target) {
+                block = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        int[] decoded = cache.get().targets(block);
+        int base = block * BLOCK_EDGES;
+        int from = Math.max(start, base) - base;
+        int to = Math.min(end, base + BLOCK_EDGES) - base;
+        int found = Arrays.binarySearch(decoded, from, to, target);
+        return found >= 0 ? base + found : -1;
+    }
+
+    @Override
+    public int[] neighbours(int v) {
+        int start = start(v);
+        int end = end(v);
+        int[] neighbours = new int[end - start];
+        BlockCache blocks = cache.get();
+        for (int e = start; e < end; ) {
+            int block = e / BLOCK_EDGES;
+            int base = block * BLOCK_EDGES;
+            int to = Math.min(end, base + BLOCK_EDGES);
+            System.arraycopy(blocks.targets(block), e - base, neighbours, e - start, to - e);
+            e = to;
+        }
+        return neighbours;
+    }
+
+    @Override
+    public long heapBytes() {
+        // 16 byte array headers.
+        return 16L + 4L * offsets.length + 16 + targetBytes.length + (weightBytes == null ? 0 : 16 + weightBytes.length)
+                + 3 * (16 + 4L * blockFirst.length);
+    }
+
+    private int blockSize(int block) {
+        return Math.min(BLOCK_EDGES, edgeCount - block * BLOCK_EDGES);
+    }
+
+    // the last few decoded blocks of one thread, replaced round robin. targets and weights are
+    // decoded separately, so walking a row without reading weights never decodes them.
+    private final class BlockCache {
+        private final int[] targetBlocks = new int[CACHED_BLOCKS];
+        private final int[][] targets = new int[CACHED_BLOCKS][BLOCK_EDGES];
+        private final int[] weightBlocks = new int[CACHED_BLOCKS];
+        private final int[][] weights = new int[CACHED_BLOCKS][BLOCK_EDGES];
+        private int nextTargets;
+        private int nextWeights;
+
+        BlockCache() {
+            Arrays.fill(targetBlocks, -1);
+            Arrays.fill(weightBlocks, -1);
+        }
+
+        int[] targets(int block) {
+            for (int i = 0; i < CACHED_BLOCKS; i++) {
+                if (targetBlocks[i] == block) {
+                    return targets[i];
+                }
+            }
+            int slot = nextTargets;
+            nextTargets = (nextTargets + 1) % CACHED_BLOCKS;
+            int[] out = targets[slot];
+            int size = blockSize(block);
+            int value = blockFirst[block];
+            out[0] = value;
+            int at = blockTargetAt[block];
+            for (int i = 1; i < size; i++) {
+                int raw = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = targetBytes[at++];
+                    raw |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                value += unzigzag(raw);
+                out[i] = value;
+            }
+            targetBlocks[slot] = block;
+            return out;
+        }
+
+        int[] weights(int block) {
+            for (int i = 0; i < CACHED_BLOCKS; i++) {
+                if (weightBlocks[i] == block) {
+                    return weights[i];
+                }
+            }
+            int slot = nextWeights;
+            nextWeights = (nextWeights + 1) % CACHED_BLOCKS;
+            int[] out = weights[slot];
+            int size = blockSize(block);
+            int at = blockWeightAt[block];
+            for (int i = 0; i < size; i++) {
+                int raw = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = weightBytes[at++];
+                    raw |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                out[i] = unzigzag(raw);
+            }
+            weightBlocks[slot] = block;
+            return out;
+        }
+    }
+}
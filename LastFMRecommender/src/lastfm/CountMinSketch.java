@@ -0,0 +1,80 @@
+// Title        :   LastFM Recommender
+// Description  :   Count-Min sketch of non-negative double weights per int id:
+//              :   depth rows of width counters, each id hashed to one
+//              :   counter per row by multiply-shift. An estimate is the
+//              :   smallest of its counters, never below the true total and
+//              :   above it by at most e / width of the total weight added,
+//              :   with probability 1 - e^-depth. Memory is fixed whatever
+//              :   the number of ids. Counters are updated with atomic adds,
+//              :   so any number of threads can add at once without locks.
+
+package lastfm;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.SplittableRandom;
+
+public final class CountMinSketch {
+    private static final VarHandle DOUBLE_ARRAY = MethodHandles.arrayElementVarHandle(double[].class);
+
+    private final int depth;
+    private final int width;
+    private final int shift;
+    // one odd multiplier per row.
+    private final long[] multipliers;
+    // row r holds the counters r * width .. (r + 1) * width - 1.
+    private final double[] counters;
+
+    // width must be a power of two.
+    public CountMinSketch(int depth, int width, long seed) {
+        if (depth < 1 || width < 2 || Integer.bitCount(width) != 1) {
+            throw new IllegalArgumentException("depth must be positive and width a power of two: "
+                    + depth + ", " + width);
+        }
+        this.depth = depth;
+        this.width = width;
+        this.shift = Long.SIZE - Integer.numberOfTrailingZeros(width);
+        this.multipliers = new long[depth];
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int r = 0; r < depth; r++) {
+            multipliers[r] = random.nextLong() | 1;
+        }
+        this.counters = new double[depth * width];
+    }
+
+    private int counter(int row, int id) {
+        long hash = (id + 0x9E3779B97F4A7C15L) * multipliers[row];
+        return row * width + (int) (hash >>> shift);
+    }
+
+    // adds amount to the counters of id and returns its estimate including the amount.
+    public double add(int id, double amount) {
+        double estimate = Double.POSITIVE_INFINITY;
+        for (int r = 0; r < depth; r++) {
+            double before = (double) DOUBLE_ARRAY.getAndAdd(counters, counter(r, id), amount);
+            estimate = Math.min(estimate, before + amount);
+        }
+        return estimate;
+    }
+
+    // the estimated total weight of id.
+    public double estimate(int id) {
+        double estimate = Double.POSITIVE_INFINITY;
+        for (int r = 0; r < depth; r++) {
+            estimate = Math.min(estimate, (double) DOUBLE_ARRAY.getVolatile(counters, counter(r, id)));
+        }
+        return estimate;
+    }
+
+    // multiplies every counter by factor. adds made at the same time may or may not be scaled,
+    // so callers keep them out.
+    void scale(double factor) {
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] *= factor;
+        }
+    }
+
+    public long heapBytes() {
+        return 16 + 8L * multipliers.length + 16 + 8L * counters.length;
+    }
+}
@@ -0,0 +1,372 @@
+// Title        :   LastFM Recommender
+// Description  :   Writes synthetic artists.dat, user_artists.dat and
+//              :   user_friends.dat files in the LastFM formats, for scale
+//              :   testing without real listening data. Artist popularity
+//              :   follows a Zipf law, the number of artists per user and
+//              :   the play counts are log-normal, and friendships come from
+//              :   a Chung-Lu model over power-law expected degrees, written
+//              :   in both directions like the real file. Every user draws
+//              :   from its own random stream derived from the seed, so the
+//              :   output is the same for a given seed however many threads
+//              :   produce it. Users are generated and formatted in blocks
+//              :   in parallel and the blocks are written in order.
+
+package lastfm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+
+public final class DatGenerator {
+    public static final String USER_FRIENDS = "user_friends.dat";
+    public static final String USER_ARTISTS = "user_artists.dat";
+    public static final String ARTISTS = "artists.dat";
+
+    private static final int BLOCK_IDS = 1 << 12;
+    // salts that give the listen, friend and artist-order draws independent streams.
+    private static final long LISTEN_STREAM = 0x9E3779B97F4A7C15L;
+    private static final long FRIEND_STREAM = 0xBF58476D1CE4E5B9L;
+    private static final long SHUFFLE_STREAM = 0x94D049BB133111EBL;
+
+    private final int users;
+    private final int artists;
+    private final double popularityExponent;
+    private final double meanArtistsPerUser;
+    private final double friendExponent;
+    private final double meanFriends;
+    private final double medianPlays;
+    private final double playSkew;
+    private final long seed;
+
+    // users and artists get the ids 1 .. users and 1 .. artists.
+    // popularityExponent: Zipf exponent of artist popularity (about 1 for real listening data).
+    // meanArtistsPerUser: mean number of distinct artists in a user's row.
+    // friendExponent: power-law exponent of the friend degree distribution, above 2.
+    // meanFriends: mean number of friends per user.
+    // medianPlays, playSkew: median and log-normal sigma of a single play count.
+    public DatGenerator(int users, int artists, double popularityExponent, double meanArtistsPerUser,
+                        double friendExponent, double meanFriends, double medianPlays, double playSkew, long seed) {
+        if (users < 1 || artists < 1) {
+            throw new IllegalArgumentException("need at least one user and one artist: " + users + ", " + artists);
+        }
+        if (popularityExponent < 0 || playSkew < 0) {
+            throw new IllegalArgumentException("exponent and skew must be non-negative: "
+                    + popularityExponent + ", " + playSkew);
+        }
+        if (friendExponent <= 2) {
+            throw new IllegalArgumentException("friendExponent must be above 2: " + friendExponent);
+        }
+        if (meanArtistsPerUser < 1 || meanFriends < 0 || medianPlays < 1) {
+            throw new IllegalArgumentException("means out of range: " + meanArtistsPerUser + ", "
+                    + meanFriends + ", " + medianPlays);
+        }
+        this.users = users;
+        this.artists = artists;
+        this.popularityExponent = popularityExponent;
+        this.meanArtistsPerUser = meanArtistsPerUser;
+        this.friendExponent = friendExponent;
+        this.meanFriends = meanFriends;
+        this.medianPlays = medianPlays;
+        this.playSkew = playSkew;
+        this.seed = seed;
+    }
+
+    // a generator with the shape of the bundled sample: about 50 artists and 13 friends per user,
+    // a median of about 260 plays, and a heavy head of popular artists.
+    public static DatGenerator lastFmShaped(int users, int artists, long seed) {
+        return new DatGenerator(users, artists, 1.0, 50, 2.5, 13, 260, 1.5, seed);
+    }
+
+    // writes the three .dat files into dir, replacing existing ones.
+    public void write(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        writeArtists(dir.resolve(ARTISTS));
+        writeListens(dir.resolve(USER_ARTISTS));
+        writeFriends(dir.resolve(USER_FRIENDS));
+    }
+
+    private void writeArtists(Path path) throws IOException {
+        int blocks = (artists + BLOCK_IDS - 1) / BLOCK_IDS;
+        writeBlocks(path, "id\tname\turl\tpictureURL", blocks, block -> {
+            TextBlock out = new TextBlock();
+            int first = block * BLOCK_IDS + 1;
+            int last = Math.min(artists, first + BLOCK_IDS - 1);
+            for (int artist = first; artist <= last; artist++) {
+                out.number(artist).tab().text("Artist ").number(artist).tab()
+                        .text("http://www.last.fm/music/Artist+").number(artist).tab()
+                        .text("http://userserve-ak.last.fm/serve/252/").number(artist).text(".jpg").newLine();
+            }
+            return out;
+        });
+    }
+
+    // every user draws a log-normal number of distinct artists by popularity rank, each with a
+    // log-normal play count. ranks map to artist ids through a seeded shuffle, so the popular
+    // artists are spread over the id space as in the real data.
+    private void writeListens(Path path) throws IOException {
+        double[] popularity = zipfCdf(artists, popularityExponent);
+        int[] artistOfRank = shuffledIds(artists, random(SHUFFLE_STREAM, 0));
+        int maxArtists = (int) Math.min(artists, Math.ceil(meanArtistsPerUser * 20));
+        // mu of the log-normal row length, so that its mean is meanArtistsPerUser.
+        double rowSigma = 0.5;
+        double rowMu = Math.log(meanArtistsPerUser) - rowSigma * rowSigma / 2;
+
+        int blocks = (users + BLOCK_IDS - 1) / BLOCK_IDS;
+        writeBlocks(path, "userID\tartistID\tweight", blocks, block -> {
+            TextBlock out = new TextBlock();
+            int[] row = new int[16];
+            int first = block * BLOCK_IDS + 1;
+            int last = Math.min(users, first + BLOCK_IDS - 1);
+            for (int user = first; user <= last; user++) {
+                SplittableRandom random = random(LISTEN_STREAM, user);
+                int count = (int) Math.max(1, Math.min(maxArtists,
+                        Math.round(Math.exp(rowMu + rowSigma * random.nextGaussian()))));
+                if (row.length < count) {
+                    row = new int[count];
+                }
+                int size = distinctDraws(popularity, count, random, row);
+                for (int i = 0; i < size; i++) {
+                    row[i] = artistOfRank[row[i]];
+                }
+                Arrays.sort(row, 0, size);
+                for (int i = 0; i < size; i++) {
+                    long plays = Math.max(1, Math.round(medianPlays * Math.exp(playSkew * random.nextGaussian())));
+                    out.number(user).tab().number(row[i]).tab().number((int) Math.min(Integer.MAX_VALUE, plays))
+                            .newLine();
+                }
+            }
+            return out;
+        });
+    }
+
+    // Chung-Lu: user u has expected degree w(u), drawn from a power law by a seeded shuffle of
+    // ranks, and starts about w(u) / 2 friendships with users picked in proportion to w. every
+    // friendship is stored in both directions, and the CSRGraph sorts the rows so repeats and
+    // self-loops can be dropped while writing.
+    private void writeFriends(Path path) throws IOException {
+        double[] weights = new double[users + 1];
+        int[] userOfRank = shuffledIds(users, random(SHUFFLE_STREAM, 1));
+        double exponent = 1.0 / (friendExponent - 1);
+        double sum = 0;
+        for (int rank = 0; rank < users; rank++) {
+            sum += Math.pow(rank + 1, -exponent);
+        }
+        double scale = sum == 0 ? 0 : meanFriends * users / sum;
+        for (int rank = 0; rank < users; rank++) {
+            weights[userOfRank[rank]] = Math.min(users - 1, scale * Math.pow(rank + 1, -exponent));
+        }
+        // cdf[u - 1] is the total weight of users 1 .. u.
+        double[] cdf = new double[users];
+        for (int user = 1; user <= users; user++) {
+            cdf[user - 1] = (user > 1 ? cdf[user - 2] : 0) + weights[user];
+        }
+        double total = cdf[users - 1];
+
+        int blocks = (users + BLOCK_IDS - 1) / BLOCK_IDS;
+        int[][] from = new int[blocks][];
+        int[][] to = new int[blocks][];
+        int[] sizes = new int[blocks];
+        IntStream.range(0, blocks).parallel().forEach(block -> {
+            int first = block * BLOCK_IDS + 1;
+            int last = Math.min(users, first + BLOCK_IDS - 1);
+            int[] blockFrom = new int[64];
+            int[] blockTo = new int[64];
+            int size = 0;
+            for (int user = first; user <= last; user++) {
+                SplittableRandom random = random(FRIEND_STREAM, user);
+                double stubs = weights[user] / 2;
+                int count = (int) stubs + (random.nextDouble() < stubs - (int) stubs ? 1 : 0);
+                for (int i = 0; i < count && total > 0; i++) {
+                    int friend = search(cdf, random.nextDouble() * total) + 1;
+                    if (friend == user) {
+                        continue;
+                    }
+                    if (size + 2 > blockFrom.length) {
+                        blockFrom = Arrays.copyOf(blockFrom, blockFrom.length * 2);
+                        blockTo = Arrays.copyOf(blockTo, blockTo.length * 2);
+                    }
+                    blockFrom[size] = user;
+                    blockTo[size++] = friend;
+                    blockFrom[size] = friend;
+                    blockTo[size++] = user;
+                }
+            }
+            from[block] = blockFrom;
+            to[block] = blockTo;
+            sizes[block] = size;
+        });
+        CSRGraph friends = CSRGraph.fromChunks(from, to, null, sizes);
+
+        writeBlocks(path, "userID\tfriendID", blocks, block -> {
+            TextBlock out = new TextBlock();
+            int first = block * BLOCK_IDS + 1;
+            int last = Math.min(users, first + BLOCK_IDS - 1);
+            for (int user = first; user <= last; user++) {
+                int previous = -1;
+                for (int e = friends.start(user); e < friends.end(user); e++) {
+                    int friend = friends.target(e);
+                    if (friend != previous) {
+                        out.number(user).tab().number(friend).newLine();
+                        previous = friend;
+                    }
+                }
+            }
+            return out;
+        });
+    }
+
+    // draws up to count distinct ranks from the cdf into row and returns how many it found. the
+    // head of a Zipf law is drawn over and over, so draws are repeated a bounded number of times.
+    private static int distinctDraws(double[] cdf, int count, SplittableRandom random, int[] row) {
+        double total = cdf[cdf.length - 1];
+        int size = 0;
+        for (int round = 0; round < 8 && size < count; round++) {
+            for (int i = size; i < count; i++) {
+                row[i] = search(cdf, random.nextDouble() * total);
+            }
+            Arrays.sort(row, 0, count);
+            size = 0;
+            for (int i = 0; i < count; i++) {
+                if (size == 0 || row[i] != row[size - 1]) {
+                    row[size++] = row[i];
+                }
+            }
+        }
+        return size;
+    }
+
+    // cumulative weights of ranks 0 .. n - 1 under a Zipf law, rank r weighing (r + 1)^-exponent.
+    private static double[] zipfCdf(int n, double exponent) {
+        double[] cdf = new double[n];
+        double sum = 0;
+        for (int rank = 0; rank < n; rank++) {
+            sum += Math.pow(rank + 1, -exponent);
+            cdf[rank] = sum;
+        }
+        return cdf;
+    }
+
+    // index of the first entry of the ascending cdf that is above value.
+    private static int search(double[] cdf, double value) {
+        int low = 0;
+        int high = cdf.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (cdf[mid] <= value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // the ids 1 .. n in a seeded random order.
+    private static int[] shuffledIds(int n, SplittableRandom random) {
+        int[] ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = i + 1;
+        }
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int id = ids[i];
+            ids[i] = ids[j];
+            ids[j] = id;
+        }
+        return ids;
+    }
+
+    // the random stream of one user (or one shuffle) within one of the salted streams.
+    private SplittableRandom random(long stream, int id) {
+        return new SplittableRandom(seed ^ stream ^ (id * 0xD6E8FEB86659FD93L));
+    }
+
+    // formats blocks 0 .. blocks - 1 in parallel, a few per core at a time so memory stays
+    // bounded, and writes them after the header in block order.
+    private static void writeBlocks(Path path, String header, int blocks, IntFunction<TextBlock> format)
+            throws IOException {
+        int wave = Runtime.getRuntime().availableProcessors() * 4;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(channel, ByteBuffer.wrap((header + "\n").getBytes(StandardCharsets.UTF_8)));
+            for (int first = 0; first < blocks; first += wave) {
+                int start = first;
+                TextBlock[] formatted = new TextBlock[Math.min(wave, blocks - first)];
+                IntStream.range(0, formatted.length).parallel().forEach(i -> formatted[i] = format.apply(start + i));
+                for (TextBlock block : formatted) {
+                    writeFully(channel, ByteBuffer.wrap(block.bytes, 0, block.size));
+                }
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // a growable ASCII buffer that formats numbers without going through Strings.
+    private static final class TextBlock {
+        byte[] bytes = new byte[1 << 16];
+        int size;
+
+        TextBlock number(int value) {
+            ensure(11);
+            if (value == 0) {
+                bytes[size++] = '0';
+                return this;
+            }
+            int end = size + digits(value);
+            for (int at = end - 1; value > 0; at--) {
+                bytes[at] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            size = end;
+            return this;
+        }
+
+        TextBlock text(String ascii) {
+            ensure(ascii.length());
+            for (int i = 0; i < ascii.length(); i++) {
+                bytes[size++] = (byte) ascii.charAt(i);
+            }
+            return this;
+        }
+
+        TextBlock tab() {
+            ensure(1);
+            bytes[size++] = '\t';
+            return this;
+        }
+
+        TextBlock newLine() {
+            ensure(1);
+            bytes[size++] = '\n';
+            return this;
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+            }
+        }
+
+        private static int digits(int value) {
+            int digits = 1;
+            while (value >= 10) {
+                value /= 10;
+                digits++;
+            }
+            return digits;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+// Title        :   LastFM Recommender
+// Description  :   Single-pass parallel reader for the LastFM .dat files.
+//              :   A file is cut into chunks at line boundaries, every chunk
+//              :   is memory-mapped and parsed on its own core straight from
+//              :   the bytes (no Strings or split for the numeric columns),
+//              :   and the per-chunk edge arrays are handed to CSRGraph,
+//              :   which builds the adjacency with a parallel prefix sum.
+
+package lastfm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+public final class DatLoader {
+    private static final long MIN_CHUNK_BYTES = 1L << 20;
+    // keeps every mapping well below the 2GB limit of a MappedByteBuffer.
+    private static final long MAX_CHUNK_BYTES = 1L << 28;
+    private static final int SCAN_BUFFER_BYTES = 1 << 12;
+
+    private DatLoader() {
+    }
+
+    // reads a "userID \t otherID [\t weight]" file, e.g. user_friends.dat or user_artists.dat,
+    // into a CSRGraph. the header line is skipped.
+    public static CSRGraph loadGraph(Path path, boolean weighted) throws IOException {
+        int columns = weighted ? 3 : 2;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long[] bounds = chunkBounds(channel);
+            int chunks = bounds.length - 1;
+            int[][] from = new int[chunks][];
+            int[][] to = new int[chunks][];
+            int[][] weight = weighted ? new int[chunks][] : null;
+            int[] sizes = new int[chunks];
+
+            parallel(chunks, c -> {
+                ByteBuffer bytes = map(channel, bounds[c], bounds[c + 1]);
+                int[][] parsed = parseColumns(path, bytes, bounds[c], c == 0, columns);
+                sizes[c] = parsed[columns][0];
+                from[c] = parsed[0];
+                to[c] = parsed[1];
+                if (weighted) {
+                    weight[c] = parsed[2];
+                }
+            });
+
+            return CSRGraph.fromChunks(from, to, weight, sizes);
+        }
+    }
+
+    // reads artists.dat ("id \t name \t url \t pictureURL") into an ArtistDictionary. the fields
+    // are copied as bytes; nothing is decoded.
+    public static ArtistDictionary loadArtists(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long[] bounds = chunkBounds(channel);
+            int chunks = bounds.length - 1;
+            ArtistDictionary.Builder[] parsed = new ArtistDictionary.Builder[chunks];
+
+            parallel(chunks, c -> {
+                ByteBuffer bytes = map(channel, bounds[c], bounds[c + 1]);
+                parsed[c] = parseArtists(path, bytes, bounds[c], c == 0);
+            });
+
+            return ArtistDictionary.build(parsed);
+        }
+    }
+
+    // runs task(0) .. task(count - 1) on the common fork/join pool, rethrowing IOExceptions.
+    private static void parallel(int count, ChunkTask task) throws IOException {
+        try {
+            IntStream.range(0, count).parallel().forEach(c -> {
+                try {
+                    task.run(c);
+                } catch (IOException e) {
+                    throw new ChunkFailure(e);
+                }
+            });
+        } catch (ChunkFailure e) {
+            throw (IOException) e.getCause();
+        }
+    }
+
+    private interface ChunkTask {
+        void run(int chunk) throws IOException;
+    }
+
+    private static final class ChunkFailure extends RuntimeException {
+        ChunkFailure(IOException cause) {
+            super(cause);
+        }
+    }
+
+    // byte offsets that cut the file into roughly equal chunks, each ending just after a newline.
+    // bounds[c] .. bounds[c + 1] is chunk c.
+    private static long[] chunkBounds(FileChannel channel) throws IOException {
+        return chunkBounds(channel, MAX_CHUNK_BYTES);
+    }
+
+    // as chunkBounds(channel), with chunks of at most maxChunkBytes, for readers that keep only a
+    // few parsed chunks in memory at a time.
+    static long[] chunkBounds(FileChannel channel, long maxChunkBytes) throws IOException {
+        long size = channel.size();
+        int cores = Runtime.getRuntime().availableProcessors();
+        long chunkBytes = Math.max(MIN_CHUNK_BYTES, Math.min(maxChunkBytes, size / (cores * 4L) + 1));
+        int chunks = (int) Math.max(1, (size + chunkBytes - 1) / chunkBytes);
+
+        long[] bounds = new long[chunks + 1];
+        bounds[chunks] = size;
+        ByteBuffer scan = ByteBuffer.allocate(SCAN_BUFFER_BYTES);
+        for (int c = 1; c < chunks; c++) {
+            bounds[c] = Math.max(bounds[c - 1], nextLineStart(channel, c * chunkBytes, scan));
+        }
+        return bounds;
+    }
+
+    // offset just past the first newline at or after position, or the end of the file.
+    private static long nextLineStart(FileChannel channel, long position, ByteBuffer scan) throws IOException {
+        long size = channel.size();
+        while (position < size) {
+            scan.clear();
+            int read = channel.read(scan, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (scan.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    static ByteBuffer map(FileChannel channel, long from, long to) throws IOException {
+        if (from == to) {
+            return ByteBuffer.allocate(0);
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+    }
+
+    // parses lines of tab separated ints in 0 .. Integer.MAX_VALUE. returns one int[] per column, plus a last
+    // entry holding the number of parsed lines (the column arrays may be longer than that).
+    static int[][] parseColumns(Path path, ByteBuffer bytes, long base, boolean skipHeader, int columns) {
+        int limit = bytes.limit();
+        int position = skipHeader ? skipLine(bytes, 0) : 0;
+
+        int capacity = Math.max(16, limit / (columns * 4));
+        int[][] values = new int[columns + 1][];
+        for (int col = 0; col < columns; col++) {
+            values[col] = new int[capacity];
+        }
+        int rows = 0;
+
+        while (position < limit) {
+            byte b = bytes.get(position);
+            if (b == '\n' || b == '\r') {
+                position++;
+                continue;
+            }
+            if (rows == capacity) {
+                capacity = capacity + (capacity >> 1) + 16;
+                for (int col = 0; col < columns; col++) {
+                    values[col] = Arrays.copyOf(values[col], capacity);
+                }
+            }
+            for (int col = 0; col < columns; col++) {
+                int value = 0;
+                int digits = 0;
+                while (position < limit) {
+                    b = bytes.get(position);
+                    if (b < '0' || b > '9') {
+                        break;
+                    }
+                    if (value > (Integer.MAX_VALUE - (b - '0')) / 10) {
+                        throw malformed(path, base + position);
+                    }
+                    value = value * 10 + (b - '0');
+                    digits++;
+                    position++;
+                }
+                boolean last = col == columns - 1;
+                if (digits == 0 || (!last && (position == limit || bytes.get(position) != '\t'))) {
+                    throw malformed(path, base + position);
+                }
+                if (!last) {
+                    position++;
+                }
+                values[col][rows] = value;
+            }
+            // tolerate trailing columns and carriage returns after the last parsed column.
+            position = skipLine(bytes, position);
+            rows++;
+        }
+
+        values[columns] = new int[]{rows};
+        return values;
+    }
+
+    // parses artist lines into a builder. the url and pictureURL columns may be missing.
+    private static ArtistDictionary.Builder parseArtists(Path path, ByteBuffer bytes, long base, boolean skipHeader) {
+        int limit = bytes.limit();
+        int position = skipHeader ? skipLine(bytes, 0) : 0;
+        ArtistDictionary.Builder artists = new ArtistDictionary.Builder();
+        // start and end of the name, url and pictureURL columns of the current line.
+        int[] fields = new int[2 * ArtistDictionary.FIELDS];
+
+        while (position < limit) {
+            byte b = bytes.get(position);
+            if (b == '\n' || b == '\r') {
+                position++;
+                continue;
+            }
+            int id = 0;
+            int digits = 0;
+            while (position < limit && (b = bytes.get(position)) >= '0' && b <= '9') {
+                if (id > (Integer.MAX_VALUE - (b - '0')) / 10) {
+                    throw malformed(path, base + position);
+                }
+                id = id * 10 + (b - '0');
+                digits++;
+                position++;
+            }
+            if (digits == 0 || position == limit || bytes.get(position) != '\t') {
+                throw malformed(path, base + position);
+            }
+            position++;
+
+            for (int f = 0; f < ArtistDictionary.FIELDS; f++) {
+                fields[2 * f] = position;
+                while (position < limit && (b = bytes.get(position)) != '\t' && b != '\n' && b != '\r') {
+                    position++;
+                }
+                fields[2 * f + 1] = position;
+                if (position < limit && bytes.get(position) == '\t') {
+                    position++;
+                } else {
+                    // missing columns are empty.
+                    for (f++; f < ArtistDictionary.FIELDS; f++) {
+                        fields[2 * f] = position;
+                        fields[2 * f + 1] = position;
+                    }
+                }
+            }
+            artists.add(id, bytes, fields[0], fields[1], fields[2], fields[3], fields[4], fields[5]);
+            position = skipLine(bytes, position);
+        }
+        return artists;
+    }
+
+    // index just past the next newline at or after position.
+    private static int skipLine(ByteBuffer bytes, int position) {
+        int limit = bytes.limit();
+        while (position < limit && bytes.get(position) != '\n') {
+            position++;
+        }
+        return Math.min(limit, position + 1);
+    }
+
+    private static IllegalArgumentException malformed(Path path, long offset) {
+        return new IllegalArgumentException("malformed line in " + path + " near byte " + offset);
+    }
+}
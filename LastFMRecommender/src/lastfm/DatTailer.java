@@ -0,0 +1,203 @@
+// Title        :   LastFM Recommender
+// Description  :   Follows a growing .dat file and returns the rows appended
+//              :   since the last poll. Only complete lines are consumed; a
+//              :   partly written last line is left for the next poll.
+//              :   Rows are deltas, so a file that has been replaced (by a
+//              :   rotation, or truncated and rewritten) must not be read
+//              :   again: every row it shares with the old file would be
+//              :   counted twice. A poll notices a replacement by the file
+//              :   key (the inode, where the platform has one), by a size
+//              :   below the offset, or by a changed header line or changed
+//              :   bytes just before the offset, and then follows the new
+//              :   file from the end of its last complete line, as a new
+//              :   log; the rows already in it are not returned (reload
+//              :   the files to take them in). A malformed line is skipped and counted rather than
+//              :   failing the poll, so one bad append cannot stall every
+//              :   later poll on the same bytes.
+
+package lastfm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+
+public final class DatTailer {
+    private static final int MAX_POLL_BYTES = 1 << 26;
+    // the bytes just before the offset that a poll compares, and the most of the header it reads.
+    private static final int MARK_BYTES = 64;
+    private static final int MAX_HEADER_BYTES = 4096;
+
+    private final Path path;
+    private final int columns;
+    private long offset;
+    private long skippedLines;
+    private long replacements;
+    // what the followed file looked like after the last poll; null before the first.
+    private Object fileKey;
+    private byte[] header;
+    private byte[] mark;
+
+    // follows path from the given byte offset, e.g. the size of the file when it was loaded.
+    // rows have the given number of tab separated int columns.
+    public DatTailer(Path path, int columns, long offset) {
+        this.path = path;
+        this.columns = columns;
+        this.offset = offset;
+    }
+
+    // byte offset of the first unread line.
+    public long offset() {
+        return offset;
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    // number of malformed lines skipped so far.
+    public long skippedLines() {
+        return skippedLines;
+    }
+
+    // number of times the file was found replaced.
+    public long replacements() {
+        return replacements;
+    }
+
+    // parses the complete lines appended since the last poll, at most MAX_POLL_BYTES at a time.
+    // returns one int[] per column plus a last entry holding the row count, like
+    // DatLoader.parseColumns. returns no rows on the poll that finds the file replaced.
+    public int[][] poll() throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Object key = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+            long size = channel.size();
+            if (header != null && (size < offset || (key != null && fileKey != null && !key.equals(fileKey))
+                    || !Arrays.equals(header, readHeader(channel)) || !Arrays.equals(mark, readMark(channel)))) {
+                replacements++;
+                offset = lastLineEnd(channel, size);
+                remember(channel, key);
+                int[][] none = new int[columns + 1][];
+                Arrays.fill(none, 0, columns, new int[0]);
+                none[columns] = new int[]{0};
+                return none;
+            }
+            boolean skipHeader = offset == 0;
+
+            int length = (int) Math.min(size - offset, MAX_POLL_BYTES);
+            ByteBuffer bytes = ByteBuffer.allocate(length);
+            while (bytes.hasRemaining()) {
+                if (channel.read(bytes, offset + bytes.position()) < 0) {
+                    break;
+                }
+            }
+
+            // only consume up to and including the last newline.
+            int complete = bytes.position();
+            while (complete > 0 && bytes.get(complete - 1) != '\n') {
+                complete--;
+            }
+            bytes.limit(complete);
+            int[][] rows;
+            try {
+                rows = DatLoader.parseColumns(path, bytes, offset, skipHeader, columns);
+            } catch (IllegalArgumentException e) {
+                rows = parseLines(bytes, skipHeader);
+            }
+            offset += complete;
+            remember(channel, key);
+            return rows;
+        }
+    }
+
+    private void remember(FileChannel channel, Object key) throws IOException {
+        fileKey = key;
+        header = readHeader(channel);
+        mark = readMark(channel);
+    }
+
+    // the first line, or as much of it as there is.
+    private static byte[] readHeader(FileChannel channel) throws IOException {
+        byte[] start = read(channel, 0, (int) Math.min(channel.size(), MAX_HEADER_BYTES));
+        for (int i = 0; i < start.length; i++) {
+            if (start[i] == '\n') {
+                return Arrays.copyOf(start, i + 1);
+            }
+        }
+        return start;
+    }
+
+    // the bytes just before the offset, which stay the same while the file only grows.
+    private byte[] readMark(FileChannel channel) throws IOException {
+        long from = Math.max(0, Math.min(offset, channel.size()) - MARK_BYTES);
+        return read(channel, from, (int) (Math.min(offset, channel.size()) - from));
+    }
+
+    // the offset just past the last newline before size, or 0.
+    private static long lastLineEnd(FileChannel channel, long size) throws IOException {
+        long end = size;
+        while (end > 0) {
+            long from = Math.max(0, end - MAX_HEADER_BYTES);
+            byte[] block = read(channel, from, (int) (end - from));
+            for (int i = block.length - 1; i >= 0; i--) {
+                if (block[i] == '\n') {
+                    return from + i + 1;
+                }
+            }
+            end = from;
+        }
+        return 0;
+    }
+
+    private static byte[] read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(length);
+        while (bytes.hasRemaining()) {
+            if (channel.read(bytes, position + bytes.position()) < 0) {
+                break;
+            }
+        }
+        return Arrays.copyOf(bytes.array(), bytes.position());
+    }
+
+    // as DatLoader.parseColumns, but one line at a time, leaving out the lines that do not parse.
+    private int[][] parseLines(ByteBuffer bytes, boolean skipHeader) {
+        int[][] rows = new int[columns + 1][];
+        for (int col = 0; col < columns; col++) {
+            rows[col] = new int[16];
+        }
+        int count = 0;
+        int start = 0;
+        boolean header = skipHeader;
+        while (start < bytes.limit()) {
+            int end = start;
+            while (bytes.get(end) != '\n') {
+                end++;
+            }
+            ByteBuffer line = bytes.duplicate().position(start).limit(end + 1).slice();
+            try {
+                int[][] parsed = DatLoader.parseColumns(path, line, offset + start, header, columns);
+                for (int row = 0; row < parsed[columns][0]; row++) {
+                    if (count == rows[0].length) {
+                        for (int col = 0; col < columns; col++) {
+                            rows[col] = Arrays.copyOf(rows[col], 2 * count);
+                        }
+                    }
+                    for (int col = 0; col < columns; col++) {
+                        rows[col][count] = parsed[col][row];
+                    }
+                    count++;
+                }
+            } catch (IllegalArgumentException e) {
+                skippedLines++;
+            }
+            header = false;
+            start = end + 1;
+        }
+        rows[columns] = new int[]{count};
+        return rows;
+    }
+}
@@ -0,0 +1,164 @@
+// Title        :   LastFM Recommender
+// Description  :   Item-item collaborative filtering over the listen graph.
+//              :   Building it computes, for every artist, its top-N most
+//              :   similar artists by cosine similarity of their listener
+//              :   vectors (play counts damped with log(1 + plays)). The
+//              :   sparse product of the transposed listen matrix with
+//              :   itself is computed one artist row at a time, in parallel,
+//              :   and only the top-N of each row is kept, in CSR form.
+//              :   A recommendation then only reads the precomputed
+//              :   neighbours of the artists the user already plays.
+
+package lastfm;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+public final class ItemItemRecommender {
+    private static final int BLOCK_ARTISTS = 64;
+
+    private final AdjacencyStore userArtistGraph;
+    // offsets[a] .. offsets[a + 1] are the neighbours of artist a, most similar first.
+    private final int[] offsets;
+    private final int[] neighbours;
+    private final float[] similarities;
+    private final ThreadLocal<ScoreAccumulator> scoreScratch;
+
+    // builds the similarity table of the given recommender's listen graph, keeping the
+    // neighbourCount most similar artists of each artist.
+    public ItemItemRecommender(Recommender recommender, int neighbourCount) {
+        this(recommender.userArtistGraph(), neighbourCount);
+    }
+
+    ItemItemRecommender(AdjacencyStore userArtistGraph, int neighbourCount) {
+        if (neighbourCount < 1) {
+            throw new IllegalArgumentException("neighbourCount must be positive: " + neighbourCount);
+        }
+        this.userArtistGraph = userArtistGraph;
+        int artists = userArtistGraph.vertexCount();
+        this.scoreScratch = ThreadLocal.withInitial(() -> new ScoreAccumulator(artists));
+
+        CSRGraph listeners = CSRGraph.transpose(userArtistGraph);
+        double[] norms = norms(listeners);
+
+        // every block of artists keeps its own rows until all blocks are done, then they are
+        // concatenated into the CSR arrays.
+        int blocks = (artists + BLOCK_ARTISTS - 1) / BLOCK_ARTISTS;
+        int[][] blockNeighbours = new int[blocks][];
+        float[][] blockSimilarities = new float[blocks][];
+        int[] degrees = new int[artists];
+        IntStream.range(0, blocks).parallel().forEach(block -> {
+            ScoreAccumulator dots = scoreScratch.get();
+            TopK top = new TopK(neighbourCount);
+            int first = block * BLOCK_ARTISTS;
+            int last = Math.min(artists, first + BLOCK_ARTISTS);
+            int[] ids = new int[(last - first) * neighbourCount];
+            float[] sims = new float[ids.length];
+            int size = 0;
+            for (int a = first; a < last; a++) {
+                if (norms[a] == 0) {
+                    continue;
+                }
+                // dot products of a's listener vector with every artist that shares a listener.
+                for (int e = listeners.start(a); e < listeners.end(a); e++) {
+                    int user = listeners.target(e);
+                    double rating = rating(listeners.weight(e));
+                    for (int f = userArtistGraph.start(user); f < userArtistGraph.end(user); f++) {
+                        int b = userArtistGraph.target(f);
+                        if (b != a) {
+                            dots.add(b, rating * rating(userArtistGraph.weight(f)));
+                        }
+                    }
+                }
+                for (int i = 0; i < dots.size(); i++) {
+                    int b = dots.idAt(i);
+                    top.offer(b, dots.get(b) / (norms[a] * norms[b]));
+                }
+                dots.reset();
+                for (ScoredArtist neighbour : top.drain()) {
+                    ids[size] = neighbour.artist();
+                    sims[size] = (float) neighbour.score();
+                    size++;
+                    degrees[a]++;
+                }
+            }
+            blockNeighbours[block] = Arrays.copyOf(ids, size);
+            blockSimilarities[block] = Arrays.copyOf(sims, size);
+        });
+
+        offsets = new int[artists + 1];
+        for (int a = 0; a < artists; a++) {
+            offsets[a + 1] = offsets[a] + degrees[a];
+        }
+        neighbours = new int[offsets[artists]];
+        similarities = new float[offsets[artists]];
+        for (int block = 0; block < blocks; block++) {
+            int at = offsets[block * BLOCK_ARTISTS];
+            System.arraycopy(blockNeighbours[block], 0, neighbours, at, blockNeighbours[block].length);
+            System.arraycopy(blockSimilarities[block], 0, similarities, at, blockSimilarities[block].length);
+        }
+    }
+
+    // the weight a play count contributes to an artist's listener vector.
+    private static double rating(int plays) {
+        return Math.log1p(plays);
+    }
+
+    // euclidean length of every artist's listener vector.
+    private static double[] norms(CSRGraph listeners) {
+        double[] norms = new double[listeners.vertexCount()];
+        IntStream.range(0, norms.length).parallel().forEach(a -> {
+            double sum = 0;
+            for (int e = listeners.start(a); e < listeners.end(a); e++) {
+                double rating = rating(listeners.weight(e));
+                sum += rating * rating;
+            }
+            norms[a] = Math.sqrt(sum);
+        });
+        return norms;
+    }
+
+    // the k artists most similar to the given artist, most similar first.
+    public List<ScoredArtist> similarArtists(int artist, int k) {
+        TopK top = new TopK(Math.max(0, k));
+        if (artist >= 0 && artist < offsets.length - 1) {
+            for (int i = offsets[artist]; i < offsets[artist + 1]; i++) {
+                top.offer(neighbours[i], similarities[i]);
+            }
+        }
+        return top.drain();
+    }
+
+    // recommends k artists the user does not already listen to, scored by the similarity of each
+    // candidate to the user's artists weighted by how much the user plays them. works for users
+    // without friends, since it only needs the user's own listening history.
+    public List<ScoredArtist> recommend(int user, int k) {
+        ScoreAccumulator scores = scoreScratch.get();
+        try {
+            for (int e = userArtistGraph.start(user); e < userArtistGraph.end(user); e++) {
+                int artist = userArtistGraph.target(e);
+                double rating = rating(userArtistGraph.weight(e));
+                for (int i = offsets[artist]; i < offsets[artist + 1]; i++) {
+                    scores.add(neighbours[i], similarities[i] * rating);
+                }
+            }
+
+            TopK top = new TopK(Math.max(0, k));
+            for (int i = 0; i < scores.size(); i++) {
+                int candidate = scores.idAt(i);
+                if (userArtistGraph.find(user, candidate) < 0) {
+                    top.offer(candidate, scores.get(candidate));
+                }
+            }
+            return top.drain();
+        } finally {
+            scores.reset();
+        }
+    }
+
+    // number of (artist, neighbour) pairs in the table.
+    public int size() {
+        return neighbours.length;
+    }
+}
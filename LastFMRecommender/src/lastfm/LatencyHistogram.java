@@ -0,0 +1,100 @@
+// Title        :   LastFM Recommender
+// Description  :   Lock-free latency histogram in the style of HdrHistogram:
+//              :   values up to 2^7 are counted exactly, larger values in
+//              :   log-linear buckets of 64 sub-buckets per power of two, so
+//              :   every recorded value is kept to within 1.6% across the
+//              :   whole range from nanoseconds to minutes in a fixed 18KB.
+//              :   Recording is one atomic increment, so it is cheap enough
+//              :   to leave on for every query.
+
+package lastfm;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+public final class LatencyHistogram {
+    private static final int EXACT_BITS = 7;
+    private static final int EXACT = 1 << EXACT_BITS;
+    private static final int SUB_BUCKETS = EXACT >>> 1;
+    // values are clamped to 2^40 ns, about 18 minutes.
+    private static final int MAX_SHIFT = 40 - EXACT_BITS;
+    private static final long MAX_VALUE = (1L << 40) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(EXACT + MAX_SHIFT * SUB_BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long value) {
+        value = Math.max(0, Math.min(MAX_VALUE, value));
+        counts.incrementAndGet(index(value));
+        total.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public long count() {
+        return total.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        long count = total.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    // the smallest recorded value (to bucket precision) that at least the given fraction of all
+    // values are at or below, e.g. percentile(0.99). 0 if nothing was recorded.
+    public long percentile(double fraction) {
+        long[] snapshot = new long[counts.length()];
+        long count = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(1, Math.max(0, fraction)) * count));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highestInBucket(i), max());
+            }
+        }
+        return max();
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        total.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    // below EXACT a value is its own bucket. above, the top EXACT_BITS - 1 bits after the leading
+    // one pick one of SUB_BUCKETS buckets within the value's power of two.
+    static int index(long value) {
+        if (value < EXACT) {
+            return (int) value;
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(value) - EXACT_BITS;
+        return EXACT + (shift - 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    static long highestInBucket(int index) {
+        if (index < EXACT) {
+            return index;
+        }
+        int shift = (index - EXACT) / SUB_BUCKETS + 1;
+        long lowest = (long) ((index - EXACT) % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,200 @@
+// Title        :   LastFM Recommender
+// Description  :   Keeps a Recommender up to date with new listens and
+//              :   friendships without reloading the .dat files. Every
+//              :   Recommender is immutable, so an update builds the next
+//              :   version next to the current one (merging the delta into
+//              :   new CSR arrays, rebuilding only the hub bitsets of changed
+//              :   rows and updating the popularity index for the changed
+//              :   artists only) and then swaps it in. Readers that
+//              :   call current() always get one consistent version and
+//              :   never wait for a writer. Updates are serialised.
+//              :
+//              :   Cost: whatever its size, an update copies the CSR arrays
+//              :   of the graph it changes (O(E), the unchanged runs of rows
+//              :   in bulk) and scans every degree to pick the hubs again
+//              :   (O(V)); the ranking costs O(artists). So updates should
+//              :   come in batches, as tail() applies one per poll, not one
+//              :   per listen.
+
+package lastfm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+public final class LiveRecommender implements Closeable {
+    private final Object writeLock = new Object();
+    private volatile Recommender current;
+    private volatile long epoch;
+    private ScheduledExecutorService tailing;
+    private final List<UpdateListener> listeners = new CopyOnWriteArrayList<>();
+
+    // told about every published version, on the updating thread, after it becomes current().
+    public interface UpdateListener {
+        // changedUsers are the users whose listens or friend lists changed.
+        void onUpdate(Recommender next, int[] changedUsers);
+    }
+
+    public LiveRecommender(Recommender initial) {
+        this.current = initial;
+    }
+
+    // the latest version. hold on to the returned Recommender for a consistent view across
+    // several queries.
+    public Recommender current() {
+        return current;
+    }
+
+    public void addListener(UpdateListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(UpdateListener listener) {
+        listeners.remove(listener);
+    }
+
+    // number of updates applied so far.
+    public long epoch() {
+        return epoch;
+    }
+
+    // adds plays[i] listens of artists[i] by users[i] for the first count entries. plays are
+    // added to an existing (user, artist) edge, otherwise a new edge is created. an edge weight
+    // saturates at Integer.MAX_VALUE (see CSRGraph.withEdges), and the artist totals count only
+    // the plays the edges kept, so they stay the sums of the edge weights. O(E) (see above).
+    public void addListens(int[] users, int[] artists, int[] plays, int count) {
+        for (int i = 0; i < count; i++) {
+            if (plays[i] < 0) {
+                throw new IllegalArgumentException("negative play count for user " + users[i]);
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        CSRGraph delta = CSRGraph.fromEdges(users, artists, plays, count);
+
+        synchronized (writeLock) {
+            Recommender base = current;
+            AdjacencyStore listens = base.userArtistGraph();
+
+            // per (user, artist) pair of the delta: the added plays, and one more listener if the
+            // user did not listen to the artist before.
+            int[] changedArtists = new int[count];
+            long[] addedPlays = new long[count];
+            int[] addedListeners = new int[count];
+            long[] oldWeights = new long[count];
+            int changed = 0;
+            for (int user = 0; user < delta.vertexCount(); user++) {
+                for (int e = delta.start(user); e < delta.end(user); e++) {
+                    int artist = delta.target(e);
+                    if (changed > 0 && e > delta.start(user) && delta.target(e - 1) == artist) {
+                        addedPlays[changed - 1] += delta.weight(e);
+                        continue;
+                    }
+                    int edge = listens.find(user, artist);
+                    changedArtists[changed] = artist;
+                    addedPlays[changed] = delta.weight(e);
+                    addedListeners[changed] = edge < 0 ? 1 : 0;
+                    oldWeights[changed] = edge < 0 ? 0 : listens.weight(edge);
+                    changed++;
+                }
+            }
+            // the plays the merged edge keeps, as mergeRow saturates it.
+            for (int i = 0; i < changed; i++) {
+                addedPlays[i] = Math.min(oldWeights[i] + addedPlays[i], Integer.MAX_VALUE) - oldWeights[i];
+            }
+
+            CSRGraph merged = CSRGraph.withEdges(listens, delta);
+            int[] changedUsers = delta.verticesWithEdges();
+            PopularityIndex popularity = base.popularity().update(changedArtists, addedPlays, addedListeners, changed);
+            publish(new Recommender(base.userFriendGraph(), merged, base.artists(), base.friendSets(),
+                    base.artistSets().updated(merged, changedUsers), popularity), changedUsers);
+        }
+    }
+
+    // adds the friendships users[i] -> friends[i] for the first count entries. friendships that
+    // already exist are ignored. O(E) of the friend graph (see above).
+    public void addFriendships(int[] users, int[] friends, int count) {
+        if (count == 0) {
+            return;
+        }
+        CSRGraph delta = CSRGraph.fromEdges(users, friends, null, count);
+
+        synchronized (writeLock) {
+            Recommender base = current;
+            CSRGraph merged = CSRGraph.withEdges(base.userFriendGraph(), delta);
+            int[] changedUsers = delta.verticesWithEdges();
+            publish(new Recommender(merged, base.userArtistGraph(), base.artists(),
+                    base.friendSets().updated(merged, changedUsers), base.artistSets(), base.popularity()),
+                    changedUsers);
+        }
+    }
+
+    private void publish(Recommender next, int[] changedUsers) {
+        current = next;
+        epoch++;
+        for (UpdateListener listener : listeners) {
+            listener.onUpdate(next, changedUsers);
+        }
+    }
+
+    // polls both files every intervalMillis and applies the rows appended since the previous
+    // poll, starting from their current sizes (i.e. assuming current() was loaded from them).
+    // the files are polled independently: a failed poll of one is reported on stderr and retried
+    // on the next interval without holding up the other, and malformed lines are skipped (see
+    // DatTailer) and counted on stderr. a replaced file is followed from its end, never re-applied.
+    public void tail(Path userFriendsDat, Path userArtistsDat, long intervalMillis) throws IOException {
+        DatTailer friends = new DatTailer(userFriendsDat, 2, Files.size(userFriendsDat));
+        DatTailer listens = new DatTailer(userArtistsDat, 3, Files.size(userArtistsDat));
+        synchronized (writeLock) {
+            if (tailing != null) {
+                throw new IllegalStateException("already tailing");
+            }
+            tailing = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "live-recommender-tail");
+                thread.setDaemon(true);
+                return thread;
+            });
+            tailing.scheduleWithFixedDelay(() -> {
+                poll(friends, rows -> addFriendships(rows[0], rows[1], rows[2][0]));
+                poll(listens, rows -> addListens(rows[0], rows[1], rows[2], rows[3][0]));
+            }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void poll(DatTailer tailer, Consumer<int[][]> apply) {
+        long skipped = tailer.skippedLines();
+        long replacements = tailer.replacements();
+        try {
+            apply.accept(tailer.poll());
+        } catch (IOException | RuntimeException e) {
+            System.err.println("live recommender: tail of " + tailer.path() + " failed: " + e);
+        }
+        if (tailer.replacements() > replacements) {
+            System.err.println("live recommender: " + tailer.path() + " was replaced; following it from its end,"
+                    + " without the rows already in it");
+        }
+        if (tailer.skippedLines() > skipped) {
+            System.err.println("live recommender: skipped " + (tailer.skippedLines() - skipped)
+                    + " malformed lines in " + tailer.path());
+        }
+    }
+
+    // stops tailing. the current version stays available.
+    @Override
+    public void close() {
+        synchronized (writeLock) {
+            if (tailing != null) {
+                tailing.shutdownNow();
+                tailing = null;
+            }
+        }
+    }
+}
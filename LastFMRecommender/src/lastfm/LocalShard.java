@@ -0,0 +1,89 @@
+// Title        :   LastFM Recommender
+// Description  :   Shard held in this process: a Recommender over the rows of
+//              :   the users one shard owns (see Recommender.partition). The
+//              :   groups of one playSums call are summed in parallel, each
+//              :   with a reusable accumulator from a shared ScratchPool
+//              :   (the shard server runs a thread per call), so the
+//              :   friends of a hub user, split into several groups by the
+//              :   coordinator, are summed on every core of the shard.
+
+package lastfm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+public final class LocalShard implements Shard {
+    private final Recommender partition;
+    private static final ScratchPool<ScoreAccumulator> SUM_SCRATCH = new ScratchPool<>(() -> new ScoreAccumulator(0));
+
+
+    public LocalShard(Recommender partition) {
+        this.partition = partition;
+    }
+
+    @Override
+    public int[][] friends(int[] users) {
+        AdjacencyStore graph = partition.userFriendGraph();
+        int[][] rows = new int[users.length][];
+        for (int i = 0; i < users.length; i++) {
+            rows[i] = graph.hasVertex(users[i]) ? graph.neighbours(users[i]) : new int[0];
+        }
+        return rows;
+    }
+
+    @Override
+    public List<List<ScoredArtist>> playSums(int[][] groups) {
+        List<ScoredArtist>[] sums = newLists(groups.length);
+        IntStream range = IntStream.range(0, groups.length);
+        (groups.length > 1 ? range.parallel() : range).forEach(g -> sums[g] = playSum(groups[g]));
+        return Arrays.asList(sums);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<ScoredArtist>[] newLists(int length) {
+        return (List<ScoredArtist>[]) new List<?>[length];
+    }
+
+    private List<ScoredArtist> playSum(int[] users) {
+        AdjacencyStore graph = partition.userArtistGraph();
+        ScoreAccumulator sums = SUM_SCRATCH.borrow();
+        sums.ensureCapacity(graph.vertexCount());
+        try {
+            for (int user : users) {
+                for (int e = graph.start(user); e < graph.end(user); e++) {
+                    sums.add(graph.target(e), graph.weight(e));
+                }
+            }
+            List<ScoredArtist> out = new ArrayList<>(sums.size());
+            for (int i = 0; i < sums.size(); i++) {
+                int artist = sums.idAt(i);
+                out.add(new ScoredArtist(artist, sums.get(artist)));
+            }
+            return out;
+        } finally {
+            sums.reset();
+            SUM_SCRATCH.release(sums);
+        }
+    }
+
+    @Override
+    public List<ScoredArtist> topArtists(int k) {
+        return partition.popularity().top(k);
+    }
+
+    @Override
+    public List<ScoredArtist> artistsWithPlays(long minPlays) {
+        return partition.popularity().atLeast(minPlays);
+    }
+
+    @Override
+    public long[] artistPlays(int[] artists) {
+        long[] plays = new long[artists.length];
+        for (int i = 0; i < artists.length; i++) {
+            plays[i] = partition.artistPlays(artists[i]);
+        }
+        return plays;
+    }
+}
@@ -0,0 +1,193 @@
+// Author       :   Alex Kourkoumelis
+// Date         :   6/18/2019
+// Title        :   LastFM Recommender
+// Description  :   Loads user and artist information gathered by LastFM, and
+//              :   utilizes graphs and various data structures to perform
+//              :   operations on the data.
+//              :   Operations:
+//              :   listFriends, commonFriends, listArtists, listTop10,
+//              :   recommend10, listArtistByID, and listAllArtists,
+//              :   against the .dat files or a snapshot / segment directory.
+//              :   Modes (the first argument):
+//              :   compile <snapshot>,
+//              :   segments <dir> [segmentEdges [partitions]],
+//              :   batch <output> [k] [firstUser lastUser],
+//              :   generate <dir> <users> <artists> [seed],
+//              :   serve <port> [snapshot or segment dir],
+//              :   shards <dir> <count>,
+//              :   shard <port> <snapshot or segment dir>, and
+//              :   coordinator <port> <shard url>....
+//              :   Run from the directory holding the .dat files, e.g.
+//              :   java -cp out lastfm.Main serve 8080.
+
+package lastfm;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+public class Main {
+
+    public static void main(String[] args) throws IOException {
+
+        // dat files provided by LastFM
+        String userFriendsDat = "user_friends.dat";
+        String userArtistsDat = "user_artists.dat";
+        String artistsDat = "artists.dat";
+
+        // "compile <snapshot>" parses the dat files once and writes them to a binary snapshot.
+        // "<snapshot>" runs the operations below against a snapshot instead of the dat files.
+        if (args.length == 2 && args[0].equals("compile")) {
+            new Recommender(userFriendsDat, userArtistsDat, artistsDat).writeSnapshot(args[1]);
+            return;
+        }
+
+        // "segments <dir> [segmentEdges [partitions]]" builds segment files for datasets larger than the heap,
+        // reading the dat files in bounded chunks. "<dir>" then runs the operations below against them.
+        // with partitions, dir/part-<i> holds the users whose id is i modulo partitions, for graphs past
+        // SegmentStore.MAX_GRAPH_EDGES; each is served by a "shard" process.
+        if (args.length >= 2 && args.length <= 4 && args[0].equals("segments")) {
+            int segmentEdges = args.length >= 3 ? Integer.parseInt(args[2]) : SegmentStore.defaultSegmentEdges();
+            if (args.length == 4) {
+                SegmentStore.buildPartitions(Paths.get(userFriendsDat), Paths.get(userArtistsDat),
+                        Paths.get(artistsDat), Paths.get(args[1]), segmentEdges, Integer.parseInt(args[3]));
+            } else {
+                SegmentStore.build(Paths.get(userFriendsDat), Paths.get(userArtistsDat), Paths.get(artistsDat),
+                        Paths.get(args[1]), segmentEdges);
+            }
+            return;
+        }
+
+        // "batch <output> [k] [firstUser lastUser]" writes the top k recommendations of every user
+        // in the range (default: all users) to a binary output file.
+        if (args.length >= 2 && args[0].equals("batch")) {
+            runBatch(new Recommender(userFriendsDat, userArtistsDat, artistsDat), args);
+            return;
+        }
+
+        // "generate <dir> <users> <artists> [seed]" writes a synthetic dataset of the given size, shaped
+        // like the LastFM files, into dir.
+        if (args.length >= 4 && args[0].equals("generate")) {
+            long seed = args.length > 4 ? Long.parseLong(args[4]) : 42;
+            DatGenerator.lastFmShaped(Integer.parseInt(args[2]), Integer.parseInt(args[3]), seed)
+                    .write(Paths.get(args[1]));
+            return;
+        }
+
+        // "serve <port> [snapshot or segment dir]" loads the data once and answers queries over HTTP until the
+        // process is stopped.
+        if ((args.length == 2 || args.length == 3) && args[0].equals("serve")) {
+            Recommender served = args.length == 3 ? open(args[2])
+                    : new Recommender(userFriendsDat, userArtistsDat, artistsDat);
+            RecommenderMetrics.global().observe(served);
+            RecommenderMetrics.registerMBean();
+            QueryServer server = new QueryServer(served, Integer.parseInt(args[1]));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(5)));
+            server.start();
+            System.err.println("serving on port " + server.port());
+            return;
+        }
+
+        // "shards <dir> <count>" splits the dat files by user id into count snapshots, dir/shard-<i>.snapshot.
+        // "shard <port> <snapshot or segment dir>" serves one of them, or one partition built by "segments",
+        // to a ShardedRecommender until the process is stopped.
+        if (args.length == 3 && args[0].equals("shards")) {
+            Recommender whole = new Recommender(userFriendsDat, userArtistsDat, artistsDat);
+            int count = Integer.parseInt(args[2]);
+            Files.createDirectories(Paths.get(args[1]));
+            for (int shard = 0; shard < count; shard++) {
+                String snapshot = Paths.get(args[1], "shard-" + shard + ".snapshot").toString();
+                whole.partition(shard, count).writeSnapshot(snapshot);
+            }
+            return;
+        }
+        if (args.length == 3 && args[0].equals("shard")) {
+            // a coordinator waits on every answer, and with Nagle's algorithm on the answers of small
+            // calls sit out the client's delayed ack, some 40ms each. the JDK server reads this once,
+            // when the first server of the process is created, so it is set before that; -D wins.
+            if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+                System.setProperty("sun.net.httpserver.nodelay", "true");
+            }
+            Recommender partition = open(args[2]);
+            RecommenderMetrics.global().observe(partition);
+            ShardServer server = new ShardServer(new LocalShard(partition), Integer.parseInt(args[1]));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(5)));
+            server.start();
+            System.err.println("serving shard " + args[2] + " on port " + server.port());
+            return;
+        }
+        // "coordinator <port> <shard url>..." answers the queries of "serve" over HTTP by scattering them to
+        // the "shard" processes at the given URLs, the i-th serving partition i, with the artist names
+        // read from the dat file here.
+        if (args.length >= 3 && args[0].equals("coordinator")) {
+            List<URI> servers = new ArrayList<>(args.length - 2);
+            for (int i = 2; i < args.length; i++) {
+                servers.add(URI.create(args[i]));
+            }
+            ShardedRecommender sharded = ShardedRecommender.connect(servers);
+            QueryServer server = new QueryServer(sharded.withArtists(DatLoader.loadArtists(Paths.get(artistsDat))),
+                    Integer.parseInt(args[1]));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.stop(5);
+                sharded.close();
+            }));
+            server.start();
+            System.err.println("coordinating " + servers.size() + " shards on port " + server.port());
+            return;
+        }
+
+        Recommender recommender;
+        if (args.length == 1) {
+            recommender = open(args[0]);
+        } else {
+            recommender = new Recommender(userFriendsDat, userArtistsDat, artistsDat);
+        }
+
+        recommender.listFriends(2);
+        recommender.listFriends(31);
+        recommender.listFriends(4);
+
+        recommender.commonFriends(31, 4);
+
+        recommender.commonFriends(1060, 500);
+
+        recommender.commonFriends(12, 684);
+
+        recommender.listArtists(31, 4);
+
+        recommender.listTop10();
+
+        recommender.recommend10(1283);
+
+        recommender.listArtistByID(31);
+
+//        recommender.listAllArtists();
+
+    }
+
+    // a segment directory (see "segments") or a snapshot (see "compile").
+    private static Recommender open(String path) throws IOException {
+        return Files.isDirectory(Paths.get(path)) ? Recommender.fromSegments(path) : Recommender.fromSnapshot(path);
+    }
+
+    // runs the offline batch job, reporting progress on stderr every 10%.
+    private static void runBatch(Recommender recommender, String[] args) throws IOException {
+        int k = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int firstUser = args.length > 4 ? Integer.parseInt(args[3]) : 0;
+        int lastUser = args.length > 4 ? Integer.parseInt(args[4]) : recommender.idLimit() - 1;
+
+        int[] lastDecile = {-1};
+        long records = new BatchRecommender(recommender, k).run(firstUser, lastUser, Paths.get(args[1]),
+                (done, total) -> {
+                    int decile = (int) (done * 10 / total);
+                    if (decile != lastDecile[0]) {
+                        lastDecile[0] = decile;
+                        System.err.println("batch: " + done + " / " + total + " users");
+                    }
+                });
+        System.err.println("batch: wrote recommendations for " + records + " users to " + args[1]);
+    }
+}
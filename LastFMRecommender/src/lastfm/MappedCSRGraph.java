@@ -0,0 +1,62 @@
+// Title        :   LastFM Recommender
+// Description  :   AdjacencyStore over int regions of a memory-mapped snapshot
+//              :   file. Nothing is copied onto the heap, so opening a graph
+//              :   is O(1) and JVMs that map the same snapshot share the
+//              :   operating system's page cache for it.
+
+package lastfm;
+
+import java.nio.IntBuffer;
+
+public final class MappedCSRGraph implements AdjacencyStore {
+    private final IntBuffer offsets;
+    private final IntBuffer targets;
+    // null for unweighted graphs.
+    private final IntBuffer weights;
+    private final int vertexCount;
+
+    MappedCSRGraph(IntBuffer offsets, IntBuffer targets, IntBuffer weights) {
+        this.offsets = offsets;
+        this.targets = targets;
+        this.weights = weights;
+        this.vertexCount = offsets.capacity() - 1;
+    }
+
+    @Override
+    public int vertexCount() {
+        return vertexCount;
+    }
+
+    @Override
+    public int edgeCount() {
+        return targets.capacity();
+    }
+
+    @Override
+    public boolean isWeighted() {
+        return weights != null;
+    }
+
+    @Override
+    public int start(int v) {
+        return hasVertex(v) ? offsets.get(v) : 0;
+    }
+
+    @Override
+    public int end(int v) {
+        return hasVertex(v) ? offsets.get(v + 1) : 0;
+    }
+
+    @Override
+    public int target(int edge) {
+        return targets.get(edge);
+    }
+
+    @Override
+    public int weight(int edge) {
+        if (weights == null) {
+            throw new UnsupportedOperationException("graph is unweighted");
+        }
+        return weights.get(edge);
+    }
+}
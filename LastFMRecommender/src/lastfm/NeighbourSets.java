@@ -0,0 +1,352 @@
+// Title        :   LastFM Recommender
+// Description  :   Set operations over the sorted rows of an AdjacencyStore.
+//              :   Two rows are intersected with a linear merge, or with a
+//              :   galloping search when one row is much shorter than the
+//              :   other. Dense hub rows additionally get a bitset over the
+//              :   target id space, chosen by degree, so intersecting with a
+//              :   hub costs one bit probe per element of the other row.
+//              :   Immutable once built and safe to share between threads.
+//              :   Sets opened from a snapshot keep their bitsets in the
+//              :   mapping and copy each one onto the heap the first time
+//              :   it is used, so opening does not depend on the graph.
+
+package lastfm;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+public final class NeighbourSets {
+    // a row gets a bitset when the bitset is no bigger than the row itself (32 bits per entry).
+    private static final int BITS_PER_ENTRY = 32;
+    // rows at least this many times longer than the other side are searched by galloping.
+    private static final int GALLOP_RATIO = 16;
+    private static final VarHandle BITSETS = MethodHandles.arrayElementVarHandle(long[][].class);
+
+    private final AdjacencyStore graph;
+    private final long maxBitsetBytes;
+    // ascending ids of the hub vertices, and the bitset of each. hubs are looked up once per
+    // query by binary search, so non-hub vertices cost nothing.
+    private final int[] hubs;
+    // filled in from mappedBits on first use when the sets were opened from a snapshot.
+    private final long[][] hubBits;
+    // the bitsets of all hubs one after the other, words() longs each, or null.
+    private final LongBuffer mappedBits;
+
+    public NeighbourSets(AdjacencyStore graph) {
+        this(graph, Long.MAX_VALUE);
+    }
+
+    // as NeighbourSets(graph), but the bitsets together take at most maxBitsetBytes; when the
+    // hubs would take more, only the highest-degree ones get a bitset and the rest are merged.
+    public NeighbourSets(AdjacencyStore graph, long maxBitsetBytes) {
+        this(graph, maxBitsetBytes, (NeighbourSets) null, null);
+    }
+
+    // the sets of graph, a later version of this one's graph whose rows differ only at the
+    // ascending changedRows (e.g. CSRGraph.withEdges of a delta). hubs are picked again from the
+    // degrees, but a hub outside changedRows keeps its bitset, so only the changed hubs are
+    // rebuilt from their rows.
+    public NeighbourSets updated(AdjacencyStore graph, int[] changedRows) {
+        return new NeighbourSets(graph, maxBitsetBytes, this, changedRows);
+    }
+
+    // sets whose hubs and bitsets were written by an earlier build (see SnapshotFile): the hubs
+    // in ascending order and their bitsets back to back, words() longs each.
+    NeighbourSets(AdjacencyStore graph, long maxBitsetBytes, int[] hubs, LongBuffer mappedBits) {
+        if (mappedBits.capacity() != (long) hubs.length * words(graph)) {
+            throw new IllegalArgumentException("expected " + (long) hubs.length * words(graph) + " bitset words, not "
+                    + mappedBits.capacity());
+        }
+        this.graph = graph;
+        this.maxBitsetBytes = maxBitsetBytes;
+        this.hubs = hubs;
+        this.hubBits = new long[hubs.length][];
+        this.mappedBits = mappedBits;
+    }
+
+    private NeighbourSets(AdjacencyStore graph, long maxBitsetBytes, NeighbourSets previous, int[] changedRows) {
+        this.graph = graph;
+        this.maxBitsetBytes = maxBitsetBytes;
+        this.mappedBits = null;
+        int hubDegree = Math.max(GALLOP_RATIO, graph.vertexCount() / BITS_PER_ENTRY);
+
+        int count = 0;
+        for (int v = 0; v < graph.vertexCount(); v++) {
+            if (graph.degree(v) >= hubDegree) {
+                count++;
+            }
+        }
+        long bitsetBytes = 16 + 8L * ((graph.vertexCount() + 63) >>> 6);
+        int[] chosen = new int[count];
+        int hub = 0;
+        for (int v = 0; v < graph.vertexCount(); v++) {
+            if (graph.degree(v) >= hubDegree) {
+                chosen[hub++] = v;
+            }
+        }
+        if (count > maxBitsetBytes / bitsetBytes) {
+            chosen = highestDegree(chosen, (int) (maxBitsetBytes / bitsetBytes));
+        }
+        hubs = chosen;
+        hubBits = new long[chosen.length][];
+        int words = words(graph);
+        for (int i = 0; i < chosen.length; i++) {
+            long[] kept = previous == null || Arrays.binarySearch(changedRows, chosen[i]) >= 0 ? null
+                    : previous.bitset(chosen[i]);
+            if (kept == null) {
+                hubBits[i] = toBitset(chosen[i]);
+            } else {
+                // bitsets are ANDed word by word, so they all cover the grown id space.
+                hubBits[i] = kept.length == words ? kept : Arrays.copyOf(kept, words);
+            }
+        }
+    }
+
+    // the limit vertices of the highest degree (ties by lower id), in ascending id order.
+    private int[] highestDegree(int[] vertices, int limit) {
+        long[] byDegree = new long[vertices.length];
+        for (int i = 0; i < vertices.length; i++) {
+            // descending degree, then ascending id, as ascending longs.
+            byDegree[i] = ((long) (Integer.MAX_VALUE - graph.degree(vertices[i])) << 32) | vertices[i];
+        }
+        Arrays.sort(byDegree);
+        int[] chosen = new int[limit];
+        for (int i = 0; i < limit; i++) {
+            chosen[i] = (int) byDegree[i];
+        }
+        Arrays.sort(chosen);
+        return chosen;
+    }
+
+    // number of rows that are backed by a bitset.
+    public int hubCount() {
+        return hubs.length;
+    }
+
+    // estimated heap bytes of the hub bitsets; the rows themselves belong to the graph, and
+    // bitsets still in a mapping take none.
+    public long heapBytes() {
+        long bytes = 16 + 4L * hubs.length + 16 + 4L * hubBits.length;
+        for (int i = 0; i < hubBits.length; i++) {
+            long[] bits = (long[]) BITSETS.getAcquire(hubBits, i);
+            if (bits != null) {
+                bytes += 16 + 8L * bits.length;
+            }
+        }
+        return bytes;
+    }
+
+    // the ids of the hubs, ascending; for SnapshotFile.
+    int[] hubs() {
+        return hubs;
+    }
+
+    // the bitset of the i-th hub; for SnapshotFile.
+    long[] hubBitset(int i) {
+        return bitsetAt(i);
+    }
+
+    long maxBitsetBytes() {
+        return maxBitsetBytes;
+    }
+
+    // longs per bitset over the target ids of the graph.
+    static int words(AdjacencyStore graph) {
+        return (graph.vertexCount() + 63) >>> 6;
+    }
+
+    // targets present in the rows of both vertices, ascending.
+    public int[] intersect(int v1, int v2) {
+        int[] common = new int[Math.min(graph.degree(v1), graph.degree(v2))];
+        int size = intersect(v1, v2, common);
+        return Arrays.copyOf(common, size);
+    }
+
+    // number of targets present in the rows of both vertices.
+    public int count(int v1, int v2) {
+        return intersect(v1, v2, null);
+    }
+
+    // writes the common targets of v1 and v2 into out (unless out is null) and returns how many
+    // there are. picks the cheapest of the bitset, galloping and merge strategies.
+    private int intersect(int v1, int v2, int[] out) {
+        int degree1 = graph.degree(v1);
+        int degree2 = graph.degree(v2);
+        if (degree1 == 0 || degree2 == 0) {
+            return 0;
+        }
+        // make v1 the shorter row.
+        if (degree1 > degree2) {
+            int v = v1;
+            v1 = v2;
+            v2 = v;
+            int d = degree1;
+            degree1 = degree2;
+            degree2 = d;
+        }
+
+        long[] bits1 = bitset(v1);
+        long[] bits2 = bitset(v2);
+        if (bits1 != null && bits2 != null) {
+            return intersectBitsets(bits1, bits2, out);
+        }
+        if (bits2 != null) {
+            return probe(v1, bits2, out);
+        }
+        if (degree2 / degree1 >= GALLOP_RATIO) {
+            return gallop(v1, v2, out);
+        }
+        return merge(v1, v2, out);
+    }
+
+    // linear merge of two sorted rows, O(degree1 + degree2).
+    private int merge(int v1, int v2, int[] out) {
+        int e1 = graph.start(v1);
+        int end1 = graph.end(v1);
+        int e2 = graph.start(v2);
+        int end2 = graph.end(v2);
+        int size = 0;
+        while (e1 < end1 && e2 < end2) {
+            int t1 = graph.target(e1);
+            int t2 = graph.target(e2);
+            if (t1 < t2) {
+                e1++;
+            } else if (t1 > t2) {
+                e2++;
+            } else {
+                if (out != null) {
+                    out[size] = t1;
+                }
+                size++;
+                e1++;
+                e2++;
+            }
+        }
+        return size;
+    }
+
+    // looks up every target of the short row v1 in the long row v2 by exponential then binary
+    // search from the last match, O(degree1 * log(degree2 / degree1)).
+    private int gallop(int v1, int v2, int[] out) {
+        int low = graph.start(v2);
+        int end2 = graph.end(v2);
+        int size = 0;
+        for (int e1 = graph.start(v1); e1 < graph.end(v1) && low < end2; e1++) {
+            int target = graph.target(e1);
+            low = lowerBound(target, low, end2);
+            if (low < end2 && graph.target(low) == target) {
+                if (out != null) {
+                    out[size] = target;
+                }
+                size++;
+                low++;
+            }
+        }
+        return size;
+    }
+
+    // index of the first edge in [from, to) whose target is >= target.
+    private int lowerBound(int target, int from, int to) {
+        int step = 1;
+        int high = from;
+        while (high < to && graph.target(high) < target) {
+            from = high + 1;
+            high += step;
+            step <<= 1;
+        }
+        high = Math.min(high, to);
+        while (from < high) {
+            int mid = (from + high) >>> 1;
+            if (graph.target(mid) < target) {
+                from = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return from;
+    }
+
+    // tests every target of v1 against a hub bitset, O(degree1).
+    private int probe(int v1, long[] bits, int[] out) {
+        int size = 0;
+        for (int e = graph.start(v1); e < graph.end(v1); e++) {
+            int target = graph.target(e);
+            if (contains(bits, target)) {
+                if (out != null) {
+                    out[size] = target;
+                }
+                size++;
+            }
+        }
+        return size;
+    }
+
+    // ANDs two hub bitsets word by word.
+    private static int intersectBitsets(long[] bits1, long[] bits2, int[] out) {
+        int size = 0;
+        for (int word = 0; word < bits1.length; word++) {
+            long common = bits1[word] & bits2[word];
+            if (out == null) {
+                size += Long.bitCount(common);
+                continue;
+            }
+            while (common != 0) {
+                out[size++] = (word << 6) + Long.numberOfTrailingZeros(common);
+                common &= common - 1;
+            }
+        }
+        return size;
+    }
+
+    // for each of the others, the number of targets it shares with v. v's row is turned into a
+    // bitset once (or its hub bitset is reused) and every other row is probed against it, so the
+    // whole batch is one pass over degree(v) + the sum of the others' degrees.
+    public int[] countAgainst(int v, int[] others) {
+        int[] counts = new int[others.length];
+        if (graph.degree(v) == 0) {
+            return counts;
+        }
+        long[] bits = bitset(v);
+        if (bits == null) {
+            bits = toBitset(v);
+        }
+        for (int i = 0; i < others.length; i++) {
+            counts[i] = probe(others[i], bits, null);
+        }
+        return counts;
+    }
+
+    // the hub bitset of v, or null if v is not a hub.
+    private long[] bitset(int v) {
+        int hub = Arrays.binarySearch(hubs, v);
+        return hub >= 0 ? bitsetAt(hub) : null;
+    }
+
+    // the bitset of the hub at the given index, copied out of the mapping on first use. two
+    // threads may both copy it; they copy the same words, and either copy is published whole.
+    private long[] bitsetAt(int hub) {
+        long[] bits = (long[]) BITSETS.getAcquire(hubBits, hub);
+        if (bits == null) {
+            bits = new long[words(graph)];
+            mappedBits.get(hub * bits.length, bits);
+            BITSETS.setRelease(hubBits, hub, bits);
+        }
+        return bits;
+    }
+
+    private long[] toBitset(int v) {
+        long[] bits = new long[words(graph)];
+        for (int e = graph.start(v); e < graph.end(v); e++) {
+            int target = graph.target(e);
+            bits[target >>> 6] |= 1L << target;
+        }
+        return bits;
+    }
+
+    private static boolean contains(long[] bits, int target) {
+        int word = target >>> 6;
+        return word < bits.length && (bits[word] & (1L << target)) != 0;
+    }
+}
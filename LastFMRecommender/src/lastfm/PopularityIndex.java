@@ -0,0 +1,216 @@
+// Title        :   LastFM Recommender
+// Description  :   Global artist popularity computed once from the listen
+//              :   graph: total plays and listener count per artist, plus
+//              :   every played artist ranked by total plays. Building it is
+//              :   one parallel pass over the edges; afterwards a top-k
+//              :   chart is k array reads and a lookup is one array read.
+
+package lastfm;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+public final class PopularityIndex {
+    private static final VarHandle LONG_ARRAY = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle INT_ARRAY = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final int BLOCK_EDGES = 1 << 16;
+
+    private final long[] plays;
+    private final int[] listeners;
+    // ids of every artist with at least one listen, most played first, ties by lower id.
+    private final int[] ranking;
+
+    PopularityIndex(long[] plays, int[] listeners, int[] ranking) {
+        this.plays = plays;
+        this.listeners = listeners;
+        this.ranking = ranking;
+    }
+
+    // sums the weight and counts the edges pointing at every artist of the listen graph.
+    public static PopularityIndex build(AdjacencyStore userArtistGraph) {
+        int artists = userArtistGraph.vertexCount();
+        long[] plays = new long[artists];
+        int[] listeners = new int[artists];
+
+        int edges = userArtistGraph.edgeCount();
+        int blocks = (edges + BLOCK_EDGES - 1) / BLOCK_EDGES;
+        IntStream.range(0, blocks).parallel().forEach(block -> {
+            int end = Math.min(edges, (block + 1) * BLOCK_EDGES);
+            for (int e = block * BLOCK_EDGES; e < end; e++) {
+                int artist = userArtistGraph.target(e);
+                LONG_ARRAY.getAndAdd(plays, artist, (long) userArtistGraph.weight(e));
+                INT_ARRAY.getAndAdd(listeners, artist, 1);
+            }
+        });
+
+        return new PopularityIndex(plays, listeners, rank(plays, listeners));
+    }
+
+    // ids of the artists that have listeners, sorted by plays descending and then by id.
+    static int[] rank(long[] plays, int[] listeners) {
+        int[] played = IntStream.range(0, plays.length).filter(artist -> listeners[artist] > 0).toArray();
+        long[] keys = rankKeys(plays, played, played.length);
+        Arrays.parallelSort(keys);
+        int[] ranking = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            ranking[i] = (int) keys[i];
+        }
+        return ranking;
+    }
+
+    // one key per artist that sorts ascending in ranking order, (place << 32) | id, so the
+    // ranking is a sort of primitives, with no boxing and no comparator. the place is
+    // Integer.MAX_VALUE - plays when every total fits in an int, which is the usual case, and
+    // otherwise the index of the artist's plays among the distinct totals, largest first.
+    private static long[] rankKeys(long[] plays, int[] artists, int count) {
+        long most = 0;
+        for (int i = 0; i < count; i++) {
+            most = Math.max(most, plays[artists[i]]);
+        }
+        long[] keys = new long[count];
+        if (most <= Integer.MAX_VALUE) {
+            for (int i = 0; i < count; i++) {
+                keys[i] = (Integer.MAX_VALUE - plays[artists[i]]) << 32 | artists[i];
+            }
+            return keys;
+        }
+        long[] totals = new long[count];
+        for (int i = 0; i < count; i++) {
+            totals[i] = plays[artists[i]];
+        }
+        Arrays.parallelSort(totals);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || totals[distinct - 1] != totals[i]) {
+                totals[distinct++] = totals[i];
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            long place = distinct - 1 - Arrays.binarySearch(totals, 0, distinct, plays[artists[i]]);
+            keys[i] = place << 32 | artists[i];
+        }
+        return keys;
+    }
+
+    // a new index with the given plays and listeners added to the given artists; this index is
+    // not modified. only the changed artists are re-ranked: the unchanged ranking is filtered and
+    // merged with the sorted changed artists, O(artists + changed * log(changed)) and without
+    // touching the listen graph. addedPlays must be what the edges gained after saturating at
+    // Integer.MAX_VALUE (see LiveRecommender.addListens), so the totals match build().
+    public PopularityIndex update(int[] artists, long[] addedPlays, int[] addedListeners, int count) {
+        int size = plays.length;
+        for (int i = 0; i < count; i++) {
+            if (artists[i] < 0) {
+                throw new IllegalArgumentException("negative artist id " + artists[i]);
+            }
+            size = Math.max(size, artists[i] + 1);
+        }
+        long[] newPlays = Arrays.copyOf(plays, size);
+        int[] newListeners = Arrays.copyOf(listeners, size);
+        boolean[] changed = new boolean[size];
+        int changedCount = 0;
+        for (int i = 0; i < count; i++) {
+            int artist = artists[i];
+            newPlays[artist] += addedPlays[i];
+            newListeners[artist] += addedListeners[i];
+            if (!changed[artist]) {
+                changed[artist] = true;
+                changedCount++;
+            }
+        }
+
+        int[] moved = new int[changedCount];
+        int movedCount = 0;
+        for (int artist = 0; artist < size; artist++) {
+            if (changed[artist] && newListeners[artist] > 0) {
+                moved[movedCount++] = artist;
+            }
+        }
+        long[] keys = rankKeys(newPlays, moved, movedCount);
+        Arrays.sort(keys);
+        for (int i = 0; i < movedCount; i++) {
+            moved[i] = (int) keys[i];
+        }
+
+        int[] ranking = new int[this.ranking.length + movedCount];
+        int r = 0;
+        int m = 0;
+        int out = 0;
+        while (r < this.ranking.length || m < movedCount) {
+            if (r < this.ranking.length && changed[this.ranking[r]]) {
+                r++;
+            } else if (m == movedCount || (r < this.ranking.length
+                    && compare(newPlays, this.ranking[r], moved[m]) < 0)) {
+                ranking[out++] = this.ranking[r++];
+            } else {
+                ranking[out++] = moved[m++];
+            }
+        }
+        return new PopularityIndex(newPlays, newListeners, Arrays.copyOf(ranking, out));
+    }
+
+    // ranking order: plays descending, then id ascending.
+    private static int compare(long[] plays, int a, int b) {
+        int byPlays = Long.compare(plays[b], plays[a]);
+        return byPlays != 0 ? byPlays : Integer.compare(a, b);
+    }
+
+    // the k most played artists, best first.
+    public List<ScoredArtist> top(int k) {
+        if (k < 0) {
+            throw new IllegalArgumentException("k must be non-negative: " + k);
+        }
+        int size = Math.min(k, ranking.length);
+        List<ScoredArtist> top = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            top.add(new ScoredArtist(ranking[i], plays[ranking[i]]));
+        }
+        return top;
+    }
+
+    // every artist with at least minPlays plays, best first; the ranking is read until the first
+    // artist below the bound.
+    public List<ScoredArtist> atLeast(long minPlays) {
+        List<ScoredArtist> found = new ArrayList<>();
+        for (int i = 0; i < ranking.length && plays[ranking[i]] >= minPlays; i++) {
+            found.add(new ScoredArtist(ranking[i], plays[ranking[i]]));
+        }
+        return found;
+    }
+
+    // total plays of the given artist across all users.
+    public long plays(int artist) {
+        return artist >= 0 && artist < plays.length ? plays[artist] : 0;
+    }
+
+    // number of users that listen to the given artist.
+    public int listeners(int artist) {
+        return artist >= 0 && artist < listeners.length ? listeners[artist] : 0;
+    }
+
+    // number of artists with at least one listener.
+    public int rankedArtists() {
+        return ranking.length;
+    }
+
+    // the arrays themselves, for SnapshotFile; not to be modified.
+    long[] playTotals() {
+        return plays;
+    }
+
+    int[] listenerCounts() {
+        return listeners;
+    }
+
+    int[] ranking() {
+        return ranking;
+    }
+
+    public long heapBytes() {
+        return 16 + 8L * plays.length + 16 + 4L * listeners.length + 16 + 4L * ranking.length;
+    }
+}
@@ -0,0 +1,399 @@
+// Title        :   LastFM Recommender
+// Description  :   Long-running HTTP server that answers Recommender queries
+//              :   as compact JSON, so the data is loaded once per process
+//              :   instead of once per question. Runs on the JDK HttpServer
+//              :   with one virtual thread per request where the runtime
+//              :   has them, and one pooled platform thread per request
+//              :   otherwise. Every query reads the Recommender supplied at
+//              :   that moment, so a LiveRecommender can be served as well,
+//              :   or a ShardedRecommender (see withArtists) as coordinator.
+//              :
+//              :   GET  /friends?user=U
+//              :   GET  /common-friends?user1=U&user2=V
+//              :   GET  /common-artists?user1=U&user2=V
+//              :   GET  /top?k=K
+//              :   GET  /recommend?user=U[&k=K]
+//              :   GET  /artist?id=A
+//              :   GET  /artists?prefix=P[&k=K], names starting with P, any case.
+//              :   POST /batch, one query per line ("/friends?user=2"), which
+//              :        answers a JSON array with one {"status","body"} per
+//              :        line, in order.
+//              :   GET  /health
+//              :   GET  /metrics, the RecommenderMetrics text dump.
+//              :   Errors answer {"error": message}: 400 for bad parameters,
+//              :   404, 405, 413 for a batch body over MAX_BATCH_BYTES, and
+//              :   500 for any other failure of a query.
+
+package lastfm;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+public final class QueryServer {
+    private static final int DEFAULT_K = 10;
+    // bounds the work a single request can ask for.
+    private static final int MAX_K = 1000;
+    private static final int MAX_BATCH_QUERIES = 1000;
+    // a batch body is read up to this size and refused with 413 past it; a thousand queries need
+    // a few tens of KB.
+    static final int MAX_BATCH_BYTES = 1 << 20;
+
+    private final Supplier<? extends RecommenderQueries> source;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    // serves the Recommender returned by source at the time of each query on the given port
+    // (0 picks a free one). call start() to accept requests.
+    public QueryServer(Supplier<? extends RecommenderQueries> source, int port) throws IOException {
+        this.source = source;
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.executor = perRequestExecutor();
+        server.setExecutor(executor);
+        server.createContext("/", this::serve);
+    }
+
+    public QueryServer(RecommenderQueries recommender, int port) throws IOException {
+        this(() -> recommender, port);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    // the port the server listens on.
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    // stops accepting connections, gives requests in flight up to graceSeconds to finish, then
+    // stops the request threads.
+    public void stop(int graceSeconds) {
+        server.stop(graceSeconds);
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(graceSeconds, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() where the runtime has it (it is looked up
+    // reflectively, so the server still builds and runs on older JDKs), else a cached pool.
+    static ExecutorService perRequestExecutor() {
+        try {
+            Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) virtual.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "query-server");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            Response response;
+            try {
+                String path = exchange.getRequestURI().getPath();
+                if (path.equals("/batch")) {
+                    response = exchange.getRequestMethod().equals("POST")
+                            ? batch(exchange.getRequestBody())
+                            : Response.error(405, "POST one query per line to /batch");
+                } else if (!exchange.getRequestMethod().equals("GET")) {
+                    response = Response.error(405, "only GET is supported on " + path);
+                } else {
+                    response = query(path, parameters(exchange.getRequestURI().getRawQuery()));
+                }
+            } catch (IllegalArgumentException e) {
+                response = Response.error(400, e.getMessage());
+            } catch (RuntimeException e) {
+                response = Response.internalError(e);
+            }
+            byte[] body = response.body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", response.contentType);
+            exchange.sendResponseHeaders(response.status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    // answers every line of the request body as a query against the same Recommender, so the
+    // answers of one batch are consistent with each other.
+    private Response batch(InputStream body) throws IOException {
+        byte[] bytes = body.readNBytes(MAX_BATCH_BYTES + 1);
+        if (bytes.length > MAX_BATCH_BYTES) {
+            return Response.error(413, "batch body over " + MAX_BATCH_BYTES + " bytes");
+        }
+        String[] lines = new String(bytes, StandardCharsets.UTF_8).split("\r?\n");
+        RecommenderQueries recommender = source.get();
+        Json out = new Json().append('[');
+        int queries = 0;
+        for (String line : lines) {
+            if (line.isBlank()) {
+                continue;
+            }
+            if (++queries > MAX_BATCH_QUERIES) {
+                return Response.error(400, "more than " + MAX_BATCH_QUERIES + " queries in one batch");
+            }
+            Response response;
+            try {
+                URI uri = URI.create(line.trim());
+                response = query(recommender, uri.getPath(), parameters(uri.getRawQuery()));
+            } catch (IllegalArgumentException e) {
+                response = Response.error(400, e.getMessage());
+            } catch (RuntimeException e) {
+                response = Response.internalError(e);
+            }
+            if (queries > 1) {
+                out.append(',');
+            }
+            out.append("{\"status\":").append(response.status).append(",\"body\":");
+            // text answers (the metrics dump) are embedded as a JSON string.
+            if (response.contentType.equals(Response.JSON)) {
+                out.append(response.body);
+            } else {
+                out.string(response.body);
+            }
+            out.append('}');
+        }
+        return Response.ok(out.append(']'));
+    }
+
+    Response query(String path, Map<String, String> parameters) {
+        return query(source.get(), path, parameters);
+    }
+
+    private static Response query(RecommenderQueries recommender, String path, Map<String, String> parameters) {
+        switch (path) {
+            case "/friends": {
+                int user = intParameter(parameters, "user");
+                return Response.ok(new Json().append("{\"user\":").append(user)
+                        .append(",\"friends\":").ids(recommender.friends(user)).append('}'));
+            }
+            case "/common-friends": {
+                int user1 = intParameter(parameters, "user1");
+                int user2 = intParameter(parameters, "user2");
+                return Response.ok(new Json().append("{\"friends\":")
+                        .ids(recommender.mutualFriends(user1, user2)).append('}'));
+            }
+            case "/common-artists": {
+                int user1 = intParameter(parameters, "user1");
+                int user2 = intParameter(parameters, "user2");
+                Json out = new Json().append("{\"artists\":[");
+                int[] artists = recommender.sharedArtists(user1, user2);
+                for (int i = 0; i < artists.length; i++) {
+                    if (i > 0) {
+                        out.append(',');
+                    }
+                    out.artist(recommender, artists[i]).append('}');
+                }
+                return Response.ok(out.append("]}"));
+            }
+            case "/top":
+                return Response.ok(scored(recommender, recommender.topArtists(kParameter(parameters))));
+            case "/recommend": {
+                int user = intParameter(parameters, "user");
+                return Response.ok(scored(recommender, recommender.recommend(user, kParameter(parameters))));
+            }
+            case "/artist": {
+                int id = intParameter(parameters, "id");
+                if (recommender.artistName(id) == null) {
+                    return Response.error(404, "no artist with id " + id);
+                }
+                return Response.ok(new Json().artist(recommender, id).append('}'));
+            }
+            case "/artists": {
+                String prefix = parameters.getOrDefault("prefix", "");
+                int[] found = recommender.searchArtists(prefix, kParameter(parameters));
+                Json out = new Json().append("{\"artists\":[");
+                for (int i = 0; i < found.length; i++) {
+                    if (i > 0) {
+                        out.append(',');
+                    }
+                    out.artist(recommender, found[i]).append('}');
+                }
+                return Response.ok(out.append("]}"));
+            }
+            case "/health":
+                return Response.ok(new Json().append("{\"status\":\"ok\"}"));
+            case "/metrics":
+                return new Response(200, RecommenderMetrics.global().dump(), "text/plain; charset=utf-8");
+            default:
+                return Response.error(404, "unknown query " + path);
+        }
+    }
+
+    private static Json scored(RecommenderQueries recommender, List<ScoredArtist> artists) {
+        Json out = new Json().append("{\"artists\":[");
+        for (int i = 0; i < artists.size(); i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            out.artist(recommender, artists.get(i).artist()).append(",\"score\":")
+                    .number(artists.get(i).score()).append('}');
+        }
+        return out.append("]}");
+    }
+
+    // decodes a raw "a=1&b=2" query string.
+    static Map<String, String> parameters(String rawQuery) {
+        Map<String, String> parameters = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return parameters;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            String name = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            parameters.put(URLDecoder.decode(name, StandardCharsets.UTF_8),
+                    URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return parameters;
+    }
+
+    private static int intParameter(Map<String, String> parameters, String name) {
+        String value = parameters.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("missing parameter " + name);
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("parameter " + name + " is not an integer: " + value);
+        }
+    }
+
+    private static int kParameter(Map<String, String> parameters) {
+        int k = parameters.containsKey("k") ? intParameter(parameters, "k") : DEFAULT_K;
+        if (k < 0 || k > MAX_K) {
+            throw new IllegalArgumentException("k must be between 0 and " + MAX_K + ": " + k);
+        }
+        return k;
+    }
+
+    static final class Response {
+        private static final String JSON = "application/json; charset=utf-8";
+
+        final int status;
+        final String body;
+        final String contentType;
+
+        private Response(int status, String body, String contentType) {
+            this.status = status;
+            this.body = body;
+            this.contentType = contentType;
+        }
+
+        static Response ok(Json body) {
+            return new Response(200, body.toString(), JSON);
+        }
+
+        static Response error(int status, String message) {
+            return new Response(status, new Json().append("{\"error\":").string(message).append('}').toString(),
+                    JSON);
+        }
+
+        // a query that failed for a reason other than its parameters, e.g. a snapshot read error.
+        static Response internalError(RuntimeException e) {
+            return error(500, e.toString());
+        }
+    }
+
+    // just enough of a JSON writer for the responses above.
+    static final class Json {
+        private final StringBuilder out = new StringBuilder();
+
+        Json append(String raw) {
+            out.append(raw);
+            return this;
+        }
+
+        Json append(char raw) {
+            out.append(raw);
+            return this;
+        }
+
+        Json append(int value) {
+            out.append(value);
+            return this;
+        }
+
+        Json number(double value) {
+            // JSON has no NaN or infinity (a weighted score over a zero total can be either).
+            if (!Double.isFinite(value)) {
+                out.append("null");
+            } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+                // integral scores (summed play counts) are written without a fraction.
+                out.append((long) value);
+            } else {
+                out.append(value);
+            }
+            return this;
+        }
+
+        Json ids(int[] ids) {
+            out.append('[');
+            for (int i = 0; i < ids.length; i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                out.append(ids[i]);
+            }
+            out.append(']');
+            return this;
+        }
+
+        // opens {"id":..,"name":..; the caller adds fields and the closing brace.
+        Json artist(RecommenderQueries recommender, int id) {
+            out.append("{\"id\":").append(id).append(",\"name\":");
+            return string(recommender.artistName(id));
+        }
+
+        Json string(String value) {
+            if (value == null) {
+                out.append("null");
+                return this;
+            }
+            out.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    out.append('\\').append(c);
+                } else if (c < 0x20) {
+                    out.append(String.format("\\u%04x", (int) c));
+                } else {
+                    out.append(c);
+                }
+            }
+            out.append('"');
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return out.toString();
+        }
+    }
+}
@@ -0,0 +1,509 @@
+// Author       :   Alex Kourkoumelis
+// Date         :   6/18/2019
+// Title        :   LastFM Recommender
+// Description  :   Loads user and artist information gathered by LastFM, and
+//              :   utilizes graphs and various data structures to perform
+//              :   operations on the data.
+//              :   Operations:
+//              :   listFriends, commonFriends, listArtists, listTop10,
+//              :   recommend10, listArtistByID, and listAllArtists
+
+package lastfm;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+public class Recommender implements RecommenderQueries {
+    private static final RecommenderMetrics METRICS = RecommenderMetrics.global();
+    private static final ScratchPool<ScoreAccumulator> SCORE_SCRATCH = new ScratchPool<>(() -> new ScoreAccumulator(0));
+    private static final ScratchPool<ListenBuffer> LISTEN_SCRATCH = new ScratchPool<>(ListenBuffer::new);
+
+    // all state is final and never mutated after construction (bar a derived cache that is set
+    // once), so one Recommender can be queried from any number of threads without locking.
+    // query scratch is borrowed from the shared SCORE_SCRATCH and LISTEN_SCRATCH pools, so it
+    // depends on neither the thread nor the instance.
+    // every query and load phase is timed into RecommenderMetrics.global().
+    private final AdjacencyStore userFriendGraph;
+    private final AdjacencyStore userArtistGraph;
+    private final ArtistDictionary artistID;
+    private final NeighbourSets friendSets;
+    private final NeighbourSets artistSets;
+    private final PopularityIndex popularity;
+    // derived from the listen graph on first use by inverseListenerFrequency().
+    private volatile double[] inverseListenerFrequency;
+
+    // Constructor.
+    public Recommender(String userFriendsDat, String userArtistsDat, String artistsDat) {
+        this(METRICS.timeLoad("populateUserFriendGraph", () -> populateUserFriendGraph(userFriendsDat)),
+                METRICS.timeLoad("populateUserArtistGraph", () -> populateUserArtistGraph(userArtistsDat)),
+                METRICS.timeLoad("populateArtistID", () -> populateArtistID(artistsDat)));
+    }
+
+    // wraps graphs and artist names that were built elsewhere.
+    Recommender(AdjacencyStore userFriendGraph, AdjacencyStore userArtistGraph, Map<Integer, String> artistID) {
+        this(userFriendGraph, userArtistGraph, ArtistDictionary.of(artistID));
+    }
+
+    // wraps graphs that have already been loaded, e.g. from a snapshot.
+    Recommender(AdjacencyStore userFriendGraph, AdjacencyStore userArtistGraph, ArtistDictionary artistID) {
+        this(userFriendGraph, userArtistGraph, artistID,
+                METRICS.timeLoad("buildFriendSets", () -> new NeighbourSets(userFriendGraph)),
+                METRICS.timeLoad("buildArtistSets", () -> new NeighbourSets(userArtistGraph)),
+                METRICS.timeLoad("buildPopularityIndex", () -> PopularityIndex.build(userArtistGraph)));
+    }
+
+    // wraps graphs together with indexes that were already derived from them, e.g. when a
+    // LiveRecommender only had to update some of them.
+    Recommender(AdjacencyStore userFriendGraph, AdjacencyStore userArtistGraph, ArtistDictionary artistID,
+                NeighbourSets friendSets, NeighbourSets artistSets, PopularityIndex popularity) {
+        this.userFriendGraph = userFriendGraph;
+        this.userArtistGraph = userArtistGraph;
+        this.artistID = artistID;
+        this.friendSets = friendSets;
+        this.artistSets = artistSets;
+        this.popularity = popularity;
+    }
+
+    // opens a snapshot written by writeSnapshot. the graphs and hub bitsets stay memory-mapped and
+    // the popularity index is read back rather than rebuilt, so this takes milliseconds
+    // regardless of the number of edges.
+    public static Recommender fromSnapshot(String snapshotFile) throws IOException {
+        long start = System.nanoTime();
+        SnapshotFile.Contents contents = SnapshotFile.open(Paths.get(snapshotFile));
+        METRICS.recordLoad("openSnapshot", System.nanoTime() - start);
+        return new Recommender(contents.userFriendGraph, contents.userArtistGraph, contents.artistID,
+                contents.friendSets, contents.artistSets, contents.popularity);
+    }
+
+    // opens a segment directory built by SegmentStore.build, for datasets larger than the heap.
+    // the graphs stay in their mappings; each one keeps at most cacheBytes of hot blocks on the
+    // heap, and the hub bitsets of each are held to the same bound, so the heap a query needs
+    // does not grow with the number of edges.
+    public static Recommender fromSegments(String dir, long cacheBytes) throws IOException {
+        long start = System.nanoTime();
+        SegmentStore.Contents contents = SegmentStore.open(Paths.get(dir), cacheBytes);
+        METRICS.recordLoad("openSegments", System.nanoTime() - start);
+        return new Recommender(contents.userFriendGraph, contents.userArtistGraph, contents.artistID,
+                METRICS.timeLoad("buildFriendSets", () -> new NeighbourSets(contents.userFriendGraph, cacheBytes)),
+                METRICS.timeLoad("buildArtistSets", () -> new NeighbourSets(contents.userArtistGraph, cacheBytes)),
+                contents.popularity);
+    }
+
+    // as fromSegments(dir, cacheBytes) with an eighth of the maximum heap for each cache.
+    public static Recommender fromSegments(String dir) throws IOException {
+        return fromSegments(dir, Runtime.getRuntime().maxMemory() / 8);
+    }
+
+    // writes the loaded graphs, artist names and indexes to a binary snapshot that fromSnapshot
+    // can open.
+    public void writeSnapshot(String snapshotFile) throws IOException {
+        SnapshotFile.write(Paths.get(snapshotFile), userFriendGraph, userArtistGraph, artistID, popularity,
+                friendSets, artistSets);
+    }
+
+    // the same data with the listen graph varint-compressed (see CompressedCSRGraph): about half
+    // the heap for the largest structure, for some decoding on every query that reads it.
+    public Recommender withCompressedListens() {
+        AdjacencyStore compressed = METRICS.timeLoad("compressUserArtistGraph",
+                () -> CompressedCSRGraph.of(userArtistGraph));
+        return new Recommender(userFriendGraph, compressed, artistID, friendSets,
+                METRICS.timeLoad("buildArtistSets", () -> new NeighbourSets(compressed)), popularity);
+    }
+
+    // the part of the data that shard `shard` of `shards` holds (see ShardedRecommender): the
+    // friend and listen rows of the users whose id is shard modulo shards, under their original
+    // ids, with every artist name.
+    public Recommender partition(int shard, int shards) {
+        if (shards < 1 || shard < 0 || shard >= shards) {
+            throw new IllegalArgumentException("no shard " + shard + " of " + shards);
+        }
+        return new Recommender(ownedRows(userFriendGraph, shard, shards), ownedRows(userArtistGraph, shard, shards),
+                artistID);
+    }
+
+    // the rows of the vertices v with v % shards == shard.
+    private static CSRGraph ownedRows(AdjacencyStore graph, int shard, int shards) {
+        int edges = 0;
+        for (int v = shard; v < graph.vertexCount(); v += shards) {
+            edges += graph.degree(v);
+        }
+        int[] from = new int[edges];
+        int[] to = new int[edges];
+        int[] weight = graph.isWeighted() ? new int[edges] : null;
+        int at = 0;
+        for (int v = shard; v < graph.vertexCount(); v += shards) {
+            for (int e = graph.start(v); e < graph.end(v); e++, at++) {
+                from[at] = v;
+                to[at] = graph.target(e);
+                if (weight != null) {
+                    weight[at] = graph.weight(e);
+                }
+            }
+        }
+        return CSRGraph.fromEdges(from, to, weight, edges);
+    }
+
+    // the graphs, for the other engines built on top of a Recommender.
+    AdjacencyStore userFriendGraph() {
+        return userFriendGraph;
+    }
+
+    AdjacencyStore userArtistGraph() {
+        return userArtistGraph;
+    }
+
+    NeighbourSets friendSets() {
+        return friendSets;
+    }
+
+    NeighbourSets artistSets() {
+        return artistSets;
+    }
+
+    PopularityIndex popularity() {
+        return popularity;
+    }
+
+    // one past the largest id that appears in either graph; every user id is below this.
+    public int idLimit() {
+        return Math.max(userFriendGraph.vertexCount(), userArtistGraph.vertexCount());
+    }
+
+    // lists all friends of given user.
+    public void listFriends(int user) {
+        System.out.println("Friends of user " + user + ":");
+        for (int friend : friends(user)) {
+            System.out.print(friend + " ");
+        }
+        System.out.println("\n");
+    }
+
+    // returns the friends of the given user in ascending order.
+    public int[] friends(int user) {
+        long start = System.nanoTime();
+        long allocated = METRICS.allocatedBytes();
+        try {
+            return userFriendGraph.neighbours(user);
+        } finally {
+            record(RecommenderMetrics.Query.FRIENDS, start, allocated, user);
+        }
+    }
+
+    // lists all common friends of 2 given users.
+    public void commonFriends(int user1, int user2) {
+        System.out.println("Common friends of " + user1 + " and " + user2 + ":");
+        for (int friend : mutualFriends(user1, user2)) {
+            System.out.print(friend + " ");
+        }
+        System.out.println("\n");
+    }
+
+    // returns the friends that 2 given users have in common, in ascending order, by intersecting
+    // the sorted rows of both users.
+    public int[] mutualFriends(int user1, int user2) {
+        long start = System.nanoTime();
+        long allocated = METRICS.allocatedBytes();
+        try {
+            return friendSets.intersect(user1, user2);
+        } finally {
+            record(RecommenderMetrics.Query.MUTUAL_FRIENDS, start, allocated, user1);
+        }
+    }
+
+    // for each of the given users, the number of friends they have in common with user.
+    public int[] mutualFriendCounts(int user, int[] others) {
+        long start = System.nanoTime();
+        long allocated = METRICS.allocatedBytes();
+        try {
+            return friendSets.countAgainst(user, others);
+        } finally {
+            record(RecommenderMetrics.Query.MUTUAL_FRIEND_COUNTS, start, allocated, user);
+        }
+    }
+
+    // lists all common artists listened to by 2 given users.
+    public void listArtists(int user1, int user2) {
+        System.out.println("Artists listened to by both user " + user1 + " and " + user2 + ":");
+        for (int artist : sharedArtists(user1, user2)) {
+            System.out.println(returnArtistByID(artist));
+        }
+        System.out.println("\n");
+    }
+
+    // returns the ids of the artists listened to by both given users, in ascending order, by
+    // intersecting the sorted rows of both users in the userArtistGraph.
+    public int[] sharedArtists(int user1, int user2) {
+        long start = System.nanoTime();
+        long allocated = METRICS.allocatedBytes();
+        try {
+            return artistSets.intersect(user1, user2);
+        } finally {
+            record(RecommenderMetrics.Query.SHARED_ARTISTS, start, allocated, user1);
+        }
+    }
+
+    // for each of the given users, the number of artists they share with user. used for
+    // "shared taste" against a page of other users in one pass.
+    public int[] sharedArtistCounts(int user, int[] others) {
+        long start = System.nanoTime();
+        long allocated = METRICS.allocatedBytes();
+        try {
+            return artistSets.countAgainst(user, others);
+        } finally {
+            record(RecommenderMetrics.Query.SHARED_ARTIST_COUNTS, start, allocated, user);
+        }
+    }
+
+    // lists top 10 artists listened to by all users, read from the popularity index.
+    // both listTop10 and recommend10 print through printTop10().
+    public void listTop10() {
+        System.out.println("The top 10 Artists listened to by all users are: ");
+        printTop10(topArtists(10));
+    }
+
+    // returns the k artists with the most listens across all users, best first. the totals are
+    // summed once when the Recommender is built, so this is O(k).
+    public List<ScoredArtist> topArtists(int k) {
+        long start = System.nanoTime();
+        long allocated = METRICS.allocatedBytes();
+        try {
+            return popularity.top(k);
+        } finally {
+            record(RecommenderMetrics.Query.TOP_ARTISTS, start, allocated, -1);
+        }
+    }
+
+    // total listens of the given artist across all users.
+    public long artistPlays(int artist) {
+        return popularity.plays(artist);
+    }
+
+    // number of users that listen to the given artist.
+    public int artistListeners(int artist) {
+        return popularity.listeners(artist);
+    }
+
+    // lists top 10 artists listened to by all of a users given friends and that user by summing all
+    // the listens(weights) of each artist into a ScoreAccumulator and keeping the 10 highest.
+    // both listTop10 and recommend10 print through printTop10().
+    public void recommend10(int user) {
+        System.out.println("Top 10 Recommendations for user " + user + " are: ");
+        printTop10(recommend(user, 10));
+    }
+
+    // returns the k artists with the most listens among the given user and the user's friends,
+    // best first.
+    public List<ScoredArtist> recommend(int user, int k) {
+        long start = System.nanoTime();
+        long allocated = METRICS.allocatedBytes();
+        ScoreAccumulator weights = scoreScratch();
+        try {
+            // grabbing all of users friends
+            for (int e = userFriendGraph.start(user); e < userFriendGraph.end(user); e++) {
+                addListens(userFriendGraph.target(e), weights);
+            }
+
+            // adding weights from user's listens
+            addListens(user, weights);
+
+            return weights.topK(k);
+        } finally {
+            weights.reset();
+            SCORE_SCRATCH.release(weights);
+            record(RecommenderMetrics.Query.RECOMMEND, start, allocated, user);
+        }
+    }
+
+    // a clean accumulator with room for every artist, to be reset and released after the query.
+    private ScoreAccumulator scoreScratch() {
+        ScoreAccumulator scratch = SCORE_SCRATCH.borrow();
+        scratch.ensureCapacity(userArtistGraph.vertexCount());
+        return scratch;
+    }
+
+    // adds the listens(weights) of every artist in the given user's row to the accumulator.
+    // used by recommend.
+    private void addListens(int user, ScoreAccumulator weights) {
+        for (int e = userArtistGraph.start(user); e < userArtistGraph.end(user); e++) {
+            weights.add(userArtistGraph.target(e), userArtistGraph.weight(e));
+        }
+    }
+
+    // as recommend(user, k), with the plays weighted as given. weighted scores are normalised to
+    // shares of the user's total, so they compare across users. the listens of the user and the
+    // user's friends are gathered into dense arrays, so weighting and choosing the top k run
+    // through the ScoringKernel, SIMD where the runtime has the Vector API.
+    public List<ScoredArtist> recommend(int user, int k, ScoringKernel.Weighting weighting) {
+        if (weighting == ScoringKernel.Weighting.PLAYS) {
+            return recommend(user, k);
+        }
+        long start = System.nanoTime();
+        long allocated = METRICS.allocatedBytes();
+        ScoringKernel kernel = ScoringKernel.get();
+        ScoreAccumulator weights = scoreScratch();
+        ListenBuffer listens = LISTEN_SCRATCH.borrow();
+        try {
+            for (int e = userFriendGraph.start(user); e < userFriendGraph.end(user); e++) {
+                listens.addRow(userArtistGraph, userFriendGraph.target(e));
+            }
+            listens.addRow(userArtistGraph, user);
+            if (weighting == ScoringKernel.Weighting.LOG_PLAYS) {
+                kernel.log1p(listens.plays, listens.count);
+            }
+            for (int i = 0; i < listens.count; i++) {
+                weights.add(listens.artists[i], listens.plays[i]);
+            }
+
+            int count = weights.size();
+            int[] ids = weights.ids();
+            double[] scores = weights.denseScores();
+            if (weighting == ScoringKernel.Weighting.TF_IDF) {
+                kernel.multiplyGathered(scores, ids, inverseListenerFrequency(), count);
+            }
+            double total = kernel.sum(scores, count);
+            if (total > 0) {
+                kernel.scale(scores, count, 1 / total);
+            }
+            TopK top = new TopK(Math.min(k, count));
+            kernel.select(ids, scores, count, top);
+            return top.drain();
+        } finally {
+            listens.count = 0;
+            LISTEN_SCRATCH.release(listens);
+            weights.reset();
+            SCORE_SCRATCH.release(weights);
+            record(RecommenderMetrics.Query.RECOMMEND, start, allocated, user);
+        }
+    }
+
+    // log(users with listens / listeners) of every artist, derived from the popularity index on
+    // first use. two threads may both derive it; they derive the same values.
+    private double[] inverseListenerFrequency() {
+        double[] idf = inverseListenerFrequency;
+        if (idf == null) {
+            int users = 0;
+            for (int v = 0; v < userArtistGraph.vertexCount(); v++) {
+                if (userArtistGraph.degree(v) > 0) {
+                    users++;
+                }
+            }
+            idf = new double[userArtistGraph.vertexCount()];
+            for (int artist = 0; artist < idf.length; artist++) {
+                int listeners = popularity.listeners(artist);
+                idf[artist] = listeners == 0 ? 0 : Math.log((double) users / listeners);
+            }
+            inverseListenerFrequency = idf;
+        }
+        return idf;
+    }
+
+    // the (artist, plays) edges of several listen rows side by side, reused by one thread.
+    private static final class ListenBuffer {
+        int[] artists = new int[64];
+        double[] plays = new double[64];
+        int count;
+
+        void addRow(AdjacencyStore graph, int user) {
+            int end = graph.end(user);
+            int start = graph.start(user);
+            if (count + end - start > artists.length) {
+                int capacity = Math.max(count + end - start, 2 * artists.length);
+                artists = Arrays.copyOf(artists, capacity);
+                plays = Arrays.copyOf(plays, capacity);
+            }
+            for (int e = start; e < end; e++, count++) {
+                artists[count] = graph.target(e);
+                plays[count] = graph.weight(e);
+            }
+        }
+    }
+
+    // records one query into the metrics, with the friend degree of the user it was about
+    // (user is -1 for queries that are not about a user).
+    private void record(RecommenderMetrics.Query query, long start, long allocated, int user) {
+        METRICS.record(query, start, allocated, user, user < 0 ? 0 : userFriendGraph.degree(user));
+    }
+
+    // prints the artist associated with the given ID
+    // utilizes the private method returnArtistByID
+    public void listArtistByID(int id) {
+        System.out.println("Artist ID: " + id + " corresponds to Artist: " + returnArtistByID(id));
+    }
+
+    // returns the name of the artist with the given ID, or null if there is no such artist.
+    public String artistName(int id) {
+        long start = System.nanoTime();
+        long allocated = METRICS.allocatedBytes();
+        try {
+            return artistID.name(id);
+        } finally {
+            record(RecommenderMetrics.Query.ARTIST_NAME, start, allocated, -1);
+        }
+    }
+
+    // every artist id, name and URL.
+    public ArtistDictionary artists() {
+        return artistID;
+    }
+
+    // up to limit ids of artists whose names start with prefix, ignoring case, in name order.
+    public int[] searchArtists(String prefix, int limit) {
+        return artistID.searchPrefix(prefix, limit);
+    }
+
+    // prints the ranked artists with their scores, best first.
+    // used by listTop10 and recommend10.
+    private void printTop10(List<ScoredArtist> artists) {
+        for (int i = 0; i < artists.size(); i++) {
+            ScoredArtist artist = artists.get(i);
+            System.out.println((i + 1) + ": " + returnArtistByID(artist.artist())
+                    + "\t\t\t\t" + artist.score());
+        }
+        System.out.println("\n");
+    }
+
+    // private method that returns a String containing the artist associated with the passed ID
+    private String returnArtistByID(int id) {
+        return artistName(id);
+    }
+
+    public void listAllArtists() {
+        // walks the dictionary in id order, decoding one name at a time.
+        for (int id = artistID.nextId(0); id >= 0; id = artistID.nextId(id + 1)) {
+            System.out.println(id + " " + artistID.name(id));
+        }
+    }
+
+    // reads the artistID ArtistDictionary from the given file
+    // used by the constructor
+    private static ArtistDictionary populateArtistID(String fileName) {
+        try {
+            return DatLoader.loadArtists(Paths.get(fileName));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not open " + fileName, e);
+        }
+    }
+
+    // reads the userArtistGraph CSRGraph from the given file
+    // used by the constructor
+    private static AdjacencyStore populateUserArtistGraph(String fileName) {
+        try {
+            return DatLoader.loadGraph(Paths.get(fileName), true);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not open " + fileName, e);
+        }
+    }
+
+    // reads the userFriendGraph CSRGraph from the given file
+    // used by the constructor
+    private static AdjacencyStore populateUserFriendGraph(String fileName) {
+        try {
+            return DatLoader.loadGraph(Paths.get(fileName), false);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not open " + fileName, e);
+        }
+    }
+}
@@ -0,0 +1,477 @@
+// Title        :   LastFM Recommender
+// Description  :   Process-wide instrumentation of the Recommender. Records,
+//              :   per query type, a latency histogram, the call count and
+//              :   the bytes allocated by the calling thread; wall time of
+//              :   every load phase; recommendation latency by the user's
+//              :   friend degree together with the last slow queries, so
+//              :   slow recommendations can be tied to hub users; and, read
+//              :   when asked, the degree shape and estimated heap size of
+//              :   the Recommender registered with observe (Main's serve
+//              :   mode registers the one it serves; partitions, test
+//              :   fixtures and other side instances are not counted). The
+//              :   shape takes a scan of every vertex, so it is taken once
+//              :   per observed Recommender, which never changes. Everything
+//              :   is published as one sorted name/value table that the JMX
+//              :   bean (LastFMRecommender:type=Metrics) and the plain text
+//              :   dump both read; the bean's attributes are the fixed set
+//              :   of names the table can hold. Recording costs two clock reads, two
+//              :   allocation counter reads and a few atomic increments.
+
+package lastfm;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+public final class RecommenderMetrics implements DynamicMBean {
+    public static final String OBJECT_NAME = "LastFMRecommender:type=Metrics";
+
+    private static final RecommenderMetrics GLOBAL = new RecommenderMetrics();
+    private static final int SLOW_LOG_SIZE = 32;
+    // friend degrees are bucketed by powers of two: 0, 1, 2-3, 4-7, ...
+    private static final int DEGREE_BUCKETS = 32;
+    // the load phases a Recommender records (see timeLoad and recordLoad).
+    private static final String[] LOAD_PHASES = {"populateUserFriendGraph", "populateUserArtistGraph",
+            "populateArtistID", "compressUserArtistGraph", "buildFriendSets", "buildArtistSets",
+            "buildPopularityIndex", "openSnapshot", "openSegments"};
+    private static final String[] LATENCY_FIELDS = {"count", "meanMicros", "p50Micros", "p99Micros", "p999Micros",
+            "maxMicros"};
+    private static final String[] SHAPE_FIELDS = {"vertices", "edges", "maxDegree", "maxDegreeVertex",
+            "meanDegree"};
+    private static final String[] HEAP_PARTS = {"friendGraph", "listenGraph", "friendSets", "artistSets",
+            "popularity", "artists", "total"};
+    // the bean's attributes, built once from the names values() can hold.
+    private static final Set<String> NAMES = new HashSet<>(names());
+    private static final MBeanInfo INFO = info();
+
+    public enum Query {
+        FRIENDS("friends"),
+        MUTUAL_FRIENDS("mutualFriends"),
+        MUTUAL_FRIEND_COUNTS("mutualFriendCounts"),
+        SHARED_ARTISTS("sharedArtists"),
+        SHARED_ARTIST_COUNTS("sharedArtistCounts"),
+        TOP_ARTISTS("topArtists"),
+        RECOMMEND("recommend"),
+        ARTIST_NAME("artistName");
+
+        final String metricName;
+
+        Query(String metricName) {
+            this.metricName = metricName;
+        }
+    }
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Query.values().length];
+    private final LongAdder[] allocated = new LongAdder[Query.values().length];
+    private final AtomicReferenceArray<LatencyHistogram> recommendByDegree = new AtomicReferenceArray<>(DEGREE_BUCKETS);
+    private final Map<String, Long> loadNanos = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<SlowQuery> slowLog = new AtomicReferenceArray<>(SLOW_LOG_SIZE);
+    private final AtomicLong slowQueries = new AtomicLong();
+    private final com.sun.management.ThreadMXBean threads;
+    private volatile boolean trackAllocations;
+    private volatile long slowThresholdNanos = 10_000_000;
+    private volatile Supplier<Recommender> observed = () -> null;
+    private volatile GraphShapes shapes;
+
+    RecommenderMetrics() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+            allocated[i] = new LongAdder();
+        }
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            threads = (com.sun.management.ThreadMXBean) bean;
+            trackAllocations = threads.isThreadAllocatedMemoryEnabled();
+        } else {
+            threads = null;
+        }
+    }
+
+    // the metrics every Recommender in this process records into.
+    public static RecommenderMetrics global() {
+        return GLOBAL;
+    }
+
+    // registers the global metrics with the platform MBean server, once.
+    public static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(GLOBAL, new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            // already registered.
+        } catch (JMException e) {
+            throw new IllegalStateException("could not register " + OBJECT_NAME, e);
+        }
+    }
+
+    // per-call allocation tracking reads a thread counter twice per query; it can be switched
+    // off where that matters.
+    public void setTrackAllocations(boolean track) {
+        trackAllocations = track && threads != null;
+    }
+
+    // queries slower than this are kept in the slow query log.
+    public void setSlowThresholdMicros(long micros) {
+        slowThresholdNanos = micros * 1000;
+    }
+
+    // bytes allocated so far by the calling thread, or 0 when allocations are not tracked.
+    long allocatedBytes() {
+        return trackAllocations ? threads.getCurrentThreadAllocatedBytes() : 0;
+    }
+
+    // records one query that started at startNanos (System.nanoTime) when the calling thread had
+    // allocated startBytes (allocatedBytes). user is -1 for queries that are not about a user;
+    // friendDegree is that user's number of friends.
+    void record(Query query, long startNanos, long startBytes, int user, int friendDegree) {
+        long nanos = System.nanoTime() - startNanos;
+        latencies[query.ordinal()].record(nanos);
+        if (startBytes != 0) {
+            allocated[query.ordinal()].add(allocatedBytes() - startBytes);
+        }
+        if (query == Query.RECOMMEND) {
+            degreeHistogram(friendDegree).record(nanos);
+        }
+        if (nanos >= slowThresholdNanos) {
+            long slot = slowQueries.getAndIncrement();
+            slowLog.set((int) (slot % SLOW_LOG_SIZE), new SlowQuery(query, user, friendDegree, nanos));
+        }
+    }
+
+    private LatencyHistogram degreeHistogram(int degree) {
+        int bucket = degree <= 0 ? 0 : 32 - Integer.numberOfLeadingZeros(degree);
+        LatencyHistogram histogram = recommendByDegree.get(bucket);
+        if (histogram == null) {
+            recommendByDegree.compareAndSet(bucket, null, new LatencyHistogram());
+            histogram = recommendByDegree.get(bucket);
+        }
+        return histogram;
+    }
+
+    // runs one load phase and records its wall time under the given name.
+    <T> T timeLoad(String phase, Supplier<T> work) {
+        long start = System.nanoTime();
+        try {
+            return work.get();
+        } finally {
+            recordLoad(phase, System.nanoTime() - start);
+        }
+    }
+
+    void recordLoad(String phase, long nanos) {
+        loadNanos.put(phase, nanos);
+    }
+
+    // makes the given Recommender the one the graph and heap gauges describe. it is held weakly,
+    // so registering does not keep it alive.
+    public void observe(Recommender recommender) {
+        WeakReference<Recommender> reference = new WeakReference<>(recommender);
+        observed = reference::get;
+    }
+
+    // as observe(Recommender), for a served version that changes, e.g. LiveRecommender::current.
+    // the source is held until another one is observed.
+    public void observe(Supplier<Recommender> source) {
+        observed = source;
+    }
+
+    public void reset() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i].reset();
+            allocated[i].reset();
+        }
+        for (int i = 0; i < DEGREE_BUCKETS; i++) {
+            recommendByDegree.set(i, null);
+        }
+        for (int i = 0; i < SLOW_LOG_SIZE; i++) {
+            slowLog.set(i, null);
+        }
+        slowQueries.set(0);
+        loadNanos.clear();
+    }
+
+    // every metric by name, sorted. latencies are in microseconds.
+    public Map<String, Number> values() {
+        Map<String, Number> values = new TreeMap<>();
+        for (Query query : Query.values()) {
+            LatencyHistogram histogram = latencies[query.ordinal()];
+            String prefix = "query." + query.metricName + ".";
+            latency(values, prefix, histogram);
+            if (trackAllocations) {
+                long bytes = allocated[query.ordinal()].sum();
+                values.put(prefix + "allocatedBytes", bytes);
+                values.put(prefix + "allocatedBytesPerCall", histogram.count() == 0 ? 0 : bytes / histogram.count());
+            }
+        }
+        for (int bucket = 0; bucket < DEGREE_BUCKETS; bucket++) {
+            LatencyHistogram histogram = recommendByDegree.get(bucket);
+            if (histogram != null) {
+                latency(values, degreePrefix(bucket), histogram);
+            }
+        }
+        values.put("slowQueries.count", slowQueries.get());
+        values.put("slowQueries.thresholdMicros", slowThresholdNanos / 1000);
+        for (Map.Entry<String, Long> phase : loadNanos.entrySet()) {
+            values.put("load." + phase.getKey() + ".millis", phase.getValue() / 1_000_000.0);
+        }
+
+        Recommender recommender = observed.get();
+        if (recommender != null) {
+            GraphShapes cached = shapes;
+            if (cached == null || cached.of.get() != recommender) {
+                cached = new GraphShapes(recommender);
+                shapes = cached;
+            }
+            values.putAll(cached.values);
+            long friendGraph = recommender.userFriendGraph().heapBytes();
+            long listenGraph = recommender.userArtistGraph().heapBytes();
+            long friendSets = recommender.friendSets().heapBytes();
+            long artistSets = recommender.artistSets().heapBytes();
+            long popularity = recommender.popularity().heapBytes();
+            long artists = recommender.artists().heapBytes();
+            values.put("heap.friendGraph.bytes", friendGraph);
+            values.put("heap.listenGraph.bytes", listenGraph);
+            values.put("heap.friendSets.bytes", friendSets);
+            values.put("heap.artistSets.bytes", artistSets);
+            values.put("heap.popularity.bytes", popularity);
+            values.put("heap.artists.bytes", artists);
+            values.put("heap.total.bytes", friendGraph + listenGraph + friendSets + artistSets + popularity + artists);
+        }
+        return values;
+    }
+
+    private static String degreePrefix(int bucket) {
+        long low = bucket == 0 ? 0 : 1L << (bucket - 1);
+        long high = bucket == 0 ? 0 : (1L << bucket) - 1;
+        return "recommendByFriendDegree." + low + "-" + high + ".";
+    }
+
+    private static void latency(Map<String, Number> values, String prefix, LatencyHistogram histogram) {
+        values.put(prefix + "count", histogram.count());
+        values.put(prefix + "meanMicros", histogram.mean() / 1000);
+        values.put(prefix + "p50Micros", histogram.percentile(0.50) / 1000.0);
+        values.put(prefix + "p99Micros", histogram.percentile(0.99) / 1000.0);
+        values.put(prefix + "p999Micros", histogram.percentile(0.999) / 1000.0);
+        values.put(prefix + "maxMicros", histogram.max() / 1000.0);
+    }
+
+    private static void shape(Map<String, Number> values, String prefix, AdjacencyStore graph) {
+        int maxDegree = 0;
+        int maxVertex = -1;
+        int nonEmpty = 0;
+        for (int v = 0; v < graph.vertexCount(); v++) {
+            int degree = graph.degree(v);
+            if (degree > 0) {
+                nonEmpty++;
+            }
+            if (degree > maxDegree) {
+                maxDegree = degree;
+                maxVertex = v;
+            }
+        }
+        values.put(prefix + "vertices", nonEmpty);
+        values.put(prefix + "edges", graph.edgeCount());
+        values.put(prefix + "maxDegree", maxDegree);
+        values.put(prefix + "maxDegreeVertex", maxVertex);
+        values.put(prefix + "meanDegree", nonEmpty == 0 ? 0.0 : (double) graph.edgeCount() / nonEmpty);
+    }
+
+    // the shape gauges of one Recommender, held weakly like the observed Recommender itself.
+    private static final class GraphShapes {
+        final WeakReference<Recommender> of;
+        final Map<String, Number> values = new TreeMap<>();
+
+        GraphShapes(Recommender recommender) {
+            this.of = new WeakReference<>(recommender);
+            shape(values, "graph.friends.", recommender.userFriendGraph());
+            shape(values, "graph.listens.", recommender.userArtistGraph());
+        }
+    }
+
+    // the last slow queries, most recent first.
+    public List<SlowQuery> slowQueries() {
+        List<SlowQuery> queries = new ArrayList<>();
+        long last = slowQueries.get();
+        for (long i = last - 1; i >= Math.max(0, last - SLOW_LOG_SIZE); i--) {
+            SlowQuery query = slowLog.get((int) (i % SLOW_LOG_SIZE));
+            if (query != null) {
+                queries.add(query);
+            }
+        }
+        return queries;
+    }
+
+    // "name value" lines of every metric, then the slow query log.
+    public String dump() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Number> metric : values().entrySet()) {
+            out.append(metric.getKey()).append(' ').append(metric.getValue()).append('\n');
+        }
+        for (SlowQuery query : slowQueries()) {
+            out.append("slow ").append(query).append('\n');
+        }
+        return out.toString();
+    }
+
+    public static final class SlowQuery {
+        private final Query query;
+        private final int user;
+        private final int friendDegree;
+        private final long nanos;
+
+        SlowQuery(Query query, int user, int friendDegree, long nanos) {
+            this.query = query;
+            this.user = user;
+            this.friendDegree = friendDegree;
+            this.nanos = nanos;
+        }
+
+        public Query query() {
+            return query;
+        }
+
+        public int user() {
+            return user;
+        }
+
+        public int friendDegree() {
+            return friendDegree;
+        }
+
+        public long nanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            return query.metricName + " user=" + user + " friends=" + friendDegree + " micros=" + nanos / 1000;
+        }
+    }
+
+    // DynamicMBean: every name values() can hold is a read-only attribute, 0 while it has no
+    // value; dump and reset are operations.
+
+    // every name values() can hold, sorted.
+    static List<String> names() {
+        List<String> names = new ArrayList<>();
+        for (Query query : Query.values()) {
+            for (String field : LATENCY_FIELDS) {
+                names.add("query." + query.metricName + "." + field);
+            }
+            names.add("query." + query.metricName + ".allocatedBytes");
+            names.add("query." + query.metricName + ".allocatedBytesPerCall");
+        }
+        for (int bucket = 0; bucket < DEGREE_BUCKETS; bucket++) {
+            for (String field : LATENCY_FIELDS) {
+                names.add(degreePrefix(bucket) + field);
+            }
+        }
+        names.add("slowQueries.count");
+        names.add("slowQueries.thresholdMicros");
+        for (String phase : LOAD_PHASES) {
+            names.add("load." + phase + ".millis");
+        }
+        for (String field : SHAPE_FIELDS) {
+            names.add("graph.friends." + field);
+            names.add("graph.listens." + field);
+        }
+        for (String part : HEAP_PARTS) {
+            names.add("heap." + part + ".bytes");
+        }
+        names.sort(null);
+        return names;
+    }
+
+    private static MBeanInfo info() {
+        List<String> names = names();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[names.size()];
+        for (int i = 0; i < attributes.length; i++) {
+            attributes[i] = new MBeanAttributeInfo(names.get(i), Number.class.getName(), names.get(i), true, false,
+                    false);
+        }
+        MBeanOperationInfo[] operations = {
+                new MBeanOperationInfo("dump", "every metric as text", new MBeanParameterInfo[0],
+                        String.class.getName(), MBeanOperationInfo.INFO),
+                new MBeanOperationInfo("reset", "clears the query and load metrics", new MBeanParameterInfo[0],
+                        "void", MBeanOperationInfo.ACTION)
+        };
+        return new MBeanInfo(RecommenderMetrics.class.getName(), "LastFM Recommender metrics", attributes, null,
+                operations, null);
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = values().get(attribute);
+        if (value == null) {
+            if (!NAMES.contains(attribute)) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return 0L;
+        }
+        return value;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Number> values = values();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            if (values.containsKey(attribute)) {
+                list.add(new Attribute(attribute, values.get(attribute)));
+            } else if (NAMES.contains(attribute)) {
+                list.add(new Attribute(attribute, 0L));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        switch (actionName) {
+            case "dump":
+                return dump();
+            case "reset":
+                reset();
+                return null;
+            default:
+                throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        return INFO;
+    }
+}
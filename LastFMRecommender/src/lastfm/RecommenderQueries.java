@@ -0,0 +1,33 @@
+// Title        :   LastFM Recommender
+// Description  :   The queries QueryServer answers: implemented by one
+//              :   Recommender, and by a ShardedRecommender together with
+//              :   the artist names (see ShardedRecommender.withArtists),
+//              :   so the same server fronts either.
+
+package lastfm;
+
+import java.util.List;
+
+public interface RecommenderQueries {
+
+    // the friends of the given user, ascending.
+    int[] friends(int user);
+
+    // the friends that 2 given users have in common, ascending.
+    int[] mutualFriends(int user1, int user2);
+
+    // the artists that 2 given users both listen to, ascending.
+    int[] sharedArtists(int user1, int user2);
+
+    // the k artists with the most listens across all users, best first.
+    List<ScoredArtist> topArtists(int k);
+
+    // the k artists with the most listens among the given user and the user's friends, best first.
+    List<ScoredArtist> recommend(int user, int k);
+
+    // the name of the artist with the given id, or null if there is no such artist.
+    String artistName(int id);
+
+    // up to limit ids of artists whose names start with prefix, ignoring case, in name order.
+    int[] searchArtists(String prefix, int limit);
+}
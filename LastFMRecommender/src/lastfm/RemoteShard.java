@@ -0,0 +1,124 @@
+// Title        :   LastFM Recommender
+// Description  :   Shard answered by a ShardServer in another process, over
+//              :   HTTP in the binary format of ShardProtocol. Every call is
+//              :   one request on a shared, keep-alive HttpClient, or a few
+//              :   when its arguments are over the shard's body bound; a
+//              :   failed call or an error answer is thrown as an
+//              :   UncheckedIOException.
+
+package lastfm;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public final class RemoteShard implements Shard {
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+    // ids in one ids body of at most ShardProtocol.MAX_REQUEST_BYTES.
+    private static final int IDS_PER_CALL = ShardProtocol.MAX_REQUEST_BYTES / Integer.BYTES - 1;
+
+    private final URI base;
+    private final HttpClient client;
+
+    // the shard served at the given base URI, e.g. http://localhost:9001.
+    public RemoteShard(URI base) {
+        this.base = base;
+        this.client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).connectTimeout(TIMEOUT).build();
+    }
+
+    @Override
+    public int[][] friends(int[] users) {
+        if (users.length <= IDS_PER_CALL) {
+            return ShardProtocol.decodeRows(post(ShardProtocol.FRIENDS, ShardProtocol.encodeIds(users)));
+        }
+        int[][] rows = new int[users.length][];
+        for (int from = 0; from < users.length; from += IDS_PER_CALL) {
+            int[] part = Arrays.copyOfRange(users, from, Math.min(users.length, from + IDS_PER_CALL));
+            int[][] partRows = ShardProtocol.decodeRows(post(ShardProtocol.FRIENDS, ShardProtocol.encodeIds(part)));
+            System.arraycopy(partRows, 0, rows, from, part.length);
+        }
+        return rows;
+    }
+
+    @Override
+    public List<List<ScoredArtist>> playSums(int[][] groups) {
+        List<List<ScoredArtist>> sums = new ArrayList<>(groups.length);
+        int from = 0;
+        do {
+            // as many whole groups as fit in one body; a group too large on its own goes alone and is refused.
+            long size = Integer.BYTES;
+            int to = from;
+            while (to < groups.length) {
+                long next = size + Integer.BYTES * (1L + groups[to].length);
+                if (to > from && next > ShardProtocol.MAX_REQUEST_BYTES) {
+                    break;
+                }
+                size = next;
+                to++;
+            }
+            int[][] part = from == 0 && to == groups.length ? groups : Arrays.copyOfRange(groups, from, to);
+            sums.addAll(ShardProtocol.decodeScoreds(post(ShardProtocol.PLAY_SUMS, ShardProtocol.encodeRows(part))));
+            from = to;
+        } while (from < groups.length);
+        return sums;
+    }
+
+    @Override
+    public List<ScoredArtist> topArtists(int k) {
+        return ShardProtocol.decodeScored(post(ShardProtocol.TOP_ARTISTS, ShardProtocol.encodeInt(k)));
+    }
+
+    @Override
+    public List<ScoredArtist> artistsWithPlays(long minPlays) {
+        return ShardProtocol.decodeScored(post(ShardProtocol.ARTISTS_WITH_PLAYS, ShardProtocol.encodeLong(minPlays)));
+    }
+
+    @Override
+    public long[] artistPlays(int[] artists) {
+        if (artists.length <= IDS_PER_CALL) {
+            return ShardProtocol.decodeLongs(post(ShardProtocol.ARTIST_PLAYS, ShardProtocol.encodeIds(artists)));
+        }
+        long[] plays = new long[artists.length];
+        for (int from = 0; from < artists.length; from += IDS_PER_CALL) {
+            int[] part = Arrays.copyOfRange(artists, from, Math.min(artists.length, from + IDS_PER_CALL));
+            long[] partPlays =
+                    ShardProtocol.decodeLongs(post(ShardProtocol.ARTIST_PLAYS, ShardProtocol.encodeIds(part)));
+            System.arraycopy(partPlays, 0, plays, from, part.length);
+        }
+        return plays;
+    }
+
+    private byte[] post(String path, byte[] body) {
+        HttpRequest request = HttpRequest.newBuilder(base.resolve(path))
+                .timeout(TIMEOUT)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build();
+        HttpResponse<byte[]> response;
+        try {
+            response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        } catch (IOException e) {
+            throw new UncheckedIOException("shard " + base + " failed on " + path, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new IOException("interrupted calling shard " + base + path, e));
+        }
+        if (response.statusCode() != 200) {
+            throw new UncheckedIOException(new IOException("shard " + base + " answered " + response.statusCode()
+                    + " on " + path + ": " + new String(response.body(), StandardCharsets.UTF_8)));
+        }
+        return response.body();
+    }
+
+    @Override
+    public String toString() {
+        return base.toString();
+    }
+}
@@ -0,0 +1,60 @@
+// Title        :   LastFM Recommender
+// Description  :   ScoringKernel as plain loops, for runtimes without the
+//              :   Vector API. The JIT may still unroll or auto-vectorise the
+//              :   simple ones (scale, sum); select tests one value at a
+//              :   time against the heap's threshold.
+
+package lastfm;
+
+public final class ScalarScoringKernel extends ScoringKernel {
+    static final ScalarScoringKernel INSTANCE = new ScalarScoringKernel();
+
+    private ScalarScoringKernel() {
+    }
+
+    @Override
+    public String name() {
+        return "scalar";
+    }
+
+    @Override
+    public void log1p(double[] values, int count) {
+        for (int i = 0; i < count; i++) {
+            values[i] = Math.log1p(values[i]);
+        }
+    }
+
+    @Override
+    public void multiplyGathered(double[] values, int[] ids, double[] factors, int count) {
+        for (int i = 0; i < count; i++) {
+            values[i] *= factors[ids[i]];
+        }
+    }
+
+    @Override
+    public double sum(double[] values, int count) {
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += values[i];
+        }
+        return sum;
+    }
+
+    @Override
+    public void scale(double[] values, int count, double factor) {
+        for (int i = 0; i < count; i++) {
+            values[i] *= factor;
+        }
+    }
+
+    @Override
+    public void select(int[] ids, double[] values, int count, TopK top) {
+        double threshold = top.threshold();
+        for (int i = 0; i < count; i++) {
+            if (values[i] >= threshold) {
+                top.offer(ids[i], values[i]);
+                threshold = top.threshold();
+            }
+        }
+    }
+}
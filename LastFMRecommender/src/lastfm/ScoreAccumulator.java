@@ -0,0 +1,109 @@
+// Title        :   LastFM Recommender
+// Description  :   Reusable dense score accumulator keyed by artist id. Scores
+//              :   live in a primitive array indexed by id and the ids that
+//              :   were touched are remembered, so adding is one array write
+//              :   (no boxing) and clearing or ranking costs O(touched)
+//              :   rather than O(catalogue). Not thread-safe; borrow one
+//              :   per query from a ScratchPool.
+
+package lastfm;
+
+import java.util.Arrays;
+import java.util.List;
+
+public final class ScoreAccumulator {
+    private double[] scores;
+    private boolean[] seen;
+    private int[] touched;
+    private int touchedCount;
+    // the scores of the touched ids, gathered side by side for a ScoringKernel.
+    private double[] dense = new double[16];
+
+    public ScoreAccumulator(int capacity) {
+        scores = new double[Math.max(1, capacity)];
+        seen = new boolean[scores.length];
+        touched = new int[16];
+    }
+
+    // makes room for the ids below capacity at once, rather than growing on the way up.
+    void ensureCapacity(int capacity) {
+        if (capacity > scores.length) {
+            grow(capacity);
+        }
+    }
+
+    public void add(int id, double amount) {
+        if (id >= scores.length) {
+            grow(id + 1);
+        }
+        if (!seen[id]) {
+            seen[id] = true;
+            if (touchedCount == touched.length) {
+                touched = Arrays.copyOf(touched, touchedCount * 2);
+            }
+            touched[touchedCount++] = id;
+        }
+        scores[id] += amount;
+    }
+
+    public double get(int id) {
+        return id >= 0 && id < scores.length ? scores[id] : 0;
+    }
+
+    // number of distinct ids that have been added since the last reset.
+    public int size() {
+        return touchedCount;
+    }
+
+    // the i-th distinct id added since the last reset, for 0 <= i < size().
+    public int idAt(int i) {
+        if (i < 0 || i >= touchedCount) {
+            throw new IndexOutOfBoundsException("index " + i + " of " + touchedCount);
+        }
+        return touched[i];
+    }
+
+    // the k highest scoring ids, best first, ties broken by the lower id.
+    public List<ScoredArtist> topK(int k) {
+        TopK top = new TopK(Math.min(k, touchedCount));
+        for (int i = 0; i < touchedCount; i++) {
+            int id = touched[i];
+            top.offer(id, scores[id]);
+        }
+        return top.drain();
+    }
+
+    // the touched ids, ids()[i] for 0 <= i < size(). valid until the next add or reset.
+    int[] ids() {
+        return touched;
+    }
+
+    // the scores of ids(), gathered into an array of their own: denseScores()[i] is the score of
+    // ids()[i]. a kernel may rewrite them in place, which leaves the accumulated scores as they
+    // were. valid until the next add, reset, or call.
+    double[] denseScores() {
+        if (dense.length < touchedCount) {
+            dense = new double[touched.length];
+        }
+        for (int i = 0; i < touchedCount; i++) {
+            dense[i] = scores[touched[i]];
+        }
+        return dense;
+    }
+
+    // zeroes the touched entries so the accumulator can be reused.
+    public void reset() {
+        for (int i = 0; i < touchedCount; i++) {
+            int id = touched[i];
+            scores[id] = 0;
+            seen[id] = false;
+        }
+        touchedCount = 0;
+    }
+
+    private void grow(int minCapacity) {
+        int capacity = Math.max(minCapacity, scores.length + (scores.length >> 1));
+        scores = Arrays.copyOf(scores, capacity);
+        seen = Arrays.copyOf(seen, capacity);
+    }
+}
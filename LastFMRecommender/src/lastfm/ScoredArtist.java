@@ -0,0 +1,44 @@
+// Title        :   LastFM Recommender
+// Description  :   An artist id paired with the score it was ranked by.
+
+package lastfm;
+
+public final class ScoredArtist {
+    private final int artist;
+    private final double score;
+
+    public ScoredArtist(int artist, double score) {
+        this.artist = artist;
+        this.score = score;
+    }
+
+    public int artist() {
+        return artist;
+    }
+
+    public double score() {
+        return score;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ScoredArtist)) {
+            return false;
+        }
+        ScoredArtist other = (ScoredArtist) o;
+        return artist == other.artist && Double.compare(score, other.score) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * artist + Double.hashCode(score);
+    }
+
+    @Override
+    public String toString() {
+        return artist + "=" + score;
+    }
+}
@@ -0,0 +1,44 @@
+// Title        :   LastFM Recommender
+// Description  :   A user id paired with the similarity it was ranked by.
+
+package lastfm;
+
+public final class ScoredUser {
+    private final int user;
+    private final double similarity;
+
+    public ScoredUser(int user, double similarity) {
+        this.user = user;
+        this.similarity = similarity;
+    }
+
+    public int user() {
+        return user;
+    }
+
+    public double similarity() {
+        return similarity;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ScoredUser)) {
+            return false;
+        }
+        ScoredUser other = (ScoredUser) o;
+        return user == other.user && Double.compare(similarity, other.similarity) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * user + Double.hashCode(similarity);
+    }
+
+    @Override
+    public String toString() {
+        return user + "=" + similarity;
+    }
+}
@@ -0,0 +1,86 @@
+// Title        :   LastFM Recommender
+// Description  :   The numeric loops of scoring, over candidates that have been
+//              :   gathered into dense arrays, ids[i] and values[i] for
+//              :   i < count: weighting the values, normalising them, and
+//              :   choosing the top k. get() is VectorScoringKernel, the
+//              :   SIMD version on the Vector API, when the runtime has the
+//              :   jdk.incubator.vector module (java --add-modules
+//              :   jdk.incubator.vector) and the build compiled the
+//              :   optional src-vector root, and ScalarScoringKernel
+//              :   otherwise, or
+//              :   when -Dlastfm.scalar=true is set. Both give the same
+//              :   top k; weighted scores may differ in the last bits.
+
+package lastfm;
+
+public abstract class ScoringKernel {
+
+    // how the plays of a user and the user's friends become the scores of artists.
+    public enum Weighting {
+        // the summed plays, as Recommender.recommend(user, k).
+        PLAYS,
+        // the summed log(1 + plays), so one heavy listener counts for less than several light ones.
+        LOG_PLAYS,
+        // the summed plays times log(users / listeners) of the artist, so artists that everyone
+        // plays count for less.
+        TF_IDF
+    }
+
+    public static ScoringKernel get() {
+        return Best.KERNEL;
+    }
+
+    public static ScoringKernel scalar() {
+        return ScalarScoringKernel.INSTANCE;
+    }
+
+    // the Vector API kernel, or null when the runtime or the build does not have it.
+    public static ScoringKernel vector() {
+        return Vector.KERNEL;
+    }
+
+    public abstract String name();
+
+    // values[i] = log(1 + values[i]).
+    public abstract void log1p(double[] values, int count);
+
+    // values[i] *= factors[ids[i]].
+    public abstract void multiplyGathered(double[] values, int[] ids, double[] factors, int count);
+
+    // the sum of the values.
+    public abstract double sum(double[] values, int count);
+
+    // values[i] *= factor.
+    public abstract void scale(double[] values, int count, double factor);
+
+    // offers every (ids[i], values[i]) to top, skipping those below top.threshold() without
+    // touching the heap, so once the heap is full only contenders cost a heap operation.
+    public abstract void select(int[] ids, double[] values, int count, TopK top);
+
+    @Override
+    public String toString() {
+        return name();
+    }
+
+    // loaded on first use, so the scalar kernel never looks for the module.
+    private static final class Vector {
+        static final ScoringKernel KERNEL = load();
+
+        private static ScoringKernel load() {
+            if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+                return null;
+            }
+            try {
+                Class<?> kernel = Class.forName(ScoringKernel.class.getPackageName() + ".VectorScoringKernel");
+                return (ScoringKernel) kernel.getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                return null;
+            }
+        }
+    }
+
+    private static final class Best {
+        static final ScoringKernel KERNEL = Boolean.getBoolean("lastfm.scalar") || vector() == null
+                ? scalar() : vector();
+    }
+}
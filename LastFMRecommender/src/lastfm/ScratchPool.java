@@ -0,0 +1,72 @@
+// Title        :   LastFM Recommender
+// Description  :   Small bounded pool of reusable scratch objects (score
+//              :   accumulators and the like), shared by every thread and
+//              :   every instance that uses it. borrow() takes a pooled
+//              :   object, or makes a new one when all are out; release()
+//              :   puts it back, or drops it when the pool is full. Unlike
+//              :   a ThreadLocal, the number of objects kept is the pool
+//              :   size, not the number of threads that ever ran a query
+//              :   (one per request on virtual threads), and they are not
+//              :   tied to the instance that first used them. Lock-free:
+//              :   each slot is taken and returned with one atomic swap.
+
+package lastfm;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+final class ScratchPool<T> {
+    private final AtomicReferenceArray<T> slots;
+    private final Supplier<T> factory;
+
+    // a pool of twice as many objects as there are cores, enough for the queries that run at once.
+    ScratchPool(Supplier<T> factory) {
+        this(2 * Runtime.getRuntime().availableProcessors(), factory);
+    }
+
+    ScratchPool(int size, Supplier<T> factory) {
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be positive: " + size);
+        }
+        this.slots = new AtomicReferenceArray<>(size);
+        this.factory = factory;
+    }
+
+    // a pooled object, or a new one. hand it back with release once it is clean again.
+    T borrow() {
+        // start at a random slot, so threads that borrow at once do not all swap on the first.
+        int start = ThreadLocalRandom.current().nextInt(slots.length());
+        for (int i = 0; i < slots.length(); i++) {
+            int slot = (start + i) % slots.length();
+            if (slots.get(slot) != null) {
+                T taken = slots.getAndSet(slot, null);
+                if (taken != null) {
+                    return taken;
+                }
+            }
+        }
+        return factory.get();
+    }
+
+    // returns a borrowed object, which must not be used again by the caller.
+    void release(T scratch) {
+        int start = ThreadLocalRandom.current().nextInt(slots.length());
+        for (int i = 0; i < slots.length(); i++) {
+            if (slots.compareAndSet((start + i) % slots.length(), null, scratch)) {
+                return;
+            }
+        }
+    }
+
+    // number of objects waiting in the pool.
+    int idle() {
+        int idle = 0;
+        for (int i = 0; i < slots.length(); i++) {
+            if (slots.get(i) != null) {
+                idle++;
+            }
+        }
+        return idle;
+    }
+}
@@ -0,0 +1,537 @@
+// Title        :   LastFM Recommender
+// Description  :   Out-of-core build and open of a directory of graph segment
+//              :   files, for datasets whose graphs do not fit on the heap.
+//              :   A .dat file is read in bounded chunks twice: once to
+//              :   count every vertex's degree (which fixes the offsets and
+//              :   cuts the rows into segments of at most segmentEdges
+//              :   edges), and once to spill every edge to its segment's
+//              :   spill file. Then each spill is read back on its own, its
+//              :   edges sorted into rows and written out, and the listen
+//              :   totals of every artist summed. Only one segment's edges
+//              :   are ever in memory, and at most MAX_OPEN_SPILLS spill
+//              :   files are open for writing: past that many segments, the
+//              :   spilling read is repeated, once per MAX_OPEN_SPILLS.
+//              :   Opening maps every segment on its own, so no mapping
+//              :   comes near the 2GB limit of a MappedByteBuffer.
+//              :
+//              :   Edge indices are ints (see AdjacencyStore), so one graph
+//              :   holds at most MAX_GRAPH_EDGES edges. A larger listen
+//              :   history is built in partitions (buildPartitions): part-<i>
+//              :   holds the rows of the users whose id is i modulo the
+//              :   partition count, the layout of Recommender.partition, and
+//              :   each is opened as one shard of a ShardedRecommender. The
+//              :   same reads route every row to its partition, so the .dat
+//              :   files are not read again per partition.
+//              :
+//              :   Files, all little-endian ints:
+//              :   <graph>.graph:   magic, version, vertexCount, edgeCount,
+//              :                    weighted flag, segment count, and the
+//              :                    first vertex of every segment followed
+//              :                    by vertexCount,
+//              :   <graph>.offsets: offsets[vertexCount + 1], as in CSRGraph,
+//              :   <graph>.<s>.seg: the targets of segment s, then its
+//              :                    weights if weighted,
+//              :   listens.totals:  vertexCount, plays per artist as (low,
+//              :                    high) int pairs, listeners per artist,
+//              :   artists.bin:     the artist section of a SnapshotFile.
+
+package lastfm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+public final class SegmentStore {
+    static final int MAGIC = 0x4C464D47; // "LFMG"
+    static final int VERSION = 1;
+    // 64M edges: 256MB of targets and 256MB of weights per segment.
+    static final int MAX_SEGMENT_EDGES = 1 << 26;
+    // the most edges one graph can index with ints.
+    static final long MAX_GRAPH_EDGES = Integer.MAX_VALUE - 8;
+
+    static final String FRIENDS = "friends";
+    static final String LISTENS = "listens";
+    private static final String TOTALS = "listens.totals";
+    private static final String ARTISTS = "artists.bin";
+    private static final String PARTITION = "part-";
+
+    // the parser reads at most this much of a .dat file per chunk, one chunk per core at a time.
+    private static final long PARSE_CHUNK_BYTES = 1L << 24;
+    private static final int SPILL_BUFFER_BYTES = 1 << 16;
+    // spill files open for writing at once, each with its buffer: 4MB of buffers in all.
+    static final int MAX_OPEN_SPILLS = 64;
+
+    // what a segment directory holds once it has been opened.
+    static final class Contents {
+        final SegmentedCSRGraph userFriendGraph;
+        final SegmentedCSRGraph userArtistGraph;
+        final ArtistDictionary artistID;
+        final PopularityIndex popularity;
+
+        Contents(SegmentedCSRGraph userFriendGraph, SegmentedCSRGraph userArtistGraph, ArtistDictionary artistID,
+                 PopularityIndex popularity) {
+            this.userFriendGraph = userFriendGraph;
+            this.userArtistGraph = userArtistGraph;
+            this.artistID = artistID;
+            this.popularity = popularity;
+        }
+    }
+
+    private SegmentStore() {
+    }
+
+    // the segment size for this JVM: sorting a segment takes 8 bytes per edge, and that should
+    // take at most a quarter of the heap.
+    public static int defaultSegmentEdges() {
+        long edges = Runtime.getRuntime().maxMemory() / 4 / Long.BYTES;
+        return (int) Math.max(1 << 16, Math.min(MAX_SEGMENT_EDGES, edges));
+    }
+
+    // builds a segment directory from the three .dat files. rows are cut into segments of at most
+    // segmentEdges edges (a longer row gets a segment to itself). every file is replaced whole (see
+    // SnapshotFile.Output), so a process still serving an older build keeps its mappings.
+    public static void build(Path userFriendsDat, Path userArtistsDat, Path artistsDat, Path dir,
+                             int segmentEdges) throws IOException {
+        build(userFriendsDat, userArtistsDat, artistsDat, new Path[]{dir}, segmentEdges);
+    }
+
+    // builds one segment directory per partition, dir/part-<i> for i below partitions, each holding
+    // the friend and listen rows of the users whose id is i modulo partitions under their original
+    // ids, and every artist name. all partitions are built from the same reads of the .dat files;
+    // this is for graphs past MAX_GRAPH_EDGES, which build cannot hold.
+    public static void buildPartitions(Path userFriendsDat, Path userArtistsDat, Path artistsDat, Path dir,
+                                       int segmentEdges, int partitions) throws IOException {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("partitions must be positive: " + partitions);
+        }
+        Path[] dirs = new Path[partitions];
+        for (int partition = 0; partition < partitions; partition++) {
+            dirs[partition] = partition(dir, partition);
+        }
+        build(userFriendsDat, userArtistsDat, artistsDat, dirs, segmentEdges);
+    }
+
+    // the directory of one partition written by buildPartitions.
+    public static Path partition(Path dir, int partition) {
+        return dir.resolve(PARTITION + partition);
+    }
+
+    // builds the rows of the users whose id is i modulo dirs.length into dirs[i].
+    private static void build(Path userFriendsDat, Path userArtistsDat, Path artistsDat, Path[] dirs,
+                              int segmentEdges) throws IOException {
+        if (segmentEdges < 1) {
+            throw new IllegalArgumentException("segmentEdges must be positive: " + segmentEdges);
+        }
+        for (Path dir : dirs) {
+            Files.createDirectories(dir);
+        }
+        buildGraph(userFriendsDat, false, dirs, FRIENDS, segmentEdges);
+        buildGraph(userArtistsDat, true, dirs, LISTENS, segmentEdges);
+        ArtistDictionary artists = DatLoader.loadArtists(artistsDat);
+        for (Path dir : dirs) {
+            try (SnapshotFile.Output file = new SnapshotFile.Output(dir.resolve(ARTISTS))) {
+                SnapshotFile.writeArtists(file.out, artists);
+                file.commit();
+            }
+        }
+    }
+
+    private static void buildGraph(Path dat, boolean weighted, Path[] dirs, String name, int segmentEdges)
+            throws IOException {
+        int partitions = dirs.length;
+        try (FileChannel input = FileChannel.open(dat, StandardOpenOption.READ)) {
+            long[] bounds = DatLoader.chunkBounds(input, PARSE_CHUNK_BYTES);
+
+            // pass 1: degrees, which give the offsets and the segments of every partition.
+            Degrees degrees = new Degrees(dat, partitions);
+            forEachChunk(dat, input, bounds, weighted, degrees::count);
+            int[][] firstVertex = new int[partitions][];
+            // spill k holds segment k - firstSpill[p] of partition p.
+            int[] firstSpill = new int[partitions + 1];
+            for (int p = 0; p < partitions; p++) {
+                firstVertex[p] = segments(degrees.offsets(p), segmentEdges);
+                firstSpill[p + 1] = firstSpill[p] + firstVertex[p].length - 1;
+            }
+            int spillCount = firstSpill[partitions];
+
+            // pass 2: every edge to its segment's spill file, MAX_OPEN_SPILLS files per read.
+            Path[] spills = new Path[spillCount];
+            for (int p = 0; p < partitions; p++) {
+                for (int k = firstSpill[p]; k < firstSpill[p + 1]; k++) {
+                    spills[k] = dirs[p].resolve(name + "." + (k - firstSpill[p]) + ".spill");
+                }
+            }
+            Spill[] out = new Spill[Math.min(spillCount, MAX_OPEN_SPILLS)];
+            try {
+                for (int round = 0; round < spillCount; round += MAX_OPEN_SPILLS) {
+                    int first = round;
+                    int end = Math.min(spillCount, round + MAX_OPEN_SPILLS);
+                    for (int k = first; k < end; k++) {
+                        out[k - first] = new Spill(spills[k], weighted);
+                    }
+                    forEachChunk(dat, input, bounds, weighted, (from, to, weight, count) -> {
+                        for (int i = 0; i < count; i++) {
+                            int p = from[i] % partitions;
+                            int k = firstSpill[p] + segmentOf(firstVertex[p], from[i]);
+                            if (k >= first && k < end) {
+                                out[k - first].add(from[i], to[i], weighted ? weight[i] : 0);
+                            }
+                        }
+                    });
+                    for (int k = first; k < end; k++) {
+                        out[k - first].close();
+                        out[k - first] = null;
+                    }
+                }
+
+                // pass 3: one partition at a time, one segment at a time, sorted into rows.
+                for (int p = 0; p < partitions; p++) {
+                    writeGraph(dirs[p], name, weighted, degrees.offsets(p), firstVertex[p], spills, firstSpill[p]);
+                }
+            } finally {
+                for (Spill spill : out) {
+                    if (spill != null) {
+                        spill.close();
+                    }
+                }
+                for (Path spill : spills) {
+                    Files.deleteIfExists(spill);
+                }
+            }
+        }
+    }
+
+    // writes the segments of one graph from their spills (spills[firstSpill + s] for segment s),
+    // then its offsets, its listen totals if weighted, and its manifest.
+    private static void writeGraph(Path dir, String name, boolean weighted, int[] offsets, int[] firstVertex,
+                                   Path[] spills, int firstSpill) throws IOException {
+        int vertexCount = offsets.length - 1;
+        int segments = firstVertex.length - 1;
+        long[] plays = weighted ? new long[vertexCount] : null;
+        int[] listeners = weighted ? new int[vertexCount] : null;
+        for (int s = 0; s < segments; s++) {
+            writeSegment(spills[firstSpill + s], dir.resolve(name + "." + s + ".seg"), weighted, offsets,
+                    firstVertex[s], firstVertex[s + 1], plays, listeners);
+            Files.delete(spills[firstSpill + s]);
+        }
+
+        try (SnapshotFile.Output file = new SnapshotFile.Output(dir.resolve(name + ".offsets"))) {
+            for (int offset : offsets) {
+                file.out.putInt(offset);
+            }
+            file.commit();
+        }
+        if (weighted) {
+            try (SnapshotFile.Output file = new SnapshotFile.Output(dir.resolve(TOTALS))) {
+                file.out.putInt(vertexCount);
+                for (long total : plays) {
+                    file.out.putInt((int) total);
+                    file.out.putInt((int) (total >>> 32));
+                }
+                for (int count : listeners) {
+                    file.out.putInt(count);
+                }
+                file.commit();
+            }
+        }
+        // the manifest goes last, once everything it describes is in place.
+        try (SnapshotFile.Output manifest = new SnapshotFile.Output(dir.resolve(name + ".graph"))) {
+            manifest.out.putInt(MAGIC);
+            manifest.out.putInt(VERSION);
+            manifest.out.putInt(vertexCount);
+            manifest.out.putInt(offsets[vertexCount]);
+            manifest.out.putInt(weighted ? 1 : 0);
+            manifest.out.putInt(segments);
+            for (int v : firstVertex) {
+                manifest.out.putInt(v);
+            }
+            manifest.commit();
+        }
+    }
+
+    // first vertex of every segment, then vertexCount. a segment takes rows until the next row
+    // would take it past segmentEdges.
+    static int[] segments(int[] offsets, int segmentEdges) {
+        int vertexCount = offsets.length - 1;
+        int[] first = new int[16];
+        int count = 0;
+        first[count++] = 0;
+        int segmentStart = 0;
+        for (int v = 0; v < vertexCount; v++) {
+            if (offsets[v + 1] - segmentStart > segmentEdges && offsets[v] > segmentStart) {
+                if (count == first.length) {
+                    first = Arrays.copyOf(first, count * 2);
+                }
+                first[count++] = v;
+                segmentStart = offsets[v];
+            }
+        }
+        first = Arrays.copyOf(first, count + 1);
+        first[count] = vertexCount;
+        return first;
+    }
+
+    // the segment holding the given vertex's row.
+    private static int segmentOf(int[] firstVertex, int v) {
+        // first vertices are distinct, since every segment but an empty graph's holds a row.
+        int found = Arrays.binarySearch(firstVertex, 0, firstVertex.length - 1, v);
+        return found >= 0 ? found : -found - 2;
+    }
+
+    // reads one segment's spill, places every edge in its row, sorts the rows, and writes the
+    // targets and then the weights. the weights are added to the plays and listeners of their targets.
+    private static void writeSegment(Path spill, Path segment, boolean weighted, int[] offsets, int firstVertex,
+                                     int endVertex, long[] plays, int[] listeners) throws IOException {
+        int firstEdge = offsets[firstVertex];
+        int edges = offsets[endVertex] - firstEdge;
+        // (target << 32) | weight, so sorting a row sorts its weights along.
+        long[] packed = new long[edges];
+        int[] cursor = new int[endVertex - firstVertex];
+        for (int v = firstVertex; v < endVertex; v++) {
+            cursor[v - firstVertex] = offsets[v] - firstEdge;
+        }
+        int record = (weighted ? 3 : 2) * Integer.BYTES;
+        ByteBuffer buffer = ByteBuffer.allocate(SPILL_BUFFER_BYTES / record * record).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel channel = FileChannel.open(spill, StandardOpenOption.READ)) {
+            int read;
+            do {
+                read = channel.read(buffer);
+                buffer.flip();
+                while (buffer.remaining() >= record) {
+                    int from = buffer.getInt();
+                    int to = buffer.getInt();
+                    int weight = weighted ? buffer.getInt() : 0;
+                    packed[cursor[from - firstVertex]++] = ((long) to << 32) | (weight & 0xFFFFFFFFL);
+                    if (weighted) {
+                        plays[to] += weight;
+                        listeners[to]++;
+                    }
+                }
+                buffer.compact();
+            } while (read >= 0);
+        }
+        IntStream.range(firstVertex, endVertex).parallel()
+                .forEach(v -> Arrays.sort(packed, offsets[v] - firstEdge, offsets[v + 1] - firstEdge));
+
+        try (SnapshotFile.Output file = new SnapshotFile.Output(segment)) {
+            for (long edge : packed) {
+                file.out.putInt((int) (edge >>> 32));
+            }
+            if (weighted) {
+                for (long edge : packed) {
+                    file.out.putInt((int) edge);
+                }
+            }
+            file.commit();
+        }
+    }
+
+    // parses the file a few chunks at a time (one per core, in parallel) and hands the chunks to
+    // the consumer in file order.
+    private static void forEachChunk(Path dat, FileChannel input, long[] bounds, boolean weighted,
+                                     EdgeConsumer consumer) throws IOException {
+        int columns = weighted ? 3 : 2;
+        int window = Math.max(1, Runtime.getRuntime().availableProcessors());
+        int chunks = bounds.length - 1;
+        for (int first = 0; first < chunks; first += window) {
+            int start = first;
+            int[][][] parsed = new int[Math.min(window, chunks - first)][][];
+            try {
+                IntStream.range(0, parsed.length).parallel().forEach(i -> {
+                    int c = start + i;
+                    try {
+                        parsed[i] = DatLoader.parseColumns(dat, DatLoader.map(input, bounds[c], bounds[c + 1]),
+                                bounds[c], c == 0, columns);
+                    } catch (IOException e) {
+                        throw new ParseFailure(e);
+                    }
+                });
+            } catch (ParseFailure e) {
+                throw (IOException) e.getCause();
+            }
+            for (int[][] chunk : parsed) {
+                consumer.accept(chunk[0], chunk[1], weighted ? chunk[2] : null, chunk[columns][0]);
+            }
+        }
+    }
+
+    private interface EdgeConsumer {
+        void accept(int[] from, int[] to, int[] weight, int rows) throws IOException;
+    }
+
+    private static final class ParseFailure extends RuntimeException {
+        ParseFailure(IOException cause) {
+            super(cause);
+        }
+    }
+
+    // degree of every source vertex and the largest id seen on either side of its edges, per
+    // partition. a partition's degrees are indexed by source / partitions, so all of them together
+    // take one int per vertex.
+    private static final class Degrees {
+        private final Path dat;
+        private final int partitions;
+        private final int[][] degrees;
+        private final int[] maxId;
+        private final long[] edges;
+
+        Degrees(Path dat, int partitions) {
+            this.dat = dat;
+            this.partitions = partitions;
+            this.degrees = new int[partitions][1024];
+            this.maxId = new int[partitions];
+            this.edges = new long[partitions];
+            Arrays.fill(maxId, -1);
+        }
+
+        void count(int[] from, int[] to, int[] weight, int count) {
+            for (int i = 0; i < count; i++) {
+                int source = from[i];
+                int p = source % partitions;
+                if (++edges[p] > MAX_GRAPH_EDGES) {
+                    throw new IllegalArgumentException("more than " + MAX_GRAPH_EDGES + " edges of " + dat + " in "
+                            + (partitions == 1 ? "one graph" : "partition " + p + " of " + partitions)
+                            + "; build it in more partitions (see SegmentStore.buildPartitions)");
+                }
+                maxId[p] = Math.max(maxId[p], Math.max(source, to[i]));
+                int row = source / partitions;
+                if (row >= degrees[p].length) {
+                    degrees[p] = Arrays.copyOf(degrees[p], Math.max(row + 1, degrees[p].length * 2));
+                }
+                degrees[p][row]++;
+            }
+        }
+
+        // the CSR offsets of one partition's graph, in which the rows of other partitions are empty.
+        int[] offsets(int partition) {
+            int vertexCount = maxId[partition] + 1;
+            int[] offsets = new int[vertexCount + 1];
+            for (int v = 0; v < vertexCount; v++) {
+                int row = v / partitions;
+                boolean kept = v % partitions == partition && row < degrees[partition].length;
+                offsets[v + 1] = offsets[v] + (kept ? degrees[partition][row] : 0);
+            }
+            return offsets;
+        }
+    }
+
+    // buffered little-endian (from, to[, weight]) records on their way to a spill file.
+    private static final class Spill {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(SPILL_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        private final boolean weighted;
+        private boolean closed;
+
+        Spill(Path path, boolean weighted) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE);
+            this.weighted = weighted;
+        }
+
+        void add(int from, int to, int weight) throws IOException {
+            if (buffer.remaining() < 3 * Integer.BYTES) {
+                flush();
+            }
+            buffer.putInt(from).putInt(to);
+            if (weighted) {
+                buffer.putInt(weight);
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                try {
+                    flush();
+                } finally {
+                    channel.close();
+                }
+            }
+        }
+    }
+
+    // maps the segment directory. cacheBytes bounds the heap each graph may use for copies of
+    // its hot blocks.
+    static Contents open(Path dir, long cacheBytes) throws IOException {
+        SegmentedCSRGraph userFriendGraph = openGraph(dir, FRIENDS, cacheBytes);
+        SegmentedCSRGraph userArtistGraph = openGraph(dir, LISTENS, cacheBytes);
+        ArtistDictionary artistID;
+        try (FileChannel channel = FileChannel.open(dir.resolve(ARTISTS), StandardOpenOption.READ)) {
+            artistID = SnapshotFile.readArtists(new SnapshotFile.Reader(channel));
+        }
+        return new Contents(userFriendGraph, userArtistGraph, artistID, openTotals(dir.resolve(TOTALS)));
+    }
+
+    private static SegmentedCSRGraph openGraph(Path dir, String name, long cacheBytes) throws IOException {
+        Path manifest = dir.resolve(name + ".graph");
+        int vertexCount;
+        int edgeCount;
+        boolean weighted;
+        int[] firstVertex;
+        try (FileChannel channel = FileChannel.open(manifest, StandardOpenOption.READ)) {
+            SnapshotFile.Reader in = new SnapshotFile.Reader(channel);
+            if (in.readInt() != MAGIC) {
+                throw new IOException(manifest + " is not a segment manifest");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported segment version " + version + " in " + manifest);
+            }
+            vertexCount = in.readInt();
+            edgeCount = in.readInt();
+            weighted = in.readInt() != 0;
+            firstVertex = new int[in.readInt() + 1];
+            in.mapInts(firstVertex.length).get(firstVertex);
+        }
+
+        IntBuffer offsets;
+        try (FileChannel channel = FileChannel.open(dir.resolve(name + ".offsets"), StandardOpenOption.READ)) {
+            offsets = new SnapshotFile.Reader(channel).mapInts(vertexCount + 1);
+        }
+        int segments = firstVertex.length - 1;
+        int[] firstEdge = new int[segments + 1];
+        IntBuffer[] targets = new IntBuffer[segments];
+        IntBuffer[] weights = weighted ? new IntBuffer[segments] : null;
+        for (int s = 0; s < segments; s++) {
+            firstEdge[s] = offsets.get(firstVertex[s]);
+            int edges = offsets.get(firstVertex[s + 1]) - firstEdge[s];
+            try (FileChannel channel = FileChannel.open(dir.resolve(name + "." + s + ".seg"),
+                    StandardOpenOption.READ)) {
+                SnapshotFile.Reader in = new SnapshotFile.Reader(channel);
+                targets[s] = in.mapInts(edges);
+                if (weighted) {
+                    weights[s] = in.mapInts(edges);
+                }
+            }
+        }
+        firstEdge[segments] = edgeCount;
+        return new SegmentedCSRGraph(offsets, firstEdge, targets, weights, cacheBytes);
+    }
+
+    private static PopularityIndex openTotals(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            SnapshotFile.Reader in = new SnapshotFile.Reader(channel);
+            int artists = in.readInt();
+            long[] plays = new long[artists];
+            in.map((long) artists * Long.BYTES).asLongBuffer().get(plays);
+            int[] listeners = new int[artists];
+            in.mapInts(artists).get(listeners);
+            return new PopularityIndex(plays, listeners, PopularityIndex.rank(plays, listeners));
+        }
+    }
+}
@@ -0,0 +1,277 @@
+// Title        :   LastFM Recommender
+// Description  :   AdjacencyStore over the memory-mapped segment files of a
+//              :   SegmentStore directory. Offsets are global, as in CSRGraph,
+//              :   and every segment holds whole rows, so a row never spans
+//              :   two mappings. Edges are read a block of BLOCK_EDGES at a
+//              :   time: a block is copied out of its mapping onto the heap
+//              :   and the last few blocks of every thread are kept, so a
+//              :   row scan or a merge of two rows copies each block once.
+//              :   A bounded, shared cache keeps the blocks that are read
+//              :   again and again (the rows of hot users) resident on the
+//              :   heap by the clock algorithm, in stripes with a lock each
+//              :   so cold misses do not queue, whatever the operating
+//              :   system does with the pages of the mappings; everything
+//              :   else is read from the mappings and left to the page
+//              :   cache. Heap use is the cache bound plus a few blocks per
+//              :   thread, whatever the size of the graph.
+
+package lastfm;
+
+import java.nio.IntBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public final class SegmentedCSRGraph implements AdjacencyStore {
+    static final int BLOCK_EDGES = 512;
+    private static final int BLOCK_SHIFT = Integer.numberOfTrailingZeros(BLOCK_EDGES);
+    // recent blocks kept per thread: enough for a merge of two rows plus a lookup elsewhere.
+    private static final int RECENT_BLOCKS = 4;
+
+    private final IntBuffer offsets;
+    private final int vertexCount;
+    // segment s owns the edges firstEdge[s] .. firstEdge[s + 1] - 1.
+    private final int[] firstEdge;
+    private final IntBuffer[] targets;
+    // null for unweighted graphs.
+    private final IntBuffer[] weights;
+    private final BlockCache cache;
+    private final ThreadLocal<Block[]> recent = ThreadLocal.withInitial(() -> new Block[RECENT_BLOCKS]);
+
+    SegmentedCSRGraph(IntBuffer offsets, int[] firstEdge, IntBuffer[] targets, IntBuffer[] weights, long cacheBytes) {
+        if (cacheBytes < 0) {
+            throw new IllegalArgumentException("cacheBytes must be non-negative: " + cacheBytes);
+        }
+        this.offsets = offsets;
+        this.vertexCount = offsets.capacity() - 1;
+        this.firstEdge = firstEdge;
+        this.targets = targets;
+        this.weights = weights;
+        long blockBytes = (long) BLOCK_EDGES * Integer.BYTES * (weights == null ? 1 : 2);
+        this.cache = new BlockCache((int) Math.min(Integer.MAX_VALUE - 8, cacheBytes / blockBytes));
+    }
+
+    @Override
+    public int vertexCount() {
+        return vertexCount;
+    }
+
+    @Override
+    public int edgeCount() {
+        return firstEdge[firstEdge.length - 1];
+    }
+
+    @Override
+    public boolean isWeighted() {
+        return weights != null;
+    }
+
+    @Override
+    public int start(int v) {
+        return hasVertex(v) ? offsets.get(v) : 0;
+    }
+
+    @Override
+    public int end(int v) {
+        return hasVertex(v) ? offsets.get(v + 1) : 0;
+    }
+
+    @Override
+    public int target(int edge) {
+        return block(edge >>> BLOCK_SHIFT).targets[edge & (BLOCK_EDGES - 1)];
+    }
+
+    @Override
+    public int weight(int edge) {
+        if (weights == null) {
+            throw new UnsupportedOperationException("graph is unweighted");
+        }
+        return block(edge >>> BLOCK_SHIFT).weights[edge & (BLOCK_EDGES - 1)];
+    }
+
+    // binary search straight in the row's mapping, which copies nothing.
+    @Override
+    public int find(int v, int target) {
+        int start = start(v);
+        int end = end(v);
+        if (start == end) {
+            return -1;
+        }
+        int segment = segmentOf(start);
+        IntBuffer row = targets[segment];
+        int base = firstEdge[segment];
+        int low = start - base;
+        int high = end - base - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int found = row.get(mid);
+            if (found < target) {
+                low = mid + 1;
+            } else if (found > target) {
+                high = mid - 1;
+            } else {
+                return base + mid;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int[] neighbours(int v) {
+        int start = start(v);
+        int[] neighbours = new int[end(v) - start];
+        if (neighbours.length > 0) {
+            int segment = segmentOf(start);
+            targets[segment].get(start - firstEdge[segment], neighbours);
+        }
+        return neighbours;
+    }
+
+    // the heap held by resident blocks; the mappings are not on the heap.
+    @Override
+    public long heapBytes() {
+        long blockBytes = 16 + 16 + 4L * BLOCK_EDGES * (weights == null ? 1 : 2);
+        return 16 + 4L * firstEdge.length + cache.resident() * blockBytes;
+    }
+
+    // number of block reads answered by the shared cache, and by copying from a mapping.
+    public long cacheHits() {
+        return cache.hits.sum();
+    }
+
+    public long cacheMisses() {
+        return cache.misses.sum();
+    }
+
+    private int segmentOf(int edge) {
+        int low = 0;
+        int high = targets.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (firstEdge[mid] <= edge) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    // the block with the given id, from this thread's recent blocks, the shared cache, or the
+    // mappings, in that order.
+    private Block block(int id) {
+        Block[] mine = recent.get();
+        for (Block block : mine) {
+            if (block != null && block.id == id) {
+                return block;
+            }
+        }
+        Block block = cache.get(id);
+        if (block == null) {
+            block = load(id);
+            cache.put(block);
+        }
+        System.arraycopy(mine, 0, mine, 1, RECENT_BLOCKS - 1);
+        mine[0] = block;
+        return block;
+    }
+
+    // copies the block's edges out of the one or more segments they lie in.
+    private Block load(int id) {
+        int first = id << BLOCK_SHIFT;
+        int last = Math.min(edgeCount(), first + BLOCK_EDGES);
+        int[] blockTargets = new int[BLOCK_EDGES];
+        int[] blockWeights = weights == null ? null : new int[BLOCK_EDGES];
+        for (int edge = first; edge < last; ) {
+            int segment = segmentOf(edge);
+            int to = Math.min(last, firstEdge[segment + 1]);
+            targets[segment].get(edge - firstEdge[segment], blockTargets, edge - first, to - edge);
+            if (blockWeights != null) {
+                weights[segment].get(edge - firstEdge[segment], blockWeights, edge - first, to - edge);
+            }
+            edge = to;
+        }
+        return new Block(id, blockTargets, blockWeights);
+    }
+
+    // an immutable copy of the edges of one block.
+    private static final class Block {
+        final int id;
+        final int[] targets;
+        final int[] weights;
+        // set on every hit and cleared by the clock hand; a benign race.
+        boolean referenced;
+
+        Block(int id, int[] targets, int[] weights) {
+            this.id = id;
+            this.targets = targets;
+            this.weights = weights;
+        }
+    }
+
+    // at most capacity blocks, split over stripes by block id so that misses on different blocks
+    // do not queue on one lock. each stripe runs the clock algorithm over its share of the slots:
+    // the hand skips, and clears, blocks read since it last passed them, and evicts the first block
+    // that was not. blocks are immutable, so a thread may keep using one after it has been evicted.
+    private static final class BlockCache {
+        private final Stripe[] stripes;
+        private final ConcurrentHashMap<Integer, Block> index = new ConcurrentHashMap<>();
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+
+        BlockCache(int capacity) {
+            // a power of two of about four stripes per core, but never a stripe without a slot.
+            int wanted = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 4 - 1)) << 1;
+            int count = Math.max(1, Math.min(wanted, Integer.highestOneBit(Math.max(1, capacity))));
+            stripes = new Stripe[count];
+            for (int i = 0; i < count; i++) {
+                stripes[i] = new Stripe(capacity / count + (i < capacity % count ? 1 : 0));
+            }
+        }
+
+        Block get(int id) {
+            Block block = index.get(id);
+            if (block != null) {
+                block.referenced = true;
+                hits.increment();
+            } else {
+                misses.increment();
+            }
+            return block;
+        }
+
+        void put(Block block) {
+            // consecutive blocks (one long row) land on different stripes.
+            int hash = block.id * 0x9E3779B9;
+            stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)].put(block, index);
+        }
+
+        int resident() {
+            return index.size();
+        }
+    }
+
+    private static final class Stripe {
+        private final Block[] slots;
+        private int hand;
+
+        Stripe(int capacity) {
+            slots = new Block[capacity];
+        }
+
+        synchronized void put(Block block, ConcurrentHashMap<Integer, Block> index) {
+            if (slots.length == 0 || index.containsKey(block.id)) {
+                return;
+            }
+            while (slots[hand] != null && slots[hand].referenced) {
+                slots[hand].referenced = false;
+                hand = (hand + 1) % slots.length;
+            }
+            if (slots[hand] != null) {
+                index.remove(slots[hand].id);
+            }
+            slots[hand] = block;
+            index.put(block.id, block);
+            hand = (hand + 1) % slots.length;
+        }
+    }
+}
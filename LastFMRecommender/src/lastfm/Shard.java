@@ -0,0 +1,32 @@
+// Title        :   LastFM Recommender
+// Description  :   One partition of the users, as seen by a ShardedRecommender.
+//              :   A shard holds the friend and listen rows of the users it
+//              :   owns and answers partial queries over them; every call
+//              :   takes a batch, so a coordinator sends one call per shard
+//              :   per phase of a query however many users it is about.
+//              :   Implemented in-process by LocalShard and over HTTP by
+//              :   RemoteShard.
+
+package lastfm;
+
+import java.util.List;
+
+public interface Shard {
+
+    // the friend rows of the given users, in ascending order, one per user. users this shard
+    // does not own have empty rows.
+    int[][] friends(int[] users);
+
+    // for each group of users, the plays of every artist summed over the listen rows of the
+    // group's users, in no particular order. a user listed twice is counted twice.
+    List<List<ScoredArtist>> playSums(int[][] groups);
+
+    // the k artists with the most plays among this shard's users, best first.
+    List<ScoredArtist> topArtists(int k);
+
+    // every artist with at least minPlays plays among this shard's users, best first.
+    List<ScoredArtist> artistsWithPlays(long minPlays);
+
+    // the plays among this shard's users of each of the given artists.
+    long[] artistPlays(int[] artists);
+}
@@ -0,0 +1,224 @@
+// Title        :   LastFM Recommender
+// Description  :   Wire format shared by ShardServer and RemoteShard. Every
+//              :   Shard call is one POST to the path of the same name, with
+//              :   its arguments as the body and its answer as the response
+//              :   body, both little-endian binary:
+//              :
+//              :   ids       count int, then count ints
+//              :   rows      count int, then count ids
+//              :   scored    count int, then count (artist int, score double)
+//              :   scoreds   count int, then count scored
+//              :   longs     count int, then count longs
+//              :
+//              :   /friends              rows    <- ids
+//              :   /play-sums            scoreds <- rows
+//              :   /top-artists          scored  <- k int
+//              :   /artists-with-plays   scored  <- minPlays long
+//              :   /artist-plays         longs   <- ids
+//              :
+//              :   A request body is at most MAX_REQUEST_BYTES; the server
+//              :   refuses a longer one with 413, and RemoteShard splits a
+//              :   call whose arguments would not fit.
+
+package lastfm;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+final class ShardProtocol {
+    static final String FRIENDS = "/friends";
+    static final String PLAY_SUMS = "/play-sums";
+    static final String TOP_ARTISTS = "/top-artists";
+    static final String ARTISTS_WITH_PLAYS = "/artists-with-plays";
+    static final String ARTIST_PLAYS = "/artist-plays";
+
+    // the largest request body a shard reads, the same bound QueryServer puts on a batch body.
+    static final int MAX_REQUEST_BYTES = QueryServer.MAX_BATCH_BYTES;
+
+    private static final int SCORED_BYTES = Integer.BYTES + Double.BYTES;
+
+    private ShardProtocol() {
+    }
+
+    static byte[] encodeIds(int[] ids) {
+        ByteBuffer out = allocate(Integer.BYTES * (1L + ids.length));
+        putIds(out, ids);
+        return out.array();
+    }
+
+    static byte[] encodeRows(int[][] rows) {
+        long size = Integer.BYTES;
+        for (int[] row : rows) {
+            size += Integer.BYTES * (1L + row.length);
+        }
+        ByteBuffer out = allocate(size);
+        out.putInt(rows.length);
+        for (int[] row : rows) {
+            putIds(out, row);
+        }
+        return out.array();
+    }
+
+    static byte[] encodeScored(List<ScoredArtist> scored) {
+        ByteBuffer out = allocate(Integer.BYTES + (long) SCORED_BYTES * scored.size());
+        putScored(out, scored);
+        return out.array();
+    }
+
+    static byte[] encodeScoreds(List<List<ScoredArtist>> scoreds) {
+        long size = Integer.BYTES;
+        for (List<ScoredArtist> scored : scoreds) {
+            size += Integer.BYTES + (long) SCORED_BYTES * scored.size();
+        }
+        ByteBuffer out = allocate(size);
+        out.putInt(scoreds.size());
+        for (List<ScoredArtist> scored : scoreds) {
+            putScored(out, scored);
+        }
+        return out.array();
+    }
+
+    static byte[] encodeLongs(long[] values) {
+        ByteBuffer out = allocate(Integer.BYTES + (long) Long.BYTES * values.length);
+        out.putInt(values.length);
+        for (long value : values) {
+            out.putLong(value);
+        }
+        return out.array();
+    }
+
+    static byte[] encodeInt(int value) {
+        return allocate(Integer.BYTES).putInt(value).array();
+    }
+
+    static byte[] encodeLong(long value) {
+        return allocate(Long.BYTES).putLong(value).array();
+    }
+
+    private static ByteBuffer allocate(long size) {
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("shard message too large: " + size + " bytes");
+        }
+        return ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void putIds(ByteBuffer out, int[] ids) {
+        out.putInt(ids.length);
+        for (int id : ids) {
+            out.putInt(id);
+        }
+    }
+
+    private static void putScored(ByteBuffer out, List<ScoredArtist> scored) {
+        out.putInt(scored.size());
+        for (ScoredArtist artist : scored) {
+            out.putInt(artist.artist()).putDouble(artist.score());
+        }
+    }
+
+    static int[] decodeIds(byte[] body) {
+        ByteBuffer in = wrap(body);
+        int[] ids = getIds(in);
+        finish(in);
+        return ids;
+    }
+
+    static int[][] decodeRows(byte[] body) {
+        ByteBuffer in = wrap(body);
+        int[][] rows = new int[count(in, Integer.BYTES)][];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = getIds(in);
+        }
+        finish(in);
+        return rows;
+    }
+
+    static List<ScoredArtist> decodeScored(byte[] body) {
+        ByteBuffer in = wrap(body);
+        List<ScoredArtist> scored = getScored(in);
+        finish(in);
+        return scored;
+    }
+
+    static List<List<ScoredArtist>> decodeScoreds(byte[] body) {
+        ByteBuffer in = wrap(body);
+        int count = count(in, Integer.BYTES);
+        List<List<ScoredArtist>> scoreds = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            scoreds.add(getScored(in));
+        }
+        finish(in);
+        return scoreds;
+    }
+
+    static long[] decodeLongs(byte[] body) {
+        ByteBuffer in = wrap(body);
+        long[] values = new long[count(in, Long.BYTES)];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.getLong();
+        }
+        finish(in);
+        return values;
+    }
+
+    static int decodeInt(byte[] body) {
+        ByteBuffer in = wrap(body);
+        if (in.remaining() < Integer.BYTES) {
+            throw new IllegalArgumentException("malformed shard message: expected an int");
+        }
+        int value = in.getInt();
+        finish(in);
+        return value;
+    }
+
+    static long decodeLong(byte[] body) {
+        ByteBuffer in = wrap(body);
+        if (in.remaining() < Long.BYTES) {
+            throw new IllegalArgumentException("malformed shard message: expected a long");
+        }
+        long value = in.getLong();
+        finish(in);
+        return value;
+    }
+
+    private static ByteBuffer wrap(byte[] body) {
+        return ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // reads a count of entries of at least entryBytes each, checked against the bytes left.
+    private static int count(ByteBuffer in, int entryBytes) {
+        if (in.remaining() < Integer.BYTES) {
+            throw new IllegalArgumentException("malformed shard message: expected a count");
+        }
+        int count = in.getInt();
+        if (count < 0 || (long) count * entryBytes > in.remaining()) {
+            throw new IllegalArgumentException("malformed shard message: bad count " + count);
+        }
+        return count;
+    }
+
+    private static int[] getIds(ByteBuffer in) {
+        int[] ids = new int[count(in, Integer.BYTES)];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = in.getInt();
+        }
+        return ids;
+    }
+
+    private static List<ScoredArtist> getScored(ByteBuffer in) {
+        int count = count(in, SCORED_BYTES);
+        List<ScoredArtist> scored = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            scored.add(new ScoredArtist(in.getInt(), in.getDouble()));
+        }
+        return scored;
+    }
+
+    private static void finish(ByteBuffer in) {
+        if (in.hasRemaining()) {
+            throw new IllegalArgumentException("malformed shard message: " + in.remaining() + " trailing bytes");
+        }
+    }
+}
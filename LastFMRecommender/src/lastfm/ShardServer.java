@@ -0,0 +1,119 @@
+// Title        :   LastFM Recommender
+// Description  :   HTTP server that answers the Shard calls of a coordinator
+//              :   for one shard, in the binary format of ShardProtocol, so
+//              :   the shards of a ShardedRecommender can run as separate
+//              :   processes (see RemoteShard). Runs on the JDK HttpServer
+//              :   with the request threads of QueryServer. A bad call is
+//              :   answered 400, a body over the protocol's request bound
+//              :   413, and any other failure 500, with the message as text.
+//              :   Run it with -Dsun.net.httpserver.nodelay=true (as Main's
+//              :   shard mode does), or the answers to small calls wait out
+//              :   the coordinator's delayed acks.
+
+package lastfm;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public final class ShardServer {
+    private final Shard shard;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    // serves the given shard on the given port (0 picks a free one). call start() to accept calls.
+    public ShardServer(Shard shard, int port) throws IOException {
+        this.shard = shard;
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.executor = QueryServer.perRequestExecutor();
+        server.setExecutor(executor);
+        server.createContext("/", this::serve);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    // the port the server listens on.
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    // stops accepting calls, gives calls in flight up to graceSeconds to finish, then stops the
+    // request threads.
+    public void stop(int graceSeconds) {
+        server.stop(graceSeconds);
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(graceSeconds, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            int status = 200;
+            byte[] body;
+            try {
+                if (!exchange.getRequestMethod().equals("POST")) {
+                    status = 405;
+                    body = "shard calls are POSTed".getBytes(StandardCharsets.UTF_8);
+                } else {
+                    byte[] request = exchange.getRequestBody().readNBytes(ShardProtocol.MAX_REQUEST_BYTES + 1);
+                    if (request.length > ShardProtocol.MAX_REQUEST_BYTES) {
+                        status = 413;
+                        body = ("shard call body over " + ShardProtocol.MAX_REQUEST_BYTES + " bytes")
+                                .getBytes(StandardCharsets.UTF_8);
+                    } else {
+                        body = call(exchange.getRequestURI().getPath(), request);
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                status = 400;
+                body = String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8);
+            } catch (RuntimeException e) {
+                // the coordinator reports the status and this message (see RemoteShard).
+                status = 500;
+                body = e.toString().getBytes(StandardCharsets.UTF_8);
+            }
+            if (body == null) {
+                status = 404;
+                body = ("unknown shard call " + exchange.getRequestURI().getPath()).getBytes(StandardCharsets.UTF_8);
+            }
+            exchange.getResponseHeaders().set("Content-Type",
+                    status == 200 ? "application/octet-stream" : "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    // the encoded answer to one call, or null for an unknown path.
+    private byte[] call(String path, byte[] request) {
+        switch (path) {
+            case ShardProtocol.FRIENDS:
+                return ShardProtocol.encodeRows(shard.friends(ShardProtocol.decodeIds(request)));
+            case ShardProtocol.PLAY_SUMS:
+                return ShardProtocol.encodeScoreds(shard.playSums(ShardProtocol.decodeRows(request)));
+            case ShardProtocol.TOP_ARTISTS:
+                return ShardProtocol.encodeScored(shard.topArtists(ShardProtocol.decodeInt(request)));
+            case ShardProtocol.ARTISTS_WITH_PLAYS:
+                return ShardProtocol.encodeScored(shard.artistsWithPlays(ShardProtocol.decodeLong(request)));
+            case ShardProtocol.ARTIST_PLAYS:
+                return ShardProtocol.encodeLongs(shard.artistPlays(ShardProtocol.decodeIds(request)));
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,437 @@
+// Title        :   LastFM Recommender
+// Description  :   Coordinator for data partitioned by user id across shards:
+//              :   user u lives on shard u % shards, with its friend and
+//              :   listen rows (see Recommender.partition). Each query is
+//              :   scattered to the shards it needs, one batched call per
+//              :   shard per phase, all shards at once, and the partial
+//              :   answers are merged here. Answers equal those of one
+//              :   Recommender over all of the data.
+//              :
+//              :   recommend: the friend rows of the users are read from
+//              :   their own shards, then every shard sums the plays of the
+//              :   friends (and users) it owns into one sparse vector per
+//              :   query, and the vectors are added up and ranked. Plays are
+//              :   summed where they are stored, so a shard answers with at
+//              :   most one entry per artist however many friends it holds,
+//              :   and the friends of a hub user are spread over all shards
+//              :   by their ids and split into groups that a shard sums in
+//              :   parallel.
+//              :
+//              :   topArtists: three phases (the TPUT threshold algorithm),
+//              :   so no shard sends its whole chart. the local top k of
+//              :   every shard gives a lower bound t on the k-th best total;
+//              :   an artist with fewer than t / shards plays on every shard
+//              :   cannot reach it, so the shards send only the artists
+//              :   above that, and the candidates are then totalled exactly.
+
+package lastfm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+
+public final class ShardedRecommender implements Closeable {
+    // users whose plays a shard sums as one group; the friends of a hub user on one shard are
+    // split into groups of this size, which the shard sums in parallel.
+    static final int GROUP_USERS = 1024;
+    private static final ScratchPool<ScoreAccumulator> MERGE_SCRATCH = new ScratchPool<>(() -> new ScoreAccumulator(0));
+
+    private final List<Shard> shards;
+    private final ExecutorService executor;
+
+    public ShardedRecommender(List<Shard> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("at least one shard is needed");
+        }
+        this.shards = new ArrayList<>(shards);
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "shard-scatter");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // splits the data of one Recommender into the given number of in-process shards.
+    public static ShardedRecommender inProcess(Recommender recommender, int shardCount) {
+        List<Shard> shards = new ArrayList<>(shardCount);
+        for (int s = 0; s < shardCount; s++) {
+            shards.add(new LocalShard(recommender.partition(s, shardCount)));
+        }
+        return new ShardedRecommender(shards);
+    }
+
+    // opens the partitions that SegmentStore.buildPartitions wrote to dir as in-process shards,
+    // which share cacheBytes between them.
+    public static ShardedRecommender fromSegments(String dir, long cacheBytes) throws IOException {
+        int partitions = 0;
+        while (Files.isDirectory(SegmentStore.partition(Paths.get(dir), partitions))) {
+            partitions++;
+        }
+        if (partitions == 0) {
+            throw new IOException("no segment partitions in " + dir);
+        }
+        List<Shard> shards = new ArrayList<>(partitions);
+        for (int s = 0; s < partitions; s++) {
+            String partition = SegmentStore.partition(Paths.get(dir), s).toString();
+            shards.add(new LocalShard(Recommender.fromSegments(partition, cacheBytes / partitions)));
+        }
+        return new ShardedRecommender(shards);
+    }
+
+    // coordinates ShardServers at the given base URIs; the i-th must serve partition i.
+    public static ShardedRecommender connect(List<URI> servers) {
+        List<Shard> shards = new ArrayList<>(servers.size());
+        for (URI server : servers) {
+            shards.add(new RemoteShard(server));
+        }
+        return new ShardedRecommender(shards);
+    }
+
+    // the queries of QueryServer over these shards, with the names of the given artists, which the
+    // shards do not serve; Main's coordinator mode fronts remote shards with it.
+    public RecommenderQueries withArtists(ArtistDictionary artists) {
+        return new RecommenderQueries() {
+            @Override
+            public int[] friends(int user) {
+                return ShardedRecommender.this.friends(user);
+            }
+
+            @Override
+            public int[] mutualFriends(int user1, int user2) {
+                return ShardedRecommender.this.mutualFriends(user1, user2);
+            }
+
+            @Override
+            public int[] sharedArtists(int user1, int user2) {
+                return ShardedRecommender.this.sharedArtists(user1, user2);
+            }
+
+            @Override
+            public List<ScoredArtist> topArtists(int k) {
+                return ShardedRecommender.this.topArtists(k);
+            }
+
+            @Override
+            public List<ScoredArtist> recommend(int user, int k) {
+                return ShardedRecommender.this.recommend(user, k);
+            }
+
+            @Override
+            public String artistName(int id) {
+                return artists.name(id);
+            }
+
+            @Override
+            public int[] searchArtists(String prefix, int limit) {
+                return artists.searchPrefix(prefix, limit);
+            }
+        };
+    }
+
+    public int shardCount() {
+        return shards.size();
+    }
+
+    // the shard that owns the given user.
+    public int shardOf(int user) {
+        return Math.floorMod(user, shards.size());
+    }
+
+    // returns the friends of the given user in ascending order.
+    public int[] friends(int user) {
+        return shards.get(shardOf(user)).friends(new int[]{user})[0];
+    }
+
+    // returns the friends that 2 given users have in common, in ascending order. both rows are
+    // read in one round, one call per owning shard, and merged here.
+    public int[] mutualFriends(int user1, int user2) {
+        int[][] rows = friendRows(new int[]{user1, user2});
+        return intersect(rows[0], rows[1]);
+    }
+
+    // returns the artists that 2 given users both listen to, in ascending order. the listen rows
+    // are read as one-user play sums, one call per owning shard.
+    public int[] sharedArtists(int user1, int user2) {
+        int shard1 = shardOf(user1);
+        int shard2 = shardOf(user2);
+        List<List<List<ScoredArtist>>> rows = scatter(s -> s == shard1 || s == shard2,
+                s -> shards.get(s).playSums(shard1 == shard2 ? new int[][]{{user1}, {user2}}
+                        : new int[][]{{s == shard1 ? user1 : user2}}));
+        List<ScoredArtist> row2 = shard1 == shard2 ? rows.get(shard1).get(1) : rows.get(shard2).get(0);
+        return intersect(sortedArtists(rows.get(shard1).get(0)), sortedArtists(row2));
+    }
+
+    private static int[] sortedArtists(List<ScoredArtist> sums) {
+        int[] artists = new int[sums.size()];
+        for (int i = 0; i < artists.length; i++) {
+            artists[i] = sums.get(i).artist();
+        }
+        Arrays.sort(artists);
+        return artists;
+    }
+
+    // returns the k artists with the most listens among the given user and the user's friends,
+    // best first.
+    public List<ScoredArtist> recommend(int user, int k) {
+        return recommend(new int[]{user}, k).get(0);
+    }
+
+    // recommend(user, k) for every given user, in two rounds of one call per shard for the whole
+    // batch.
+    public List<List<ScoredArtist>> recommend(int[] users, int k) {
+        if (k < 0) {
+            throw new IllegalArgumentException("k must be non-negative: " + k);
+        }
+        int[][] rows = friendRows(users);
+
+        // the groups each shard sums, in query order, and the query each group belongs to.
+        int n = shards.size();
+        List<List<int[]>> groups = new ArrayList<>(n);
+        List<List<Integer>> groupQuery = new ArrayList<>(n);
+        for (int s = 0; s < n; s++) {
+            groups.add(new ArrayList<>());
+            groupQuery.add(new ArrayList<>());
+        }
+        int[] counts = new int[n];
+        for (int q = 0; q < users.length; q++) {
+            int[] members = Arrays.copyOf(rows[q], rows[q].length + 1);
+            members[rows[q].length] = users[q];
+            int[][] owned = byShard(members, counts);
+            for (int s = 0; s < n; s++) {
+                for (int from = 0; from < owned[s].length; from += GROUP_USERS) {
+                    int to = Math.min(owned[s].length, from + GROUP_USERS);
+                    groups.get(s).add(Arrays.copyOfRange(owned[s], from, to));
+                    groupQuery.get(s).add(q);
+                }
+            }
+        }
+        List<List<List<ScoredArtist>>> sums = scatter(s -> !groups.get(s).isEmpty(),
+                s -> shards.get(s).playSums(groups.get(s).toArray(new int[0][])));
+
+        List<List<ScoredArtist>> recommended = new ArrayList<>(users.length);
+        ScoreAccumulator scores = MERGE_SCRATCH.borrow();
+        int[] next = new int[n];
+        try {
+            for (int q = 0; q < users.length; q++) {
+                for (int s = 0; s < n; s++) {
+                    for (; next[s] < groupQuery.get(s).size() && groupQuery.get(s).get(next[s]) == q; next[s]++) {
+                        for (ScoredArtist partial : sums.get(s).get(next[s])) {
+                            scores.add(partial.artist(), partial.score());
+                        }
+                    }
+                }
+                recommended.add(scores.topK(k));
+                scores.reset();
+            }
+        } finally {
+            scores.reset();
+            MERGE_SCRATCH.release(scores);
+        }
+        return recommended;
+    }
+
+    // returns the k artists with the most listens across all users, best first.
+    public List<ScoredArtist> topArtists(int k) {
+        if (k < 0) {
+            throw new IllegalArgumentException("k must be non-negative: " + k);
+        }
+        if (k == 0) {
+            return new ArrayList<>();
+        }
+        int n = shards.size();
+        ScoreAccumulator totals = MERGE_SCRATCH.borrow();
+        try {
+            // phase 1: the local top k of every shard bounds the k-th best total from below.
+            List<List<ScoredArtist>> tops = scatter(s -> true, s -> shards.get(s).topArtists(k));
+            for (List<ScoredArtist> top : tops) {
+                for (ScoredArtist artist : top) {
+                    totals.add(artist.artist(), artist.score());
+                }
+            }
+            List<ScoredArtist> lowerBounds = totals.topK(k);
+            double threshold = lowerBounds.size() < k ? 0 : lowerBounds.get(k - 1).score();
+            totals.reset();
+
+            // phase 2: every artist that could reach the threshold has its share on some shard.
+            long minPlays = (long) Math.ceil(threshold / n);
+            List<List<ScoredArtist>> above = scatter(s -> true, s -> shards.get(s).artistsWithPlays(minPlays));
+            for (List<ScoredArtist> reported : above) {
+                for (ScoredArtist artist : reported) {
+                    totals.add(artist.artist(), artist.score());
+                }
+            }
+            int[] candidates = new int[totals.size()];
+            for (int i = 0; i < candidates.length; i++) {
+                candidates[i] = totals.idAt(i);
+            }
+            Arrays.sort(candidates);
+
+            // phase 3: the plays of the candidates on the shards that did not report them.
+            int[][] missing = new int[n][];
+            for (int s = 0; s < n; s++) {
+                missing[s] = missing(candidates, above.get(s));
+            }
+            List<long[]> plays = scatter(s -> missing[s].length > 0, s -> shards.get(s).artistPlays(missing[s]));
+            for (int s = 0; s < n; s++) {
+                for (int i = 0; i < missing[s].length; i++) {
+                    totals.add(missing[s][i], plays.get(s)[i]);
+                }
+            }
+            return totals.topK(k);
+        } finally {
+            totals.reset();
+            MERGE_SCRATCH.release(totals);
+        }
+    }
+
+    // the sorted candidates that are not in the reported list.
+    private static int[] missing(int[] candidates, List<ScoredArtist> reported) {
+        int[] have = new int[reported.size()];
+        for (int i = 0; i < have.length; i++) {
+            have[i] = reported.get(i).artist();
+        }
+        Arrays.sort(have);
+        int[] missing = new int[candidates.length];
+        int count = 0;
+        int h = 0;
+        for (int candidate : candidates) {
+            while (h < have.length && have[h] < candidate) {
+                h++;
+            }
+            if (h == have.length || have[h] != candidate) {
+                missing[count++] = candidate;
+            }
+        }
+        return Arrays.copyOf(missing, count);
+    }
+
+    // the friend rows of the given users, read with one call per shard that owns any of them.
+    private int[][] friendRows(int[] users) {
+        int[] counts = new int[shards.size()];
+        int[][] owned = byShard(users, counts);
+        List<int[][]> answers = scatter(s -> owned[s].length > 0, s -> shards.get(s).friends(owned[s]));
+        int[][] rows = new int[users.length][];
+        int[] next = new int[shards.size()];
+        for (int i = 0; i < users.length; i++) {
+            int s = shardOf(users[i]);
+            rows[i] = answers.get(s)[next[s]++];
+        }
+        return rows;
+    }
+
+    // the given users split by owning shard, each part in the given order. counts is scratch of
+    // one entry per shard.
+    private int[][] byShard(int[] users, int[] counts) {
+        Arrays.fill(counts, 0);
+        for (int user : users) {
+            counts[shardOf(user)]++;
+        }
+        int[][] owned = new int[shards.size()][];
+        for (int s = 0; s < owned.length; s++) {
+            owned[s] = new int[counts[s]];
+        }
+        Arrays.fill(counts, 0);
+        for (int user : users) {
+            int s = shardOf(user);
+            owned[s][counts[s]++] = user;
+        }
+        return owned;
+    }
+
+    // the ids in both sorted arrays, by a linear merge.
+    private static int[] intersect(int[] a, int[] b) {
+        int[] common = new int[Math.min(a.length, b.length)];
+        int count = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                common[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(common, count);
+    }
+
+    // calls every shard s for which involved is true at once and waits for all of them; the
+    // answer of shard s is at index s, null for shards that were not called. a single call runs
+    // on the calling thread.
+    private <T> List<T> scatter(IntPredicate involved, IntFunction<T> call) {
+        int n = shards.size();
+        List<T> answers = new ArrayList<>(n);
+        List<Future<T>> running = new ArrayList<>(n);
+        int calls = 0;
+        for (int s = 0; s < n; s++) {
+            answers.add(null);
+            running.add(null);
+            if (involved.test(s)) {
+                calls++;
+            }
+        }
+        if (calls == 1) {
+            for (int s = 0; s < n; s++) {
+                if (involved.test(s)) {
+                    answers.set(s, call.apply(s));
+                }
+            }
+            return answers;
+        }
+        for (int s = 0; s < n; s++) {
+            if (involved.test(s)) {
+                int shard = s;
+                running.set(s, executor.submit(() -> call.apply(shard)));
+            }
+        }
+        join(running, answers);
+        return answers;
+    }
+
+    // waits for every call, even after one has failed, and throws the first failure.
+    private <T> void join(List<Future<T>> running, List<T> answers) {
+        RuntimeException failure = null;
+        boolean interrupted = false;
+        for (int s = 0; s < running.size(); s++) {
+            Future<T> call = running.get(s);
+            while (call != null) {
+                try {
+                    answers.set(s, call.get());
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = new IllegalStateException("shard " + s + " (" + shards.get(s) + ") failed",
+                                e.getCause());
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // stops the scatter threads; the shards themselves are not closed.
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,245 @@
+// Title        :   LastFM Recommender
+// Description  :   "Users like me": approximate nearest neighbours by Jaccard
+//              :   similarity of the users' artist sets, via MinHash and LSH
+//              :   banding. Every user with listens gets a signature of
+//              :   hashCount minimum hashes of their artists; the signature
+//              :   is cut into bands and each band is hashed into a sorted
+//              :   bucket array, so users that agree on a whole band land in
+//              :   the same bucket. A query reads the user's buckets, ranks
+//              :   the candidates by signature agreement (an estimate of
+//              :   their Jaccard similarity), and can re-rank them exactly
+//              :   by intersecting the sorted rows of the listen graph.
+//              :   Built in parallel; immutable and thread-safe afterwards.
+
+package lastfm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+public final class SimilarUsers {
+    private static final int BLOCK_USERS = 256;
+    // the most users read from one bucket, so a query stays cheap when many users share a band.
+    // the read starts at an offset hashed from the user and the band, so the users of a large
+    // bucket are all found by someone, not just its lowest ids.
+    static final int MAX_BUCKET_SCAN = 256;
+    private static final long SEED = 0x5DEECE66DL;
+
+    private final AdjacencyStore userArtistGraph;
+    private final NeighbourSets artistSets;
+    private final int hashCount;
+    private final int bands;
+    private final int rowsPerBand;
+    private final int[] hashSeeds;
+    // users with listens get consecutive slots; slots[user] is -1 for the others.
+    // signatures[hashCount * slot .. hashCount * (slot + 1)) is the signature of that slot's user.
+    private final int[] slots;
+    private final int[] signatures;
+    // per band, ((long) bucket << 32) | user for every user with listens, sorted.
+    private final long[][] buckets;
+    private final ThreadLocal<ScoreAccumulator> candidateScratch;
+
+    // indexes the listen graph of the given recommender with hashCount hashes in the given number
+    // of bands. more bands find less similar users; hashCount must be a multiple of bands.
+    public SimilarUsers(Recommender recommender, int hashCount, int bands) {
+        this(recommender.userArtistGraph(), recommender.artistSets(), hashCount, bands);
+    }
+
+    // 128 hashes in 64 bands of 2, which finds nine in ten pairs with a Jaccard similarity of 0.2.
+    // listen sets are sparse: the nearest neighbour of a typical LastFM user sits near 0.18.
+    public SimilarUsers(Recommender recommender) {
+        this(recommender, 128, 64);
+    }
+
+    SimilarUsers(AdjacencyStore userArtistGraph, NeighbourSets artistSets, int hashCount, int bands) {
+        if (hashCount < 1 || bands < 1 || hashCount % bands != 0) {
+            throw new IllegalArgumentException("hashCount must be a positive multiple of bands: "
+                    + hashCount + ", " + bands);
+        }
+        this.userArtistGraph = userArtistGraph;
+        this.artistSets = artistSets;
+        this.hashCount = hashCount;
+        this.bands = bands;
+        this.rowsPerBand = hashCount / bands;
+        int users = userArtistGraph.vertexCount();
+        this.candidateScratch = ThreadLocal.withInitial(() -> new ScoreAccumulator(users));
+
+        SplittableRandom random = new SplittableRandom(SEED);
+        hashSeeds = new int[hashCount];
+        for (int i = 0; i < hashCount; i++) {
+            hashSeeds[i] = random.nextInt();
+        }
+
+        int[] indexed = IntStream.range(0, users).filter(user -> userArtistGraph.degree(user) > 0).toArray();
+        slots = new int[users];
+        Arrays.fill(slots, -1);
+        for (int slot = 0; slot < indexed.length; slot++) {
+            slots[indexed[slot]] = slot;
+        }
+
+        signatures = new int[hashCount * indexed.length];
+        int blocks = (indexed.length + BLOCK_USERS - 1) / BLOCK_USERS;
+        IntStream.range(0, blocks).parallel().forEach(block -> {
+            int last = Math.min(indexed.length, (block + 1) * BLOCK_USERS);
+            for (int slot = block * BLOCK_USERS; slot < last; slot++) {
+                sign(indexed[slot], slot);
+            }
+        });
+
+        buckets = new long[bands][];
+        IntStream.range(0, bands).parallel().forEach(band -> {
+            long[] entries = new long[indexed.length];
+            for (int i = 0; i < indexed.length; i++) {
+                entries[i] = ((long) bucket(indexed[i], band) << 32) | indexed[i];
+            }
+            Arrays.sort(entries);
+            buckets[band] = entries;
+        });
+    }
+
+    // the minimum of every hash function over the user's artists.
+    private void sign(int user, int slot) {
+        int base = hashCount * slot;
+        Arrays.fill(signatures, base, base + hashCount, Integer.MAX_VALUE);
+        for (int e = userArtistGraph.start(user); e < userArtistGraph.end(user); e++) {
+            int artist = userArtistGraph.target(e);
+            for (int i = 0; i < hashCount; i++) {
+                int hash = hash(artist, hashSeeds[i]);
+                if (hash < signatures[base + i]) {
+                    signatures[base + i] = hash;
+                }
+            }
+        }
+    }
+
+    // murmur3's 32 bit finalizer over the artist id mixed with the hash function's seed.
+    private static int hash(int value, int seed) {
+        int h = value ^ seed;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    // the bucket of the given band of the user's signature.
+    private int bucket(int user, int band) {
+        int h = band;
+        int from = hashCount * slots[user] + rowsPerBand * band;
+        for (int i = from; i < from + rowsPerBand; i++) {
+            h = hash(signatures[i], h * 31);
+        }
+        return h;
+    }
+
+    // up to n users most similar to the given user, most similar first, scored by the estimated
+    // Jaccard similarity of their artist sets (the share of equal signature entries).
+    public List<ScoredUser> similarUsers(int user, int n) {
+        return similarUsers(user, n, false);
+    }
+
+    // as similarUsers(user, n), but when exact is true the candidates are re-ranked by their exact
+    // Jaccard similarity, counted by intersecting sorted rows.
+    public List<ScoredUser> similarUsers(int user, int n, boolean exact) {
+        if (user < 0 || user >= slots.length || slots[user] < 0) {
+            return new ArrayList<>();
+        }
+        ScoreAccumulator candidates = candidateScratch.get();
+        try {
+            for (int band = 0; band < bands; band++) {
+                collect(user, band, candidates);
+            }
+            TopK top = new TopK(Math.max(0, n));
+            for (int i = 0; i < candidates.size(); i++) {
+                int candidate = candidates.idAt(i);
+                top.offer(candidate, exact ? jaccard(user, candidate) : estimate(user, candidate));
+            }
+            // TopK ranks (id, score) pairs, whatever the ids are.
+            List<ScoredUser> similar = new ArrayList<>(top.size());
+            for (ScoredArtist ranked : top.drain()) {
+                similar.add(new ScoredUser(ranked.artist(), ranked.score()));
+            }
+            return similar;
+        } finally {
+            candidates.reset();
+        }
+    }
+
+    // adds the users that share the user's bucket of the given band, at most MAX_BUCKET_SCAN of
+    // them: a window of the bucket, wrapping around, from an offset hashed from the user and band.
+    private void collect(int user, int band, ScoreAccumulator candidates) {
+        long[] entries = buckets[band];
+        long bucket = bucket(user, band);
+        int first = bucketStart(entries, bucket);
+        int size = bucketStart(entries, bucket + 1) - first;
+        int start = size <= MAX_BUCKET_SCAN ? 0 : Math.floorMod(hash(user, hashSeeds[band]), size);
+        for (int i = 0; i < Math.min(size, MAX_BUCKET_SCAN); i++) {
+            int candidate = (int) entries[first + (start + i) % size];
+            if (candidate != user) {
+                candidates.add(candidate, 1);
+            }
+        }
+    }
+
+    // the index of the first entry whose bucket is at least the given one. as a long, bucket + 1
+    // is past every bucket when bucket is the largest int.
+    private static int bucketStart(long[] entries, long bucket) {
+        int low = 0;
+        int high = entries.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (entries[mid] >> 32 < bucket) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // share of equal signature entries, an unbiased estimate of the Jaccard similarity.
+    double estimate(int user1, int user2) {
+        int base1 = hashCount * slots[user1];
+        int base2 = hashCount * slots[user2];
+        int equal = 0;
+        for (int i = 0; i < hashCount; i++) {
+            if (signatures[base1 + i] == signatures[base2 + i]) {
+                equal++;
+            }
+        }
+        return (double) equal / hashCount;
+    }
+
+    // |A and B| / |A or B| of the two users' artist sets.
+    double jaccard(int user1, int user2) {
+        int common = artistSets.count(user1, user2);
+        int union = userArtistGraph.degree(user1) + userArtistGraph.degree(user2) - common;
+        return union == 0 ? 0 : (double) common / union;
+    }
+
+    // recommends k artists the user does not already listen to, from the listens of the n most
+    // similar users, each weighted by its similarity. a neighbour source for users with few or
+    // no friends.
+    public List<ScoredArtist> recommend(int user, int n, int k) {
+        List<ScoredUser> neighbours = similarUsers(user, n);
+        // similarUsers has released the scratch accumulator, so it can hold the artist scores.
+        ScoreAccumulator scores = candidateScratch.get();
+        try {
+            for (ScoredUser neighbour : neighbours) {
+                int other = neighbour.user();
+                for (int e = userArtistGraph.start(other); e < userArtistGraph.end(other); e++) {
+                    int artist = userArtistGraph.target(e);
+                    if (userArtistGraph.find(user, artist) < 0) {
+                        scores.add(artist, neighbour.similarity() * userArtistGraph.weight(e));
+                    }
+                }
+            }
+            return scores.topK(k);
+        } finally {
+            scores.reset();
+        }
+    }
+}
@@ -0,0 +1,361 @@
+// Title        :   LastFM Recommender
+// Description  :   Versioned binary snapshot of the loaded friend graph,
+//              :   listen graph and artist names, and of the indexes derived
+//              :   from them. The .dat files are parsed once and written
+//              :   here; later runs open the snapshot with FileChannel.map
+//              :   so startup no longer depends on the size of the dataset:
+//              :   the graphs and hub bitsets are read from the mapping,
+//              :   and only the per-artist arrays are copied.
+//              :
+//              :   Layout, all little-endian ints:
+//              :   magic, version,
+//              :   friend graph:  vertexCount, edgeCount, weighted flag,
+//              :                  offsets[vertexCount + 1], targets[edgeCount],
+//              :                  weights[edgeCount] if weighted,
+//              :   listen graph:  same as the friend graph,
+//              :   artists:       idLimit, size, byteCount,
+//              :                  offsets[3 * idLimit + 1], byName[size],
+//              :                  present bitset as (idLimit + 63) / 64 longs,
+//              :                  byteCount bytes; the ArtistDictionary arrays
+//              :                  as they are, so opening is a bulk copy,
+//              :   popularity:    artists, plays per artist as (low, high)
+//              :                  int pairs, listeners[artists], rankedCount,
+//              :                  ranking[rankedCount] (see PopularityIndex),
+//              :   friend sets:   maxBitsetBytes as (low, high), hubCount,
+//              :                  hubs[hubCount], then the bitset of every hub
+//              :                  as (vertexCount + 63) / 64 longs, back to back
+//              :                  (see NeighbourSets),
+//              :   listen sets:   same as the friend sets.
+
+package lastfm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+public final class SnapshotFile {
+    static final int MAGIC = 0x4C464D53; // "LFMS"
+    // 3 added the popularity index and the hub bitsets.
+    static final int VERSION = 3;
+
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    // what a snapshot holds once it has been opened.
+    static final class Contents {
+        final AdjacencyStore userFriendGraph;
+        final AdjacencyStore userArtistGraph;
+        final ArtistDictionary artistID;
+        final PopularityIndex popularity;
+        final NeighbourSets friendSets;
+        final NeighbourSets artistSets;
+
+        Contents(AdjacencyStore userFriendGraph, AdjacencyStore userArtistGraph, ArtistDictionary artistID,
+                 PopularityIndex popularity, NeighbourSets friendSets, NeighbourSets artistSets) {
+            this.userFriendGraph = userFriendGraph;
+            this.userArtistGraph = userArtistGraph;
+            this.artistID = artistID;
+            this.popularity = popularity;
+            this.friendSets = friendSets;
+            this.artistSets = artistSets;
+        }
+    }
+
+    private SnapshotFile() {
+    }
+
+    // as write with the indexes built from the graphs.
+    static void write(Path path, AdjacencyStore userFriendGraph, AdjacencyStore userArtistGraph,
+                      ArtistDictionary artistID) throws IOException {
+        write(path, userFriendGraph, userArtistGraph, artistID, PopularityIndex.build(userArtistGraph),
+                new NeighbourSets(userFriendGraph), new NeighbourSets(userArtistGraph));
+    }
+
+    // writes both graphs, the artist names and the indexes of the graphs to the given path,
+    // replacing any existing file (see Output: processes that have the old file mapped keep
+    // reading it).
+    static void write(Path path, AdjacencyStore userFriendGraph, AdjacencyStore userArtistGraph,
+                      ArtistDictionary artistID, PopularityIndex popularity, NeighbourSets friendSets,
+                      NeighbourSets artistSets) throws IOException {
+        try (Output file = new Output(path)) {
+            file.out.putInt(MAGIC);
+            file.out.putInt(VERSION);
+            writeGraph(file.out, userFriendGraph);
+            writeGraph(file.out, userArtistGraph);
+            writeArtists(file.out, artistID);
+            writePopularity(file.out, popularity);
+            writeSets(file.out, friendSets);
+            writeSets(file.out, artistSets);
+            file.commit();
+        }
+    }
+
+    private static void writeGraph(Writer out, AdjacencyStore graph) throws IOException {
+        int vertexCount = graph.vertexCount();
+        out.putInt(vertexCount);
+        out.putInt(graph.edgeCount());
+        out.putInt(graph.isWeighted() ? 1 : 0);
+        for (int v = 0; v < vertexCount; v++) {
+            out.putInt(graph.start(v));
+        }
+        out.putInt(graph.edgeCount());
+        for (int e = 0; e < graph.edgeCount(); e++) {
+            out.putInt(graph.target(e));
+        }
+        if (graph.isWeighted()) {
+            for (int e = 0; e < graph.edgeCount(); e++) {
+                out.putInt(graph.weight(e));
+            }
+        }
+    }
+
+    static void writeArtists(Writer out, ArtistDictionary artistID) throws IOException {
+        out.putInt(artistID.idLimit());
+        out.putInt(artistID.size());
+        out.putInt(artistID.bytes().length);
+        for (int offset : artistID.offsets()) {
+            out.putInt(offset);
+        }
+        for (int id : artistID.byName()) {
+            out.putInt(id);
+        }
+        for (long word : artistID.present()) {
+            out.putInt((int) word);
+            out.putInt((int) (word >>> 32));
+        }
+        out.putBytes(artistID.bytes());
+    }
+
+    private static void writePopularity(Writer out, PopularityIndex popularity) throws IOException {
+        out.putInt(popularity.playTotals().length);
+        for (long total : popularity.playTotals()) {
+            out.putLong(total);
+        }
+        for (int count : popularity.listenerCounts()) {
+            out.putInt(count);
+        }
+        out.putInt(popularity.ranking().length);
+        for (int artist : popularity.ranking()) {
+            out.putInt(artist);
+        }
+    }
+
+    private static void writeSets(Writer out, NeighbourSets sets) throws IOException {
+        out.putLong(sets.maxBitsetBytes());
+        int[] hubs = sets.hubs();
+        out.putInt(hubs.length);
+        for (int hub : hubs) {
+            out.putInt(hub);
+        }
+        for (int i = 0; i < hubs.length; i++) {
+            for (long word : sets.hubBitset(i)) {
+                out.putLong(word);
+            }
+        }
+    }
+
+    // maps the snapshot at the given path. the graphs and the hub bitsets are read straight out of
+    // the mapping; only the artist dictionary and the popularity arrays are copied onto the heap.
+    static Contents open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Reader in = new Reader(channel);
+            if (in.readInt() != MAGIC) {
+                throw new IOException(path + " is not a recommender snapshot");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported snapshot version " + version + " in " + path);
+            }
+            AdjacencyStore userFriendGraph = readGraph(in);
+            AdjacencyStore userArtistGraph = readGraph(in);
+            ArtistDictionary artistID = readArtists(in);
+            PopularityIndex popularity = readPopularity(in);
+            NeighbourSets friendSets = readSets(in, userFriendGraph);
+            NeighbourSets artistSets = readSets(in, userArtistGraph);
+            return new Contents(userFriendGraph, userArtistGraph, artistID, popularity, friendSets, artistSets);
+        }
+    }
+
+    private static AdjacencyStore readGraph(Reader in) throws IOException {
+        int vertexCount = in.readInt();
+        int edgeCount = in.readInt();
+        boolean weighted = in.readInt() != 0;
+        IntBuffer offsets = in.mapInts(vertexCount + 1);
+        IntBuffer targets = in.mapInts(edgeCount);
+        IntBuffer weights = weighted ? in.mapInts(edgeCount) : null;
+        return new MappedCSRGraph(offsets, targets, weights);
+    }
+
+    private static PopularityIndex readPopularity(Reader in) throws IOException {
+        int artists = in.readInt();
+        long[] plays = new long[artists];
+        in.map((long) artists * Long.BYTES).asLongBuffer().get(plays);
+        int[] listeners = new int[artists];
+        in.mapInts(artists).get(listeners);
+        int[] ranking = new int[in.readInt()];
+        in.mapInts(ranking.length).get(ranking);
+        return new PopularityIndex(plays, listeners, ranking);
+    }
+
+    private static NeighbourSets readSets(Reader in, AdjacencyStore graph) throws IOException {
+        long maxBitsetBytes = (in.readInt() & 0xFFFFFFFFL) | ((long) in.readInt() << 32);
+        int[] hubs = new int[in.readInt()];
+        in.mapInts(hubs.length).get(hubs);
+        LongBuffer bits = in.map((long) hubs.length * NeighbourSets.words(graph) * Long.BYTES).asLongBuffer();
+        return new NeighbourSets(graph, maxBitsetBytes, hubs, bits);
+    }
+
+    static ArtistDictionary readArtists(Reader in) throws IOException {
+        int idLimit = in.readInt();
+        int size = in.readInt();
+        int byteCount = in.readInt();
+        int[] offsets = new int[ArtistDictionary.FIELDS * idLimit + 1];
+        in.mapInts(offsets.length).get(offsets);
+        int[] byName = new int[size];
+        in.mapInts(size).get(byName);
+        long[] present = new long[(idLimit + 63) >>> 6];
+        in.map((long) present.length * Long.BYTES).asLongBuffer().get(present);
+        byte[] bytes = new byte[byteCount];
+        in.map(byteCount).get(bytes);
+        return new ArtistDictionary(offsets, bytes, present, size, byName);
+    }
+
+    // little-endian buffered writer over a file channel.
+    static final class Writer {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        Writer(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void putInt(int value) throws IOException {
+            if (buffer.remaining() < Integer.BYTES) {
+                flush();
+            }
+            buffer.putInt(value);
+        }
+
+        // as (low, high) ints, which is a little-endian long.
+        void putLong(long value) throws IOException {
+            putInt((int) value);
+            putInt((int) (value >>> 32));
+        }
+
+        void putBytes(byte[] bytes) throws IOException {
+            int offset = 0;
+            while (offset < bytes.length) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int length = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, length);
+                offset += length;
+            }
+        }
+
+        // what remains of bytes, written straight to the channel after the buffered bytes.
+        void put(ByteBuffer bytes) throws IOException {
+            flush();
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    // a file written under a temporary name in the target's directory and moved over the target
+    // by commit() once it is complete and forced to disk. truncating a file in place would pull
+    // its pages from under every process that has it mapped (they die with SIGBUS); after the
+    // move they keep the old file until they unmap it. closing without a commit deletes the
+    // temporary file and leaves the target alone.
+    static final class Output implements AutoCloseable {
+        private final Path target;
+        private final Path temporary;
+        private final FileChannel channel;
+        final Writer out;
+        private boolean committed;
+
+        Output(Path target) throws IOException {
+            Path dir = target.toAbsolutePath().getParent();
+            this.target = target;
+            this.temporary = Files.createTempFile(dir, target.getFileName() + ".", ".tmp");
+            try {
+                this.channel = FileChannel.open(temporary, StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                Files.deleteIfExists(temporary);
+                throw e;
+            }
+            this.out = new Writer(channel);
+        }
+
+        void commit() throws IOException {
+            out.flush();
+            channel.force(true);
+            channel.close();
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            committed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                try {
+                    channel.close();
+                } finally {
+                    Files.deleteIfExists(temporary);
+                }
+            }
+        }
+    }
+
+    // walks a snapshot front to back, mapping each region separately so no single mapping has to
+    // cover the whole file (a MappedByteBuffer is limited to 2GB).
+    static final class Reader {
+        private final FileChannel channel;
+        private final ByteBuffer header = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        private long position;
+
+        Reader(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        int readInt() throws IOException {
+            header.clear();
+            while (header.hasRemaining()) {
+                if (channel.read(header, position + header.position()) < 0) {
+                    throw new IOException("snapshot is truncated");
+                }
+            }
+            position += Integer.BYTES;
+            return header.getInt(0);
+        }
+
+        IntBuffer mapInts(int count) throws IOException {
+            return map((long) count * Integer.BYTES).asIntBuffer();
+        }
+
+        ByteBuffer map(long size) throws IOException {
+            if (position + size > channel.size()) {
+                throw new IOException("snapshot is truncated");
+            }
+            ByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, size)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            position += size;
+            return region;
+        }
+    }
+}
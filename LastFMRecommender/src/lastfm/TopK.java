@@ -0,0 +1,113 @@
+// Title        :   LastFM Recommender
+// Description  :   Bounded selection of the k best (id, score) pairs using a
+//              :   primitive min-heap, O(n log k) for n offers. Higher
+//              :   scores rank first and equal scores are broken by the
+//              :   lower id, so results are deterministic.
+
+package lastfm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public final class TopK {
+    private final int k;
+    private final int[] ids;
+    private final double[] scores;
+    private int size;
+
+    public TopK(int k) {
+        if (k < 0) {
+            throw new IllegalArgumentException("k must be non-negative: " + k);
+        }
+        this.k = k;
+        this.ids = new int[k];
+        this.scores = new double[k];
+    }
+
+    // forgets every offer so the heap can be reused.
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // the score an offer has to reach to be kept: minus infinity until k pairs are held, then
+    // the worst one held (an equal score still wins with a lower id).
+    public double threshold() {
+        if (size < k) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return k == 0 ? Double.POSITIVE_INFINITY : scores[0];
+    }
+
+    public void offer(int id, double score) {
+        if (size < k) {
+            ids[size] = id;
+            scores[size] = score;
+            siftUp(size++);
+        } else if (k > 0 && worse(ids[0], scores[0], id, score)) {
+            ids[0] = id;
+            scores[0] = score;
+            siftDown(0);
+        }
+    }
+
+    // the retained pairs, best first. the heap is left empty.
+    public List<ScoredArtist> drain() {
+        ScoredArtist[] sorted = new ScoredArtist[size];
+        while (size > 0) {
+            sorted[size - 1] = new ScoredArtist(ids[0], scores[0]);
+            size--;
+            ids[0] = ids[size];
+            scores[0] = scores[size];
+            siftDown(0);
+        }
+        return new ArrayList<>(Arrays.asList(sorted));
+    }
+
+    // true when (id1, score1) ranks below (id2, score2).
+    private static boolean worse(int id1, double score1, int id2, double score2) {
+        return score1 < score2 || (score1 == score2 && id1 > id2);
+    }
+
+    // the root holds the worst retained pair.
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!worse(ids[i], scores[i], ids[parent], scores[parent])) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && worse(ids[child + 1], scores[child + 1], ids[child], scores[child])) {
+                child++;
+            }
+            if (!worse(ids[child], scores[child], ids[i], scores[i])) {
+                break;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int id = ids[a];
+        ids[a] = ids[b];
+        ids[b] = id;
+        double score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+    }
+}
@@ -0,0 +1,444 @@
+// Title        :   LastFM Recommender
+// Description  :   Streaming "trending now" charts over a feed of listen
+//              :   events (user, artist, count, timestamp). An artist's score
+//              :   is its plays decayed exponentially by age, the sum of
+//              :   count * 2^(-(now - timestamp) / halfLife), so a chart
+//              :   follows what is played now rather than all-time totals.
+//              :
+//              :   Decay is applied forward: an event is stored with weight
+//              :   count * e^(lambda (timestamp - landmark)), which never
+//              :   changes afterwards, and a score is read by multiplying by
+//              :   e^(-lambda (now - landmark)). Stored weights only grow, so
+//              :   nothing is touched as time passes; once they would grow
+//              :   past MAX_EXPONENT the landmark moves up and everything is
+//              :   rescaled once.
+//              :
+//              :   Global chart: per-artist weights go into a CountMinSketch,
+//              :   so memory is fixed however large the catalogue, and the
+//              :   candidates (heavy hitters) are the `capacity` artists with
+//              :   the highest estimates. The candidate set is an immutable
+//              :   snapshot with the lowest estimate it held when it was
+//              :   built; an event only takes the admission lock when its
+//              :   artist is not a candidate and its estimate passes that
+//              :   floor, which after warm-up is rare.
+//              :
+//              :   Friend chart: every user has a small Space-Saving summary
+//              :   of what the user's friends play (FRIEND_SLOTS artists),
+//              :   and an event updates the summaries of the listener's
+//              :   friends, each under its own lock, so ingest threads only
+//              :   meet on the same user. A listener with more than
+//              :   FAN_OUT_LIMIT friends (a hub) would make every event that
+//              :   many locked updates, so a hub's events go to a summary of
+//              :   its own plays instead, and a friend chart merges in the
+//              :   summaries of the user's hub friends when it is read.
+//              :
+//              :   Cost: an event is one sketch update plus at most
+//              :   FAN_OUT_LIMIT summary updates. The global chart is read
+//              :   from a structure of fixed size; a friend chart reads the
+//              :   user's summary and one per hub friend, FRIEND_SLOTS
+//              :   entries each. Neither depends on how many events and
+//              :   artists there are. Ingest is safe from any number of threads:
+//              :   counters take atomic adds, and the rescale excludes them
+//              :   through a striped lock that every event takes for reading
+//              :   on its own thread's stripe.
+
+package lastfm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.StampedLock;
+
+public final class TrendingChart {
+    static final int DEFAULT_DEPTH = 4;
+    static final int DEFAULT_WIDTH = 1 << 16;
+    static final int DEFAULT_CAPACITY = 256;
+    // artists kept per user for the friend chart.
+    static final int FRIEND_SLOTS = 16;
+    // friend summaries one event updates at most; a listener with more friends is a hub.
+    static final int FAN_OUT_LIMIT = 64;
+    // stored weights are rescaled before they pass e^MAX_EXPONENT, well inside a double.
+    static final double MAX_EXPONENT = 500;
+    // a power of two at least the number of processors.
+    private static final int STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1);
+
+    // decay rate per millisecond.
+    private final double lambda;
+    private final AdjacencyStore userFriendGraph;
+    private final CountMinSketch sketch;
+    private final int capacity;
+    private final Object admission = new Object();
+    private volatile Candidates candidates = Candidates.EMPTY;
+    // indexed by user, created on the first listen by one of the user's friends.
+    private final AtomicReferenceArray<FriendSummary> friendSummaries;
+    // indexed by hub, created on the hub's first listen: what the hub plays.
+    private final AtomicReferenceArray<FriendSummary> hubSummaries;
+    // the hubs that have user u as a friend are hubsOf[hubsOfStart[u] .. hubsOfStart[u + 1]).
+    private final int[] hubsOfStart;
+    private final int[] hubsOf;
+    private final AtomicLong summariesCreated = new AtomicLong();
+    private final StampedLock[] stripes = new StampedLock[STRIPES];
+    // changed only by a rescale, under every stripe's write lock.
+    private long landmark;
+    private final AtomicLong newest = new AtomicLong(Long.MIN_VALUE);
+
+    // charts over the given friends with the given half-life, in the default sketch size (2MB,
+    // estimates within 1/24000 of the total decayed plays).
+    public TrendingChart(Recommender recommender, long halfLifeMillis) {
+        this(recommender.userFriendGraph(), halfLifeMillis, DEFAULT_DEPTH, DEFAULT_WIDTH, DEFAULT_CAPACITY);
+    }
+
+    TrendingChart(AdjacencyStore userFriendGraph, long halfLifeMillis, int depth, int width, int capacity) {
+        if (halfLifeMillis <= 0 || capacity < 1) {
+            throw new IllegalArgumentException("halfLifeMillis and capacity must be positive: "
+                    + halfLifeMillis + ", " + capacity);
+        }
+        this.lambda = Math.log(2) / halfLifeMillis;
+        this.userFriendGraph = userFriendGraph;
+        this.sketch = new CountMinSketch(depth, width, 42);
+        this.capacity = capacity;
+        this.friendSummaries = new AtomicReferenceArray<>(userFriendGraph.vertexCount());
+        this.hubSummaries = new AtomicReferenceArray<>(userFriendGraph.vertexCount());
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new StampedLock();
+        }
+
+        // the friend lists of the hubs, turned around: one pass to count, one to fill.
+        int users = userFriendGraph.vertexCount();
+        hubsOfStart = new int[users + 1];
+        for (int hub = 0; hub < users; hub++) {
+            if (userFriendGraph.degree(hub) > FAN_OUT_LIMIT) {
+                for (int e = userFriendGraph.start(hub); e < userFriendGraph.end(hub); e++) {
+                    hubsOfStart[userFriendGraph.target(e) + 1]++;
+                }
+            }
+        }
+        for (int u = 0; u < users; u++) {
+            hubsOfStart[u + 1] += hubsOfStart[u];
+        }
+        hubsOf = new int[hubsOfStart[users]];
+        int[] next = Arrays.copyOf(hubsOfStart, users);
+        for (int hub = 0; hub < users; hub++) {
+            if (userFriendGraph.degree(hub) > FAN_OUT_LIMIT) {
+                for (int e = userFriendGraph.start(hub); e < userFriendGraph.end(hub); e++) {
+                    hubsOf[next[userFriendGraph.target(e)]++] = hub;
+                }
+            }
+        }
+    }
+
+    // records count plays of the artist by the user at the given time in milliseconds. events may
+    // arrive out of order.
+    public void record(int user, int artist, int count, long timestamp) {
+        if (artist < 0 || count < 0) {
+            throw new IllegalArgumentException("artist and count must be non-negative: " + artist + ", " + count);
+        }
+        if (timestamp > newest.get()) {
+            newest.accumulateAndGet(timestamp, Math::max);
+        }
+        StampedLock stripe = stripe();
+        long stamp = stripe.readLock();
+        try {
+            double exponent = lambda * (timestamp - landmark);
+            if (exponent <= MAX_EXPONENT) {
+                add(user, artist, count * Math.exp(exponent));
+                return;
+            }
+        } finally {
+            stripe.unlockRead(stamp);
+        }
+        rescale(timestamp);
+        record(user, artist, count, timestamp);
+    }
+
+    private void add(int user, int artist, double weight) {
+        double estimate = sketch.add(artist, weight);
+        Candidates current = candidates;
+        if (estimate > current.floor && !current.contains(artist)) {
+            admit(artist);
+        }
+        if (!userFriendGraph.hasVertex(user)) {
+            return;
+        }
+        if (userFriendGraph.degree(user) > FAN_OUT_LIMIT) {
+            summary(hubSummaries, user).add(artist, weight);
+            return;
+        }
+        for (int e = userFriendGraph.start(user); e < userFriendGraph.end(user); e++) {
+            summary(friendSummaries, userFriendGraph.target(e)).add(artist, weight);
+        }
+    }
+
+    // makes the artist a candidate if its estimate beats the weakest candidate's, and refreshes
+    // the floor either way, so the same artist is not reconsidered until it has caught up.
+    private void admit(int artist) {
+        synchronized (admission) {
+            Candidates current = candidates;
+            if (current.contains(artist)) {
+                return;
+            }
+            int[] members = current.artists;
+            if (members.length < capacity) {
+                members = Arrays.copyOf(members, members.length + 1);
+                members[members.length - 1] = artist;
+                candidates = new Candidates(members, members.length < capacity ? Double.NEGATIVE_INFINITY
+                        : lowest(members));
+                return;
+            }
+            int weakest = 0;
+            double weakestEstimate = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < members.length; i++) {
+                double estimate = sketch.estimate(members[i]);
+                if (estimate < weakestEstimate) {
+                    weakest = i;
+                    weakestEstimate = estimate;
+                }
+            }
+            if (sketch.estimate(artist) > weakestEstimate) {
+                members = members.clone();
+                members[weakest] = artist;
+            }
+            candidates = new Candidates(members, lowest(members));
+        }
+    }
+
+    private double lowest(int[] members) {
+        double lowest = Double.POSITIVE_INFINITY;
+        for (int member : members) {
+            lowest = Math.min(lowest, sketch.estimate(member));
+        }
+        return lowest;
+    }
+
+    private FriendSummary summary(AtomicReferenceArray<FriendSummary> summaries, int user) {
+        FriendSummary summary = summaries.get(user);
+        if (summary == null) {
+            if (summaries.compareAndSet(user, null, new FriendSummary())) {
+                summariesCreated.incrementAndGet();
+            }
+            summary = summaries.get(user);
+        }
+        return summary;
+    }
+
+    // moves the landmark up to the given time and scales every stored weight to match, with
+    // every stripe locked against ingest.
+    private void rescale(long timestamp) {
+        long[] stamps = new long[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stamps[i] = stripes[i].writeLock();
+        }
+        try {
+            if (lambda * (timestamp - landmark) <= MAX_EXPONENT) {
+                // another thread rescaled first.
+                return;
+            }
+            double factor = Math.exp(-lambda * (timestamp - landmark));
+            sketch.scale(factor);
+            for (int user = 0; user < friendSummaries.length(); user++) {
+                FriendSummary summary = friendSummaries.get(user);
+                if (summary != null) {
+                    summary.scale(factor);
+                }
+                FriendSummary hub = hubSummaries.get(user);
+                if (hub != null) {
+                    hub.scale(factor);
+                }
+            }
+            synchronized (admission) {
+                // minus infinity times a factor that underflowed to 0 would be NaN.
+                double floor = candidates.floor == Double.NEGATIVE_INFINITY ? candidates.floor
+                        : candidates.floor * factor;
+                candidates = new Candidates(candidates.artists, floor);
+            }
+            landmark = timestamp;
+        } finally {
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i].unlockWrite(stamps[i]);
+            }
+        }
+    }
+
+    private StampedLock stripe() {
+        return stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)];
+    }
+
+    // the k artists trending most at the newest recorded time, best first, scored by decayed
+    // plays. k is at most the candidate capacity.
+    public List<ScoredArtist> trending(int k) {
+        return trending(k, newest.get());
+    }
+
+    // as trending(k), with the scores decayed to the given time.
+    public List<ScoredArtist> trending(int k, long now) {
+        if (k < 0) {
+            throw new IllegalArgumentException("k must be non-negative: " + k);
+        }
+        StampedLock stripe = stripe();
+        long stamp = stripe.readLock();
+        try {
+            TopK top = new TopK(k);
+            for (int artist : candidates.artists) {
+                top.offer(artist, sketch.estimate(artist));
+            }
+            return decayed(top.drain(), now);
+        } finally {
+            stripe.unlockRead(stamp);
+        }
+    }
+
+    // the k artists trending most among the user's friends at the newest recorded time, best
+    // first. k is at most FRIEND_SLOTS, plus FRIEND_SLOTS per hub friend.
+    public List<ScoredArtist> trendingAmongFriends(int user, int k) {
+        return trendingAmongFriends(user, k, newest.get());
+    }
+
+    // as trendingAmongFriends(user, k), with the scores decayed to the given time.
+    public List<ScoredArtist> trendingAmongFriends(int user, int k, long now) {
+        if (k < 0) {
+            throw new IllegalArgumentException("k must be non-negative: " + k);
+        }
+        if (user < 0 || user >= friendSummaries.length()) {
+            return new ArrayList<>();
+        }
+        StampedLock stripe = stripe();
+        long stamp = stripe.readLock();
+        try {
+            FriendSummary pushed = friendSummaries.get(user);
+            if (hubsOfStart[user] == hubsOfStart[user + 1]) {
+                return pushed == null ? new ArrayList<>() : decayed(pushed.top(k), now);
+            }
+            // the plays pushed to the user, plus those of the hubs the user follows, summed by artist.
+            Map<Integer, Double> merged = new HashMap<>();
+            if (pushed != null) {
+                pushed.addTo(merged);
+            }
+            for (int i = hubsOfStart[user]; i < hubsOfStart[user + 1]; i++) {
+                FriendSummary hub = hubSummaries.get(hubsOf[i]);
+                if (hub != null) {
+                    hub.addTo(merged);
+                }
+            }
+            TopK top = new TopK(Math.min(k, merged.size()));
+            for (Map.Entry<Integer, Double> artist : merged.entrySet()) {
+                top.offer(artist.getKey(), artist.getValue());
+            }
+            return decayed(top.drain(), now);
+        } finally {
+            stripe.unlockRead(stamp);
+        }
+    }
+
+    // stored weights as scores at the given time; called under a stripe's read lock.
+    private List<ScoredArtist> decayed(List<ScoredArtist> stored, long now) {
+        double decay = Math.exp(-lambda * (now - landmark));
+        List<ScoredArtist> scored = new ArrayList<>(stored.size());
+        for (ScoredArtist artist : stored) {
+            scored.add(new ScoredArtist(artist.artist(), artist.score() * decay));
+        }
+        return scored;
+    }
+
+    // estimated bytes held on the heap: the sketch, the candidates, the hub lists, and the
+    // summaries created so far.
+    public long heapBytes() {
+        return sketch.heapBytes() + 16 + 4L * capacity * 3 + 2 * (16 + 4L * friendSummaries.length())
+                + 16 + 4L * hubsOfStart.length + 16 + 4L * hubsOf.length
+                + summariesCreated.get() * FriendSummary.BYTES;
+    }
+
+    // an immutable candidate set with an open-addressing table for membership, and the lowest
+    // estimate of a candidate when it was built (minus infinity until the set is full).
+    private static final class Candidates {
+        static final Candidates EMPTY = new Candidates(new int[0], Double.NEGATIVE_INFINITY);
+
+        final int[] artists;
+        final double floor;
+        // artist ids, -1 for empty slots; at most half full.
+        private final int[] table;
+
+        Candidates(int[] artists, double floor) {
+            this.artists = artists;
+            this.floor = floor;
+            this.table = new int[Integer.highestOneBit(Math.max(1, artists.length) * 4 - 1)];
+            Arrays.fill(table, -1);
+            for (int artist : artists) {
+                int slot = slot(artist);
+                while (table[slot] != -1) {
+                    slot = (slot + 1) & (table.length - 1);
+                }
+                table[slot] = artist;
+            }
+        }
+
+        private int slot(int artist) {
+            return (artist * 0x9E3779B9) >>> 1 & (table.length - 1);
+        }
+
+        boolean contains(int artist) {
+            for (int slot = slot(artist); table[slot] != -1; slot = (slot + 1) & (table.length - 1)) {
+                if (table[slot] == artist) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // the FRIEND_SLOTS artists with the most stored weight played by one user's friends, kept by
+    // Space-Saving: an artist that is not kept replaces the weakest one and inherits its weight,
+    // so kept weights may overestimate but every artist above 1 / FRIEND_SLOTS of the total is
+    // kept.
+    private static final class FriendSummary {
+        static final long BYTES = 16 + 16 + 4L * FRIEND_SLOTS + 16 + 8L * FRIEND_SLOTS;
+
+        private final int[] artists = new int[FRIEND_SLOTS];
+        private final double[] weights = new double[FRIEND_SLOTS];
+        private int size;
+
+        synchronized void add(int artist, double weight) {
+            int weakest = 0;
+            for (int i = 0; i < size; i++) {
+                if (artists[i] == artist) {
+                    weights[i] += weight;
+                    return;
+                }
+                if (weights[i] < weights[weakest]) {
+                    weakest = i;
+                }
+            }
+            if (size < FRIEND_SLOTS) {
+                artists[size] = artist;
+                weights[size++] = weight;
+            } else {
+                artists[weakest] = artist;
+                weights[weakest] += weight;
+            }
+        }
+
+        synchronized List<ScoredArtist> top(int k) {
+            TopK top = new TopK(Math.min(k, size));
+            for (int i = 0; i < size; i++) {
+                top.offer(artists[i], weights[i]);
+            }
+            return top.drain();
+        }
+
+        // adds every kept weight to the artist's total.
+        synchronized void addTo(Map<Integer, Double> totals) {
+            for (int i = 0; i < size; i++) {
+                totals.merge(artists[i], weights[i], Double::sum);
+            }
+        }
+
+        synchronized void scale(double factor) {
+            for (int i = 0; i < size; i++) {
+                weights[i] *= factor;
+            }
+        }
+    }
+}
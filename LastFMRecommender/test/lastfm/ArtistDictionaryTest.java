@@ -0,0 +1,87 @@
+// Title        :   LastFM Recommender
+// Description  :   Tests for the compact artist dictionary and its name index.
+
+package lastfm;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+public class ArtistDictionaryTest {
+
+    private static ArtistDictionary sample() {
+        ArtistDictionary.Builder first = new ArtistDictionary.Builder();
+        first.add(7, "Bj\u00f6rk", "http://www.last.fm/music/Bj%C3%B6rk", "");
+        first.add(3, "Blur", "ftp://example.org/blur", "http://userserve-ak.last.fm/serve/252/1.jpg");
+        ArtistDictionary.Builder second = new ArtistDictionary.Builder();
+        second.add(200, "BLONDIE", "", "http://userserve-ak.last.fm/serve/_/2.png");
+        second.add(5, "blur", "", "");
+        second.add(3, "Blur", "http://www.last.fm/music/Blur", "");
+        return ArtistDictionary.build(first, second);
+    }
+
+    @Test
+    public void storesFieldsByIdAndLastEntryWins() {
+        ArtistDictionary artists = sample();
+        assertEquals(4, artists.size());
+        assertEquals(201, artists.idLimit());
+        assertEquals("Bj\u00f6rk", artists.name(7));
+        assertEquals("http://www.last.fm/music/Bj%C3%B6rk", artists.url(7));
+        assertEquals("http://www.last.fm/music/Blur", artists.url(3));
+        assertEquals("http://userserve-ak.last.fm/serve/_/2.png", artists.pictureUrl(200));
+        assertEquals("", artists.pictureUrl(7));
+        assertNull(artists.name(4));
+        assertNull(artists.name(-1));
+        assertNull(artists.url(1000));
+    }
+
+    @Test
+    public void walksIdsInOrder() {
+        ArtistDictionary artists = sample();
+        int[] expected = {3, 5, 7, 200};
+        int i = 0;
+        for (int id = artists.nextId(0); id >= 0; id = artists.nextId(id + 1)) {
+            assertEquals(expected[i++], id);
+        }
+        assertEquals(expected.length, i);
+        assertEquals(-1, artists.nextId(201));
+    }
+
+    @Test
+    public void searchesNamesIgnoringCase() {
+        ArtistDictionary artists = sample();
+        assertArrayEquals(new int[]{200, 3, 5}, artists.searchPrefix("bl", 10));
+        assertArrayEquals(new int[]{200, 3}, artists.searchPrefix("BL", 2));
+        assertArrayEquals(new int[]{7}, artists.searchPrefix("BJ\u00d6", 10));
+        assertArrayEquals(new int[]{7, 200, 3, 5}, artists.searchPrefix("", 10));
+        assertArrayEquals(new int[0], artists.searchPrefix("blurry", 10));
+        assertArrayEquals(new int[]{3, 5}, artists.withName("BLUR"));
+        assertArrayEquals(new int[0], artists.withName("blu"));
+    }
+
+    @Test
+    public void matchesSampleArtists() {
+        Recommender recommender = new Recommender("user_friends.dat", "user_artists.dat", "artists.dat");
+        ArtistDictionary artists = recommender.artists();
+        for (int id : recommender.searchArtists("the beat", 50)) {
+            assertTrue(artists.name(id).toLowerCase().startsWith("the beat"), artists.name(id));
+        }
+        assertTrue(recommender.searchArtists("the beat", 50).length > 1);
+        int[] amduscia = artists.withName("amduscia");
+        assertArrayEquals(new int[]{31}, amduscia);
+        assertTrue(artists.heapBytes() < 17632L * 100);
+    }
+
+    @Test
+    public void wrapsPlainMaps() {
+        Map<Integer, String> names = new HashMap<>();
+        names.put(2, "Two");
+        ArtistDictionary artists = ArtistDictionary.of(names);
+        assertEquals("Two", artists.name(2));
+        assertEquals("", artists.url(2));
+        assertEquals(3, artists.idLimit());
+    }
+}
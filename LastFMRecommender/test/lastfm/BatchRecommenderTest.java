@@ -0,0 +1,127 @@
+// Title        :   LastFM Recommender
+// Description  :   Tests that the batch job writes the same recommendations
+//              :   as one recommend call per user.
+
+package lastfm;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+
+public class BatchRecommenderTest {
+
+    @Test
+    public void batchMatchesSingleRecommendations() throws IOException {
+        Recommender recommender = new Recommender("user_friends.dat", "user_artists.dat", "artists.dat");
+        Path output = Files.createTempFile("batch", ".bin");
+        try {
+            List<Long> progress = new ArrayList<>();
+            long records = new BatchRecommender(recommender, 5, 3)
+                    .run(1, 2100, output, (done, total) -> progress.add(done));
+            assertEquals(2100L, (long) progress.get(progress.size() - 1));
+
+            Map<Integer, List<ScoredArtist>> written = read(output, 5);
+            assertEquals(records, written.size());
+            for (int user = 1; user <= 2100; user++) {
+                List<ScoredArtist> expected = recommender.recommend(user, 5);
+                if (expected.isEmpty()) {
+                    assertFalse(written.containsKey(user));
+                } else {
+                    assertEquals(expected, written.get(user));
+                }
+            }
+        } finally {
+            Files.deleteIfExists(output);
+        }
+    }
+
+    @Test
+    public void aFailedWriteStopsTheWorkers() throws IOException, InterruptedException {
+        Recommender recommender = new Recommender("user_friends.dat", "user_artists.dat", "artists.dat");
+        Path output = Files.createTempFile("batch", ".bin");
+        try {
+            // the writer gives up after its first block, with the workers blocked on a full queue.
+            assertThrows(IllegalStateException.class, () -> new BatchRecommender(recommender, 5, 1)
+                    .run(1, 2100, output, (done, total) -> {
+                        throw new IllegalStateException("disk full");
+                    }));
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getName().equals("batch-recommender-scheduler")) {
+                    thread.join(5000);
+                    assertFalse(thread.isAlive());
+                }
+            }
+        } finally {
+            Files.deleteIfExists(output);
+        }
+    }
+
+    @Test
+    public void anInterruptedWorkerFailsTheRunAndKeepsTheOldOutput() throws IOException {
+        Recommender recommender = new Recommender("user_friends.dat", "user_artists.dat", "artists.dat");
+        Path output = Files.createTempFile("batch", ".bin");
+        try {
+            Files.write(output, new byte[]{1, 2, 3});
+            // while the writer reports its first block, the worker waits on a full queue; interrupting
+            // it loses a block, which must fail the run rather than write an output without it.
+            IOException e = assertThrows(IOException.class, () -> new BatchRecommender(recommender, 5, 1)
+                    .run(1, 2100, output, (done, total) -> {
+                        if (done < 300) {
+                            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                                if (thread.getName().matches("ForkJoinPool-\\d+-worker-\\d+")) {
+                                    thread.interrupt();
+                                }
+                            }
+                        }
+                    }));
+            assertTrue(e.getCause() instanceof UncheckedIOException, String.valueOf(e.getCause()));
+            assertTrue(e.getCause().getCause() instanceof InterruptedIOException, String.valueOf(e.getCause()));
+            assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(output));
+            try (Stream<Path> files = Files.list(output.toAbsolutePath().getParent())) {
+                String prefix = output.getFileName() + ".";
+                assertTrue(files.noneMatch(f -> f.getFileName().toString().startsWith(prefix)));
+            }
+        } finally {
+            Files.deleteIfExists(output);
+        }
+    }
+
+    @Test
+    public void rejectsAKTooLargeForABlock() {
+        Recommender recommender = new Recommender("user_friends.dat", "user_artists.dat", "artists.dat");
+        assertThrows(IllegalArgumentException.class, () -> new BatchRecommender(recommender, 700_000, 1));
+        new BatchRecommender(recommender, BatchRecommender.MAX_K, 1);
+    }
+
+    private static Map<Integer, List<ScoredArtist>> read(Path file, int k) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(BatchRecommender.MAGIC, in.getInt());
+        assertEquals(BatchRecommender.VERSION, in.getInt());
+        assertEquals(k, in.getInt());
+
+        Map<Integer, List<ScoredArtist>> records = new HashMap<>();
+        while (in.hasRemaining()) {
+            int user = in.getInt();
+            int count = in.getInt();
+            List<ScoredArtist> artists = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                artists.add(new ScoredArtist(in.getInt(), in.getDouble()));
+            }
+            assertNull(records.put(user, artists));
+        }
+        return records;
+    }
+}
@@ -0,0 +1,64 @@
+// Title        :   LastFM Recommender
+// Description  :   Tests for the compressed-sparse-row graph.
+
+package lastfm;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class CSRGraphTest {
+
+    @Test
+    public void rowsAreSortedWithWeightsCarried() {
+        int[] from = {2, 1, 2, 2, 1};
+        int[] to = {9, 4, 3, 7, 2};
+        int[] weight = {90, 40, 30, 70, 20};
+        CSRGraph graph = CSRGraph.fromEdges(from, to, weight, from.length);
+
+        assertEquals(10, graph.vertexCount());
+        assertEquals(5, graph.edgeCount());
+        assertArrayEquals(new int[]{2, 4}, graph.neighbours(1));
+        assertArrayEquals(new int[]{3, 7, 9}, graph.neighbours(2));
+
+        int[] weights = new int[graph.degree(2)];
+        for (int e = graph.start(2); e < graph.end(2); e++) {
+            weights[e - graph.start(2)] = graph.weight(e);
+        }
+        assertArrayEquals(new int[]{30, 70, 90}, weights);
+    }
+
+    @Test
+    public void unknownVerticesHaveNoEdges() {
+        CSRGraph graph = CSRGraph.fromEdges(new int[]{1}, new int[]{2}, null, 1);
+
+        assertEquals(0, graph.degree(0));
+        assertEquals(0, graph.degree(500));
+        assertEquals(0, graph.degree(-1));
+        assertArrayEquals(new int[0], graph.neighbours(500));
+    }
+
+    @Test
+    public void withEdgesMergesOnlyTheTouchedRows() {
+        // base rows 0..5, a delta touching rows 1 and 4 and a new row 7 past the base.
+        CSRGraph base = CSRGraph.fromEdges(new int[]{0, 1, 1, 2, 3, 4, 5}, new int[]{1, 2, 5, 0, 3, 4, 6},
+                new int[]{1, 2, 3, 4, 5, 6, 7}, 7);
+        CSRGraph delta = CSRGraph.fromEdges(new int[]{1, 1, 4, 7}, new int[]{2, 3, 0, 1}, new int[]{10, 20, 30, 40}, 4);
+        CSRGraph expected = CSRGraph.fromEdges(new int[]{0, 1, 1, 1, 2, 3, 4, 4, 5, 7},
+                new int[]{1, 2, 3, 5, 0, 3, 0, 4, 6, 1}, new int[]{1, 12, 20, 3, 4, 5, 30, 6, 7, 40}, 10);
+
+        // a CSRGraph base is copied in bulk, any other store row by row.
+        for (AdjacencyStore store : new AdjacencyStore[]{base, CompressedCSRGraph.of(base)}) {
+            CSRGraph merged = CSRGraph.withEdges(store, delta);
+            assertEquals(expected.vertexCount(), merged.vertexCount());
+            assertEquals(expected.edgeCount(), merged.edgeCount());
+            for (int v = 0; v < expected.vertexCount(); v++) {
+                assertArrayEquals(expected.neighbours(v), merged.neighbours(v), "row " + v);
+                for (int e = 0; e < expected.degree(v); e++) {
+                    assertEquals(expected.weight(expected.start(v) + e), merged.weight(merged.start(v) + e));
+                }
+            }
+        }
+        assertArrayEquals(new int[]{1, 4, 7}, delta.verticesWithEdges());
+    }
+}
@@ -0,0 +1,111 @@
+// Title        :   LastFM Recommender
+// Description  :   Tests for the bounded result cache and its invalidation.
+
+package lastfm;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class CachingRecommenderTest {
+
+    @Test
+    public void repeatedQueriesHitTheCache() {
+        CachingRecommender cache = new CachingRecommender(new LiveRecommender(small()), 100, 1 << 20);
+        List<ScoredArtist> first = cache.recommend(1, 5);
+        assertSame(first, cache.recommend(1, 5));
+        assertArrayEquals(new int[]{10}, cache.sharedArtists(1, 2));
+        cache.sharedArtists(1, 2);
+
+        assertEquals(2, cache.hitCount());
+        assertEquals(2, cache.missCount());
+        assertEquals(0.5, cache.hitRate(), 1e-9);
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedWhenFull() {
+        CachingRecommender cache = new CachingRecommender(new LiveRecommender(small()), 2, 1 << 20);
+        cache.recommend(1, 5);
+        cache.recommend(2, 5);
+        cache.recommend(1, 5);
+        cache.recommend(3, 5);
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.evictionCount());
+        long misses = cache.missCount();
+        cache.recommend(1, 5);
+        assertEquals(misses, cache.missCount());
+        cache.recommend(2, 5);
+        assertEquals(misses + 1, cache.missCount());
+    }
+
+    @Test
+    public void byteBoundEvictsToo() {
+        CachingRecommender cache = new CachingRecommender(new LiveRecommender(small()), 100, 300);
+        cache.recommend(1, 5);
+        cache.recommend(2, 5);
+        cache.recommend(3, 5);
+        assertTrue(cache.estimatedBytes() <= 300);
+        assertTrue(cache.evictionCount() > 0);
+    }
+
+    @Test
+    public void listenChangesDropTheUserAndTheirFollowers() {
+        LiveRecommender live = new LiveRecommender(small());
+        CachingRecommender cache = new CachingRecommender(live, 100, 1 << 20);
+        cache.recommend(1, 5);
+        cache.recommend(2, 5);
+        cache.recommend(3, 5);
+        cache.sharedArtists(2, 3);
+
+        // user 1 lists 2 as a friend, user 3 does not.
+        live.addListens(new int[]{2}, new int[]{30}, new int[]{99}, 1);
+        assertEquals(1, cache.size());
+        assertEquals(3, cache.invalidationCount());
+
+        List<ScoredArtist> recommended = cache.recommend(1, 5);
+        assertEquals(new ScoredArtist(30, 99), recommended.get(0));
+    }
+
+    @Test
+    public void newFriendshipsReachTheFollowers() {
+        LiveRecommender live = new LiveRecommender(small());
+        CachingRecommender cache = new CachingRecommender(live, 100, 1 << 20);
+        cache.recommend(3, 5);
+        cache.recommend(1, 5);
+        // builds the reverse friend graph.
+        live.addListens(new int[]{2}, new int[]{10}, new int[]{1}, 1);
+        cache.recommend(3, 5);
+
+        // 3 now lists 2 as a friend, so 2's listens reach 3's recommendations too.
+        live.addFriendships(new int[]{3}, new int[]{2}, 1);
+        cache.recommend(1, 5);
+        cache.recommend(3, 5);
+        cache.sharedArtists(1, 3);
+        long invalidations = cache.invalidationCount();
+        live.addListens(new int[]{2}, new int[]{30}, new int[]{99}, 1);
+        assertEquals(invalidations + 2, cache.invalidationCount());
+        assertEquals(new ScoredArtist(30, 99), cache.recommend(3, 5).get(0));
+        assertEquals(new ScoredArtist(30, 99), cache.recommend(1, 5).get(0));
+        // the shared artists of 1 and 3 were about neither changed user, and are still cached.
+        long misses = cache.missCount();
+        cache.sharedArtists(1, 3);
+        assertEquals(misses, cache.missCount());
+    }
+
+    // 1 -> 2 are friends; 1 plays 10, 2 plays 10 and 20, 3 plays 20.
+    private static Recommender small() {
+        CSRGraph friends = CSRGraph.fromEdges(new int[]{1}, new int[]{2}, null, 1);
+        CSRGraph listens = CSRGraph.fromEdges(new int[]{1, 2, 2, 3}, new int[]{10, 10, 20, 20},
+                new int[]{5, 6, 7, 8}, 4);
+        Map<Integer, String> artists = new HashMap<>();
+        artists.put(10, "Ten");
+        artists.put(20, "Twenty");
+        return new Recommender(friends, listens, artists);
+    }
+}
@@ -0,0 +1,94 @@
+// Title        :   LastFM Recommender
+// Description  :   Tests for the varint-compressed graph.
+
+package lastfm;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.SplittableRandom;
+
+
+public class CompressedCSRGraphTest {
+
+    // rows of varied length, so blocks start inside rows and span row boundaries.
+    private static CSRGraph randomGraph(boolean weighted) {
+        SplittableRandom random = new SplittableRandom(3);
+        int edges = 5000;
+        int[] from = new int[edges];
+        int[] to = new int[edges];
+        int[] weight = new int[edges];
+        for (int e = 0; e < edges; e++) {
+            from[e] = random.nextInt(200);
+            to[e] = random.nextInt(from[e] % 7 == 0 ? 100_000 : 2_000);
+            weight[e] = random.nextInt(5) == 0 ? random.nextInt(1_000_000) : random.nextInt(10);
+        }
+        return CSRGraph.fromEdges(from, to, weighted ? weight : null, edges);
+    }
+
+    @Test
+    public void matchesTheUncompressedGraph() {
+        CSRGraph graph = randomGraph(true);
+        CompressedCSRGraph compressed = CompressedCSRGraph.of(graph);
+
+        assertEquals(graph.vertexCount(), compressed.vertexCount());
+        assertEquals(graph.edgeCount(), compressed.edgeCount());
+        assertTrue(compressed.isWeighted());
+        assertTrue(compressed.heapBytes() < graph.heapBytes());
+        for (int v = -1; v <= graph.vertexCount(); v++) {
+            assertEquals(graph.start(v), compressed.start(v));
+            assertEquals(graph.end(v), compressed.end(v));
+            assertArrayEquals(graph.neighbours(v), compressed.neighbours(v));
+            for (int e = graph.start(v); e < graph.end(v); e++) {
+                assertEquals(graph.target(e), compressed.target(e));
+                assertEquals(graph.weight(e), compressed.weight(e));
+                // rows may repeat a target, so either copy is a correct answer.
+                assertEquals(graph.target(e), compressed.target(compressed.find(v, graph.target(e))));
+                assertEquals(graph.find(v, graph.target(e) + 1) < 0, compressed.find(v, graph.target(e) + 1) < 0);
+            }
+            assertEquals(-1, compressed.find(v, -5));
+        }
+    }
+
+    @Test
+    public void readsEdgesInAnyOrder() {
+        CSRGraph graph = randomGraph(true);
+        CompressedCSRGraph compressed = CompressedCSRGraph.of(graph);
+        SplittableRandom random = new SplittableRandom(11);
+        for (int i = 0; i < 10_000; i++) {
+            int e = random.nextInt(graph.edgeCount());
+            assertEquals(graph.target(e), compressed.target(e));
+            assertEquals(graph.weight(e), compressed.weight(e));
+        }
+    }
+
+    @Test
+    public void keepsUnweightedGraphsUnweighted() {
+        CSRGraph graph = randomGraph(false);
+        CompressedCSRGraph compressed = CompressedCSRGraph.of(graph);
+        assertFalse(compressed.isWeighted());
+        assertThrows(UnsupportedOperationException.class, () -> compressed.weight(0));
+        assertArrayEquals(graph.neighbours(7), compressed.neighbours(7));
+
+        CompressedCSRGraph empty = CompressedCSRGraph.of(CSRGraph.fromEdges(new int[0], new int[0], null, 0));
+        assertEquals(0, empty.edgeCount());
+        assertEquals(-1, empty.find(0, 0));
+    }
+
+    @Test
+    public void recommenderAnswersAlikeWhenCompressed() {
+        CSRGraph friends = CSRGraph.fromEdges(new int[]{1, 2, 1, 3}, new int[]{2, 1, 3, 1}, null, 4);
+        CSRGraph listens = randomGraph(true);
+        Recommender plain = new Recommender(friends, listens, new HashMap<>());
+        Recommender compressed = plain.withCompressedListens();
+        for (int user = 0; user < 200; user++) {
+            assertEquals(plain.recommend(user, 10).toString(), compressed.recommend(user, 10).toString());
+            int other = (user * 7) % 200;
+            assertArrayEquals(plain.sharedArtists(user, other), compressed.sharedArtists(user, other));
+        }
+        assertEquals(plain.topArtists(5).toString(), compressed.topArtists(5).toString());
+        assertArrayEquals(plain.sharedArtistCounts(1, new int[]{2, 3, 14}),
+                compressed.sharedArtistCounts(1, new int[]{2, 3, 14}));
+    }
+}
@@ -0,0 +1,84 @@
+// Title        :   LastFM Recommender
+// Description  :   Tests for the synthetic dataset generator.
+
+package lastfm;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+
+public class DatGeneratorTest {
+
+    @Test
+    public void sameSeedWritesSameFiles() throws IOException {
+        Path first = generate(7);
+        Path second = generate(7);
+        Path other = generate(8);
+        try {
+            for (String file : new String[]{DatGenerator.ARTISTS, DatGenerator.USER_ARTISTS, DatGenerator.USER_FRIENDS}) {
+                assertArrayEquals(Files.readAllBytes(first.resolve(file)), Files.readAllBytes(second.resolve(file)));
+            }
+            assertFalse(Files.readAllLines(first.resolve(DatGenerator.USER_ARTISTS))
+                    .equals(Files.readAllLines(other.resolve(DatGenerator.USER_ARTISTS))));
+        } finally {
+            delete(first);
+            delete(second);
+            delete(other);
+        }
+    }
+
+    @Test
+    public void writesLoadableSymmetricFriendships() throws IOException {
+        Path dir = generate(1);
+        try {
+            List<String> header = Files.readAllLines(dir.resolve(DatGenerator.USER_ARTISTS)).subList(0, 1);
+            assertEquals("userID\tartistID\tweight", header.get(0));
+
+            Recommender recommender = new Recommender(dir.resolve(DatGenerator.USER_FRIENDS).toString(),
+                    dir.resolve(DatGenerator.USER_ARTISTS).toString(), dir.resolve(DatGenerator.ARTISTS).toString());
+            assertEquals(500, recommender.artists().size());
+            assertEquals("Artist 17", recommender.artistName(17));
+
+            int friendships = 0;
+            for (int user = 1; user <= 2000; user++) {
+                assertTrue(recommender.userArtistGraph().degree(user) > 0);
+                for (int friend : recommender.friends(user)) {
+                    assertNotEquals(user, friend);
+                    assertTrue(recommender.userFriendGraph().find(friend, user) >= 0);
+                    friendships++;
+                }
+            }
+            // 13 friends per user on average, within sampling noise.
+            assertTrue(friendships > 2000 * 8 && friendships < 2000 * 18, "friendships: " + friendships);
+            // the most popular artist is far ahead of the median one.
+            double top = recommender.topArtists(1).get(0).score();
+            double median = recommender.topArtists(250).get(249).score();
+            assertTrue(top > 10 * median, top + " vs " + median);
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void rejectsNonPowerLawFriendExponent() {
+        assertThrows(IllegalArgumentException.class, () -> new DatGenerator(10, 10, 1, 5, 2, 3, 100, 1, 0));
+    }
+
+    private static Path generate(long seed) throws IOException {
+        Path dir = Files.createTempDirectory("generator");
+        DatGenerator.lastFmShaped(2000, 500, seed).write(dir);
+        return dir;
+    }
+
+    private static void delete(Path dir) throws IOException {
+        for (String file : new String[]{DatGenerator.ARTISTS, DatGenerator.USER_ARTISTS, DatGenerator.USER_FRIENDS}) {
+            Files.deleteIfExists(dir.resolve(file));
+        }
+        Files.deleteIfExists(dir);
+    }
+}
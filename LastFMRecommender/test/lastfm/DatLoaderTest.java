@@ -0,0 +1,84 @@
+// Title        :   LastFM Recommender
+// Description  :   Tests for the parallel .dat reader.
+
+package lastfm;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+
+public class DatLoaderTest {
+
+    @Test
+    public void readsWeightedGraphWithCarriageReturnsAndNoTrailingNewline() throws IOException {
+        Path file = write("userID\tartistID\tweight\r\n2\t51\t13883\r\n2\t52\t11690\r\n\r\n3\t51\t7");
+        try {
+            CSRGraph graph = DatLoader.loadGraph(file, true);
+            assertEquals(3, graph.edgeCount());
+            assertArrayEquals(new int[]{51, 52}, graph.neighbours(2));
+            assertEquals(11690, graph.weight(graph.start(2) + 1));
+            assertEquals(7, graph.weight(graph.start(3)));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void rejectsMalformedLines() throws IOException {
+        Path file = write("userID\tfriendID\n2\t275\n2 428\n");
+        try {
+            assertThrows(IllegalArgumentException.class, () -> DatLoader.loadGraph(file, false));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void rejectsValuesPastIntRange() throws IOException {
+        Path fits = write("userID\tartistID\tweight\n2\t51\t2147483647\n");
+        Path listens = write("userID\tartistID\tweight\n2\t51\t2147483648\n");
+        Path ids = write("userID\tfriendID\n99999999999\t275\n");
+        Path artists = write("id\tname\turl\tpictureURL\n4294967297\tName\t\t\n");
+        try {
+            assertEquals(Integer.MAX_VALUE, DatLoader.loadGraph(fits, true).weight(0));
+            assertThrows(IllegalArgumentException.class, () -> DatLoader.loadGraph(listens, true));
+            assertThrows(IllegalArgumentException.class, () -> DatLoader.loadGraph(ids, false));
+            assertThrows(IllegalArgumentException.class, () -> DatLoader.loadArtists(artists));
+        } finally {
+            for (Path file : new Path[]{fits, listens, ids, artists}) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Test
+    public void readsArtistNamesAndUrls() throws IOException {
+        ArtistDictionary artists = DatLoader.loadArtists(Paths.get("artists.dat"));
+        assertEquals(17632, artists.size());
+        assertEquals("MALICE MIZER", artists.name(1));
+        assertEquals("Amduscia", artists.name(31));
+        assertEquals("Grzegorz Tomczak", artists.name(18745));
+        assertEquals("http://www.last.fm/music/MALICE+MIZER", artists.url(1));
+        assertEquals("http://userserve-ak.last.fm/serve/252/10808.jpg", artists.pictureUrl(1));
+        assertNull(artists.name(0));
+    }
+
+    @Test
+    public void matchesSampleFriendFile() throws IOException {
+        CSRGraph graph = DatLoader.loadGraph(Paths.get("user_friends.dat"), false);
+        assertEquals(25434, graph.edgeCount());
+        assertArrayEquals(new int[]{99, 124, 211, 264, 493, 520, 534, 850, 1103, 2080}, graph.neighbours(4));
+    }
+
+    private static Path write(String contents) throws IOException {
+        Path file = Files.createTempFile("loader", ".dat");
+        Files.write(file, contents.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
@@ -0,0 +1,62 @@
+// Title        :   LastFM Recommender
+// Description  :   Tests for the item-item collaborative filtering engine.
+
+package lastfm;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+
+public class ItemItemRecommenderTest {
+
+    @Test
+    public void identicalListenersAreMostSimilar() {
+        // artists 10 and 11 have the same listeners with the same plays, 12 shares one listener.
+        int[] from = {1, 1, 2, 2, 3};
+        int[] to = {10, 11, 10, 11, 12};
+        int[] plays = {5, 5, 9, 9, 4};
+        CSRGraph listens = CSRGraph.fromEdges(from, to, plays, from.length);
+        ItemItemRecommender engine = new ItemItemRecommender(listens, 5);
+
+        List<ScoredArtist> similar = engine.similarArtists(10, 5);
+        assertEquals(1, similar.size());
+        assertEquals(11, similar.get(0).artist());
+        assertEquals(1.0, similar.get(0).score(), 1e-6);
+        assertTrue(engine.similarArtists(12, 5).isEmpty());
+    }
+
+    @Test
+    public void recommendsUnplayedArtistsFromOwnHistory() {
+        // user 4 has no friends and only plays artist 10; 11 co-occurs with 10, 12 does not.
+        int[] from = {1, 1, 2, 2, 3, 3, 4};
+        int[] to = {10, 11, 10, 11, 12, 13, 10};
+        int[] plays = {5, 8, 9, 2, 4, 4, 50};
+        CSRGraph listens = CSRGraph.fromEdges(from, to, plays, from.length);
+        ItemItemRecommender engine = new ItemItemRecommender(listens, 5);
+
+        List<ScoredArtist> recommended = engine.recommend(4, 10);
+        assertEquals(1, recommended.size());
+        assertEquals(11, recommended.get(0).artist());
+        assertTrue(engine.recommend(999, 10).isEmpty());
+    }
+
+    @Test
+    public void sampleDataNeverRecommendsPlayedArtists() {
+        Recommender recommender = new Recommender("user_friends.dat", "user_artists.dat", "artists.dat");
+        ItemItemRecommender engine = new ItemItemRecommender(recommender, 20);
+        for (int user : new int[]{2, 31, 1283}) {
+            List<ScoredArtist> recommended = engine.recommend(user, 10);
+            assertEquals(10, recommended.size());
+            for (ScoredArtist artist : recommended) {
+                for (int played : recommender.userArtistGraph().neighbours(user)) {
+                    assertNotEquals(played, artist.artist());
+                }
+            }
+        }
+        List<ScoredArtist> similar = engine.similarArtists(289, 5);
+        assertEquals(5, similar.size());
+        assertTrue(similar.get(0).score() <= 1.0 + 1e-6);
+    }
+}
@@ -0,0 +1,220 @@
+// Title        :   LastFM Recommender
+// Description  :   Tests for incremental updates of a live Recommender.
+
+package lastfm;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+
+public class LiveRecommenderTest {
+
+    @Test
+    public void updatesPublishNewVersionsAndKeepOldOnesIntact() {
+        Recommender initial = small();
+        LiveRecommender live = new LiveRecommender(initial);
+
+        live.addListens(new int[]{1, 3, 3}, new int[]{20, 21, 21}, new int[]{50, 7, 8}, 3);
+        Recommender updated = live.current();
+        assertEquals(1, live.epoch());
+
+        assertEquals(60, updated.artistPlays(20));
+        assertEquals(2, updated.artistListeners(20));
+        assertEquals(15, updated.artistPlays(21));
+        assertEquals(1, updated.artistListeners(21));
+        assertEquals(new ScoredArtist(20, 60), updated.topArtists(1).get(0));
+        assertArrayEquals(new int[]{10, 20}, updated.sharedArtists(1, 2));
+
+        // the old version still answers from the old data.
+        assertEquals(10, initial.artistPlays(20));
+        assertEquals(new ScoredArtist(10, 30), initial.topArtists(1).get(0));
+
+        live.addFriendships(new int[]{2, 1}, new int[]{3, 2}, 2);
+        assertArrayEquals(new int[]{2}, live.current().friends(1));
+        assertArrayEquals(new int[]{1, 3}, live.current().friends(2));
+        assertEquals(60, live.current().artistPlays(20));
+    }
+
+    @Test
+    public void incrementalPopularityMatchesRebuild() {
+        LiveRecommender live = new LiveRecommender(small());
+        live.addListens(new int[]{2, 2, 4, 1}, new int[]{10, 11, 11, 12}, new int[]{100, 1, 1, 5}, 4);
+        Recommender updated = live.current();
+        PopularityIndex rebuilt = PopularityIndex.build(updated.userArtistGraph());
+        assertEquals(rebuilt.top(10), updated.topArtists(10));
+        for (int artist = 0; artist < 30; artist++) {
+            assertEquals(rebuilt.listeners(artist), updated.artistListeners(artist));
+        }
+    }
+
+    @Test
+    public void rankingOrdersByPlaysThenIdPastIntTotals() {
+        long big = 3L << 32;
+        long[] plays = {5, big, 5, big + 1, 0, 7};
+        int[] listeners = {1, 9, 2, 9, 0, 1};
+        assertArrayEquals(new int[]{3, 1, 5, 0, 2}, PopularityIndex.rank(plays, listeners));
+        assertArrayEquals(new int[]{5, 0, 2, 1, 3}, PopularityIndex.rank(new long[]{5, 0, 5, 0, 0, 7}, listeners));
+
+        PopularityIndex index = new PopularityIndex(plays, listeners, PopularityIndex.rank(plays, listeners));
+        PopularityIndex updated = index.update(new int[]{0, 4, 6}, new long[]{big, 7, 1}, new int[]{1, 1, 1}, 3);
+        long[] expected = {5 + big, big, 5, big + 1, 7, 7, 1};
+        assertArrayEquals(PopularityIndex.rank(expected, new int[]{2, 9, 2, 9, 1, 1, 1}), updated.ranking());
+        assertArrayEquals(new int[]{0, 3, 1, 4, 5, 2, 6}, updated.ranking());
+    }
+
+    @Test
+    public void saturatedPlaysAreNotCountedInThePopularity() {
+        LiveRecommender live = new LiveRecommender(small());
+        live.addListens(new int[]{1}, new int[]{10}, new int[]{Integer.MAX_VALUE - 100}, 1);
+        live.addListens(new int[]{1, 1, 2}, new int[]{10, 10, 10}, new int[]{80, 80, 5}, 3);
+        Recommender updated = live.current();
+        int edge = updated.userArtistGraph().find(1, 10);
+        assertEquals(Integer.MAX_VALUE, updated.userArtistGraph().weight(edge));
+        PopularityIndex rebuilt = PopularityIndex.build(updated.userArtistGraph());
+        assertEquals(rebuilt.plays(10), updated.artistPlays(10));
+        assertEquals(rebuilt.top(10), updated.topArtists(10));
+    }
+
+    @Test
+    public void tailingAppliesAppendedRows() throws Exception {
+        Path friends = Files.createTempFile("friends", ".dat");
+        Path listens = Files.createTempFile("listens", ".dat");
+        try {
+            Files.write(friends, "userID\tfriendID\n1\t2\n".getBytes(StandardCharsets.UTF_8));
+            Files.write(listens, "userID\tartistID\tweight\n1\t10\t30\n".getBytes(StandardCharsets.UTF_8));
+            Recommender initial = new Recommender(friends.toString(), listens.toString(), "artists.dat");
+
+            try (LiveRecommender live = new LiveRecommender(initial)) {
+                live.tail(friends, listens, 10);
+                Files.write(listens, "2\t10\t5\n2\t11".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+                Files.write(friends, "2\t1\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+                long deadline = System.currentTimeMillis() + 5000;
+                while (live.current().artistPlays(10) != 35 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                assertEquals(35, live.current().artistPlays(10));
+                assertArrayEquals(new int[]{1}, live.current().friends(2));
+                // the unfinished last line is not applied yet.
+                assertEquals(0, live.current().artistPlays(11));
+            }
+        } finally {
+            Files.deleteIfExists(friends);
+            Files.deleteIfExists(listens);
+        }
+    }
+
+    @Test
+    public void malformedLinesAreSkippedWithoutStallingEitherFile() throws Exception {
+        Path friends = Files.createTempFile("friends", ".dat");
+        Path listens = Files.createTempFile("listens", ".dat");
+        try {
+            Files.write(friends, "userID\tfriendID\n1\t2\n".getBytes(StandardCharsets.UTF_8));
+            Files.write(listens, "userID\tartistID\tweight\n1\t10\t30\n".getBytes(StandardCharsets.UTF_8));
+            Recommender initial = new Recommender(friends.toString(), listens.toString(), "artists.dat");
+
+            try (LiveRecommender live = new LiveRecommender(initial)) {
+                live.tail(friends, listens, 10);
+                Files.write(friends, "2\tx\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+                Files.write(listens, "2\t10\t5\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+                awaitPlays(live, 10, 35);
+                assertEquals(35, live.current().artistPlays(10));
+
+                // the bad friends line is behind the tailer, so later lines of both files still apply.
+                Files.write(friends, "2\t1\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+                Files.write(listens, "3\t10\t5\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+                awaitPlays(live, 10, 40);
+                assertEquals(40, live.current().artistPlays(10));
+                assertArrayEquals(new int[]{1}, live.current().friends(2));
+            }
+        } finally {
+            Files.deleteIfExists(friends);
+            Files.deleteIfExists(listens);
+        }
+    }
+
+    @Test
+    public void tailerSkipsMalformedLinesAndMovesOn() throws IOException {
+        Path file = Files.createTempFile("friends", ".dat");
+        try {
+            Files.write(file, "userID\tfriendID\n1\t2\n2 3\n99999999999\t1\n3\t4\n".getBytes(StandardCharsets.UTF_8));
+            DatTailer tailer = new DatTailer(file, 2, 0);
+            int[][] rows = tailer.poll();
+            assertEquals(2, rows[2][0]);
+            assertArrayEquals(new int[]{1, 3}, new int[]{rows[0][0], rows[0][1]});
+            assertArrayEquals(new int[]{2, 4}, new int[]{rows[1][0], rows[1][1]});
+            assertEquals(2, tailer.skippedLines());
+            assertEquals(Files.size(file), tailer.offset());
+            assertEquals(0, tailer.poll()[2][0]);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void tailerFollowsAReplacedFileFromItsEnd() throws IOException {
+        Path file = Files.createTempFile("listens", ".dat");
+        try {
+            Files.write(file, "userID\tartistID\tweight\n1\t10\t30\n".getBytes(StandardCharsets.UTF_8));
+            DatTailer tailer = new DatTailer(file, 3, Files.size(file));
+            assertEquals(0, tailer.poll()[3][0]);
+            Files.write(file, "2\t10\t5\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+            assertEquals(1, tailer.poll()[3][0]);
+
+            // truncated and rewritten in place, longer than before, with other rows: they are not deltas.
+            Files.write(file, "userID\tartistID\tweight\n1\t10\t31\n2\t10\t5\n3\t10\t7\n4\t11\t1\n5\t1\t1"
+                    .getBytes(StandardCharsets.UTF_8));
+            assertEquals(0, tailer.poll()[3][0]);
+            assertEquals(1, tailer.replacements());
+            // the partial last line is still to come, then later appends.
+            Files.write(file, "2\n6\t12\t3\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+            int[][] rows = tailer.poll();
+            assertEquals(2, rows[3][0]);
+            assertArrayEquals(new int[]{5, 6}, new int[]{rows[0][0], rows[0][1]});
+            assertArrayEquals(new int[]{12, 3}, new int[]{rows[2][0], rows[2][1]});
+
+            // truncated to less than was read.
+            Files.write(file, "userID\tartistID\tweight\n".getBytes(StandardCharsets.UTF_8));
+            assertEquals(0, tailer.poll()[3][0]);
+            assertEquals(2, tailer.replacements());
+            Files.write(file, "7\t10\t1\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+            assertEquals(1, tailer.poll()[3][0]);
+
+            // replaced by another file (a rotation) with a different header.
+            Path next = Files.createTempFile(file.getParent(), "listens", ".dat");
+            Files.write(next, "user\tartist\tplays\n8\t10\t1\n9\t10\t1\n".getBytes(StandardCharsets.UTF_8));
+            Files.move(next, file, StandardCopyOption.REPLACE_EXISTING);
+            assertEquals(0, tailer.poll()[3][0]);
+            assertEquals(3, tailer.replacements());
+            assertEquals(Files.size(file), tailer.offset());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static void awaitPlays(LiveRecommender live, int artist, long plays) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (live.current().artistPlays(artist) != plays && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    // users 1 and 2 are friends; user 1 plays artist 10, user 2 plays 10 and 20.
+    private static Recommender small() {
+        CSRGraph friends = CSRGraph.fromEdges(new int[]{1, 2}, new int[]{2, 1}, null, 2);
+        CSRGraph listens = CSRGraph.fromEdges(new int[]{1, 2, 2}, new int[]{10, 10, 20}, new int[]{20, 10, 10}, 3);
+        Map<Integer, String> artists = new HashMap<>();
+        artists.put(10, "Ten");
+        artists.put(20, "Twenty");
+        return new Recommender(friends, listens, artists);
+    }
+}
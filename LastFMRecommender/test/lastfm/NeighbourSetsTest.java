@@ -0,0 +1,146 @@
+// Title        :   LastFM Recommender
+// Description  :   Tests that every intersection strategy agrees with a
+//              :   naive nested loop.
+
+package lastfm;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+
+public class NeighbourSetsTest {
+
+    @Test
+    public void strategiesAgreeWithNestedLoop() {
+        // vertices 0 and 1 are hubs, 3 is long enough to be galloped through from 2, the rest are short.
+        Random random = new Random(42);
+        int vertices = 2000;
+        int[] from = new int[40000];
+        int[] to = new int[40000];
+        int edges = 0;
+        for (int v = 0; v < vertices; v++) {
+            int degree = v == 0 ? 1500 : v == 1 ? 900 : v == 2 ? 2 : v == 3 ? 55 : random.nextInt(30);
+            boolean[] used = new boolean[vertices];
+            for (int i = 0; i < degree; i++) {
+                int target = random.nextInt(vertices);
+                if (!used[target]) {
+                    used[target] = true;
+                    from[edges] = v;
+                    to[edges] = target;
+                    edges++;
+                }
+            }
+        }
+        CSRGraph graph = CSRGraph.fromEdges(from, to, null, edges);
+        NeighbourSets sets = new NeighbourSets(graph);
+        assertTrue(sets.hubCount() > 0);
+
+        int[] others = new int[vertices];
+        for (int v = 0; v < vertices; v++) {
+            others[v] = v;
+        }
+        for (int v1 : new int[]{0, 1, 2, 3, 57, 1999}) {
+            int[] counts = sets.countAgainst(v1, others);
+            for (int v2 = 0; v2 < vertices; v2++) {
+                int[] expected = naive(graph, v1, v2);
+                assertArrayEquals(expected, sets.intersect(v1, v2));
+                assertEquals(expected.length, sets.count(v2, v1));
+                assertEquals(expected.length, counts[v2]);
+            }
+        }
+    }
+
+    @Test
+    public void updatedSetsMatchARebuild() {
+        // vertices 0..2 are hubs over 64 targets; the delta adds to hub 1 and to a short row, and
+        // makes vertex 5 a hub.
+        int[] from = new int[200];
+        int[] to = new int[200];
+        int edges = 0;
+        for (int v = 0; v < 3; v++) {
+            for (int t = v; t < 64; t += 2) {
+                from[edges] = v;
+                to[edges++] = t;
+            }
+        }
+        from[edges] = 6;
+        to[edges++] = 3;
+        CSRGraph graph = CSRGraph.fromEdges(from, to, null, edges);
+        NeighbourSets sets = new NeighbourSets(graph);
+
+        int[] deltaFrom = new int[40];
+        int[] deltaTo = new int[40];
+        int added = 0;
+        deltaFrom[added] = 1;
+        deltaTo[added++] = 2;
+        deltaFrom[added] = 6;
+        deltaTo[added++] = 5;
+        for (int t = 40; t < 70; t++) {
+            deltaFrom[added] = 5;
+            deltaTo[added++] = t;
+        }
+        CSRGraph delta = CSRGraph.fromEdges(deltaFrom, deltaTo, null, added);
+        CSRGraph merged = CSRGraph.withEdges(graph, delta);
+        NeighbourSets updated = sets.updated(merged, delta.verticesWithEdges());
+        NeighbourSets rebuilt = new NeighbourSets(merged);
+
+        assertEquals(rebuilt.hubCount(), updated.hubCount());
+        assertEquals(rebuilt.heapBytes(), updated.heapBytes());
+        for (int v1 = 0; v1 < merged.vertexCount(); v1++) {
+            for (int v2 = 0; v2 < merged.vertexCount(); v2++) {
+                assertArrayEquals(naive(merged, v1, v2), updated.intersect(v1, v2), v1 + " and " + v2);
+            }
+        }
+    }
+
+    @Test
+    public void bitsetBudgetKeepsTheHighestDegreeHubs() {
+        // vertices 1, 2 and 3 are hubs of degree 30, 50 and 40 over 64 targets; a budget of two
+        // bitsets keeps 2 and 3.
+        int[] from = new int[120];
+        int[] to = new int[120];
+        int edges = 0;
+        int[] degrees = {0, 30, 50, 40};
+        for (int v = 1; v <= 3; v++) {
+            for (int i = 0; i < degrees[v]; i++) {
+                from[edges] = v;
+                to[edges] = i + v;
+                edges++;
+            }
+        }
+        CSRGraph graph = CSRGraph.fromEdges(from, to, null, edges);
+        assertEquals(3, new NeighbourSets(graph).hubCount());
+        NeighbourSets bounded = new NeighbourSets(graph, 2 * (16 + 8));
+        assertEquals(2, bounded.hubCount());
+        assertTrue(bounded.heapBytes() < new NeighbourSets(graph).heapBytes());
+        for (int v1 = 1; v1 <= 3; v1++) {
+            for (int v2 = 1; v2 <= 3; v2++) {
+                assertArrayEquals(naive(graph, v1, v2), bounded.intersect(v1, v2));
+            }
+        }
+        assertEquals(0, new NeighbourSets(graph, 0).hubCount());
+    }
+
+    @Test
+    public void unknownVerticesShareNothing() {
+        NeighbourSets sets = new NeighbourSets(CSRGraph.fromEdges(new int[]{1}, new int[]{2}, null, 1));
+        assertArrayEquals(new int[0], sets.intersect(1, 77));
+        assertArrayEquals(new int[]{0, 0}, sets.countAgainst(77, new int[]{1, 2}));
+    }
+
+    private static int[] naive(CSRGraph graph, int v1, int v2) {
+        int[] common = new int[graph.degree(v1)];
+        int size = 0;
+        for (int a : graph.neighbours(v1)) {
+            for (int b : graph.neighbours(v2)) {
+                if (a == b) {
+                    common[size++] = a;
+                }
+            }
+        }
+        return Arrays.copyOf(common, size);
+    }
+}
@@ -0,0 +1,175 @@
+// Title        :   LastFM Recommender
+// Description  :   Tests for the HTTP query server.
+
+package lastfm;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.HashMap;
+import java.util.Map;
+
+
+public class QueryServerTest {
+
+    private static Recommender tiny() {
+        // friends: 1-2, 1-3, 2-3; listens: 1 -> {10, 20}, 2 -> {10, 20, 30}, 3 -> {30}.
+        CSRGraph friends = CSRGraph.fromEdges(new int[]{1, 2, 1, 3, 2, 3}, new int[]{2, 1, 3, 1, 3, 2}, null, 6);
+        CSRGraph listens = CSRGraph.fromEdges(new int[]{1, 1, 2, 2, 2, 3}, new int[]{10, 20, 10, 20, 30, 30},
+                new int[]{5, 1, 2, 3, 4, 50}, 6);
+        Map<Integer, String> artists = new HashMap<>();
+        artists.put(10, "Ten");
+        artists.put(20, "Twenty \"20\"");
+        artists.put(30, "Thirty");
+        return new Recommender(friends, listens, artists);
+    }
+
+    @Test
+    public void answersQueriesAsJson() {
+        QueryServer server = newServer();
+        try {
+            assertEquals("{\"user\":1,\"friends\":[2,3]}", get(server, "/friends?user=1").body());
+            assertEquals("{\"friends\":[3]}", get(server, "/common-friends?user1=1&user2=2").body());
+            assertEquals("{\"artists\":[{\"id\":10,\"name\":\"Ten\"},{\"id\":20,\"name\":\"Twenty \\\"20\\\"\"}]}",
+                    get(server, "/common-artists?user1=1&user2=2").body());
+            assertEquals("{\"artists\":[{\"id\":30,\"name\":\"Thirty\",\"score\":54}]}",
+                    get(server, "/top?k=1").body());
+            assertEquals("{\"artists\":[{\"id\":30,\"name\":\"Thirty\",\"score\":54},"
+                    + "{\"id\":10,\"name\":\"Ten\",\"score\":7}]}", get(server, "/recommend?user=1&k=2").body());
+            assertEquals("{\"id\":10,\"name\":\"Ten\"}", get(server, "/artist?id=10").body());
+            assertEquals("{\"artists\":[{\"id\":10,\"name\":\"Ten\"},{\"id\":30,\"name\":\"Thirty\"}]}",
+                    get(server, "/artists?prefix=t&k=2").body());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void coordinatorAnswersLikeOneRecommender() {
+        Recommender whole = tiny();
+        try (ShardedRecommender sharded = ShardedRecommender.inProcess(whole, 2)) {
+            QueryServer one = newServer(whole);
+            QueryServer coordinator = newServer(sharded.withArtists(whole.artists()));
+            try {
+                for (String path : new String[]{"/friends?user=1", "/common-friends?user1=1&user2=2",
+                        "/common-artists?user1=1&user2=2", "/common-artists?user1=2&user2=3", "/top?k=2",
+                        "/recommend?user=1&k=2", "/recommend?user=3", "/artist?id=20", "/artists?prefix=t"}) {
+                    assertEquals(get(one, path).body(), get(coordinator, path).body(), path);
+                }
+            } finally {
+                one.stop(0);
+                coordinator.stop(0);
+            }
+        }
+    }
+
+    @Test
+    public void writesNonFiniteScoresAsNull() {
+        assertEquals("[null,null,null,54,0.25]", new QueryServer.Json().append('[').number(Double.NaN).append(',')
+                .number(Double.POSITIVE_INFINITY).append(',').number(Double.NEGATIVE_INFINITY).append(',')
+                .number(54).append(',').number(0.25).append(']').toString());
+    }
+
+    @Test
+    public void reportsBadRequests() {
+        QueryServer server = newServer();
+        try {
+            assertEquals(400, get(server, "/friends").statusCode());
+            assertEquals(400, get(server, "/friends?user=abc").statusCode());
+            assertEquals(400, get(server, "/top?k=-1").statusCode());
+            assertEquals(404, get(server, "/artist?id=99").statusCode());
+            assertEquals(404, get(server, "/nothing").statusCode());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void answersBatchesInOrder() throws Exception {
+        QueryServer server = newServer();
+        try {
+            HttpRequest request = HttpRequest.newBuilder(uri(server, "/batch"))
+                    .POST(HttpRequest.BodyPublishers.ofString("/friends?user=3\n\n/artist?id=99\n/health\n")).build();
+            HttpResponse<String> response = HttpClient.newHttpClient()
+                    .send(request, HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, response.statusCode());
+            assertEquals("[{\"status\":200,\"body\":{\"user\":3,\"friends\":[1,2]}},"
+                    + "{\"status\":404,\"body\":{\"error\":\"no artist with id 99\"}},"
+                    + "{\"status\":200,\"body\":{\"status\":\"ok\"}}]", response.body());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void answersFailuresWith500() throws IOException {
+        QueryServer server = new QueryServer(() -> {
+            throw new IllegalStateException("snapshot unreadable");
+        }, 0);
+        server.start();
+        try {
+            HttpResponse<String> response = get(server, "/friends?user=1");
+            assertEquals(500, response.statusCode());
+            assertEquals("{\"error\":\"java.lang.IllegalStateException: snapshot unreadable\"}", response.body());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void refusesOversizedBatches() throws Exception {
+        QueryServer server = newServer();
+        try {
+            String line = "/health\n";
+            String body = line.repeat(QueryServer.MAX_BATCH_BYTES / line.length() + 1);
+            HttpRequest request = HttpRequest.newBuilder(uri(server, "/batch"))
+                    .POST(HttpRequest.BodyPublishers.ofString(body)).build();
+            HttpResponse<String> response = HttpClient.newHttpClient()
+                    .send(request, HttpResponse.BodyHandlers.ofString());
+            assertEquals(413, response.statusCode());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void stopsAcceptingAfterShutdown() {
+        QueryServer server = newServer();
+        URI health = uri(server, "/health");
+        server.stop(1);
+        assertThrows(IOException.class, () -> HttpClient.newHttpClient()
+                .send(HttpRequest.newBuilder(health).build(), HttpResponse.BodyHandlers.ofString()));
+    }
+
+    private static QueryServer newServer() {
+        return newServer(tiny());
+    }
+
+    private static QueryServer newServer(RecommenderQueries recommender) {
+        try {
+            QueryServer server = new QueryServer(recommender, 0);
+            server.start();
+            return server;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static URI uri(QueryServer server, String path) {
+        return URI.create("http://localhost:" + server.port() + path);
+    }
+
+    private static HttpResponse<String> get(QueryServer server, String path) {
+        try {
+            return HttpClient.newHttpClient().send(HttpRequest.newBuilder(uri(server, path)).build(),
+                    HttpResponse.BodyHandlers.ofString());
+        } catch (IOException | InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+// Title        :   LastFM Recommender
+// Description  :   Tests for the random-walk (personalized PageRank) engine.
+
+package lastfm;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+
+public class RandomWalkRecommenderTest {
+
+    // friends: 1-2, 2-3; listens: 1 -> {10}, 2 -> {10, 11}, 3 -> {12}, 4 -> {10, 13}.
+    // user 1 reaches 11 through its friend and through artist 10, 12 only through a friend of
+    // a friend, and 13 only through a co-listener of 10.
+    private static RandomWalkRecommender engine(int walkers) {
+        CSRGraph friends = CSRGraph.fromEdges(new int[]{1, 2, 2, 3}, new int[]{2, 1, 3, 2}, null, 4);
+        int[] from = {1, 2, 2, 3, 4, 4};
+        int[] to = {10, 10, 11, 12, 10, 13};
+        CSRGraph listens = CSRGraph.fromEdges(from, to, new int[]{5, 5, 5, 5, 5, 5}, from.length);
+        return new RandomWalkRecommender(friends, listens, walkers);
+    }
+
+    @Test
+    public void reachesBeyondDirectFriends() {
+        try (RandomWalkRecommender engine = engine(1)) {
+            List<ScoredArtist> recommended = engine.recommend(1, 10, 100_000, Long.MAX_VALUE / 2, 7);
+            assertEquals(3, recommended.size());
+            assertEquals(11, recommended.get(0).artist());
+            assertTrue(recommended.stream().anyMatch(scored -> scored.artist() == 12));
+            assertTrue(recommended.stream().anyMatch(scored -> scored.artist() == 13));
+            assertTrue(recommended.stream().noneMatch(scored -> scored.artist() == 10));
+            double share = 0;
+            for (ScoredArtist scored : recommended) {
+                share += scored.score();
+            }
+            assertTrue(share > 0 && share < 1);
+        }
+    }
+
+    @Test
+    public void singleWalkerRepeatsItsAnswer() {
+        try (RandomWalkRecommender engine = engine(1)) {
+            List<ScoredArtist> first = engine.recommend(1, 3, 5_000, Long.MAX_VALUE / 2, 42);
+            List<ScoredArtist> second = engine.recommend(1, 3, 5_000, Long.MAX_VALUE / 2, 42);
+            assertEquals(first.size(), second.size());
+            for (int i = 0; i < first.size(); i++) {
+                assertEquals(first.get(i).artist(), second.get(i).artist());
+                assertEquals(first.get(i).score(), second.get(i).score(), 0);
+            }
+        }
+    }
+
+    @Test
+    public void parallelWalkersAgreeOnTheTopArtist() {
+        try (RandomWalkRecommender engine = engine(3)) {
+            List<ScoredArtist> recommended = engine.recommend(1, 1, 300_000, Long.MAX_VALUE / 2, 7);
+            assertEquals(1, recommended.size());
+            assertEquals(11, recommended.get(0).artist());
+        }
+    }
+
+    @Test
+    public void respectsBudgetsAndUnknownUsers() {
+        try (RandomWalkRecommender engine = engine(1)) {
+            assertTrue(engine.recommend(1, 10, 0, Long.MAX_VALUE / 2, 1).isEmpty());
+            assertTrue(engine.recommend(1, 10, 1_000_000, 0, 1).isEmpty());
+            assertTrue(engine.recommend(99, 10).isEmpty());
+            assertTrue(engine.recommend(-1, 10).isEmpty());
+            assertTrue(engine.recommend(1, 0).isEmpty());
+            assertThrows(IllegalArgumentException.class, () -> engine.recommend(1, -1));
+            assertThrows(IllegalArgumentException.class, () -> engine.recommend(1, 1, -1, 1, 1));
+        }
+    }
+}
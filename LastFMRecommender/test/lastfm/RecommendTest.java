@@ -8,6 +8,8 @@
 //              :   listFriends, commonFriends, listArtists, listTop10,
 //              :   recommend10, listArtistByID, and listAllArtists
 
+package lastfm;
+
 import edu.princeton.cs.algs4.*;
 
 import org.junit.jupiter.api.Test;
@@ -0,0 +1,113 @@
+// Title        :   LastFM Recommender
+// Description  :   Tests for the latency histogram and the Recommender metrics.
+
+package lastfm;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+public class RecommenderMetricsTest {
+
+    @Test
+    public void histogramKeepsValuesWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100_000; value++) {
+            histogram.record(value * 1000);
+        }
+        assertEquals(100_000, histogram.count());
+        assertEquals(100_000_000, histogram.max());
+        assertEquals(50_000_000, histogram.percentile(0.5), 50_000_000 / 64.0);
+        assertEquals(99_000_000, histogram.percentile(0.99), 99_000_000 / 64.0);
+        assertEquals(100_000_000, histogram.percentile(1.0));
+        assertEquals(50_000_500, histogram.mean(), 1);
+
+        for (long value : new long[]{0, 1, 127, 128, 129, 1000, 123_456_789, 1L << 39}) {
+            long highest = LatencyHistogram.highestInBucket(LatencyHistogram.index(value));
+            assertTrue(highest >= value && highest - value <= value / 64, value + " -> " + highest);
+        }
+        histogram.reset();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.percentile(0.99));
+    }
+
+    @Test
+    public void recordsQueriesLoadPhasesAndGraphShape() throws Exception {
+        RecommenderMetrics metrics = RecommenderMetrics.global();
+        Recommender recommender = new Recommender("user_friends.dat", "user_artists.dat", "artists.dat");
+        int degree = recommender.friends(2).length;
+        metrics.observe(recommender);
+        // instances built later, like a partition, do not replace the observed one.
+        Recommender partition = recommender.partition(0, 4);
+        metrics.reset();
+        metrics.setSlowThresholdMicros(0);
+        try {
+            recommender.recommend(2, 10);
+            recommender.recommend(3, 10);
+            recommender.friends(2);
+
+            Map<String, Number> values = metrics.values();
+            assertEquals(2L, values.get("query.recommend.count"));
+            assertEquals(1L, values.get("query.friends.count"));
+            assertEquals(0L, values.get("query.topArtists.count"));
+            assertEquals(25434, values.get("graph.friends.edges"));
+            assertEquals(92834, values.get("graph.listens.edges"));
+            assertTrue(values.get("graph.friends.maxDegree").intValue() >= degree);
+            assertTrue(values.get("heap.listenGraph.bytes").longValue() > 92834L * 8);
+            assertTrue(partition.userArtistGraph().edgeCount() < 92834);
+
+            int low = Integer.highestOneBit(degree);
+            assertEquals(1L, values.get("recommendByFriendDegree." + low + "-" + (2 * low - 1) + ".count"));
+            assertEquals(3, metrics.slowQueries().size());
+            assertEquals(2, metrics.slowQueries().get(0).user());
+            assertTrue(metrics.dump().contains("slow recommend user=3 friends="));
+
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            RecommenderMetrics.registerMBean();
+            RecommenderMetrics.registerMBean();
+            ObjectName name = new ObjectName(RecommenderMetrics.OBJECT_NAME);
+            assertEquals(2L, server.getAttribute(name, "query.recommend.count"));
+            // the attributes are every name the table can hold, whether or not it has a value yet.
+            MBeanInfo info = server.getMBeanInfo(name);
+            Set<String> attributes = new HashSet<>();
+            for (MBeanAttributeInfo attribute : info.getAttributes()) {
+                attributes.add(attribute.getName());
+            }
+            assertTrue(attributes.containsAll(values.keySet()), values.keySet() + " vs " + attributes);
+            assertTrue(attributes.contains("recommendByFriendDegree.1024-2047.count"));
+            assertEquals(0L, server.getAttribute(name, "recommendByFriendDegree.1024-2047.count"));
+            assertSame(metrics.getMBeanInfo(), metrics.getMBeanInfo());
+
+            // the shape is taken again for a newly observed Recommender.
+            metrics.observe(partition);
+            assertEquals(partition.userArtistGraph().edgeCount(), metrics.values().get("graph.listens.edges"));
+            metrics.observe(recommender);
+            assertEquals(92834, metrics.values().get("graph.listens.edges"));
+        } finally {
+            metrics.setSlowThresholdMicros(10_000);
+        }
+    }
+
+    @Test
+    public void timesLoadPhases() {
+        RecommenderMetrics metrics = RecommenderMetrics.global();
+        metrics.reset();
+        CSRGraph friends = CSRGraph.fromEdges(new int[]{1, 2}, new int[]{2, 1}, null, 2);
+        CSRGraph listens = CSRGraph.fromEdges(new int[]{1}, new int[]{5}, new int[]{3}, 1);
+        new Recommender(friends, listens, new HashMap<>());
+        Map<String, Number> values = metrics.values();
+        assertNotNull(values.get("load.buildFriendSets.millis"));
+        assertNotNull(values.get("load.buildPopularityIndex.millis"));
+        assertNull(values.get("load.populateArtistID.millis"));
+    }
+}
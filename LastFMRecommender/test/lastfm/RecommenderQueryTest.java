@@ -0,0 +1,115 @@
+// Title        :   LastFM Recommender
+// Description  :   Tests for the result-returning Recommender queries.
+
+package lastfm;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import com.sun.management.ThreadMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+public class RecommenderQueryTest {
+
+    private final Recommender recommender = new Recommender("user_friends.dat", "user_artists.dat", "artists.dat");
+
+    @Test
+    public void typedQueriesMatchSampleData() {
+        assertArrayEquals(new int[]{99, 124, 211, 264, 493, 520, 534, 850, 1103, 2080}, recommender.friends(4));
+        assertArrayEquals(new int[]{99, 211, 520, 534}, recommender.mutualFriends(31, 4));
+        assertArrayEquals(new int[]{440}, recommender.mutualFriends(1060, 500));
+        assertArrayEquals(new int[]{72, 77, 159}, recommender.sharedArtists(31, 4));
+        assertEquals("Amduscia", recommender.artistName(31));
+        assertArrayEquals(new int[0], recommender.friends(999999));
+    }
+
+    @Test
+    public void popularityIsIndexedAtLoad() {
+        assertEquals(2393140, recommender.artistPlays(289));
+        assertEquals(recommender.topArtists(1).get(0).score(), recommender.artistPlays(289), 0);
+        assertTrue(recommender.artistListeners(289) > 0);
+        assertEquals(0, recommender.artistPlays(-5));
+        assertEquals(0, recommender.artistListeners(999999));
+        assertEquals(3, recommender.topArtists(3).size());
+    }
+
+    @Test
+    public void instancesDoNotShareData() {
+        CSRGraph friends = CSRGraph.fromEdges(new int[]{1}, new int[]{2}, null, 1);
+        CSRGraph listens = CSRGraph.fromEdges(new int[]{1, 2}, new int[]{7, 7}, new int[]{3, 4}, 2);
+        Map<Integer, String> artists = new HashMap<>();
+        artists.put(7, "Only Artist");
+        Recommender small = new Recommender(friends, listens, artists);
+
+        assertArrayEquals(new int[]{2}, small.friends(1));
+        assertEquals(new ScoredArtist(7, 7), small.recommend(1, 10).get(0));
+        assertEquals(10, recommender.friends(4).length);
+        assertEquals("Amduscia", recommender.artistName(31));
+    }
+
+    @Test
+    public void freshThreadsAndInstancesReuseTheScratch() throws Exception {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        List<ScoredArtist> expected = recommender.recommend(1283, 10);
+        // the scores alone of a per-thread or per-instance accumulator.
+        long catalogueBytes = (long) recommender.userArtistGraph().vertexCount() * Double.BYTES;
+        Recommender copy = new Recommender(recommender.userFriendGraph(), recommender.userArtistGraph(),
+                recommender.artists(), recommender.friendSets(), recommender.artistSets(), recommender.popularity());
+        for (Recommender instance : new Recommender[]{recommender, copy}) {
+            for (int i = 0; i < 8; i++) {
+                long[] allocated = new long[1];
+                List<List<ScoredArtist>> got = new ArrayList<>();
+                Thread thread = new Thread(() -> {
+                    long before = threads.getCurrentThreadAllocatedBytes();
+                    got.add(instance.recommend(1283, 10));
+                    allocated[0] = threads.getCurrentThreadAllocatedBytes() - before;
+                });
+                thread.start();
+                thread.join();
+                assertEquals(expected, got.get(0));
+                assertTrue(allocated[0] < catalogueBytes, allocated[0] + " bytes allocated");
+            }
+        }
+    }
+
+    @Test
+    public void concurrentCallersSeeSerialResults() throws Exception {
+        int[] users = {2, 4, 31, 500, 1060, 1283, 2100};
+        List<List<ScoredArtist>> expected = new ArrayList<>();
+        for (int user : users) {
+            expected.add(recommender.recommend(user, 10));
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int task = 0; task < 16; task++) {
+                results.add(pool.submit(() -> {
+                    for (int round = 0; round < 50; round++) {
+                        for (int i = 0; i < users.length; i++) {
+                            if (!expected.get(i).equals(recommender.recommend(users[i], 10))) {
+                                return false;
+                            }
+                        }
+                    }
+                    return true;
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+// Title        :   LastFM Recommender
+// Description  :   Tests for the dense scoring kernels and the weighted
+//              :   recommendations built on them. The vector kernel is
+//              :   checked against the scalar one when the runtime has it.
+
+package lastfm;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.SplittableRandom;
+
+
+public class ScoringKernelTest {
+
+    private static List<ScoringKernel> kernels() {
+        List<ScoringKernel> kernels = new ArrayList<>();
+        kernels.add(ScoringKernel.scalar());
+        if (ScoringKernel.vector() != null) {
+            kernels.add(ScoringKernel.vector());
+        }
+        return kernels;
+    }
+
+    @Test
+    public void selectKeepsTheSameTopKAsOfferingEverything() {
+        SplittableRandom random = new SplittableRandom(3);
+        for (int count : new int[]{0, 1, 7, 8, 9, 1000}) {
+            int[] ids = new int[count];
+            double[] values = new double[count];
+            for (int i = 0; i < count; i++) {
+                ids[i] = random.nextInt(5000);
+                // few distinct values, so ties at the threshold are common.
+                values[i] = random.nextInt(20);
+            }
+            for (int k : new int[]{0, 1, 10}) {
+                TopK all = new TopK(k);
+                for (int i = 0; i < count; i++) {
+                    all.offer(ids[i], values[i]);
+                }
+                List<ScoredArtist> expected = all.drain();
+                for (ScoringKernel kernel : kernels()) {
+                    TopK top = new TopK(k);
+                    kernel.select(ids, values, count, top);
+                    assertEquals(expected, top.drain(), kernel + " count " + count + " k " + k);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void weighsLikeTheScalarLoops() {
+        int count = 37;
+        int[] ids = new int[count];
+        double[] factors = new double[50];
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = (i * 7) % 50;
+            values[i] = i * 3;
+        }
+        for (int i = 0; i < factors.length; i++) {
+            factors[i] = 0.5 + i;
+        }
+        for (ScoringKernel kernel : kernels()) {
+            double[] weighed = values.clone();
+            kernel.log1p(weighed, count);
+            kernel.multiplyGathered(weighed, ids, factors, count);
+            double sum = kernel.sum(weighed, count);
+            kernel.scale(weighed, count, 2);
+            double expectedSum = 0;
+            for (int i = 0; i < count; i++) {
+                double expected = Math.log1p(values[i]) * factors[ids[i]];
+                expectedSum += expected;
+                assertEquals(2 * expected, weighed[i], 1e-12 * expected, kernel + " value " + i);
+            }
+            assertEquals(expectedSum, sum, 1e-12 * expectedSum);
+        }
+    }
+
+    @Test
+    public void thresholdRisesOnceTheHeapIsFull() {
+        TopK top = new TopK(2);
+        assertEquals(Double.NEGATIVE_INFINITY, top.threshold());
+        top.offer(1, 5);
+        top.offer(2, 3);
+        assertEquals(3, top.threshold());
+        top.offer(3, 4);
+        assertEquals(4, top.threshold());
+        assertEquals(Double.POSITIVE_INFINITY, new TopK(0).threshold());
+    }
+
+    @Test
+    public void weightedRecommendations() {
+        // friends: 1-2, 1-3; listens: 1 -> {10: 1}, 2 -> {10: 99, 20: 30}, 3 -> {20: 30},
+        // 4 -> {10: 1}, 5 -> {10: 1}.
+        CSRGraph friends = CSRGraph.fromEdges(new int[]{1, 2, 1, 3}, new int[]{2, 1, 3, 1}, null, 4);
+        CSRGraph listens = CSRGraph.fromEdges(new int[]{1, 2, 2, 3, 4, 5}, new int[]{10, 10, 20, 20, 10, 10},
+                new int[]{1, 99, 30, 30, 1, 1}, 6);
+        Recommender recommender = new Recommender(friends, listens, new HashMap<>());
+
+        assertEquals(recommender.recommend(1, 2), recommender.recommend(1, 2, ScoringKernel.Weighting.PLAYS));
+        assertEquals(10, recommender.recommend(1, 1).get(0).artist());
+
+        // log(1 + 1) + log(1 + 99) for 10 against 2 log(1 + 30) for 20: one heavy listener no
+        // longer outweighs two moderate ones.
+        List<ScoredArtist> logPlays = recommender.recommend(1, 2, ScoringKernel.Weighting.LOG_PLAYS);
+        double ten = Math.log(2) + Math.log(100);
+        double twenty = 2 * Math.log(31);
+        assertEquals(20, logPlays.get(0).artist());
+        assertEquals(twenty / (ten + twenty), logPlays.get(0).score(), 1e-12);
+        assertEquals(ten / (ten + twenty), logPlays.get(1).score(), 1e-12);
+
+        // 10 is played by 4 of the 5 users and 20 by 2: idf log(5 / 4) against log(5 / 2).
+        List<ScoredArtist> tfIdf = recommender.recommend(1, 2, ScoringKernel.Weighting.TF_IDF);
+        ten = 100 * Math.log(5.0 / 4);
+        twenty = 60 * Math.log(5.0 / 2);
+        assertEquals(20, tfIdf.get(0).artist());
+        assertEquals(twenty / (ten + twenty), tfIdf.get(0).score(), 1e-12);
+
+        assertTrue(recommender.recommend(9, 5, ScoringKernel.Weighting.TF_IDF).isEmpty());
+    }
+}
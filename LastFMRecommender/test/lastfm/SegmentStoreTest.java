@@ -0,0 +1,194 @@
+// Title        :   LastFM Recommender
+// Description  :   Tests for the out-of-core segment files.
+
+package lastfm;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+
+public class SegmentStoreTest {
+
+    @Test
+    public void segmentedGraphsMatchTheHeapGraphs() throws IOException {
+        Path data = Files.createTempDirectory("segment-data");
+        Path dir = data.resolve("segments");
+        try {
+            DatGenerator.lastFmShaped(1000, 300, 5).write(data);
+            Path friends = data.resolve(DatGenerator.USER_FRIENDS);
+            Path listens = data.resolve(DatGenerator.USER_ARTISTS);
+            // small segments, so rows are spread over many files and blocks span segments.
+            SegmentStore.build(friends, listens, data.resolve(DatGenerator.ARTISTS), dir, 700);
+
+            // room for four blocks per graph.
+            SegmentStore.Contents contents = SegmentStore.open(dir, 4 * 2 * 4 * SegmentedCSRGraph.BLOCK_EDGES);
+            assertSameGraph(DatLoader.loadGraph(friends, false), contents.userFriendGraph);
+            assertSameGraph(DatLoader.loadGraph(listens, true), contents.userArtistGraph);
+            assertTrue(contents.userArtistGraph.cacheHits() + contents.userArtistGraph.cacheMisses() > 0);
+            assertTrue(contents.userArtistGraph.heapBytes() < 4 * 2 * 4 * SegmentedCSRGraph.BLOCK_EDGES + 1024);
+        } finally {
+            delete(data);
+        }
+    }
+
+    @Test
+    public void spillsPastTheOpenFileBoundInSeveralReads() throws IOException {
+        Path data = Files.createTempDirectory("segment-data");
+        Path dir = data.resolve("segments");
+        try {
+            DatGenerator.lastFmShaped(1000, 300, 7).write(data);
+            Path friends = data.resolve(DatGenerator.USER_FRIENDS);
+            Path listens = data.resolve(DatGenerator.USER_ARTISTS);
+            // tiny segments, so there are more spill files than may be open at once.
+            SegmentStore.build(friends, listens, data.resolve(DatGenerator.ARTISTS), dir, 40);
+            try (Stream<Path> files = Files.list(dir)) {
+                List<String> names = files.map(f -> f.getFileName().toString()).collect(Collectors.toList());
+                assertTrue(names.stream().filter(f -> f.startsWith("listens.") && f.endsWith(".seg")).count()
+                        > 2 * SegmentStore.MAX_OPEN_SPILLS, names.toString());
+                assertTrue(names.stream().noneMatch(f -> f.endsWith(".spill")), names.toString());
+            }
+
+            SegmentStore.Contents contents = SegmentStore.open(dir, 0);
+            assertSameGraph(DatLoader.loadGraph(friends, false), contents.userFriendGraph);
+            assertSameGraph(DatLoader.loadGraph(listens, true), contents.userArtistGraph);
+        } finally {
+            delete(data);
+        }
+    }
+
+    @Test
+    public void recommenderAnswersAlikeFromSegments() throws IOException {
+        Path data = Files.createTempDirectory("segment-data");
+        Path dir = data.resolve("segments");
+        try {
+            DatGenerator.lastFmShaped(800, 200, 9).write(data);
+            String friends = data.resolve(DatGenerator.USER_FRIENDS).toString();
+            String listens = data.resolve(DatGenerator.USER_ARTISTS).toString();
+            String artists = data.resolve(DatGenerator.ARTISTS).toString();
+            SegmentStore.build(Path.of(friends), Path.of(listens), Path.of(artists), dir, 1000);
+
+            Recommender heap = new Recommender(friends, listens, artists);
+            Recommender segmented = Recommender.fromSegments(dir.toString(), 0);
+            assertEquals(heap.idLimit(), segmented.idLimit());
+            assertEquals(heap.topArtists(20).toString(), segmented.topArtists(20).toString());
+            for (int user = 0; user < heap.idLimit(); user += 7) {
+                assertEquals(heap.recommend(user, 10).toString(), segmented.recommend(user, 10).toString());
+                assertArrayEquals(heap.mutualFriends(user, user + 1), segmented.mutualFriends(user, user + 1));
+                assertArrayEquals(heap.sharedArtists(user, user + 3), segmented.sharedArtists(user, user + 3));
+            }
+            assertEquals(heap.artistName(5), segmented.artistName(5));
+        } finally {
+            delete(data);
+        }
+    }
+
+    @Test
+    public void partitionsAnswerLikeOneRecommender() throws IOException {
+        Path data = Files.createTempDirectory("segment-data");
+        Path dir = data.resolve("partitions");
+        try {
+            DatGenerator.lastFmShaped(600, 150, 11).write(data);
+            String friends = data.resolve(DatGenerator.USER_FRIENDS).toString();
+            String listens = data.resolve(DatGenerator.USER_ARTISTS).toString();
+            String artists = data.resolve(DatGenerator.ARTISTS).toString();
+            SegmentStore.buildPartitions(Path.of(friends), Path.of(listens), Path.of(artists), dir, 500, 3);
+
+            Recommender heap = new Recommender(friends, listens, artists);
+            for (int partition = 0; partition < 3; partition++) {
+                Recommender expected = heap.partition(partition, 3);
+                Recommender segmented = Recommender.fromSegments(SegmentStore.partition(dir, partition).toString(), 0);
+                assertEquals(expected.userArtistGraph().edgeCount(), segmented.userArtistGraph().edgeCount());
+                assertEquals(expected.userFriendGraph().edgeCount(), segmented.userFriendGraph().edgeCount());
+            }
+            try (ShardedRecommender sharded = ShardedRecommender.fromSegments(dir.toString(), 1 << 20)) {
+                assertEquals(3, sharded.shardCount());
+                assertEquals(heap.topArtists(20), sharded.topArtists(20));
+                for (int user = 0; user < heap.idLimit(); user += 5) {
+                    assertEquals(heap.recommend(user, 10), sharded.recommend(user, 10), "user " + user);
+                    assertArrayEquals(heap.mutualFriends(user, user + 1), sharded.mutualFriends(user, user + 1));
+                }
+            }
+        } finally {
+            delete(data);
+        }
+    }
+
+    @Test
+    public void concurrentReadersShareASmallCache() throws IOException {
+        Path data = Files.createTempDirectory("segment-data");
+        Path dir = data.resolve("segments");
+        try {
+            DatGenerator.lastFmShaped(1000, 300, 13).write(data);
+            Path listens = data.resolve(DatGenerator.USER_ARTISTS);
+            SegmentStore.build(data.resolve(DatGenerator.USER_FRIENDS), listens, data.resolve(DatGenerator.ARTISTS),
+                    dir, 700);
+            AdjacencyStore expected = DatLoader.loadGraph(listens, true);
+            // fewer slots than blocks, so the stripes evict while other threads read.
+            SegmentedCSRGraph graph = SegmentStore.open(dir, 8 * 2 * 4 * SegmentedCSRGraph.BLOCK_EDGES)
+                    .userArtistGraph;
+            IntStream.range(0, 8).parallel().forEach(thread -> {
+                for (int v = thread; v < expected.vertexCount(); v += 3) {
+                    for (int e = expected.start(v); e < expected.end(v); e++) {
+                        assertEquals(expected.target(e), graph.target(e));
+                        assertEquals(expected.weight(e), graph.weight(e));
+                    }
+                }
+            });
+            assertTrue(graph.cacheMisses() > 0);
+            assertTrue(graph.heapBytes() < 8 * 2 * 4 * SegmentedCSRGraph.BLOCK_EDGES + 1024);
+        } finally {
+            delete(data);
+        }
+    }
+
+    @Test
+    public void segmentsHoldWholeRows() {
+        // rows of 3, 4, 0, 5 and 1 edges.
+        int[] offsets = {0, 3, 7, 7, 12, 13};
+        assertArrayEquals(new int[]{0, 1, 3, 4, 5}, SegmentStore.segments(offsets, 4));
+        assertArrayEquals(new int[]{0, 5}, SegmentStore.segments(offsets, 100));
+        assertArrayEquals(new int[]{0, 0}, SegmentStore.segments(new int[]{0}, 4));
+        assertThrows(IllegalArgumentException.class,
+                () -> SegmentStore.build(Path.of("a"), Path.of("b"), Path.of("c"), Path.of("d"), 0));
+        assertThrows(IllegalArgumentException.class,
+                () -> SegmentStore.buildPartitions(Path.of("a"), Path.of("b"), Path.of("c"), Path.of("d"), 10, 0));
+    }
+
+    private static void assertSameGraph(AdjacencyStore expected, SegmentedCSRGraph actual) {
+        assertEquals(expected.vertexCount(), actual.vertexCount());
+        assertEquals(expected.edgeCount(), actual.edgeCount());
+        assertEquals(expected.isWeighted(), actual.isWeighted());
+        for (int v = 0; v < expected.vertexCount(); v++) {
+            assertEquals(expected.start(v), actual.start(v));
+            assertEquals(expected.end(v), actual.end(v));
+            assertArrayEquals(expected.neighbours(v), actual.neighbours(v));
+            for (int e = expected.start(v); e < expected.end(v); e++) {
+                assertEquals(expected.target(e), actual.target(e));
+                if (expected.isWeighted()) {
+                    assertEquals(expected.weight(e), actual.weight(e));
+                }
+                assertEquals(expected.target(e), actual.target(actual.find(v, expected.target(e))));
+            }
+            assertEquals(-1, actual.find(v, -1));
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files.sorted((a, b) -> b.compareTo(a))::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+// Title        :   LastFM Recommender
+// Description  :   Tests for the user-partitioned, scatter-gather coordinator.
+
+package lastfm;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.IntStream;
+
+
+public class ShardedRecommenderTest {
+
+    private static Recommender sample() {
+        return new Recommender("user_friends.dat", "user_artists.dat", "artists.dat");
+    }
+
+    // every recommendation in one batch, and the friend queries of every step-th user.
+    private static void assertSameAnswers(Recommender whole, ShardedRecommender sharded, int step) {
+        int[] users = IntStream.range(0, whole.idLimit()).toArray();
+        List<List<ScoredArtist>> recommended = sharded.recommend(users, 10);
+        for (int user : users) {
+            assertEquals(whole.recommend(user, 10), recommended.get(user), "user " + user);
+        }
+        for (int user = 0; user < whole.idLimit(); user += step) {
+            assertArrayEquals(whole.friends(user), sharded.friends(user));
+            assertArrayEquals(whole.mutualFriends(user, user + 3), sharded.mutualFriends(user, user + 3));
+            assertArrayEquals(whole.sharedArtists(user, user + 3), sharded.sharedArtists(user, user + 3));
+            assertArrayEquals(whole.sharedArtists(user, user + 1), sharded.sharedArtists(user, user + 1));
+        }
+        for (int k : new int[]{1, 10, 100, 20_000}) {
+            assertEquals(whole.topArtists(k), sharded.topArtists(k), "k " + k);
+        }
+    }
+
+    @Test
+    public void inProcessShardsAnswerLikeOneRecommender() {
+        Recommender whole = sample();
+        for (int shards : new int[]{1, 3, 8}) {
+            try (ShardedRecommender sharded = ShardedRecommender.inProcess(whole, shards)) {
+                assertSameAnswers(whole, sharded, 7);
+            }
+        }
+    }
+
+    @Test
+    public void remoteShardsAnswerLikeOneRecommender() throws IOException {
+        Recommender whole = sample();
+        List<ShardServer> servers = new ArrayList<>();
+        List<URI> uris = new ArrayList<>();
+        try {
+            for (int s = 0; s < 3; s++) {
+                ShardServer server = new ShardServer(new LocalShard(whole.partition(s, 3)), 0);
+                server.start();
+                servers.add(server);
+                uris.add(URI.create("http://localhost:" + server.port()));
+            }
+            try (ShardedRecommender sharded = ShardedRecommender.connect(uris)) {
+                assertSameAnswers(whole, sharded, 101);
+            }
+        } finally {
+            for (ShardServer server : servers) {
+                server.stop(0);
+            }
+        }
+    }
+
+    @Test
+    public void hubFriendsAreSplitIntoGroups() {
+        // user 0 has more friends than fit in one group on any shard; friend f plays artist f % 5.
+        int friends = 4 * ShardedRecommender.GROUP_USERS;
+        int[] from = new int[2 * friends];
+        int[] to = new int[2 * friends];
+        int[] listenFrom = new int[friends];
+        int[] listenTo = new int[friends];
+        int[] plays = new int[friends];
+        for (int f = 1; f <= friends; f++) {
+            from[2 * f - 2] = 0;
+            to[2 * f - 2] = f;
+            from[2 * f - 1] = f;
+            to[2 * f - 1] = 0;
+            listenFrom[f - 1] = f;
+            listenTo[f - 1] = f % 5;
+            plays[f - 1] = f;
+        }
+        Recommender whole = new Recommender(CSRGraph.fromEdges(from, to, null, from.length),
+                CSRGraph.fromEdges(listenFrom, listenTo, plays, friends), new HashMap<>());
+        try (ShardedRecommender sharded = ShardedRecommender.inProcess(whole, 2)) {
+            assertEquals(whole.recommend(0, 5), sharded.recommend(0, 5));
+            assertEquals(5, sharded.recommend(0, 5).size());
+        }
+    }
+
+    @Test
+    public void shardFailuresReachTheCoordinatorAs500() throws IOException {
+        Shard local = new LocalShard(sample().partition(0, 2));
+        Shard failing = new Shard() {
+            public int[][] friends(int[] users) {
+                return local.friends(users);
+            }
+
+            public List<List<ScoredArtist>> playSums(int[][] groups) {
+                return local.playSums(groups);
+            }
+
+            public List<ScoredArtist> topArtists(int k) {
+                throw new IllegalStateException("chart unavailable");
+            }
+
+            public List<ScoredArtist> artistsWithPlays(long minPlays) {
+                return local.artistsWithPlays(minPlays);
+            }
+
+            public long[] artistPlays(int[] artists) {
+                return local.artistPlays(artists);
+            }
+        };
+        ShardServer server = new ShardServer(failing, 0);
+        server.start();
+        try {
+            RemoteShard remote = new RemoteShard(URI.create("http://localhost:" + server.port()));
+            UncheckedIOException e = assertThrows(UncheckedIOException.class, () -> remote.topArtists(3));
+            assertTrue(e.getCause().getMessage().contains("answered 500"), e.getCause().getMessage());
+            assertTrue(e.getCause().getMessage().contains("chart unavailable"), e.getCause().getMessage());
+            // the server keeps answering after a failed call.
+            assertArrayEquals(local.friends(new int[]{2})[0], remote.friends(new int[]{2})[0]);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void callsOverTheBodyBoundAreSplitOrRefused() throws IOException, InterruptedException {
+        Recommender whole = sample();
+        Shard local = new LocalShard(whole.partition(0, 1));
+        ShardServer server = new ShardServer(local, 0);
+        server.start();
+        try {
+            URI base = URI.create("http://localhost:" + server.port());
+            // a body one byte over the bound is refused before it is decoded.
+            HttpResponse<String> refused = HttpClient.newHttpClient().send(
+                    HttpRequest.newBuilder(base.resolve(ShardProtocol.ARTIST_PLAYS))
+                            .POST(HttpRequest.BodyPublishers.ofByteArray(new byte[ShardProtocol.MAX_REQUEST_BYTES + 1]))
+                            .build(),
+                    HttpResponse.BodyHandlers.ofString());
+            assertEquals(413, refused.statusCode(), refused.body());
+
+            // the coordinator splits arguments that do not fit into several calls.
+            int[] artists = new int[ShardProtocol.MAX_REQUEST_BYTES / Integer.BYTES + 10];
+            for (int i = 0; i < artists.length; i++) {
+                artists[i] = i % whole.artists().idLimit();
+            }
+            RemoteShard remote = new RemoteShard(base);
+            assertArrayEquals(local.artistPlays(artists), remote.artistPlays(artists));
+            int[][] groups = new int[3][];
+            for (int g = 0; g < groups.length; g++) {
+                groups[g] = new int[ShardProtocol.MAX_REQUEST_BYTES / 2 / Integer.BYTES];
+                for (int i = 0; i < groups[g].length; i++) {
+                    groups[g][i] = (i + g) % whole.idLimit();
+                }
+            }
+            assertEquals(local.playSums(groups), remote.playSums(groups));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void rejectsBadArguments() {
+        Recommender whole = sample();
+        assertThrows(IllegalArgumentException.class, () -> whole.partition(3, 3));
+        assertThrows(IllegalArgumentException.class, () -> new ShardedRecommender(new ArrayList<>()));
+        try (ShardedRecommender sharded = ShardedRecommender.inProcess(whole, 2)) {
+            assertThrows(IllegalArgumentException.class, () -> sharded.recommend(2, -1));
+            assertTrue(sharded.topArtists(0).isEmpty());
+        }
+    }
+}
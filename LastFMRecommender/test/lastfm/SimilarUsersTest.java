@@ -0,0 +1,104 @@
+// Title        :   LastFM Recommender
+// Description  :   Tests for the MinHash/LSH similar-user search.
+
+package lastfm;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+
+public class SimilarUsersTest {
+
+    private static SimilarUsers index(int[] from, int[] to, int[] plays) {
+        CSRGraph listens = CSRGraph.fromEdges(from, to, plays, from.length);
+        return new SimilarUsers(listens, new NeighbourSets(listens), 64, 16);
+    }
+
+    @Test
+    public void identicalArtistSetsAreFullySimilar() {
+        // users 1 and 2 listen to the same artists, user 3 to disjoint ones.
+        int[] from = {1, 1, 1, 2, 2, 2, 3, 3};
+        int[] to = {10, 11, 12, 10, 11, 12, 20, 21};
+        SimilarUsers similar = index(from, to, new int[]{1, 1, 1, 1, 1, 1, 1, 1});
+
+        List<ScoredUser> found = similar.similarUsers(1, 5);
+        assertEquals(1, found.size());
+        assertEquals(2, found.get(0).user());
+        assertEquals(1.0, found.get(0).similarity(), 1e-9);
+        assertTrue(similar.similarUsers(3, 5).isEmpty());
+    }
+
+    @Test
+    public void exactRankingIsJaccard() {
+        // user 1: {10..13}; user 2 shares three of them, user 3 shares two and adds one.
+        int[] from = {1, 1, 1, 1, 2, 2, 2, 3, 3, 3};
+        int[] to = {10, 11, 12, 13, 10, 11, 12, 10, 11, 14};
+        SimilarUsers similar = new SimilarUsers(CSRGraph.fromEdges(from, to, null, from.length),
+                new NeighbourSets(CSRGraph.fromEdges(from, to, null, from.length)), 128, 64);
+
+        assertEquals(0.75, similar.jaccard(1, 2), 1e-9);
+        assertEquals(0.4, similar.jaccard(1, 3), 1e-9);
+        List<ScoredUser> found = similar.similarUsers(1, 5, true);
+        assertFalse(found.isEmpty());
+        assertEquals(2, found.get(0).user());
+        assertEquals(0.75, found.get(0).similarity(), 1e-9);
+        for (ScoredUser user : found) {
+            assertEquals(similar.jaccard(1, user.user()), user.similarity(), 1e-9);
+        }
+    }
+
+    @Test
+    public void largeBucketsAreNotReadFromTheirLowestIds() {
+        // every user listens to the same two artists, so all of them share every bucket.
+        int users = 8 * SimilarUsers.MAX_BUCKET_SCAN;
+        int[] from = new int[2 * users];
+        int[] to = new int[2 * users];
+        int[] plays = new int[2 * users];
+        for (int user = 0; user < users; user++) {
+            from[2 * user] = user;
+            from[2 * user + 1] = user;
+            to[2 * user] = 10;
+            to[2 * user + 1] = 11;
+            plays[2 * user] = 1;
+            plays[2 * user + 1] = 1;
+        }
+        SimilarUsers similar = index(from, to, plays);
+
+        List<ScoredUser> found = similar.similarUsers(0, users);
+        assertTrue(found.size() > SimilarUsers.MAX_BUCKET_SCAN, "found " + found.size());
+        assertTrue(found.stream().anyMatch(u -> u.user() >= users / 2));
+        for (ScoredUser user : found) {
+            assertEquals(1.0, user.similarity(), 1e-9);
+        }
+    }
+
+    @Test
+    public void usersWithoutListensHaveNoNeighbours() {
+        SimilarUsers similar = index(new int[]{1, 2}, new int[]{10, 10}, new int[]{1, 1});
+        assertTrue(similar.similarUsers(5, 5).isEmpty());
+        assertTrue(similar.similarUsers(-1, 5).isEmpty());
+        assertTrue(similar.similarUsers(999, 5).isEmpty());
+        assertTrue(similar.recommend(5, 5, 5).isEmpty());
+    }
+
+    @Test
+    public void recommendsArtistsOfSimilarUsers() {
+        // user 2 has everything user 1 has plus artist 13; user 3 is unrelated.
+        int[] from = {1, 1, 1, 2, 2, 2, 2, 3};
+        int[] to = {10, 11, 12, 10, 11, 12, 13, 20};
+        SimilarUsers similar = index(from, to, new int[]{1, 1, 1, 1, 1, 1, 7, 9});
+
+        List<ScoredArtist> recommended = similar.recommend(1, 5, 5);
+        assertEquals(1, recommended.size());
+        assertEquals(13, recommended.get(0).artist());
+    }
+
+    @Test
+    public void rejectsBandsThatDoNotDivideHashes() {
+        CSRGraph listens = CSRGraph.fromEdges(new int[]{1}, new int[]{10}, null, 1);
+        assertThrows(IllegalArgumentException.class, () -> new SimilarUsers(listens, new NeighbourSets(listens), 10, 3));
+        assertThrows(IllegalArgumentException.class, () -> new SimilarUsers(listens, new NeighbourSets(listens), 0, 1));
+    }
+}
@@ -0,0 +1,127 @@
+// Title        :   LastFM Recommender
+// Description  :   Round-trip tests for the binary snapshot format.
+
+package lastfm;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+
+public class SnapshotFileTest {
+
+    @Test
+    public void snapshotRoundTrip() throws IOException {
+        CSRGraph friends = CSRGraph.fromEdges(new int[]{1, 1, 3}, new int[]{3, 2, 1}, null, 3);
+        CSRGraph listens = CSRGraph.fromEdges(new int[]{1, 3, 1}, new int[]{10, 11, 12},
+                new int[]{100, 110, 120}, 3);
+        Map<Integer, String> artists = new HashMap<>();
+        artists.put(10, "Sigur R\u00f3s");
+        artists.put(11, "Bj\u00f6rk");
+        artists.put(12, "");
+
+        Path file = Files.createTempFile("snapshot", ".bin");
+        try {
+            SnapshotFile.write(file, friends, listens, ArtistDictionary.of(artists));
+            SnapshotFile.Contents contents = SnapshotFile.open(file);
+
+            assertGraphEquals(friends, contents.userFriendGraph);
+            assertGraphEquals(listens, contents.userArtistGraph);
+            assertEquals(artists.size(), contents.artistID.size());
+            for (Map.Entry<Integer, String> artist : artists.entrySet()) {
+                assertEquals(artist.getValue(), contents.artistID.name(artist.getKey()));
+            }
+            assertArrayEquals(new int[]{11}, contents.artistID.searchPrefix("bj\u00d6", 10));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void rewritingLeavesOpenSnapshotsReadable() throws IOException {
+        CSRGraph friends = CSRGraph.fromEdges(new int[]{1, 1, 3}, new int[]{3, 2, 1}, null, 3);
+        CSRGraph listens = CSRGraph.fromEdges(new int[]{1, 3, 1}, new int[]{10, 11, 12},
+                new int[]{100, 110, 120}, 3);
+        CSRGraph empty = CSRGraph.fromEdges(new int[0], new int[0], null, 0);
+        Map<Integer, String> artists = new HashMap<>();
+        artists.put(10, "a");
+
+        Path dir = Files.createTempDirectory("snapshot");
+        Path file = dir.resolve("lastfm.snapshot");
+        try {
+            SnapshotFile.write(file, friends, listens, ArtistDictionary.of(artists));
+            SnapshotFile.Contents before = SnapshotFile.open(file);
+            // a smaller file in its place: truncating the mapped one would make the reads below fault.
+            SnapshotFile.write(file, empty, empty, ArtistDictionary.of(new HashMap<>()));
+
+            assertGraphEquals(friends, before.userFriendGraph);
+            assertGraphEquals(listens, before.userArtistGraph);
+            assertEquals(0, SnapshotFile.open(file).userArtistGraph.edgeCount());
+            try (Stream<Path> files = Files.list(dir)) {
+                assertEquals(1, files.count(), "no temporary file is left behind");
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    @Test
+    public void indexesAreReadBackNotRebuilt() throws IOException {
+        Recommender loaded = new Recommender("user_friends.dat", "user_artists.dat", "artists.dat");
+        Path file = Files.createTempFile("snapshot", ".bin");
+        try {
+            loaded.writeSnapshot(file.toString());
+            Recommender opened = Recommender.fromSnapshot(file.toString());
+
+            assertEquals(loaded.topArtists(100), opened.topArtists(100));
+            assertEquals(loaded.popularity().rankedArtists(), opened.popularity().rankedArtists());
+            assertEquals(loaded.artistListeners(289), opened.artistListeners(289));
+            assertEquals(loaded.artistSets().hubCount(), opened.artistSets().hubCount());
+            assertEquals(loaded.friendSets().hubCount(), opened.friendSets().hubCount());
+            assertTrue(opened.friendSets().hubCount() > 0);
+            // no bitset is on the heap until a query uses it.
+            assertTrue(opened.friendSets().heapBytes() < loaded.friendSets().heapBytes());
+            for (int user = 2; user < loaded.idLimit(); user += 13) {
+                assertArrayEquals(loaded.sharedArtists(user, 2), opened.sharedArtists(user, 2));
+                assertArrayEquals(loaded.mutualFriends(user, 4), opened.mutualFriends(user, 4));
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        Path file = Files.createTempFile("snapshot", ".bin");
+        try {
+            Files.write(file, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+            assertThrows(IOException.class, () -> SnapshotFile.open(file));
+            // a version 2 snapshot, without the indexes.
+            Files.write(file, new byte[]{0x53, 0x4D, 0x46, 0x4C, 2, 0, 0, 0, 0, 0, 0, 0});
+            assertThrows(IOException.class, () -> SnapshotFile.open(file));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static void assertGraphEquals(AdjacencyStore expected, AdjacencyStore actual) {
+        assertEquals(expected.vertexCount(), actual.vertexCount());
+        assertEquals(expected.edgeCount(), actual.edgeCount());
+        assertEquals(expected.isWeighted(), actual.isWeighted());
+        for (int v = 0; v < expected.vertexCount(); v++) {
+            assertArrayEquals(expected.neighbours(v), actual.neighbours(v));
+        }
+        if (expected.isWeighted()) {
+            for (int e = 0; e < expected.edgeCount(); e++) {
+                assertEquals(expected.weight(e), actual.weight(e));
+            }
+        }
+    }
+}
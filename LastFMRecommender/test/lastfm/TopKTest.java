@@ -0,0 +1,67 @@
+// Title        :   LastFM Recommender
+// Description  :   Tests for the bounded top-k heap and the score accumulator.
+
+package lastfm;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+
+public class TopKTest {
+
+    @Test
+    public void keepsHighestScoresBestFirst() {
+        TopK top = new TopK(3);
+        double[] scores = {5, 1, 9, 7, 3, 8};
+        for (int id = 0; id < scores.length; id++) {
+            top.offer(id, scores[id]);
+        }
+        assertEquals(Arrays.asList(new ScoredArtist(2, 9), new ScoredArtist(5, 8), new ScoredArtist(3, 7)),
+                top.drain());
+        assertEquals(0, top.size());
+    }
+
+    @Test
+    public void equalScoresAreKeptAndOrderedById() {
+        TopK top = new TopK(3);
+        top.offer(40, 10);
+        top.offer(12, 10);
+        top.offer(33, 10);
+        top.offer(7, 10);
+        assertEquals(Arrays.asList(new ScoredArtist(7, 10), new ScoredArtist(12, 10), new ScoredArtist(33, 10)),
+                top.drain());
+    }
+
+    @Test
+    public void accumulatorSumsAndResets() {
+        ScoreAccumulator weights = new ScoreAccumulator(4);
+        weights.add(2, 5);
+        weights.add(10, 3);
+        weights.add(2, 4);
+        assertEquals(2, weights.size());
+        assertEquals(9, weights.get(2), 0);
+
+        List<ScoredArtist> top = weights.topK(10);
+        assertEquals(Arrays.asList(new ScoredArtist(2, 9), new ScoredArtist(10, 3)), top);
+
+        weights.reset();
+        assertEquals(0, weights.size());
+        assertEquals(0, weights.get(10), 0);
+        assertTrue(weights.topK(5).isEmpty());
+    }
+
+    @Test
+    public void recommenderTop10MatchesSampleData() {
+        Recommender recommender = new Recommender("user_friends.dat", "user_artists.dat", "artists.dat");
+        List<ScoredArtist> top = recommender.topArtists(10);
+        assertEquals(new ScoredArtist(289, 2393140), top.get(0));
+        assertEquals(new ScoredArtist(300, 532545), top.get(9));
+
+        List<ScoredArtist> recommended = recommender.recommend(1283, 10);
+        assertEquals(new ScoredArtist(289, 250878), recommended.get(0));
+        assertEquals(new ScoredArtist(292, 51236), recommended.get(9));
+    }
+}
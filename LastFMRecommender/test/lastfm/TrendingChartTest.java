@@ -0,0 +1,171 @@
+// Title        :   LastFM Recommender
+// Description  :   Tests for the streaming, time-decayed trending charts.
+
+package lastfm;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+public class TrendingChartTest {
+
+    // friends: 1-2, 1-3; user 4 has none.
+    private static CSRGraph friends() {
+        return CSRGraph.fromEdges(new int[]{1, 2, 1, 3}, new int[]{2, 1, 3, 1}, null, 4);
+    }
+
+    private static TrendingChart chart(long halfLifeMillis) {
+        return new TrendingChart(friends(), halfLifeMillis, 4, 1 << 12, 16);
+    }
+
+    @Test
+    public void scoresHalveEveryHalfLife() {
+        TrendingChart chart = chart(1000);
+        chart.record(2, 10, 8, 5000);
+        chart.record(2, 20, 2, 6000);
+        List<ScoredArtist> now = chart.trending(2);
+        assertEquals(10, now.get(0).artist());
+        assertEquals(4, now.get(0).score(), 1e-12);
+        assertEquals(2, now.get(1).score(), 1e-12);
+        List<ScoredArtist> later = chart.trending(2, 8000);
+        assertEquals(10, later.get(0).artist());
+        assertEquals(1, later.get(0).score(), 1e-12);
+        assertEquals(0.5, later.get(1).score(), 1e-12);
+        assertEquals(4, chart.trendingAmongFriends(1, 1).get(0).score(), 1e-12);
+    }
+
+    @Test
+    public void followsTheExactDecayedScoresAcrossRescales() {
+        // a long tail of 5000 artists played once each in turn, one play a millisecond, and five
+        // heavy artists played every 10ms. two million milliseconds are over 2000 half-lives, so
+        // the landmark moves several times.
+        long halfLife = 1000;
+        TrendingChart chart = chart(halfLife);
+        int events = 2_000_000;
+        double[] exact = new double[5];
+        for (int t = 0; t < events; t++) {
+            chart.record(4, 5 + t % 5000, 1, t);
+            if (t % 10 == 0) {
+                for (int a = 0; a < 5; a++) {
+                    chart.record(4, a, 5 - a, t);
+                }
+            }
+        }
+        long now = events - 1;
+        for (int t = 0; t < events; t += 10) {
+            for (int a = 0; a < 5; a++) {
+                exact[a] += (5 - a) * Math.pow(2, -(double) (now - t) / halfLife);
+            }
+        }
+        List<ScoredArtist> top = chart.trending(5);
+        assertEquals(5, top.size());
+        for (int a = 0; a < 5; a++) {
+            assertEquals(a, top.get(a).artist());
+            // a count-min estimate never undercounts, and overcounts by a fraction of the total.
+            assertTrue(top.get(a).score() >= exact[a] * (1 - 1e-9), "artist " + a);
+            assertEquals(exact[a], top.get(a).score(), exact[a] * 0.05, "artist " + a);
+        }
+    }
+
+    @Test
+    public void friendChartsCountOnlyFriendsPlays() {
+        TrendingChart chart = chart(60_000);
+        chart.record(2, 10, 5, 0);
+        chart.record(3, 20, 3, 0);
+        chart.record(1, 30, 100, 0);
+        chart.record(4, 40, 7, 0);
+
+        assertEquals(List.of(new ScoredArtist(10, 5), new ScoredArtist(20, 3)), chart.trendingAmongFriends(1, 5));
+        assertEquals(List.of(new ScoredArtist(30, 100)), chart.trendingAmongFriends(2, 5));
+        assertTrue(chart.trendingAmongFriends(4, 5).isEmpty());
+        assertTrue(chart.trendingAmongFriends(99, 5).isEmpty());
+        assertEquals(30, chart.trending(1).get(0).artist());
+    }
+
+    @Test
+    public void hubPlaysAreMergedWhenAFriendChartIsRead() {
+        // user 0 is a hub with friends 1..hubFriends; user 1 is also friends with user 2.
+        int hubFriends = TrendingChart.FAN_OUT_LIMIT + 10;
+        int[] from = new int[2 * hubFriends + 2];
+        int[] to = new int[2 * hubFriends + 2];
+        for (int f = 1; f <= hubFriends; f++) {
+            from[2 * f - 2] = 0;
+            to[2 * f - 2] = f;
+            from[2 * f - 1] = f;
+            to[2 * f - 1] = 0;
+        }
+        from[2 * hubFriends] = 1;
+        to[2 * hubFriends] = 2;
+        from[2 * hubFriends + 1] = 2;
+        to[2 * hubFriends + 1] = 1;
+        TrendingChart chart = new TrendingChart(CSRGraph.fromEdges(from, to, null, from.length), 60_000, 4,
+                1 << 12, 16);
+        long before = chart.heapBytes();
+
+        chart.record(0, 10, 5, 0);
+        long oneSummary = chart.heapBytes() - before;
+        chart.record(2, 10, 2, 0);
+        chart.record(2, 20, 4, 0);
+        // the hub's event made one summary, not one per friend; user 2's made those of 0 and 1.
+        assertTrue(oneSummary > 0);
+        assertEquals(before + 3 * oneSummary, chart.heapBytes());
+
+        assertEquals(List.of(new ScoredArtist(10, 7), new ScoredArtist(20, 4)), chart.trendingAmongFriends(1, 5));
+        assertEquals(List.of(new ScoredArtist(10, 5)), chart.trendingAmongFriends(2, 5));
+        assertEquals(List.of(new ScoredArtist(10, 5)), chart.trendingAmongFriends(hubFriends, 5));
+        assertEquals(List.of(new ScoredArtist(20, 4), new ScoredArtist(10, 2)), chart.trendingAmongFriends(0, 5));
+        assertEquals(List.of(new ScoredArtist(10, 7)), chart.trendingAmongFriends(1, 1));
+    }
+
+    @Test
+    public void concurrentIngestMatchesOneThread() throws InterruptedException {
+        // fewer artists than candidates and friend slots, so both charts are exact.
+        int events = 200_000;
+        TrendingChart serial = chart(10_000);
+        for (int i = 0; i < events; i++) {
+            serial.record(1 + i % 4, i % 12, 1 + i % 3, i);
+        }
+        TrendingChart concurrent = chart(10_000);
+        int threads = 4;
+        List<Thread> started = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int first = t;
+            Thread thread = new Thread(() -> {
+                for (int i = first; i < events; i += threads) {
+                    concurrent.record(1 + i % 4, i % 12, 1 + i % 3, i);
+                }
+            });
+            thread.start();
+            started.add(thread);
+        }
+        for (Thread thread : started) {
+            thread.join();
+        }
+        assertSameScores(serial.trending(10), concurrent.trending(10));
+        for (int user = 1; user <= 4; user++) {
+            assertSameScores(serial.trendingAmongFriends(user, 10), concurrent.trendingAmongFriends(user, 10));
+        }
+    }
+
+    private static void assertSameScores(List<ScoredArtist> expected, List<ScoredArtist> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            // the sums are the same up to the order of the additions.
+            assertEquals(expected.get(i).score(), actual.get(i).score(), expected.get(i).score() * 1e-9);
+        }
+    }
+
+    @Test
+    public void rejectsInvalidArguments() {
+        TrendingChart chart = chart(1000);
+        assertThrows(IllegalArgumentException.class, () -> chart.record(1, -1, 1, 0));
+        assertThrows(IllegalArgumentException.class, () -> chart.record(1, 10, -1, 0));
+        assertThrows(IllegalArgumentException.class, () -> chart.trending(-1));
+        assertThrows(IllegalArgumentException.class, () -> chart.trendingAmongFriends(1, -1));
+        assertThrows(IllegalArgumentException.class, () -> new TrendingChart(friends(), 0, 4, 1 << 12, 16));
+        assertThrows(IllegalArgumentException.class, () -> new CountMinSketch(4, 1000, 1));
+    }
+}